@@ -1,3 +1,5 @@
+drop table Checkpoints;
+drop table IDSequences;
 drop table NotePermissions;
 drop table Permissions;
 drop table NoteTags;
@@ -5,6 +7,7 @@ drop table TagSubscribers;
 drop table Tags;
 drop table NoteMetaData;
 drop table Notes;
+drop table FSClosure;
 drop table FSStructure;
 drop table Notebooks;
 drop table FSObjects;
@@ -60,6 +63,7 @@ create table FSObjects(
 	typeName varchar(20),
 
 	primary key (objectID),
+	index (objectName, objectID),
 	foreign key (typeName) references FSObjectType (typeName)
 );
 
@@ -75,17 +79,38 @@ create table FSStructure(
 	child int,
 
 	primary key(child),
+	index (parent, child),
 	foreign key(parent) references Notebooks(notebookID) on delete cascade,
 	foreign key(child) references FSObjects(objectID) on delete cascade
 );
 
+-- Every (ancestor, descendant) pair in the file system, with the number of levels
+-- between them. Each notebook is also its own ancestor at depth 0. Kept in step with
+-- FSStructure by the DAO when notebooks and notes are added.
+create table FSClosure(
+	ancestor int,
+	descendant int,
+	depth int,
+
+	primary key (ancestor, descendant),
+	index (descendant, depth),
+	foreign key (ancestor) references Notebooks(notebookID) on delete cascade,
+	foreign key (descendant) references FSObjects(objectID) on delete cascade
+);
+
+-- lastModified is set by the client. written is when the server last wrote any row of
+-- the note, in milliseconds since the epoch by its own clock, so that changes can be
+-- found by when they were made rather than by the time the client put on them.
 create table Notes(
 	noteID int,
 	author int,
 	created datetime,
 	lastModified datetime,
+	written bigint,
 
 	primary key (noteID),
+	index (lastModified, noteID),
+	index (written, noteID),
 	foreign key (noteID) references FSObjects(objectID) on delete cascade,
 	foreign key (author) references Users(userID) on delete cascade
 );
@@ -96,6 +121,7 @@ create table NoteMetaData(
 	fieldData varchar(200),
 	
 	primary key (noteID, fieldName),
+	index (fieldName, fieldData, noteID),
 	foreign key (noteID) references Notes(noteID) on delete cascade
 );
 
@@ -140,6 +166,22 @@ create table NotePermissions(
 	foreign key (permission) references Permissions(permission) on delete cascade
 );
 
+create table IDSequences(
+	sequenceName varchar(50),
+	nextID int,
+	
+	primary key (sequenceName)
+);
+
+-- How far each background job that reads the change history has got, so that it can
+-- carry on from there after a restart. Watermarks are in milliseconds since the epoch.
+create table Checkpoints(
+	checkpointName varchar(50),
+	watermark bigint,
+	
+	primary key (checkpointName)
+);
+
 insert into FSObjectType (typeName) values ('note');
 insert into FSObjectType (typeName) values ('notebook');
 
@@ -148,3 +190,6 @@ insert into Permissions (permission) values ('write');
 
 insert into FSObjects (objectID, objectName, typeName) values (1, 'root', 'notebook');
 insert into Notebooks (notebookID) values (1);
+insert into FSClosure (ancestor, descendant, depth) values (1, 1, 0);
+
+insert into IDSequences (sequenceName, nextID) values ('FSObjects', 2);
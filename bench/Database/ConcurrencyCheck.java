@@ -0,0 +1,268 @@
+package Database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.joda.time.DateTime;
+
+import DataModel.FSObject;
+import DataModel.Note;
+import DataModel.NoteImpl;
+import DataModel.NotebookImpl;
+
+/**
+ * Checks that DBAccessImpl's writes stay correct when made from many threads at once.
+ * blacknote.check.threads threads (8 by default) each add blacknote.check.notes notes
+ * (400 by default) into a notebook they all share and as many into a notebook of their
+ * own, alternating between addNote and addNotes. Afterwards every notebook must list
+ * exactly the notes added to it, no ID may have been handed out twice, and every note
+ * must have one closure row for each of its notebook's ancestors and for the notebook.
+ * Prints what it found and exits with 1 if anything is wrong.
+ * <p>
+ * Runs against the database blacknote.db.url points at, adding notebooks below the
+ * root, without a search index. With blacknote.bench.loadSchema=true the schema is
+ * loaded first, as for {@link DBBenchmark}, which drops every table and its data.
+ */
+public final class ConcurrencyCheck {
+
+	private static final int THREADS = Integer.getInteger("blacknote.check.threads", 8);
+
+	private static final int NOTES = Integer.getInteger("blacknote.check.notes", 400);
+
+	/**
+	 * The number of notes in each addNotes call.
+	 */
+	private static final int BATCH = 10;
+
+	private static final String SCHEMA_FILE = System.getProperty("blacknote.bench.schema",
+			"SQLFiles/Tables.sql");
+
+	private static final String SELECT_ANCESTORS = "select ancestor, depth from " +
+			DBAccessImpl.SCHEMA_NAME + ".FSClosure where descendant = ?";
+
+	private final DBAccessImpl db;
+
+	private final SQLInterface sql;
+
+	private final int author;
+
+	/**
+	 * Every problem found.
+	 */
+	private final List<String> problems = Collections.synchronizedList(
+			new ArrayList<String>());
+
+
+	ConcurrencyCheck(DBAccessImpl db, SQLInterface sql, int author){
+		this.db = db;
+		this.sql = sql;
+		this.author = author;
+	}
+
+
+	/**
+	 * Runs the check.
+	 * @return the problems found, none if the writes were correct
+	 */
+	List<String> run() throws Exception {
+		String run = "check-" + System.currentTimeMillis();
+		final int shared = db.addNotebook(DBAccessImpl.ROOT_NOTEBOOK_ID, new NotebookImpl(0,
+				run, new ArrayList<FSObject>()));
+		final int[] own = new int[THREADS];
+		for(int t = 0; t < THREADS; t++){
+			own[t] = db.addNotebook(shared, new NotebookImpl(0, run + "-" + t,
+					new ArrayList<FSObject>()));
+		}
+
+		final List<List<Integer>> addedToShared = new ArrayList<List<Integer>>();
+		final List<List<Integer>> addedToOwn = new ArrayList<List<Integer>>();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[THREADS];
+		for(int t = 0; t < THREADS; t++){
+			final int thread = t;
+			final List<Integer> toShared = new ArrayList<Integer>(NOTES);
+			final List<Integer> toOwn = new ArrayList<Integer>(NOTES);
+			addedToShared.add(toShared);
+			addedToOwn.add(toOwn);
+			workers[t] = new Thread("ConcurrencyCheck-" + t){
+				@Override
+				public void run(){
+					try{
+						start.await();
+						add(shared, thread, toShared);
+						add(own[thread], thread, toOwn);
+					}
+					catch(Exception e){
+						problems.add("thread " + thread + " failed: " + e);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		long startNanos = System.nanoTime();
+		start.countDown();
+		for(Thread worker: workers){
+			worker.join();
+		}
+		System.out.println(THREADS + " threads added " + (2 * THREADS * NOTES) +
+				" notes in " + (System.nanoTime() - startNanos) / 1000000 + " ms");
+
+		// No ID handed out twice
+		Set<Integer> all = new HashSet<Integer>();
+		int added = 0;
+		for(int t = 0; t < THREADS; t++){
+			all.addAll(addedToShared.get(t));
+			all.addAll(addedToOwn.get(t));
+			added += addedToShared.get(t).size() + addedToOwn.get(t).size();
+		}
+		all.add(shared);
+		for(int id: own){
+			all.add(id);
+		}
+		if(all.size() != added + 1 + THREADS){
+			problems.add((added + 1 + THREADS - all.size()) + " IDs were handed out twice");
+		}
+
+		// Every notebook lists exactly what was added to it. The shared notebook also
+		// lists the threads' own notebooks.
+		Set<Integer> expected = new HashSet<Integer>();
+		for(int t = 0; t < THREADS; t++){
+			expected.addAll(addedToShared.get(t));
+			expected.add(own[t]);
+		}
+		checkChildren(shared, expected);
+		for(int t = 0; t < THREADS; t++){
+			checkChildren(own[t], new HashSet<Integer>(addedToOwn.get(t)));
+		}
+
+		for(int t = 0; t < THREADS; t++){
+			for(int id: addedToShared.get(t)){
+				checkClosure(shared, id);
+			}
+			for(int id: addedToOwn.get(t)){
+				checkClosure(own[t], id);
+			}
+		}
+		return problems;
+	}
+
+
+	/**
+	 * Adds the thread's notes to a notebook, alternating between one note at a time and
+	 * a batch at a time.
+	 * @param added receives the IDs of the notes added
+	 */
+	private void add(int notebookID, int thread, List<Integer> added) throws Exception {
+		while(added.size() < NOTES){
+			if((added.size() / BATCH) % 2 == 0){
+				added.add(db.addNote(notebookID, makeNote(notebookID, thread, added.size()),
+						null));
+				continue;
+			}
+			List<Note> batch = new ArrayList<Note>(BATCH);
+			for(int i = 0; i < BATCH && added.size() + i < NOTES; i++){
+				batch.add(makeNote(notebookID, thread, added.size() + i));
+			}
+			added.addAll(db.addNotes(notebookID, batch, null));
+		}
+	}
+
+
+	private Note makeNote(int notebookID, int thread, int n){
+		DateTime now = new DateTime();
+		return new NoteImpl.NoteBuilder().setName(notebookID + "-" + thread + "-" + n)
+				.setAuthor(author).setCreated(now).setModified(now).build();
+	}
+
+
+	private void checkChildren(int notebookID, Set<Integer> expected) throws DBException {
+		final Set<Integer> listed = new HashSet<Integer>();
+		final int[] count = new int[1];
+		db.streamChildren(notebookID, new ResultHandler<FSObject>(){
+			@Override
+			public boolean handle(FSObject child){
+				listed.add(child.getID());
+				count[0]++;
+				return true;
+			}
+		});
+		if(count[0] != expected.size() || !listed.equals(expected)){
+			problems.add("notebook " + notebookID + " lists " + count[0] +
+					" children rather than the " + expected.size() + " added to it");
+		}
+	}
+
+
+	/**
+	 * Checks that a note is below exactly its notebook and the notebook's ancestors, one
+	 * level further down than the notebook.
+	 */
+	private void checkClosure(int notebookID, int noteID) throws SQLException {
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		for(Map.Entry<Integer, Integer> e: ancestors(notebookID).entrySet()){
+			expected.put(e.getKey(), e.getValue() + 1);
+		}
+		Map<Integer, Integer> actual = ancestors(noteID);
+		if(!actual.equals(expected)){
+			problems.add("note " + noteID + " has closure rows " + actual + " rather than " +
+					expected);
+		}
+	}
+
+
+	/**
+	 * @return the depth below each ancestor of an object, from the closure table
+	 */
+	private Map<Integer, Integer> ancestors(int objectID) throws SQLException {
+		Map<Integer, Integer> ancestors = new HashMap<Integer, Integer>();
+		SQLConnection conn = sql.getConnection();
+		ResultSet rs = null;
+		try{
+			PreparedStatement stmt = conn.prepare(SELECT_ANCESTORS);
+			stmt.setInt(1, objectID);
+			rs = stmt.executeQuery();
+			while(rs.next()){
+				ancestors.put(rs.getInt(1), rs.getInt(2));
+			}
+		}
+		finally{
+			SQLInterface.close(rs);
+			sql.releaseConnection(conn);
+		}
+		return ancestors;
+	}
+
+
+	/**
+	 * Runs the check:
+	 * <pre>
+	 * ConcurrencyCheck
+	 * </pre>
+	 * Needs the blacknote.db.* properties, so point them at a scratch database.
+	 */
+	public static void main(String[] args) throws Exception {
+		SQLInterface sql = SQLInterface.getSQLInterface();
+		if(Boolean.getBoolean("blacknote.bench.loadSchema")){
+			DBBenchmark.loadSchema(sql, SCHEMA_FILE);
+		}
+		DBAccessImpl db = new DBAccessImpl(null, false);
+		int author = new DBBenchmark(db, 0, 0).ensureBenchUser(sql);
+
+		List<String> problems = new ConcurrencyCheck(db, sql, author).run();
+		for(String problem: problems){
+			System.out.println(problem);
+		}
+		System.out.println(problems.isEmpty() ? "OK" : problems.size() + " problems");
+		System.exit(problems.isEmpty() ? 0 : 1);
+	}
+
+}
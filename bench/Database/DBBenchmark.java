@@ -0,0 +1,849 @@
+package Database;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.joda.time.DateTime;
+
+import DataModel.FSObject;
+import DataModel.FSObjectType;
+import DataModel.Note;
+import DataModel.NoteImpl;
+import DataModel.Notebook;
+import DataModel.NotebookImpl;
+import DataModel.Tag;
+import DataModel.TagImpl;
+import DataModel.User;
+import Utilities.JSON;
+import Utilities.JSONWriter;
+
+/**
+ * Measures the throughput, allocation and garbage collection of the hot DBAccessImpl
+ * calls and of the JSON encoding the servlets do with their results. Each benchmark runs
+ * for blacknote.bench.warmupSeconds (5 by default) to let the JIT and the connection pool
+ * settle, then for blacknote.bench.measureSeconds (10 by default), on one thread and on
+ * blacknote.bench.threads threads (4 by default). Notebooks are read and encoded at each
+ * fan-out in blacknote.bench.fanOuts (10, 100 and 1000 children by default), and a
+ * notebook of blacknote.bench.largeFanOut children (100000 by default) is also encoded
+ * the way JSON did before it streamed through JSONWriter, into a String, and streamed
+ * to a Writer, the way the servlets send it. A tree of
+ * blacknote.bench.treeFolders notebooks (10000 by default), ten below each, is read
+ * whole with getNotebookTree and with one getNotebook call per notebook.
+ * findNotesByMetadata is measured over blacknote.bench.metadataNotes notes (10000 by
+ * default) from the in-memory index, or from the database when the benchmark is run
+ * with blacknote.index.metadata=false; run it both ways to compare them.
+ * <p>
+ * The database calls run against the database blacknote.db.url points at, through
+ * DBAccessImpl itself rather than the cache in front of it, and add notebooks and notes
+ * below the root. The DAO is made without a search index, so the benchmark leaves the
+ * index in blacknote.search.dir alone and its writes don't pay for indexing. With blacknote.bench.loadSchema=true, SQLFiles/Tables.sql (or the file
+ * blacknote.bench.schema names) is run first, which drops every table and its data, so
+ * the benchmark can be pointed at a scratch database, e.g. an in-memory one whose driver
+ * is on the classpath, and start from the same state each time.
+ * <p>
+ * Allocation is read from the JVM's per-thread allocation counters where it has them,
+ * and is reported as -1 where it doesn't.
+ * <p>
+ * Lives in the bench source folder, which is compiled to build/bench-classes rather
+ * than build/classes, so it is never deployed with the web app. It shares the Database
+ * package to reach DBAccessImpl.
+ */
+public final class DBBenchmark {
+
+	private static final long WARMUP_MILLIS = Long.getLong("blacknote.bench.warmupSeconds", 5)
+			* 1000;
+	private static final long MEASURE_MILLIS = Long.getLong("blacknote.bench.measureSeconds",
+			10) * 1000;
+	private static final int THREADS = Integer.getInteger("blacknote.bench.threads", 4);
+
+	private static final String FAN_OUTS = System.getProperty("blacknote.bench.fanOuts",
+			"10,100,1000");
+
+	private static final String SCHEMA_FILE = System.getProperty("blacknote.bench.schema",
+			"SQLFiles/Tables.sql");
+
+	private static final String BENCH_USER = "bench", BENCH_PASS = "bench";
+
+	private static final String SELECT_MAX_ENTITY = "select max(userEntityID) from " +
+			DBAccessImpl.SCHEMA_NAME + ".UserEntities";
+
+	private static final String INSERT_ENTITY = "insert into " + DBAccessImpl.SCHEMA_NAME +
+			".UserEntities (userEntityID) values (?)";
+
+	private static final String INSERT_USER = "insert into " + DBAccessImpl.SCHEMA_NAME +
+			".Users (userID, userName, pass, email) values (?, ?, ?, ?)";
+
+	private static final int LARGE_FAN_OUT = Integer.getInteger(
+			"blacknote.bench.largeFanOut", 100000);
+
+	private static final int TREE_FOLDERS = Integer.getInteger("blacknote.bench.treeFolders",
+			10000);
+
+	/**
+	 * The number of notebooks below each notebook of the tree.
+	 */
+	private static final int TREE_FAN_OUT = 10;
+
+	private static final int METADATA_NOTES = Integer.getInteger(
+			"blacknote.bench.metadataNotes", 10000);
+
+	/**
+	 * Whether DBAccessImpl answers metadata queries from memory, read as it reads it.
+	 */
+	private static final boolean METADATA_INDEX = Boolean.parseBoolean(
+			System.getProperty("blacknote.index.metadata", "true"));
+
+	/**
+	 * The most IDs each metadata query returns.
+	 */
+	private static final int METADATA_LIMIT = 100;
+
+	/**
+	 * The notes updateNote rewrites, spread over the threads.
+	 */
+	private static final int UPDATE_POOL = 1000;
+
+
+	/**
+	 * A call being measured.
+	 */
+	interface Operation {
+
+		/**
+		 * @param thread the index of the calling thread, from 0
+		 * @param iteration the number of calls this thread has made before this one
+		 */
+		public void run(int thread, long iteration) throws Exception;
+	}
+
+
+	/**
+	 * What one run of a benchmark measured.
+	 */
+	static final class Result {
+
+		final String name;
+
+		final int threads;
+
+		final long operations, elapsedNanos, allocatedBytes, gcCount, gcMillis;
+
+		Result(String name, int threads, long operations, long elapsedNanos,
+				long allocatedBytes, long gcCount, long gcMillis){
+			this.name = name;
+			this.threads = threads;
+			this.operations = operations;
+			this.elapsedNanos = elapsedNanos;
+			this.allocatedBytes = allocatedBytes;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+		}
+
+		double getOperationsPerSecond(){
+			return elapsedNanos == 0 ? 0 : operations * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @return the mean time a call took on one thread
+		 */
+		double getMicrosPerOperation(){
+			return operations == 0 ? 0 : elapsedNanos * threads / 1e3 / operations;
+		}
+
+		/**
+		 * @return the bytes allocated per call, or -1 if the JVM doesn't count them
+		 */
+		long getBytesPerOperation(){
+			if(allocatedBytes < 0 || operations == 0){
+				return -1;
+			}
+			return allocatedBytes / operations;
+		}
+
+		public String toString(){
+			return String.format("%-28s threads=%-3d ops/s=%-10.0f us/op=%-9.1f B/op=%-9d " +
+					"gc=%d (%d ms)", name, threads, getOperationsPerSecond(),
+					getMicrosPerOperation(), getBytesPerOperation(), gcCount, gcMillis);
+		}
+	}
+
+
+	private final DBAccessImpl db;
+
+	private final long warmupMillis, measureMillis;
+
+
+	/**
+	 * @param db the database calls to measure
+	 * @param warmupMillis how long each benchmark runs before it is measured
+	 * @param measureMillis how long each benchmark is measured for
+	 */
+	DBBenchmark(DBAccessImpl db, long warmupMillis, long measureMillis){
+		this.db = db;
+		this.warmupMillis = warmupMillis;
+		this.measureMillis = measureMillis;
+	}
+
+
+	/**
+	 * Runs an operation on the given number of threads, first to warm up and then to
+	 * measure it, and prints the result.
+	 * @param name the name of the benchmark
+	 * @param threads the number of threads calling the operation at once
+	 * @param op the operation
+	 * @return the result
+	 * @throws Exception if the operation threw, on any thread
+	 */
+	Result run(String name, int threads, Operation op) throws Exception {
+		runFor(threads, op, warmupMillis, null);
+
+		long[] allocated = new long[threads];
+		long gcCountBefore = getGCCount(), gcMillisBefore = getGCMillis();
+		long start = System.nanoTime();
+		long operations = runFor(threads, op, measureMillis, allocated);
+		long elapsed = System.nanoTime() - start;
+
+		long allocatedBytes = 0;
+		for(long bytes: allocated){
+			if(bytes < 0){
+				allocatedBytes = -1;
+				break;
+			}
+			allocatedBytes += bytes;
+		}
+		Result result = new Result(name, threads, operations, elapsed, allocatedBytes,
+				getGCCount() - gcCountBefore, getGCMillis() - gcMillisBefore);
+		System.out.println(result);
+		return result;
+	}
+
+
+	/**
+	 * Calls the operation from each thread until the time is up.
+	 * @param allocated where each thread puts the bytes it allocated, or null
+	 * @return the number of calls made
+	 */
+	private long runFor(int threads, final Operation op, final long millis,
+			final long[] allocated) throws Exception {
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch go = new CountDownLatch(1);
+		final long[] counts = new long[threads];
+		final Exception[] failures = new Exception[threads];
+		Thread[] workers = new Thread[threads];
+
+		for(int i = 0; i < threads; i++){
+			final int thread = i;
+			workers[i] = new Thread("DBBenchmark-" + i){
+				@Override
+				public void run(){
+					ready.countDown();
+					try{
+						go.await();
+						long allocatedBefore = getAllocatedBytes();
+						long deadline = System.nanoTime() + millis * 1000000L;
+						long n = 0;
+						while(System.nanoTime() < deadline){
+							op.run(thread, n);
+							n++;
+						}
+						counts[thread] = n;
+						if(allocated != null){
+							long allocatedAfter = getAllocatedBytes();
+							allocated[thread] = allocatedBefore < 0 ? -1 :
+									allocatedAfter - allocatedBefore;
+						}
+					}
+					catch(Exception e){
+						failures[thread] = e;
+					}
+				}
+			};
+			workers[i].start();
+		}
+
+		ready.await();
+		go.countDown();
+		long total = 0;
+		for(int i = 0; i < threads; i++){
+			workers[i].join();
+			if(failures[i] != null){
+				throw failures[i];
+			}
+			total += counts[i];
+		}
+		return total;
+	}
+
+
+	/**
+	 * @return the bytes the calling thread has allocated so far, or -1 if the JVM doesn't
+	 * count them
+	 */
+	private static long getAllocatedBytes(){
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean)){
+			return -1;
+		}
+		com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+		if(!counting.isThreadAllocatedMemorySupported() ||
+				!counting.isThreadAllocatedMemoryEnabled()){
+			return -1;
+		}
+		return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+
+	private static long getGCCount(){
+		long count = 0;
+		for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()){
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+
+	private static long getGCMillis(){
+		long millis = 0;
+		for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()){
+			millis += Math.max(gc.getCollectionTime(), 0);
+		}
+		return millis;
+	}
+
+
+	/**
+	 * Measures encoding notebooks of each fan-out and a single note as JSON. Needs no
+	 * database.
+	 */
+	void benchmarkJSON(int[] fanOuts, int author) throws Exception {
+		final Note note = makeNote("json", 0, author);
+		for(int threads: new int[]{1, THREADS}){
+			run("JSON.encodeNote", threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration){
+					JSON.encodeNoteAsJSON(note);
+				}
+			});
+		}
+
+		for(int fanOut: fanOuts){
+			List<FSObject> children = new ArrayList<FSObject>(fanOut);
+			for(int i = 0; i < fanOut; i++){
+				children.add(makeNote("json", i, author));
+			}
+			final NotebookImpl book = new NotebookImpl(1, "json-" + fanOut, children);
+			for(int threads: new int[]{1, THREADS}){
+				run("JSON.encodeNotebook/" + fanOut, threads, new Operation(){
+					@Override
+					public void run(int thread, long iteration){
+						JSON.encodeNotebookAsJSON(book);
+					}
+				});
+			}
+		}
+	}
+
+
+	/**
+	 * Measures encoding a notebook with a very large number of children: by string
+	 * concatenation, the way JSON used to encode it, into a String through JSONWriter,
+	 * and streamed through JSONWriter to a Writer that discards it, standing in for the
+	 * servlet response. Needs no database.
+	 */
+	void benchmarkLargeJSON(int author) throws Exception {
+		List<FSObject> children = new ArrayList<FSObject>(LARGE_FAN_OUT);
+		for(int i = 0; i < LARGE_FAN_OUT; i++){
+			children.add(makeNote("json", i, author));
+		}
+		final NotebookImpl book = new NotebookImpl(1, "json-" + LARGE_FAN_OUT, children);
+		for(int threads: new int[]{1, THREADS}){
+			run("JSON.concatNotebook/" + LARGE_FAN_OUT, threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration){
+					concatNotebook(book);
+				}
+			});
+			run("JSON.encodeNotebook/" + LARGE_FAN_OUT, threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration){
+					JSON.encodeNotebookAsJSON(book);
+				}
+			});
+			run("JSON.writeNotebook/" + LARGE_FAN_OUT, threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration) throws Exception {
+					JSONWriter out = new JSONWriter(new DiscardingWriter());
+					JSON.writeNotebook(book, out);
+					out.flush();
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * Encodes a notebook the way JSON.encodeNotebookAsJSON did before it streamed
+	 * through JSONWriter, as the baseline for {@link #benchmarkLargeJSON(int)}. Doesn't
+	 * escape anything.
+	 */
+	private static String concatNotebook(Notebook book){
+		StringBuilder sb = new StringBuilder();
+		sb.append("{");
+		sb.append("\"id\":" + book.getID() + ", ");
+		sb.append("\"children\":[");
+
+		boolean first = true;
+		for(FSObject obj: book.getChildren()){
+			if(!first){
+				sb.append(", ");
+			}
+			sb.append("{");
+			sb.append("\"id\":" + obj.getID() + ", ");
+			sb.append("\"name\":\"" + obj.getName() + "\", ");
+			sb.append("\"type\":\"" + obj.getType().toString() + "\"");
+			sb.append("}");
+
+			first = false;
+		}
+
+		sb.append("]");
+		sb.append("}");
+
+		return sb.toString();
+	}
+
+
+	/**
+	 * A Writer that throws away what is written to it.
+	 */
+	private static final class DiscardingWriter extends Writer {
+
+		@Override
+		public void write(char[] cbuf, int off, int len){
+		}
+
+		@Override
+		public void write(String str, int off, int len){
+		}
+
+		@Override
+		public void flush(){
+		}
+
+		@Override
+		public void close(){
+		}
+	}
+
+
+	/**
+	 * Measures userDoesExist for a user that exists.
+	 */
+	void benchmarkUsers() throws Exception {
+		for(int threads: new int[]{1, THREADS}){
+			run("userDoesExist", threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration) throws Exception {
+					if(db.userDoesExist(BENCH_USER, BENCH_PASS) == null){
+						throw new IllegalStateException("Benchmark user not found");
+					}
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * Measures adding notes one at a time to a notebook of their own, and reading
+	 * notebooks of each fan-out.
+	 */
+	void benchmarkNotebooks(int[] fanOuts, final int author) throws Exception {
+		for(int threads: new int[]{1, THREADS}){
+			final int parent = db.addNotebook(1, new NotebookImpl(0,
+					"bench-add-" + threads + "-" + System.currentTimeMillis(),
+					new ArrayList<FSObject>()));
+			run("addNote", threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration) throws Exception {
+					db.addNote(parent, makeNote("add-" + thread, iteration, author), null);
+				}
+			});
+		}
+
+		for(int fanOut: fanOuts){
+			final int notebookID = makeNotebook("bench-read-" + fanOut, fanOut, author);
+			for(int threads: new int[]{1, THREADS}){
+				run("getNotebook/" + fanOut, threads, new Operation(){
+					@Override
+					public void run(int thread, long iteration) throws Exception {
+						db.getNotebook(notebookID);
+					}
+				});
+			}
+		}
+	}
+
+
+	/**
+	 * Measures reading a whole tree of notebooks with getNotebookTree, which takes the
+	 * same number of queries however big the tree is, against walking it with a
+	 * getNotebook call per notebook.
+	 */
+	void benchmarkTree() throws Exception {
+		final int rootID = makeTree("bench-tree", TREE_FOLDERS);
+		final int size = TREE_FOLDERS + 1;
+		for(int threads: new int[]{1, THREADS}){
+			run("getNotebookTree/" + TREE_FOLDERS, threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration) throws Exception {
+					int read = countNotebooks(db.getNotebookTree(rootID, Integer.MAX_VALUE));
+					if(read != size){
+						throw new IllegalStateException("Read " + read + " of " + size +
+								" notebooks");
+					}
+				}
+			});
+			run("getNotebook/recursive/" + TREE_FOLDERS, threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration) throws Exception {
+					int read = readRecursively(rootID);
+					if(read != size){
+						throw new IllegalStateException("Read " + read + " of " + size +
+								" notebooks");
+					}
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * Measures findNotesByMetadata with one selective field, matching about one note in
+	 * 500, and with two broad fields, matching about one in 20 and one in 3, which are
+	 * intersected.
+	 */
+	void benchmarkMetadata(int author) throws Exception {
+		makeNotebook("bench-metadata", METADATA_NOTES, author);
+		String from = METADATA_INDEX ? "memory" : "sql";
+		for(int threads: new int[]{1, THREADS}){
+			run("findNotesByMetadata/1/" + from, threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration) throws Exception {
+					Map<String, String> predicates = new HashMap<String, String>();
+					predicates.put("stock", "s" + (iteration % 500));
+					db.findNotesByMetadata(predicates, METADATA_LIMIT);
+				}
+			});
+			run("findNotesByMetadata/2/" + from, threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration) throws Exception {
+					Map<String, String> predicates = new HashMap<String, String>();
+					predicates.put("analyst", "a" + (iteration % 20));
+					predicates.put("rating", "buy");
+					db.findNotesByMetadata(predicates, METADATA_LIMIT);
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * Adds a notebook below the root with the given number of notebooks below it, filled
+	 * in level by level, {@link #TREE_FAN_OUT} below each.
+	 * @return the id of the notebook at the top of the tree
+	 */
+	private int makeTree(String name, int folders) throws Exception {
+		int rootID = db.addNotebook(1, new NotebookImpl(0,
+				name + "-" + System.currentTimeMillis(), new ArrayList<FSObject>()));
+		LinkedList<Integer> parents = new LinkedList<Integer>();
+		parents.add(rootID);
+		int made = 0;
+		while(made < folders){
+			int parent = parents.removeFirst();
+			for(int i = 0; i < TREE_FAN_OUT && made < folders; i++){
+				parents.add(db.addNotebook(parent, new NotebookImpl(0, name + "-" + made,
+						new ArrayList<FSObject>())));
+				made++;
+			}
+		}
+		return rootID;
+	}
+
+
+	/**
+	 * @return the number of notebooks in a tree read by getNotebookTree
+	 */
+	private static int countNotebooks(Notebook book){
+		int count = 1;
+		for(FSObject child: book.getChildren()){
+			if(child instanceof Notebook){
+				count += countNotebooks((Notebook) child);
+			}
+		}
+		return count;
+	}
+
+
+	/**
+	 * Reads a notebook and everything below it with one getNotebook call per notebook.
+	 * @return the number of notebooks read
+	 */
+	private int readRecursively(int notebookID) throws DBException {
+		int count = 1;
+		for(FSObject child: db.getNotebook(notebookID).getChildren()){
+			if(child.getType() == FSObjectType.NOTEBOOK){
+				count += readRecursively(child.getID());
+			}
+		}
+		return count;
+	}
+
+
+	/**
+	 * Measures updating notes with one metadata field changed, each thread on notes of
+	 * its own so that the threads don't wait on each other's row locks.
+	 */
+	void benchmarkUpdates(final int author) throws Exception {
+		int notebookID = makeNotebook("bench-update", UPDATE_POOL, author);
+		final List<Note> pool = new ArrayList<Note>(UPDATE_POOL);
+		for(FSObject child: db.getNotebook(notebookID).getChildren()){
+			pool.add(db.getNote(child.getID()));
+		}
+
+		for(final int threads: new int[]{1, THREADS}){
+			final int perThread = pool.size() / threads;
+			run("updateNote", threads, new Operation(){
+				@Override
+				public void run(int thread, long iteration) throws Exception {
+					Note stored = pool.get(thread * perThread + (int) (iteration % perThread));
+					Map<String, String> metadata = new HashMap<String, String>(
+							stored.getMetadata());
+					metadata.put("revision", Long.toString(iteration));
+					Note changed = new NoteImpl.NoteBuilder().setId(stored.getID())
+							.setName(stored.getName()).setAuthor(author)
+							.setCreated(stored.getCreated()).setModified(new DateTime())
+							.setMetadata(metadata).setTags(stored.getTags()).build();
+					db.updateNote(changed, null);
+				}
+			});
+		}
+		System.out.println("updateNote rows/update=" +
+				String.format("%.2f", db.getAverageRowsPerUpdate()) + ", unchanged=" +
+				String.format("%.2f", db.getUnchangedRowRatio()));
+	}
+
+
+	/**
+	 * Adds a notebook below the root holding the given number of notes.
+	 * @return the id of the notebook
+	 */
+	private int makeNotebook(String name, int fanOut, int author) throws Exception {
+		int notebookID = db.addNotebook(1, new NotebookImpl(0,
+				name + "-" + System.currentTimeMillis(), new ArrayList<FSObject>()));
+		List<Note> notes = new ArrayList<Note>(DBAccessImpl.MAX_IN_LIST);
+		for(int i = 0; i < fanOut; i++){
+			notes.add(makeNote(name, i, author));
+			if(notes.size() == DBAccessImpl.MAX_IN_LIST){
+				db.addNotes(notebookID, notes, null);
+				notes.clear();
+			}
+		}
+		if(!notes.isEmpty()){
+			db.addNotes(notebookID, notes, null);
+		}
+		return notebookID;
+	}
+
+
+	/**
+	 * Makes a note shaped like a research note: a few metadata fields and tags.
+	 */
+	private static Note makeNote(String prefix, long n, int author){
+		DateTime now = new DateTime();
+		Map<String, String> metadata = new HashMap<String, String>();
+		metadata.put("stock", "s" + (n % 500));
+		metadata.put("analyst", "a" + (n % 20));
+		metadata.put("rating", n % 3 == 0 ? "buy" : "hold");
+
+		Set<Tag> tags = new HashSet<Tag>();
+		tags.add(new TagImpl("Research"));
+		tags.add(new TagImpl("Sector " + (n % 10)));
+
+		return new NoteImpl.NoteBuilder().setName(prefix + "-" + n).setAuthor(author)
+				.setCreated(now).setModified(now).setMetadata(metadata).setTags(tags).build();
+	}
+
+
+	/**
+	 * Runs the statements of a schema file, such as SQLFiles/Tables.sql, ignoring those
+	 * that fail, e.g. dropping tables that don't exist yet.
+	 * @param file the file of statements separated by semicolons
+	 */
+	static void loadSchema(SQLInterface sql, String file) throws IOException, SQLException {
+		StringBuilder script = new StringBuilder();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try{
+			String line;
+			while((line = in.readLine()) != null){
+				if(!line.trim().startsWith("--")){
+					script.append(line).append('\n');
+				}
+			}
+		}
+		finally{
+			in.close();
+		}
+
+		SQLConnection conn = sql.getConnection();
+		Statement stmt = null;
+		try{
+			stmt = conn.createStatement();
+			for(String statement: script.toString().split(";")){
+				if(statement.trim().length() == 0){
+					continue;
+				}
+				try{
+					stmt.execute(statement);
+				}
+				catch(SQLException e){
+					System.err.println("Skipped: " + statement.trim() + " (" +
+							e.getMessage() + ")");
+				}
+			}
+		}
+		finally{
+			SQLInterface.close(stmt);
+			sql.releaseConnection(conn);
+		}
+	}
+
+
+	/**
+	 * Adds the user the benchmark logs in as and writes notes for, unless it exists.
+	 * @return the id of the user
+	 */
+	int ensureBenchUser(SQLInterface sql) throws SQLException {
+		User existing = db.userDoesExist(BENCH_USER, BENCH_PASS);
+		if(existing != null){
+			return existing.getID();
+		}
+
+		SQLConnection conn = sql.getConnection();
+		ResultSet rs = null;
+		boolean committed = false;
+		try{
+			conn.begin();
+			rs = conn.prepare(SELECT_MAX_ENTITY).executeQuery();
+			int userID = (rs.next() ? rs.getInt(1) : 0) + 1;
+
+			PreparedStatement stmt = conn.prepare(INSERT_ENTITY);
+			stmt.setInt(1, userID);
+			stmt.executeUpdate();
+
+			stmt = conn.prepare(INSERT_USER);
+			stmt.setInt(1, userID);
+			stmt.setString(2, BENCH_USER);
+			stmt.setString(3, BENCH_PASS);
+			stmt.setString(4, "bench@localhost");
+			stmt.executeUpdate();
+
+			conn.commit();
+			committed = true;
+			return userID;
+		}
+		finally{
+			SQLInterface.close(rs);
+			if(!committed){
+				conn.rollback();
+			}
+			sql.releaseConnection(conn);
+		}
+	}
+
+
+	private static int[] parseFanOuts(String list){
+		String[] parts = list.split(",");
+		int[] fanOuts = new int[parts.length];
+		for(int i = 0; i < parts.length; i++){
+			fanOuts[i] = Integer.parseInt(parts[i].trim());
+		}
+		return fanOuts;
+	}
+
+
+	/**
+	 * Runs the benchmarks from the command line, printing one line per benchmark and
+	 * thread count:
+	 * <pre>
+	 * DBBenchmark [json|users|notebooks|updates|tree|metadata|all]...
+	 * </pre>
+	 * json runs without a database. Everything else adds to the database configured with
+	 * the blacknote.db.* properties, so point them at a scratch database.
+	 */
+	public static void main(String[] args) throws Exception {
+		Set<String> suites = new HashSet<String>();
+		for(String arg: args){
+			suites.add(arg);
+		}
+		if(suites.isEmpty()){
+			suites.add("all");
+		}
+		boolean all = suites.contains("all");
+		int[] fanOuts = parseFanOuts(FAN_OUTS);
+
+		if(suites.size() == 1 && suites.contains("json")){
+			DBBenchmark bench = new DBBenchmark(null, WARMUP_MILLIS, MEASURE_MILLIS);
+			bench.benchmarkJSON(fanOuts, 1);
+			bench.benchmarkLargeJSON(1);
+			System.exit(0);
+		}
+
+		SQLInterface sql = SQLInterface.getSQLInterface();
+		if(Boolean.getBoolean("blacknote.bench.loadSchema")){
+			loadSchema(sql, SCHEMA_FILE);
+		}
+		DBBenchmark bench = new DBBenchmark(new DBAccessImpl(null, false), WARMUP_MILLIS, MEASURE_MILLIS);
+		int author = bench.ensureBenchUser(sql);
+
+		if(all || suites.contains("json")){
+			bench.benchmarkJSON(fanOuts, author);
+			bench.benchmarkLargeJSON(author);
+		}
+		if(all || suites.contains("users")){
+			bench.benchmarkUsers();
+		}
+		if(all || suites.contains("notebooks")){
+			bench.benchmarkNotebooks(fanOuts, author);
+		}
+		if(all || suites.contains("updates")){
+			bench.benchmarkUpdates(author);
+		}
+		if(all || suites.contains("tree")){
+			bench.benchmarkTree();
+		}
+		if(all || suites.contains("metadata")){
+			bench.benchmarkMetadata(author);
+		}
+		System.exit(0);
+	}
+
+}
@@ -1,14 +1,43 @@
 package DataModel;
 
+/**
+ * What a user entity may do with a note. Declared from weakest to strongest, so a
+ * permission includes every one declared before it.
+ */
 public enum Permission {
 
+	READ,
 	WRITE;
 	
 	
 	public static String asString(Permission p){
 		switch (p){
-			case WRITE: return "read";
+			case READ: return "read";
+			case WRITE: return "write";
 			default: return "unknown";
 		}
 	}
+	
+	
+	/**
+	 * @param s a permission as stored in the database
+	 * @return the permission, or null if the string names none
+	 */
+	public static Permission fromString(String s){
+		if("write".equalsIgnoreCase(s)){
+			return WRITE;
+		}
+		if("read".equalsIgnoreCase(s)){
+			return READ;
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * @return whether this permission allows everything the inputed one does
+	 */
+	public boolean includes(Permission p){
+		return compareTo(p) >= 0;
+	}
 }
@@ -0,0 +1,175 @@
+package Database;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import DataModel.FSObject;
+import DataModel.FSObjectType;
+import DataModel.Note;
+import DataModel.Notebook;
+import DataModel.Permission;
+import DataModel.User;
+import DataModel.UserEntity;
+import Search.SearchHit;
+
+/**
+ * The calls of {@link DBAccess}, made on a bounded pool of database threads instead of
+ * the caller's thread. Each call returns at once with a {@link DBFuture} that completes
+ * with what the DBAccess call would have returned, or fails with what it would have
+ * thrown, so a slow query holds a database thread rather than a request thread. A call
+ * made while every database thread is busy and the queue is full fails at once with a
+ * DBException instead of waiting.
+ * <p>
+ * Handlers passed to the streaming calls run on a database thread.
+ */
+public interface AsyncDBAccess {
+
+	/** @see DBAccess#addNotebook(int, Notebook) */
+	public DBFuture<Integer> addNotebook(int parentNotebookID, Notebook notebook);
+
+	/** @see DBAccess#getNotebook(int) */
+	public DBFuture<Notebook> getNotebook(int notebookID);
+
+	/** @see DBAccess#getNotebookTree(int, int) */
+	public DBFuture<Notebook> getNotebookTree(int rootID, int maxDepth);
+
+	/** @see DBAccess#getChildren(int, String, int, int) */
+	public DBFuture<List<FSObject>> getChildren(int notebookID, String afterName, int afterID,
+			int limit);
+
+	/** @see DBAccess#streamChildren(int, ResultHandler) */
+	public DBFuture<Void> streamChildren(int notebookID, ResultHandler<FSObject> handler);
+
+	/** @see DBAccess#streamSubtree(int, ResultHandler) */
+	public DBFuture<Void> streamSubtree(int notebookID, ResultHandler<SubtreeEntry> handler);
+
+	/** @see DBAccess#getAncestors(int) */
+	public DBFuture<List<FSObject>> getAncestors(int objectID);
+
+	/** @see DBAccess#getDescendants(int, FSObjectType) */
+	public DBFuture<List<FSObject>> getDescendants(int notebookID, FSObjectType type);
+
+	/** @see DBAccess#isDescendant(int, int) */
+	public DBFuture<Boolean> isDescendant(int objectID, int notebookID);
+
+	/** @see DBAccess#addNote(int, Note, Map) */
+	public DBFuture<Integer> addNote(int parentNotebookID, Note note,
+			Map<UserEntity, Permission> perms);
+
+	/** @see DBAccess#addNotes(int, List, Map) */
+	public DBFuture<List<Integer>> addNotes(int parentNotebookID, List<Note> notes,
+			Map<UserEntity, Permission> perms);
+
+	/** @see DBAccess#importNotes(String, List, List) */
+	public DBFuture<List<Integer>> importNotes(String batchKey, List<Integer> parentNotebookIDs,
+			List<Note> notes);
+
+	/** @see DBAccess#updateNote(Note, Map) */
+	public DBFuture<Integer> updateNote(Note note, Map<UserEntity, Permission> perms);
+
+	/** @see DBAccess#getNote(int) */
+	public DBFuture<Note> getNote(int noteID);
+
+	/** @see DBAccess#getNotesWithTags(Collection, Collection, Collection, int, int) */
+	public DBFuture<List<Integer>> getNotesWithTags(Collection<String> allOf,
+			Collection<String> anyOf, Collection<String> noneOf, int afterID, int limit);
+
+	/** @see DBAccess#findNotesByMetadata(Map, int) */
+	public DBFuture<List<Integer>> findNotesByMetadata(Map<String, String> predicates,
+			int limit);
+
+	/** @see DBAccess#searchNotes(String, int, int) */
+	public DBFuture<List<SearchHit>> searchNotes(String query, int userID, int limit);
+
+	/** @see DBAccess#addUser(User) */
+	public DBFuture<Void> addUser(User u);
+
+	/** @see DBAccess#getUser(int) */
+	public DBFuture<User> getUser(int id);
+
+	/** @see DBAccess#userDoesExist(String, String) */
+	public DBFuture<User> userDoesExist(String user, String pass);
+
+	/** @see DBAccess#getPermission(int, int) */
+	public DBFuture<Permission> getPermission(int noteID, int userID);
+
+	/** @see DBAccess#filterReadable(int, Collection) */
+	public <T extends FSObject> DBFuture<List<T>> filterReadable(int userID,
+			Collection<T> objects);
+
+	/** @see DBAccess#filterWritable(int, Collection) */
+	public <T extends FSObject> DBFuture<List<T>> filterWritable(int userID,
+			Collection<T> objects);
+
+	/** @see DBAccess#addUserToGroup(int, int) */
+	public DBFuture<Void> addUserToGroup(int userID, int groupID);
+
+	/** @see DBAccess#removeUserFromGroup(int, int) */
+	public DBFuture<Void> removeUserFromGroup(int userID, int groupID);
+
+	/** @see DBAccess#streamRecentlyUpdatedSince(DateTime, ResultHandler) */
+	public DBFuture<Void> streamRecentlyUpdatedSince(DateTime start,
+			ResultHandler<Note> handler);
+
+	/** @see DBAccess#getTagSubscribers(Collection) */
+	public DBFuture<Map<String, List<User>>> getTagSubscribers(Collection<String> tags);
+
+	/** @see DBAccess#getCheckpoint(String) */
+	public DBFuture<DateTime> getCheckpoint(String name);
+
+	/** @see DBAccess#setCheckpoint(String, DateTime) */
+	public DBFuture<Void> setCheckpoint(String name, DateTime time);
+
+	/**
+	 * Reads a note and the user's permission on it at the same time, on two database
+	 * threads, so the request waits for the slower of the two queries rather than both.
+	 * @param noteID the id of the note
+	 * @param userID the id of the user reading it
+	 * @return the note, or null if it doesn't exist or the user may not read it
+	 */
+	public DBFuture<Note> getNoteIfReadable(int noteID, int userID);
+
+
+	/**
+	 * Asynchronous access to {@link DBAccess.Singleton}, on a pool of
+	 * blacknote.async.threads threads (the connection pool size by default) with room
+	 * for blacknote.async.queueSize waiting calls (256 by default).
+	 */
+	public class Singleton {
+
+		private static volatile AsyncDBAccessImpl instance;
+
+		public static AsyncDBAccess getInstance() throws DBException {
+			// Only the first calls synchronize; after that the instance is read lock-free
+			AsyncDBAccessImpl inst = instance;
+			if(inst == null){
+				synchronized(Singleton.class){
+					inst = instance;
+					if(inst == null){
+						inst = new AsyncDBAccessImpl(DBAccess.Singleton.getInstance(),
+								AsyncDBAccessImpl.newExecutor());
+						instance = inst;
+					}
+				}
+			}
+			return inst;
+		}
+
+		/**
+		 * Stops the database threads once the calls already queued have run, if they
+		 * were ever started.
+		 */
+		public static void shutdown(){
+			synchronized(Singleton.class){
+				if(instance != null){
+					instance.shutdown();
+					instance = null;
+				}
+			}
+		}
+	}
+
+}
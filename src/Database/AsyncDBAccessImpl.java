@@ -0,0 +1,478 @@
+package Database;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+
+import DataModel.FSObject;
+import DataModel.FSObjectType;
+import DataModel.Note;
+import DataModel.Notebook;
+import DataModel.Permission;
+import DataModel.User;
+import DataModel.UserEntity;
+import Search.SearchHit;
+
+/**
+ * Makes each call of a DBAccess on an executor. Every call is a task of its own, so
+ * calls made together run on different database threads and connections at once.
+ */
+final class AsyncDBAccessImpl implements AsyncDBAccess {
+
+	/**
+	 * The number of database threads. There is no use in more threads than pooled
+	 * connections, since the rest would only wait for one.
+	 */
+	private static final int THREADS = Integer.getInteger("blacknote.async.threads",
+			Integer.getInteger("blacknote.db.pool.max", 16));
+
+	private static final int QUEUE_SIZE = Integer.getInteger("blacknote.async.queueSize", 256);
+
+	private final DBAccess db;
+
+	private final ExecutorService executor;
+
+	private final AtomicLong submitted = new AtomicLong(), rejected = new AtomicLong();
+
+
+	/**
+	 * @param db the database to call
+	 * @param executor runs the calls; it should reject calls rather than run them on the
+	 * caller's thread, and is shut down by {@link #shutdown()}
+	 */
+	AsyncDBAccessImpl(DBAccess db, ExecutorService executor){
+		this.db = db;
+		this.executor = executor;
+	}
+
+
+	/**
+	 * @return a bounded executor with blacknote.async.threads daemon threads, which stop
+	 * when idle, and room for blacknote.async.queueSize waiting calls
+	 */
+	static ExecutorService newExecutor(){
+		final AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+				new ThreadFactory(){
+					@Override
+					public Thread newThread(Runnable r){
+						Thread t = new Thread(r, "AsyncDBAccess-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+
+	/**
+	 * Stops accepting calls, and lets the calls already queued finish.
+	 */
+	void shutdown(){
+		executor.shutdown();
+	}
+
+
+	private <T> DBFuture<T> submit(Callable<T> call){
+		DBFuture<T> future = new DBFuture<T>(call);
+		submitted.incrementAndGet();
+		try{
+			executor.execute(future);
+		}
+		catch(RejectedExecutionException e){
+			rejected.incrementAndGet();
+			future.fail(new DBException("Too many database calls waiting", e));
+		}
+		return future;
+	}
+
+
+	@Override
+	public DBFuture<Integer> addNotebook(final int parentNotebookID, final Notebook notebook){
+		return submit(new Callable<Integer>(){
+			@Override
+			public Integer call() throws Exception {
+				return db.addNotebook(parentNotebookID, notebook);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Notebook> getNotebook(final int notebookID){
+		return submit(new Callable<Notebook>(){
+			@Override
+			public Notebook call() throws Exception {
+				return db.getNotebook(notebookID);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Notebook> getNotebookTree(final int rootID, final int maxDepth){
+		return submit(new Callable<Notebook>(){
+			@Override
+			public Notebook call() throws Exception {
+				return db.getNotebookTree(rootID, maxDepth);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<List<FSObject>> getChildren(final int notebookID, final String afterName,
+			final int afterID, final int limit){
+		return submit(new Callable<List<FSObject>>(){
+			@Override
+			public List<FSObject> call() throws Exception {
+				return db.getChildren(notebookID, afterName, afterID, limit);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Void> streamChildren(final int notebookID,
+			final ResultHandler<FSObject> handler){
+		return submit(new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				db.streamChildren(notebookID, handler);
+				return null;
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Void> streamSubtree(final int notebookID,
+			final ResultHandler<SubtreeEntry> handler){
+		return submit(new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				db.streamSubtree(notebookID, handler);
+				return null;
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<List<FSObject>> getAncestors(final int objectID){
+		return submit(new Callable<List<FSObject>>(){
+			@Override
+			public List<FSObject> call() throws Exception {
+				return db.getAncestors(objectID);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<List<FSObject>> getDescendants(final int notebookID,
+			final FSObjectType type){
+		return submit(new Callable<List<FSObject>>(){
+			@Override
+			public List<FSObject> call() throws Exception {
+				return db.getDescendants(notebookID, type);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Boolean> isDescendant(final int objectID, final int notebookID){
+		return submit(new Callable<Boolean>(){
+			@Override
+			public Boolean call() throws Exception {
+				return db.isDescendant(objectID, notebookID);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Integer> addNote(final int parentNotebookID, final Note note,
+			final Map<UserEntity, Permission> perms){
+		return submit(new Callable<Integer>(){
+			@Override
+			public Integer call() throws Exception {
+				return db.addNote(parentNotebookID, note, perms);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<List<Integer>> addNotes(final int parentNotebookID,
+			final List<Note> notes, final Map<UserEntity, Permission> perms){
+		return submit(new Callable<List<Integer>>(){
+			@Override
+			public List<Integer> call() throws Exception {
+				return db.addNotes(parentNotebookID, notes, perms);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<List<Integer>> importNotes(final String batchKey,
+			final List<Integer> parentNotebookIDs, final List<Note> notes){
+		return submit(new Callable<List<Integer>>(){
+			@Override
+			public List<Integer> call() throws Exception {
+				return db.importNotes(batchKey, parentNotebookIDs, notes);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Integer> updateNote(final Note note,
+			final Map<UserEntity, Permission> perms){
+		return submit(new Callable<Integer>(){
+			@Override
+			public Integer call() throws Exception {
+				return db.updateNote(note, perms);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Note> getNote(final int noteID){
+		return submit(new Callable<Note>(){
+			@Override
+			public Note call() throws Exception {
+				return db.getNote(noteID);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<List<Integer>> getNotesWithTags(final Collection<String> allOf,
+			final Collection<String> anyOf, final Collection<String> noneOf, final int afterID,
+			final int limit){
+		return submit(new Callable<List<Integer>>(){
+			@Override
+			public List<Integer> call() throws Exception {
+				return db.getNotesWithTags(allOf, anyOf, noneOf, afterID, limit);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<List<Integer>> findNotesByMetadata(final Map<String, String> predicates,
+			final int limit){
+		return submit(new Callable<List<Integer>>(){
+			@Override
+			public List<Integer> call() throws Exception {
+				return db.findNotesByMetadata(predicates, limit);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<List<SearchHit>> searchNotes(final String query, final int userID,
+			final int limit){
+		return submit(new Callable<List<SearchHit>>(){
+			@Override
+			public List<SearchHit> call() throws Exception {
+				return db.searchNotes(query, userID, limit);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Void> addUser(final User u){
+		return submit(new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				db.addUser(u);
+				return null;
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<User> getUser(final int id){
+		return submit(new Callable<User>(){
+			@Override
+			public User call() throws Exception {
+				return db.getUser(id);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<User> userDoesExist(final String user, final String pass){
+		return submit(new Callable<User>(){
+			@Override
+			public User call() throws Exception {
+				return db.userDoesExist(user, pass);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Permission> getPermission(final int noteID, final int userID){
+		return submit(new Callable<Permission>(){
+			@Override
+			public Permission call() throws Exception {
+				return db.getPermission(noteID, userID);
+			}
+		});
+	}
+
+
+	@Override
+	public <T extends FSObject> DBFuture<List<T>> filterReadable(final int userID,
+			final Collection<T> objects){
+		return submit(new Callable<List<T>>(){
+			@Override
+			public List<T> call() throws Exception {
+				return db.filterReadable(userID, objects);
+			}
+		});
+	}
+
+
+	@Override
+	public <T extends FSObject> DBFuture<List<T>> filterWritable(final int userID,
+			final Collection<T> objects){
+		return submit(new Callable<List<T>>(){
+			@Override
+			public List<T> call() throws Exception {
+				return db.filterWritable(userID, objects);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Void> addUserToGroup(final int userID, final int groupID){
+		return submit(new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				db.addUserToGroup(userID, groupID);
+				return null;
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Void> removeUserFromGroup(final int userID, final int groupID){
+		return submit(new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				db.removeUserFromGroup(userID, groupID);
+				return null;
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Void> streamRecentlyUpdatedSince(final DateTime start,
+			final ResultHandler<Note> handler){
+		return submit(new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				db.streamRecentlyUpdatedSince(start, handler);
+				return null;
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Map<String, List<User>>> getTagSubscribers(final Collection<String> tags){
+		return submit(new Callable<Map<String, List<User>>>(){
+			@Override
+			public Map<String, List<User>> call() throws Exception {
+				return db.getTagSubscribers(tags);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<DateTime> getCheckpoint(final String name){
+		return submit(new Callable<DateTime>(){
+			@Override
+			public DateTime call() throws Exception {
+				return db.getCheckpoint(name);
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Void> setCheckpoint(final String name, final DateTime time){
+		return submit(new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				db.setCheckpoint(name, time);
+				return null;
+			}
+		});
+	}
+
+
+	@Override
+	public DBFuture<Note> getNoteIfReadable(int noteID, int userID){
+		final DBFuture<Note> note = getNote(noteID);
+		final DBFuture<Permission> permission = getPermission(noteID, userID);
+		final DBFuture<Note> readable = new DBFuture<Note>();
+		DBFuture.allOf(note, permission).addCallback(new DBFuture.Callback<Void>(){
+			@Override
+			public void onSuccess(Void result){
+				try{
+					// Both have completed, so neither waits
+					readable.succeed(permission.join() == null ? null : note.join());
+				}
+				catch(DBException e){
+					readable.fail(e);
+				}
+				catch(RuntimeException e){
+					readable.fail(e);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable cause){
+				readable.fail(cause);
+			}
+		});
+		return readable;
+	}
+
+
+	public String toString(){
+		return "submitted=" + submitted.get() + ", rejected=" + rejected.get();
+	}
+
+}
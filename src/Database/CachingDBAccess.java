@@ -0,0 +1,549 @@
+package Database;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import DataModel.FSObject;
+import DataModel.Note;
+import DataModel.Notebook;
+import DataModel.NotebookImpl;
+import DataModel.Permission;
+import DataModel.UserEntity;
+
+/**
+ * A DBAccess decorator that keeps recently read notebooks, and the first page of
+ * recently browsed notebooks' children, in memory. The cache is least-recently-used and
+ * bounded by weight rather than entry count: a notebook or page weighs one plus its
+ * number of children, so a few huge notebooks can't crowd out memory. Every write that
+ * goes through this object invalidates the notebooks whose listing it changes; writes
+ * made directly against the database (or by another process) are not seen until the
+ * entry is evicted.
+ * <p>
+ * The cache is split by notebook id into blacknote.cache.notebook.segments segments (16
+ * by default), each an LRU with its own lock and an equal share of the weight, so that
+ * readers of different notebooks don't wait on each other.
+ */
+public final class CachingDBAccess extends ForwardingDBAccess {
+
+	/**
+	 * The default total weight of the cached notebooks.
+	 */
+	static final int DEFAULT_MAX_WEIGHT = Integer.getInteger(
+			"blacknote.cache.notebook.maxWeight", 100000);
+
+	/**
+	 * The number of independently locked parts the cache is split into.
+	 */
+	private static final int SEGMENTS = Integer.getInteger(
+			"blacknote.cache.notebook.segments", 16);
+
+	/**
+	 * What is cached for one notebook: the whole notebook, the first page of its
+	 * children, or both.
+	 */
+	private static final class Entry {
+
+		Notebook book;
+
+		List<FSObject> firstPage;
+
+		/**
+		 * The limit the first page was read with. A page shorter than this is the whole
+		 * listing.
+		 */
+		int pageLimit;
+
+		int weigh(){
+			return (book == null ? 0 : 1 + book.getChildren().size()) +
+					(firstPage == null ? 0 : 1 + firstPage.size());
+		}
+
+		boolean isEmpty(){
+			return book == null && firstPage == null;
+		}
+	}
+
+	/**
+	 * One part of the cache. Every field is guarded by the segment.
+	 */
+	private final class Segment {
+
+		/**
+		 * What is cached for each notebook, in least recently used order.
+		 */
+		final LinkedHashMap<Integer, Entry> entries =
+				new LinkedHashMap<Integer, Entry>(64, 0.75f, true);
+
+		/**
+		 * Loads in progress, of notebooks and of first pages. A load only populates the
+		 * cache if its token is still here when it finishes, i.e. if the notebook was not
+		 * invalidated in the meantime.
+		 */
+		final Map<Integer, Object> loading = new HashMap<Integer, Object>(),
+				pageLoading = new HashMap<Integer, Object>();
+
+		int weight = 0;
+
+		long hits = 0, misses = 0, evictions = 0, loads = 0, loadNanos = 0;
+
+
+		/**
+		 * Caches a notebook or the first page of its children, and evicts the least
+		 * recently used notebooks until the segment is back under its weight limit.
+		 * @param book the notebook, or null to cache the page
+		 * @param page the first page, if book is null
+		 * @param pageLimit the limit the page was read with
+		 */
+		void put(int notebookID, Notebook book, List<FSObject> page, int pageLimit){
+			Entry entry = entries.get(notebookID);
+			if(entry == null){
+				entry = new Entry();
+			}
+			else{
+				unlink(notebookID, entry);
+			}
+			if(book != null){
+				entry.book = book;
+				if(entry.weigh() > segmentWeight){
+					// Too big to be worth caching at all
+					entry.book = null;
+				}
+			}
+			else{
+				entry.firstPage = page;
+				entry.pageLimit = pageLimit;
+				if(entry.weigh() > segmentWeight){
+					entry.firstPage = null;
+				}
+			}
+			if(entry.isEmpty()){
+				entries.remove(notebookID);
+				return;
+			}
+			entries.put(notebookID, entry);
+			link(notebookID, entry);
+
+			Iterator<Map.Entry<Integer, Entry>> it = entries.entrySet().iterator();
+			while(weight > segmentWeight && it.hasNext()){
+				Map.Entry<Integer, Entry> eldest = it.next();
+				it.remove();
+				unlink(eldest.getKey(), eldest.getValue());
+				evictions++;
+			}
+		}
+
+
+		void link(int notebookID, Entry entry){
+			weight += entry.weigh();
+			if(entry.book != null){
+				for(FSObject child: entry.book.getChildren()){
+					parents.put(child.getID(), notebookID);
+				}
+			}
+			if(entry.firstPage != null){
+				for(FSObject child: entry.firstPage){
+					parents.put(child.getID(), notebookID);
+				}
+			}
+		}
+
+
+		void unlink(int notebookID, Entry entry){
+			weight -= entry.weigh();
+			Integer id = notebookID;
+			if(entry.book != null){
+				for(FSObject child: entry.book.getChildren()){
+					parents.remove(child.getID(), id);
+				}
+			}
+			if(entry.firstPage != null){
+				for(FSObject child: entry.firstPage){
+					parents.remove(child.getID(), id);
+				}
+			}
+		}
+
+
+		void invalidate(int notebookID){
+			loading.remove(notebookID);
+			pageLoading.remove(notebookID);
+			Entry old = entries.remove(notebookID);
+			if(old != null){
+				unlink(notebookID, old);
+			}
+		}
+	}
+
+
+	private final int maxWeight;
+
+	/**
+	 * The weight each segment may hold.
+	 */
+	private final int segmentWeight;
+
+	private final Segment[] segments;
+
+	/**
+	 * Maps the ID of every child in a cached notebook or page to that notebook, so that
+	 * an update to a note can invalidate the listing it appears in. Only changed by the
+	 * segment that holds the notebook, with its lock held.
+	 */
+	private final ConcurrentHashMap<Integer, Integer> parents =
+			new ConcurrentHashMap<Integer, Integer>();
+
+	/**
+	 * Counts note updates. An update only invalidates a listing that is already cached,
+	 * since it doesn't know the note's parent, so a load that was running when an update
+	 * finished may have read the listing from before it, and is not cached.
+	 */
+	private final AtomicLong noteUpdates = new AtomicLong();
+
+
+	/**
+	 * @param db the DBAccess to read through to and write through to
+	 * @param maxWeight the total weight the cached notebooks may have
+	 */
+	CachingDBAccess(DBAccess db, int maxWeight){
+		super(db);
+		this.maxWeight = maxWeight;
+		int count = Math.max(1, SEGMENTS);
+		this.segmentWeight = Math.max(1, maxWeight / count);
+		this.segments = new Segment[count];
+		for(int i = 0; i < count; i++){
+			segments[i] = new Segment();
+		}
+	}
+
+
+	private Segment segmentFor(int notebookID){
+		// Spread the bits, since notebook ids are handed out in blocks
+		int h = notebookID * 0x9E3779B9;
+		return segments[((h ^ (h >>> 16)) & 0x7fffffff) % segments.length];
+	}
+
+
+	@Override
+	public Notebook getNotebook(int notebookID) throws DBException {
+		Segment segment = segmentFor(notebookID);
+		Object token = new Object();
+		long updates;
+		synchronized(segment){
+			Entry cached = segment.entries.get(notebookID);
+			if(cached != null && cached.book != null){
+				segment.hits++;
+				return cached.book;
+			}
+			segment.misses++;
+			segment.loading.put(notebookID, token);
+			updates = noteUpdates.get();
+		}
+
+		long start = System.nanoTime();
+		Notebook loaded;
+		try{
+			loaded = db.getNotebook(notebookID);
+		}
+		catch(DBException e){
+			synchronized(segment){
+				if(segment.loading.get(notebookID) == token){
+					segment.loading.remove(notebookID);
+				}
+			}
+			throw e;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		if(loaded == null){
+			synchronized(segment){
+				if(segment.loading.get(notebookID) == token){
+					segment.loading.remove(notebookID);
+				}
+				segment.loads++;
+				segment.loadNanos += elapsed;
+			}
+			return null;
+		}
+
+		// The cached copy is shared between callers, so it must not be modifiable
+		Notebook shared = new NotebookImpl(loaded.getID(), loaded.getName(),
+				Collections.unmodifiableList(loaded.getChildren()));
+
+		synchronized(segment){
+			segment.loads++;
+			segment.loadNanos += elapsed;
+			if(segment.loading.get(notebookID) == token){
+				segment.loading.remove(notebookID);
+				if(noteUpdates.get() == updates){
+					segment.put(notebookID, shared, null, 0);
+				}
+			}
+		}
+		return shared;
+	}
+
+
+	/**
+	 * Answers the first page of a listing from the cache, which is what browsing clients
+	 * ask for over and over; later pages are read from the database.
+	 */
+	@Override
+	public List<FSObject> getChildren(int notebookID, String afterName, int afterID,
+			int limit) throws DBException {
+		if(afterName != null){
+			return db.getChildren(notebookID, afterName, afterID, limit);
+		}
+
+		Segment segment = segmentFor(notebookID);
+		Object token = new Object();
+		long updates;
+		synchronized(segment){
+			Entry cached = segment.entries.get(notebookID);
+			if(cached != null && cached.firstPage != null){
+				List<FSObject> page = cached.firstPage;
+				if(limit <= page.size()){
+					segment.hits++;
+					return page.subList(0, limit);
+				}
+				if(page.size() < cached.pageLimit){
+					// The page holds the whole listing
+					segment.hits++;
+					return page;
+				}
+			}
+			segment.misses++;
+			segment.pageLoading.put(notebookID, token);
+			updates = noteUpdates.get();
+		}
+
+		long start = System.nanoTime();
+		List<FSObject> loaded;
+		try{
+			loaded = db.getChildren(notebookID, null, 0, limit);
+		}
+		catch(DBException e){
+			synchronized(segment){
+				if(segment.pageLoading.get(notebookID) == token){
+					segment.pageLoading.remove(notebookID);
+				}
+			}
+			throw e;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// The cached copy is shared between callers, so it must not be modifiable
+		List<FSObject> shared = Collections.unmodifiableList(loaded);
+		synchronized(segment){
+			segment.loads++;
+			segment.loadNanos += elapsed;
+			if(segment.pageLoading.get(notebookID) == token){
+				segment.pageLoading.remove(notebookID);
+				if(noteUpdates.get() == updates){
+					segment.put(notebookID, null, shared, limit);
+				}
+			}
+		}
+		return shared;
+	}
+
+
+	/**
+	 * Removes the notebook from the cache, and stops any load of it that is in flight
+	 * from populating the cache.
+	 * @param notebookID the notebook whose listing has changed
+	 */
+	void invalidate(int notebookID){
+		Segment segment = segmentFor(notebookID);
+		synchronized(segment){
+			segment.invalidate(notebookID);
+		}
+	}
+
+
+	/**
+	 * Invalidates the cached notebook that lists the inputed object, if there is one.
+	 * @param objectID the id of a note or notebook whose listing entry has changed
+	 */
+	private void invalidateParentOf(int objectID){
+		Integer parent = parents.get(objectID);
+		if(parent != null){
+			invalidate(parent);
+		}
+	}
+
+
+	/**
+	 * Empties the cache.
+	 */
+	public void clear(){
+		for(Segment segment: segments){
+			synchronized(segment){
+				for(Map.Entry<Integer, Entry> e: segment.entries.entrySet()){
+					segment.unlink(e.getKey(), e.getValue());
+				}
+				segment.entries.clear();
+				segment.loading.clear();
+				segment.pageLoading.clear();
+			}
+		}
+	}
+
+
+	@Override
+	public int addNotebook(int parentNotebookID, Notebook notebook) throws DBAddException {
+		try{
+			return db.addNotebook(parentNotebookID, notebook);
+		}
+		finally{
+			invalidate(parentNotebookID);
+		}
+	}
+
+
+	@Override
+	public int addNote(int parentNotebookID, Note note, Map<UserEntity, Permission> perms)
+			throws DBAddException, DBException {
+		try{
+			return db.addNote(parentNotebookID, note, perms);
+		}
+		finally{
+			invalidate(parentNotebookID);
+		}
+	}
+
+
+	@Override
+	public List<Integer> addNotes(int parentNotebookID, List<Note> notes,
+			Map<UserEntity, Permission> perms) throws DBAddException, DBException {
+		try{
+			return db.addNotes(parentNotebookID, notes, perms);
+		}
+		finally{
+			invalidate(parentNotebookID);
+		}
+	}
+
+
+	@Override
+	public List<Integer> importNotes(String batchKey, List<Integer> parentNotebookIDs,
+			List<Note> notes) throws DBAddException, DBException {
+		try{
+			return db.importNotes(batchKey, parentNotebookIDs, notes);
+		}
+		finally{
+			for(Integer parent: new HashSet<Integer>(parentNotebookIDs)){
+				invalidate(parent);
+			}
+		}
+	}
+
+
+	@Override
+	public int updateNote(Note note, Map<UserEntity, Permission> perms)
+			throws DBAddException, DBException {
+		try{
+			int id = db.updateNote(note, perms);
+			if(id != note.getID()){
+				// The note did not exist, so it was added to the root notebook
+				invalidate(DBAccessImpl.ROOT_NOTEBOOK_ID);
+			}
+			return id;
+		}
+		finally{
+			// The note's name may have changed. Loads running now may have read it from
+			// before the update, so they are not cached.
+			noteUpdates.incrementAndGet();
+			invalidateParentOf(note.getID());
+		}
+	}
+
+
+	/**
+	 * @return the fraction of getNotebook and first page getChildren calls answered from
+	 * the cache
+	 */
+	public double getHitRatio(){
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public long getHitCount(){
+		long hits = 0;
+		for(Segment segment: segments){
+			synchronized(segment){
+				hits += segment.hits;
+			}
+		}
+		return hits;
+	}
+
+	public long getMissCount(){
+		long misses = 0;
+		for(Segment segment: segments){
+			synchronized(segment){
+				misses += segment.misses;
+			}
+		}
+		return misses;
+	}
+
+	public long getEvictionCount(){
+		long evictions = 0;
+		for(Segment segment: segments){
+			synchronized(segment){
+				evictions += segment.evictions;
+			}
+		}
+		return evictions;
+	}
+
+	/**
+	 * @return the mean time, in milliseconds, taken to load a notebook on a miss
+	 */
+	public double getAverageLoadMillis(){
+		long loads = 0, loadNanos = 0;
+		for(Segment segment: segments){
+			synchronized(segment){
+				loads += segment.loads;
+				loadNanos += segment.loadNanos;
+			}
+		}
+		return loads == 0 ? 0 : loadNanos / (loads * 1000000.0);
+	}
+
+	public int getSize(){
+		int size = 0;
+		for(Segment segment: segments){
+			synchronized(segment){
+				size += segment.entries.size();
+			}
+		}
+		return size;
+	}
+
+	public int getWeight(){
+		int weight = 0;
+		for(Segment segment: segments){
+			synchronized(segment){
+				weight += segment.weight;
+			}
+		}
+		return weight;
+	}
+
+
+	public String toString(){
+		return "size=" + getSize() + ", weight=" + getWeight() + "/" + maxWeight +
+				", hitRatio=" + getHitRatio() + ", evictions=" + getEvictionCount() +
+				", avgLoadMs=" + getAverageLoadMillis();
+	}
+
+}
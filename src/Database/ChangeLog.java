@@ -0,0 +1,113 @@
+package Database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A fixed-size, append-only log of the notes written through this process, in the order
+ * their writes were committed. Once the log is full the oldest entries are overwritten,
+ * so it can only answer for a recent window; older questions must go to the database.
+ * Times are taken from this process's clock when the write is recorded, and never go
+ * backwards.
+ */
+final class ChangeLog {
+
+	private final long[] times;
+
+	private final int[] noteIDs;
+
+	/**
+	 * The total number of entries ever appended. Guarded by this.
+	 */
+	private long appended = 0;
+
+	/**
+	 * Changes at or before this time may have been overwritten, or were made before the
+	 * log existed. Guarded by this.
+	 */
+	private long forgottenUntil;
+
+	private long lastTime;
+
+
+	/**
+	 * @param capacity the number of changes to remember
+	 */
+	ChangeLog(int capacity){
+		if(capacity < 1){
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		times = new long[capacity];
+		noteIDs = new int[capacity];
+		forgottenUntil = System.currentTimeMillis();
+		lastTime = forgottenUntil;
+	}
+
+
+	/**
+	 * Records that the inputed notes were just written. Must be called after the write is
+	 * committed.
+	 */
+	synchronized void record(int... ids){
+		// Keep times in order even if the system clock is set back
+		long now = Math.max(System.currentTimeMillis(), lastTime);
+		lastTime = now;
+		for(int id: ids){
+			int slot = (int) (appended % times.length);
+			if(appended >= times.length){
+				forgottenUntil = times[slot];
+			}
+			times[slot] = now;
+			noteIDs[slot] = id;
+			appended++;
+		}
+	}
+
+
+	/**
+	 * Finds the notes written at or after the inputed time.
+	 * @param since the time, in milliseconds since the epoch
+	 * @return the IDs of the notes, each once, in the order of their last write; or null
+	 * if the log doesn't reach back that far
+	 */
+	List<Integer> since(long since){
+		int[] ids;
+		synchronized(this){
+			if(since <= forgottenUntil){
+				return null;
+			}
+			long oldest = Math.max(0, appended - times.length);
+
+			// Times are sorted in append order, so binary search for the first entry
+			long lo = oldest, hi = appended;
+			while(lo < hi){
+				long mid = (lo + hi) >>> 1;
+				if(times[(int) (mid % times.length)] < since){
+					lo = mid + 1;
+				}
+				else{
+					hi = mid;
+				}
+			}
+			ids = new int[(int) (appended - lo)];
+			for(int i = 0; i < ids.length; i++){
+				ids[i] = noteIDs[(int) ((lo + i) % times.length)];
+			}
+		}
+
+		// Walk back from the newest so that each note is placed at its last write
+		List<Integer> result = new ArrayList<Integer>(ids.length);
+		Set<Integer> seen = new HashSet<Integer>();
+		for(int i = ids.length - 1; i >= 0; i--){
+			if(seen.add(ids[i])){
+				result.add(ids[i]);
+			}
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+}
@@ -0,0 +1,337 @@
+package Database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of JDBC connections. At most maxSize connections are borrowed at any
+ * one time; callers beyond that wait (up to the borrow timeout) for one to be released.
+ * Idle connections above minSize are closed by a background thread once they have been
+ * unused for longer than the idle timeout, and connections that have sat idle for a
+ * while are validated before they are handed out again.
+ */
+final class ConnectionPool {
+
+	/**
+	 * How long (in seconds) the server gets to answer a validation request.
+	 */
+	private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+	/**
+	 * The number of prepared statements cached per connection.
+	 */
+	private static final int STATEMENT_CACHE_SIZE =
+			Integer.getInteger("blacknote.db.pool.statementCacheSize", 128);
+
+	private final String url;
+
+	private final Properties props;
+
+	private final int minSize, maxSize;
+
+	private final long idleTimeoutMillis, borrowTimeoutMillis, validationIntervalMillis;
+
+	/**
+	 * Idle connections, most recently used first so that the warmest connection is
+	 * reused and the coldest ones age out at the tail.
+	 */
+	private final LinkedBlockingDeque<SQLConnection> idle =
+			new LinkedBlockingDeque<SQLConnection>();
+
+	/**
+	 * One permit per connection that may be borrowed.
+	 */
+	private final Semaphore permits;
+
+	private final AtomicInteger open = new AtomicInteger();
+
+	private final AtomicLong borrows = new AtomicLong(), waitNanos = new AtomicLong(),
+			maxWaitNanos = new AtomicLong(), timeouts = new AtomicLong(),
+			created = new AtomicLong(), evicted = new AtomicLong(),
+			validationFailures = new AtomicLong();
+
+	private final AtomicLong statementHits = new AtomicLong(),
+			statementMisses = new AtomicLong();
+
+	private final ScheduledExecutorService evictor;
+
+	private volatile boolean closed = false;
+
+
+	ConnectionPool(String url, Properties props, int minSize, int maxSize,
+			long idleTimeoutMillis, long borrowTimeoutMillis, long validationIntervalMillis)
+					throws SQLException {
+		if(minSize < 0 || maxSize < 1 || minSize > maxSize){
+			throw new IllegalArgumentException("Invalid pool size: min " + minSize +
+					", max " + maxSize);
+		}
+		this.url = url;
+		this.props = props;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.validationIntervalMillis = validationIntervalMillis;
+		this.permits = new Semaphore(maxSize, true);
+
+		// Open the minimum number of connections up front so that a bad configuration
+		// is reported at startup rather than on the first request
+		for(int i = 0; i < minSize; i++){
+			idle.offerLast(openConnection());
+		}
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ConnectionPool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000, idleTimeoutMillis / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Takes a connection from the pool, opening a new one if none are idle. Blocks for
+	 * up to the borrow timeout if maxSize connections are already borrowed.
+	 * @return a connection for the exclusive use of the caller
+	 * @throws SQLException if no connection could be obtained in time, or the
+	 * database refused a new connection
+	 */
+	SQLConnection borrow() throws SQLException {
+		if(closed){
+			throw new SQLException("Connection pool is closed");
+		}
+
+		long start = System.nanoTime();
+		try{
+			if(!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)){
+				timeouts.incrementAndGet();
+				throw new SQLException("Timed out after " + borrowTimeoutMillis +
+						"ms waiting for a database connection");
+			}
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection");
+		}
+		recordWait(System.nanoTime() - start);
+
+		try{
+			SQLConnection conn;
+			while((conn = idle.pollFirst()) != null){
+				if(conn.getIdleMillis() < validationIntervalMillis ||
+						conn.isValid(VALIDATION_TIMEOUT_SECONDS)){
+					return conn;
+				}
+				validationFailures.incrementAndGet();
+				discard(conn);
+			}
+			return openConnection();
+		}
+		catch(SQLException e){
+			permits.release();
+			throw e;
+		}
+		catch(RuntimeException e){
+			permits.release();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Gives a borrowed connection back to the pool.
+	 * @param conn the connection returned by {@link #borrow()}
+	 */
+	void release(SQLConnection conn){
+		if(conn == null){
+			return;
+		}
+		try{
+			conn.reset();
+			conn.touch();
+			if(closed){
+				discard(conn);
+			}
+			else{
+				idle.offerFirst(conn);
+			}
+		}
+		catch(SQLException e){
+			// The connection is broken, so don't hand it out again
+			discard(conn);
+		}
+		finally{
+			permits.release();
+		}
+	}
+
+
+	/**
+	 * Closes every idle connection and stops the eviction thread. Connections that are
+	 * still borrowed are closed when they are released.
+	 */
+	void close(){
+		closed = true;
+		evictor.shutdownNow();
+		SQLConnection conn;
+		while((conn = idle.pollFirst()) != null){
+			discard(conn);
+		}
+	}
+
+
+	private SQLConnection openConnection() throws SQLException {
+		Connection raw = DriverManager.getConnection(url, props);
+		SQLConnection conn = new SQLConnection(raw, new StatementCache(raw,
+				STATEMENT_CACHE_SIZE, statementHits, statementMisses));
+		open.incrementAndGet();
+		created.incrementAndGet();
+		return conn;
+	}
+
+
+	private void discard(SQLConnection conn){
+		open.decrementAndGet();
+		conn.close();
+	}
+
+
+	/**
+	 * Closes connections that have been idle for longer than the idle timeout, keeping at
+	 * least minSize connections open. Runs on the evictor thread.
+	 */
+	private void evictIdle(){
+		int toCheck = idle.size();
+		for(int i = 0; i < toCheck && open.get() > minSize; i++){
+			// Take a permit like any other borrower so the pool never exceeds maxSize
+			if(!permits.tryAcquire()){
+				return;
+			}
+			try{
+				SQLConnection conn = idle.pollLast();
+				if(conn == null){
+					return;
+				}
+				if(conn.getIdleMillis() >= idleTimeoutMillis){
+					evicted.incrementAndGet();
+					discard(conn);
+				}
+				else{
+					// The rest of the deque was used more recently than this one
+					idle.offerLast(conn);
+					return;
+				}
+			}
+			finally{
+				permits.release();
+			}
+		}
+	}
+
+
+	private void recordWait(long nanos){
+		borrows.incrementAndGet();
+		waitNanos.addAndGet(nanos);
+		long max;
+		while(nanos > (max = maxWaitNanos.get())){
+			if(maxWaitNanos.compareAndSet(max, nanos)){
+				break;
+			}
+		}
+	}
+
+
+	int getMaxSize(){
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of connections currently open, borrowed or idle
+	 */
+	int getOpenCount(){
+		return open.get();
+	}
+
+	int getIdleCount(){
+		return idle.size();
+	}
+
+	/**
+	 * @return the number of callers currently waiting for a connection
+	 */
+	int getWaitingCount(){
+		return permits.getQueueLength();
+	}
+
+	long getBorrowCount(){
+		return borrows.get();
+	}
+
+	long getTimeoutCount(){
+		return timeouts.get();
+	}
+
+	long getCreatedCount(){
+		return created.get();
+	}
+
+	long getEvictedCount(){
+		return evicted.get();
+	}
+
+	long getValidationFailureCount(){
+		return validationFailures.get();
+	}
+
+	long getStatementCacheHits(){
+		return statementHits.get();
+	}
+
+	long getStatementCacheMisses(){
+		return statementMisses.get();
+	}
+
+	/**
+	 * @return the mean time, in milliseconds, callers waited for a connection
+	 */
+	double getAverageWaitMillis(){
+		long n = borrows.get();
+		return n == 0 ? 0 : waitNanos.get() / (n * 1000000.0);
+	}
+
+	double getMaxWaitMillis(){
+		return maxWaitNanos.get() / 1000000.0;
+	}
+
+
+	public String toString(){
+		return "open=" + getOpenCount() + ", idle=" + getIdleCount() + ", waiting=" +
+				getWaitingCount() + ", borrows=" + getBorrowCount() + ", avgWaitMs=" +
+				getAverageWaitMillis() + ", maxWaitMs=" + getMaxWaitMillis() +
+				", timeouts=" + getTimeoutCount() + ", created=" + getCreatedCount() +
+				", evicted=" + getEvictedCount() + ", validationFailures=" +
+				getValidationFailureCount() + ", statementCacheHits=" +
+				getStatementCacheHits() + ", statementCacheMisses=" +
+				getStatementCacheMisses();
+	}
+
+}
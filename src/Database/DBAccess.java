@@ -1,15 +1,19 @@
 package Database;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.joda.time.DateTime;
 
+import DataModel.FSObject;
+import DataModel.FSObjectType;
 import DataModel.Note;
 import DataModel.Notebook;
 import DataModel.Permission;
 import DataModel.User;
 import DataModel.UserEntity;
+import Search.SearchHit;
 
 /**
  * External users of this package should use this interface to make calls to the
@@ -30,12 +34,99 @@ public interface DBAccess {
 	public int addNotebook(int parentNotebookID, Notebook notebook) throws DBAddException;
 	
 	/**
-	 * Gets the file system object with the inputed ID number
+	 * Gets the file system object with the inputed ID number. The returned notebook may
+	 * be shared with other callers, so its list of children must not be modified.
 	 * @param notebookID the id of the notebook
 	 * @return the notebook or null if none exists
 	 */
 	public Notebook getNotebook(int notebookID) throws DBException;
 	
+	/**
+	 * Gets a notebook together with everything below it, down to the inputed depth, in
+	 * two queries no matter how many notebooks are in the tree. Notebooks within the
+	 * depth limit appear among their parent's children as Notebook objects with their
+	 * own children filled in; notebooks at the depth limit appear as plain FSObjects.
+	 * Children are sorted by name.
+	 * @param rootID the id of the notebook at the top of the tree
+	 * @param maxDepth the number of levels below the root to load; 1 loads the same
+	 * children as {@link #getNotebook(int)}
+	 * @return the root notebook, or null if none exists
+	 * @throws DBException
+	 */
+	public Notebook getNotebookTree(int rootID, int maxDepth) throws DBException;
+	
+	/**
+	 * Gets one page of a notebook's children, sorted by name and then by id. Pages are
+	 * found by the position of the last child of the previous page (keyset pagination),
+	 * so every page is equally cheap no matter how deep into the listing it is.
+	 * @param notebookID the id of the notebook
+	 * @param afterName the name of the last child of the previous page, or null for the
+	 * first page
+	 * @param afterID the id of the last child of the previous page; ignored for the first
+	 * page
+	 * @param limit the largest number of children to return
+	 * @return the children on the page; fewer than limit if it is the last page
+	 * @throws DBException
+	 */
+	public List<FSObject> getChildren(int notebookID, String afterName, int afterID, 
+			int limit) throws DBException;
+	
+	/**
+	 * Passes every child of a notebook to the handler, in the same order as
+	 * {@link #getChildren(int, String, int, int)}, without holding the whole listing in
+	 * memory.
+	 * @param notebookID the id of the notebook
+	 * @param handler receives the children one at a time
+	 * @throws DBException
+	 */
+	public void streamChildren(int notebookID, ResultHandler<FSObject> handler) 
+			throws DBException;
+	
+	/**
+	 * Passes a notebook and everything below it to the handler, in order of id, with each
+	 * note's metadata, tags and permissions. The tree is read a page at a time by a range
+	 * scan of the closure table, and no connection is held while the handler runs, so the
+	 * memory used does not depend on the size of the tree. Meant for exports; objects
+	 * added or moved while the tree is being read may or may not be included.
+	 * @param notebookID the id of the notebook
+	 * @param handler receives the notebook, then the objects below it
+	 * @throws DBException
+	 */
+	public void streamSubtree(int notebookID, ResultHandler<SubtreeEntry> handler) 
+			throws DBException;
+	
+	/**
+	 * Gets the path from the root notebook down to the inputed object, e.g. to show
+	 * breadcrumbs. Answered with a single indexed query.
+	 * @param objectID the id of a note or notebook
+	 * @return the object's ancestors, the root first and its parent last; empty for the
+	 * root or an unknown object
+	 * @throws DBException
+	 */
+	public List<FSObject> getAncestors(int objectID) throws DBException;
+	
+	/**
+	 * Gets every object anywhere below the inputed notebook. Answered with a single
+	 * indexed query.
+	 * @param notebookID the id of the notebook
+	 * @param type the type of objects to return, or null for both notes and notebooks
+	 * @return the descendants, in no particular order
+	 * @throws DBException
+	 */
+	public List<FSObject> getDescendants(int notebookID, FSObjectType type) 
+			throws DBException;
+	
+	/**
+	 * Checks whether an object is inside a notebook, at any depth. Answered with a single
+	 * primary key lookup.
+	 * @param objectID the id of the note or notebook
+	 * @param notebookID the id of the notebook
+	 * @return true if the object is below the notebook, false otherwise (including when
+	 * they are the same object)
+	 * @throws DBException
+	 */
+	public boolean isDescendant(int objectID, int notebookID) throws DBException;
+	
 	/**
 	 * Adds the inputed note to the database. Disregards whatever is in the id field of the
 	 * note, and returns the id number under which the note was added
@@ -47,9 +138,44 @@ public interface DBAccess {
 	public int addNote(int parentNotebookID, Note note, Map<UserEntity, Permission> perms) 
 			throws DBAddException, DBException;
 	
+	/**
+	 * Adds all of the inputed notes to the same notebook in a single transaction, sending
+	 * the rows for each table as one batch. Much cheaper than calling addNote once per
+	 * note when many notes are added at a time. Either every note is added, or none are.
+	 * @param parentNotebookID the id of the parent notebook
+	 * @param notes the notes to add
+	 * @param perms the permissions to give every one of the notes, may be null
+	 * @return the id numbers the notes were added under, in the same order as the notes
+	 * @throws DBAddException if the parent notebook does not exist
+	 * @throws DBException
+	 */
+	public List<Integer> addNotes(int parentNotebookID, List<Note> notes, 
+			Map<UserEntity, Permission> perms) throws DBAddException, DBException;
+	
+	/**
+	 * Adds a batch of notes, each to its own notebook, in a single transaction in the same
+	 * way as {@link #addNotes(int, List, Map)}, and records the batch as added under the
+	 * inputed key in the same transaction. A batch whose key is already recorded is not
+	 * added again, so an import that was interrupted can be run again from the start
+	 * without adding any note twice.
+	 * @param batchKey a name for the batch, unique to it and at most 50 characters long
+	 * @param parentNotebookIDs the id of the notebook to add each note to
+	 * @param notes the notes to add
+	 * @return the id numbers the notes were added under, in the same order as the notes, 
+	 * or null if the batch had already been added
+	 * @throws DBAddException if one of the notebooks does not exist
+	 * @throws DBException
+	 */
+	public List<Integer> importNotes(String batchKey, List<Integer> parentNotebookIDs, 
+			List<Note> notes) throws DBAddException, DBException;
+	
 	/**
 	 * Updates the inputed note in the database. If no such note exists, creates a new note.
+	 * The note is compared with the stored one and only what differs is written: metadata
+	 * fields and tags the note no longer has are removed.
 	 * @param note the note to update
+	 * @param perms the note's permissions, which replace its grants; null or empty to
+	 * leave them as they are
 	 * @return the id of the note (the same as the note inputed if the note was updated, or
 	 * the id of the new note that was just created)
 	 * @throws DBAddException
@@ -66,6 +192,44 @@ public interface DBAccess {
 	 */
 	public Note getNote(int noteID) throws DBException;
 	
+	/**
+	 * Finds notes by their tags. Answered from an in-memory index, without querying
+	 * the database once the index is loaded.
+	 * @param allOf tags the notes must all have
+	 * @param anyOf tags the notes must have at least one of; empty for no condition
+	 * @param noneOf tags the notes must not have
+	 * @param afterID only return notes with IDs greater than this, for paging; 0 for the
+	 * first page
+	 * @param limit the largest number of IDs to return
+	 * @return the IDs of the matching notes, in increasing order
+	 * @throws DBException
+	 */
+	public List<Integer> getNotesWithTags(Collection<String> allOf, Collection<String> anyOf,
+			Collection<String> noneOf, int afterID, int limit) throws DBException;
+	
+	/**
+	 * Finds the notes whose metadata has every one of the inputed field values.
+	 * @param predicates field names mapped to the values they must have
+	 * @param limit the largest number of IDs to return
+	 * @return the IDs of the matching notes, in increasing order; empty if there are no
+	 * predicates
+	 * @throws DBException
+	 */
+	public List<Integer> findNotesByMetadata(Map<String, String> predicates, int limit)
+			throws DBException;
+	
+	/**
+	 * Searches the names, metadata values and tags of the notes the user can read.
+	 * @param query the words to search for
+	 * @param userID the id of the user searching
+	 * @param limit the largest number of hits to return
+	 * @return the hits, best first
+	 * @throws DBException if searching failed, or this DBAccess has no search index
+	 * (see {@link Standalone})
+	 */
+	public List<SearchHit> searchNotes(String query, int userID, int limit) 
+			throws DBException;
+	
 	/**
 	 * Adds 
 	 * @param u the user object to add
@@ -73,11 +237,13 @@ public interface DBAccess {
 	public void addUser(User u);
 	
 	/**
-	 * Returns the user info for the given id
+	 * Returns the user info for the given id, without the password
 	 * @param id the id of the user
-	 * @return the user object for that id
+	 * @return the user object for that id, or null if there is no such user
+	 * @throws DBException if the database could not be read, so that a missing user can
+	 * be told apart from a failed lookup
 	 */
-	public User getUser(int id);
+	public User getUser(int id) throws DBException;
 	
 	/**
 	 * Checks the database if the inputed username and password match one in the
@@ -89,34 +255,207 @@ public interface DBAccess {
 	
 	/**
 	 * For a given noteID and userID, returns what permissions the user has on the
-	 * note.
+	 * note, either directly or through a group. The author of a note may write it.
 	 * @param noteID
 	 * @param userID
-	 * @return
+	 * @return the strongest permission the user has, or null if they have none
+	 * @throws DBException
+	 */
+	public Permission getPermission(int noteID, int userID) throws DBException;
+	
+	/**
+	 * Filters a listing down to what a user can see: the notes they may read, and every
+	 * notebook, since notebooks carry no permissions. The permissions on all of the notes
+	 * are resolved together, with at most one query per few hundred notes that haven't
+	 * been resolved for the user recently.
+	 * @param userID the id of the user
+	 * @param objects the notes and notebooks to filter
+	 * @return the visible objects, in the inputed order
+	 * @throws DBException
+	 */
+	public <T extends FSObject> List<T> filterReadable(int userID, Collection<T> objects) 
+			throws DBException;
+	
+	/**
+	 * Filters a listing down to the notes a user may write, and every notebook, in the
+	 * same way as {@link #filterReadable(int, Collection)}.
+	 * @param userID the id of the user
+	 * @param objects the notes and notebooks to filter
+	 * @return the writable objects, in the inputed order
+	 * @throws DBException
+	 */
+	public <T extends FSObject> List<T> filterWritable(int userID, Collection<T> objects) 
+			throws DBException;
+	
+	/**
+	 * Adds a user to a group, so that they get the group's permissions. Does nothing if
+	 * they are already in it.
+	 * @param userID the id of the user
+	 * @param groupID the id of the group
+	 * @throws DBException
 	 */
-	public Permission getPermission(int noteID, int userID);
+	public void addUserToGroup(int userID, int groupID) throws DBException;
 	
 	/**
-	 * Gets a set of all Notes that were updated since the time specified. Useful for
-	 * sending notification emails.
+	 * Removes a user from a group, so that they lose the group's permissions. Does
+	 * nothing if they are not in it.
+	 * @param userID the id of the user
+	 * @param groupID the id of the group
+	 * @throws DBException
+	 */
+	public void removeUserFromGroup(int userID, int groupID) throws DBException;
+	
+	/**
+	 * Passes every note that was updated since the time specified to the handler, each
+	 * once, oldest change first. Useful for sending notification emails. Changes are
+	 * timed by when they were written, whatever modified time the note carries, and are
+	 * found through the write times in the database. If blacknote.changeLog.soleWriter
+	 * says that only this server writes the database, recent windows are answered from
+	 * an in-memory log of the writes made through it instead.
 	 * @param start the start time
-	 * @return set of all notes updated since the inputed start time
+	 * @param handler receives the notes updated since the inputed start time
+	 * @throws DBException
 	 */
-	public Set<Note> getRecentlyUpdatedSince(DateTime start);
+	public void streamRecentlyUpdatedSince(DateTime start, ResultHandler<Note> handler) 
+			throws DBException;
 	
+	/**
+	 * Gets the users subscribed to each of the inputed tags, either directly or through
+	 * one of their groups, in one query.
+	 * @param tags the names of the tags
+	 * @return every inputed tag mapped to its subscribers, each user once; empty lists
+	 * for tags nobody subscribes to
+	 * @throws DBException
+	 */
+	public Map<String, List<User>> getTagSubscribers(Collection<String> tags) 
+			throws DBException;
+	
+	/**
+	 * Gets how far a background job has got, as saved by 
+	 * {@link #setCheckpoint(String, DateTime)}.
+	 * @param name the name of the job
+	 * @return the saved time, or null if none has been saved
+	 * @throws DBException
+	 */
+	public DateTime getCheckpoint(String name) throws DBException;
 	
 	/**
-	 * Singleton provided for convenience.
+	 * Saves how far a background job has got, replacing the time saved before, so that
+	 * it can carry on from there after a restart.
+	 * @param name the name of the job
+	 * @param time the time the job has processed every change up to
+	 * @throws DBException
+	 */
+	public void setCheckpoint(String name, DateTime time) throws DBException;
+	
+	
+	/**
+	 * Singleton provided for convenience. Notebooks read through it are cached (see
+	 * {@link CachingDBAccess}), and writes made through it are counted by the
+	 * {@link VersionTracker} returned by {@link #getVersionTracker()}. If
+	 * blacknote.writeBehind.windowMillis is set, note updates are held back and
+	 * coalesced (see {@link WriteBehindDBAccess}) until {@link #close()}; a held back
+	 * update moves versions once it is written.
 	 * @author Ralph
 	 *
 	 */
 	public class Singleton{
 		
-		private static DBAccess instance;
+		private static final VersionTracker versions = new VersionTracker();
+		
+		private static volatile DBAccess instance;
+		
+		private static WriteBehindDBAccess writeBehind;
+		
+		private static DBAccessImpl impl;
 		
 		public static DBAccess getInstance() throws DBException{
+			// Only the first calls synchronize; after that the instance is read lock-free
+			DBAccess inst = instance;
+			if(inst == null){
+				synchronized(Singleton.class){
+					inst = instance;
+					if(inst == null){
+						impl = new DBAccessImpl();
+						// Index the notes changed while the server was down before the
+						// first search needs them
+						impl.startSearchCatchUp();
+						DBAccess db = new VersionedDBAccess(new CachingDBAccess(impl,
+								CachingDBAccess.DEFAULT_MAX_WEIGHT), versions);
+						if(WriteBehindDBAccess.WINDOW_MILLIS > 0){
+							// Versions move when a held back update is written, not when
+							// it is made, so that a version is never handed out with
+							// listings and searches that don't reflect it yet
+							writeBehind = new WriteBehindDBAccess(db, 
+									WriteBehindDBAccess.WINDOW_MILLIS);
+							db = writeBehind;
+						}
+						Runtime.getRuntime().addShutdownHook(new Thread("DBAccess-close"){
+							@Override
+							public void run(){
+								try{
+									close();
+								}
+								catch(DBException e){
+									// Nothing more can be done as the JVM exits
+								}
+							}
+						});
+						inst = db;
+						instance = inst;
+					}
+				}
+			}
+			return inst;
+		}
+		
+		/**
+		 * Writes every note update still held back by write-behind, if it is on, and then
+		 * commits the search index. Updates made afterwards are written straight through.
+		 * Called when the web app is undeployed and when the JVM exits.
+		 * @throws DBException if some updates or the search index could not be written
+		 */
+		public static void close() throws DBException{
+			WriteBehindDBAccess wb;
+			DBAccessImpl db;
+			synchronized(Singleton.class){
+				wb = writeBehind;
+				db = impl;
+			}
+			try{
+				if(wb != null){
+					wb.close();
+				}
+			}
+			finally{
+				if(db != null){
+					db.close();
+				}
+			}
+		}
+		
+		/**
+		 * @return the versions of the notes and notebooks written through the singleton
+		 */
+		public static VersionTracker getVersionTracker(){
+			return versions;
+		}
+	}
+	
+	/**
+	 * The DBAccess for command line tools that run beside the web app, such as the bulk
+	 * importer and the nightly export. It doesn't open the search index, which belongs
+	 * to the web app, so it can't search; nor does it cache. The running web app doesn't
+	 * see what a tool writes in its tag, metadata and search indexes until it restarts,
+	 * and must not be told it is the sole writer (blacknote.changeLog.soleWriter).
+	 */
+	public class Standalone{
+		
+		private static DBAccess instance;
+		
+		public static synchronized DBAccess getInstance() throws DBException{
 			if(instance == null){
-				instance = new DBAccessImpl();
+				instance = new DBAccessImpl(null, false);
 			}
 			return instance;
 		}
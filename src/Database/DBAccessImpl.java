@@ -1,12 +1,23 @@
 package Database;
 
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.joda.time.DateTime;
 
@@ -14,438 +25,1879 @@ import DataModel.FSObject;
 import DataModel.FSObjectImpl;
 import DataModel.FSObjectType;
 import DataModel.Note;
+import DataModel.NoteImpl;
 import DataModel.Notebook;
 import DataModel.NotebookImpl;
 import DataModel.Permission;
 import DataModel.Tag;
+import DataModel.TagImpl;
 import DataModel.User;
 import DataModel.UserEntity;
 import DataModel.UserImpl;
+import Search.SearchHit;
+import Search.SearchIndex;
 
 /**
- * A simple (non-hibernate based) implementation of the database interface.
+ * A simple (non-hibernate based) implementation of the database interface. Every query
+ * is parameterized, so each statement below is prepared once per pooled connection and
+ * then reused from that connection's statement cache.
  * @author Ralph
  *
  */
 final class DBAccessImpl implements DBAccess {
 
-	private final static String SCHEMA_NAME = "InnoChallenge";
-	
+	final static String SCHEMA_NAME = "InnoChallenge";
+
+	/**
+	 * The notebook at the top of the file system, created along with the schema.
+	 */
+	static final int ROOT_NOTEBOOK_ID = 1;
+
+	/**
+	 * The row of the IDSequences table that FSObject IDs are reserved from.
+	 */
+	private static final String FSOBJECT_SEQUENCE = "FSObjects";
+
+	/**
+	 * The number of IDs each process reserves from the sequence at a time.
+	 */
+	private static final int ID_BLOCK_SIZE = Integer.getInteger("blacknote.db.idBlockSize", 100);
+
+	private static final String SELECT_NOTEBOOK_EXISTS = "select 1 from " + SCHEMA_NAME +
+			".Notebooks where notebookID = ?";
+
+	private static final String SELECT_NOTEBOOK_NAME = "select objectName " +
+			"from " + SCHEMA_NAME + ".Notebooks, " + SCHEMA_NAME + ".FSObjects " +
+			"where notebookID = ? and objectID = notebookID";
+
+	private static final String SELECT_CHILDREN = "select objectID, typeName, objectName " +
+			"from " + SCHEMA_NAME + ".FSObjects fso, " + SCHEMA_NAME + ".FSStructure fss " +
+			"where fss.parent = ? and fss.child = fso.objectID " +
+			"order by objectName, objectID";
+
+	private static final String SELECT_CHILDREN_FIRST_PAGE = "select objectID, typeName, " +
+			"objectName from " + SCHEMA_NAME + ".FSObjects fso, " + SCHEMA_NAME +
+			".FSStructure fss where fss.parent = ? and fss.child = fso.objectID " +
+			"order by objectName, objectID limit ?";
+
+	/**
+	 * The page of children that follows the (objectName, objectID) of the last child of
+	 * the previous page.
+	 */
+	private static final String SELECT_CHILDREN_NEXT_PAGE = "select objectID, typeName, " +
+			"objectName from " + SCHEMA_NAME + ".FSObjects fso, " + SCHEMA_NAME +
+			".FSStructure fss where fss.parent = ? and fss.child = fso.objectID and " +
+			"(objectName > ? or (objectName = ? and objectID > ?)) " +
+			"order by objectName, objectID limit ?";
+
+	/**
+	 * The number of rows fetched from the server at a time by streaming queries.
+	 */
+	private static final int STREAM_FETCH_SIZE = 1000;
+
+	/**
+	 * Every object within a number of levels below a notebook, with its parent, parents
+	 * before children.
+	 */
+	private static final String SELECT_SUBTREE = "select fss.parent, fso.objectID, " +
+			"fso.typeName, fso.objectName, c.depth " +
+			"from " + SCHEMA_NAME + ".FSClosure c, " + SCHEMA_NAME + ".FSStructure fss, " +
+			SCHEMA_NAME + ".FSObjects fso " +
+			"where c.ancestor = ? and c.depth between 1 and ? and " +
+			"fss.child = c.descendant and fso.objectID = c.descendant " +
+			"order by c.depth, fso.objectName";
+
+	/**
+	 * A page of the objects in a subtree, the subtree's root included, in order of id.
+	 * The root notebook has no parent.
+	 */
+	private static final String SELECT_SUBTREE_PAGE = "select c.descendant, fso.typeName, " +
+			"fso.objectName, fss.parent from " + SCHEMA_NAME + ".FSClosure c " +
+			"join " + SCHEMA_NAME + ".FSObjects fso on fso.objectID = c.descendant " +
+			"left join " + SCHEMA_NAME + ".FSStructure fss on fss.child = c.descendant " +
+			"where c.ancestor = ? and c.descendant > ? order by c.descendant limit ?";
+
+	private static final String SELECT_ANCESTORS = "select fso.objectID, fso.typeName, " +
+			"fso.objectName from " + SCHEMA_NAME + ".FSClosure c, " + SCHEMA_NAME +
+			".FSObjects fso where c.descendant = ? and c.depth > 0 and " +
+			"fso.objectID = c.ancestor order by c.depth desc";
+
+	private static final String SELECT_DESCENDANTS = "select fso.objectID, fso.typeName, " +
+			"fso.objectName from " + SCHEMA_NAME + ".FSClosure c, " + SCHEMA_NAME +
+			".FSObjects fso where c.ancestor = ? and c.depth > 0 and " +
+			"fso.objectID = c.descendant";
+
+	private static final String SELECT_DESCENDANTS_OF_TYPE = SELECT_DESCENDANTS +
+			" and fso.typeName = ?";
+
+	private static final String SELECT_IS_DESCENDANT = "select 1 from " + SCHEMA_NAME +
+			".FSClosure where ancestor = ? and descendant = ? and depth > 0";
+
+	private static final String INSERT_NOTEBOOK_CLOSURE = "insert into " + SCHEMA_NAME +
+			".FSClosure (ancestor, descendant, depth) " +
+			"select ancestor, ?, depth + 1 from " + SCHEMA_NAME + ".FSClosure " +
+			"where descendant = ? " +
+			"union all select ?, ?, 0";
+
+	private static final String INSERT_NOTEBOOK_FSOBJECT = "insert into " + SCHEMA_NAME +
+			".FSObjects (objectID, objectName, typeName) values (?, ?, 'notebook')";
+
+	private static final String INSERT_NOTEBOOK = "insert into " + SCHEMA_NAME +
+			".Notebooks (notebookID) values (?)";
+
+	private static final String INSERT_NOTEBOOK_STRUCTURE = "insert into " + SCHEMA_NAME +
+			".FSStructure (parent, child) values (?, ?)";
+
+	private static final String SELECT_NOTE = "select fso.objectName, n.author, " +
+			"n.created, n.lastModified from " + SCHEMA_NAME + ".Notes n, " + SCHEMA_NAME +
+			".FSObjects fso where n.noteID = ? and fso.objectID = n.noteID";
+
+	private static final String SELECT_NOTE_METADATA = "select fieldName, fieldData from " +
+			SCHEMA_NAME + ".NoteMetaData where noteID = ?";
+
+	private static final String SELECT_NOTE_TAGS = "select tag from " + SCHEMA_NAME +
+			".NoteTags where noteID = ?";
+
+	/**
+	 * The first page of the notes modified since a time, oldest first.
+	 */
+	private static final String SELECT_NOTES_MODIFIED_SINCE = "select noteID, lastModified " +
+			"from " + SCHEMA_NAME + ".Notes where lastModified >= ? " +
+			"order by lastModified, noteID limit ?";
+
+	/**
+	 * The page of modified notes that follows the (lastModified, noteID) of the last note
+	 * of the previous page.
+	 */
+	private static final String SELECT_NOTES_MODIFIED_AFTER = "select noteID, lastModified " +
+			"from " + SCHEMA_NAME + ".Notes where lastModified > ? or " +
+			"(lastModified = ? and noteID > ?) order by lastModified, noteID limit ?";
+
+	/**
+	 * The first page of the notes the server has written since a time, oldest first.
+	 */
+	private static final String SELECT_NOTES_WRITTEN_SINCE = "select noteID, written " +
+			"from " + SCHEMA_NAME + ".Notes where written >= ? " +
+			"order by written, noteID limit ?";
+
+	/**
+	 * The page of written notes that follows the (written, noteID) of the last note of
+	 * the previous page.
+	 */
+	private static final String SELECT_NOTES_WRITTEN_AFTER = "select noteID, written " +
+			"from " + SCHEMA_NAME + ".Notes where written > ? or " +
+			"(written = ? and noteID > ?) order by written, noteID limit ?";
+
+	/**
+	 * Several notes, their metadata and their tags. Each is followed by
+	 * {@link #inList(int)}.
+	 */
+	private static final String SELECT_NOTES = "select n.noteID, fso.objectName, n.author, " +
+			"n.created, n.lastModified from " + SCHEMA_NAME + ".Notes n, " + SCHEMA_NAME +
+			".FSObjects fso where fso.objectID = n.noteID and n.noteID in ";
+
+	private static final String SELECT_METADATA_OF_NOTES = "select noteID, fieldName, " +
+			"fieldData from " + SCHEMA_NAME + ".NoteMetaData where noteID in ";
+
+	private static final String SELECT_TAGS_OF_NOTES = "select noteID, tag from " +
+			SCHEMA_NAME + ".NoteTags where noteID in ";
+
+	private static final String SELECT_PERMISSIONS_OF_NOTES = "select noteID, userEntityID, " +
+			"permission from " + SCHEMA_NAME + ".NotePermissions where noteID in ";
+
+	/**
+	 * The users subscribed to a list of tags, directly and through their groups.
+	 * Followed by {@link #inList(int)}, then {@link #SELECT_GROUP_TAG_SUBSCRIBERS} and
+	 * another list.
+	 */
+	private static final String SELECT_TAG_SUBSCRIBERS = "select ts.tag, u.userID, " +
+			"u.userName, u.email from " + SCHEMA_NAME + ".TagSubscribers ts, " + SCHEMA_NAME +
+			".Users u where u.userID = ts.userEntityID and ts.tag in ";
+
+	private static final String SELECT_GROUP_TAG_SUBSCRIBERS = " union select ts.tag, " +
+			"u.userID, u.userName, u.email from " + SCHEMA_NAME + ".TagSubscribers ts, " +
+			SCHEMA_NAME + ".UserGroupMappings ugm, " + SCHEMA_NAME + ".Users u " +
+			"where ugm.groupID = ts.userEntityID and u.userID = ugm.userID and ts.tag in ";
+
+	private static final String INSERT_GROUP_MAPPING = "insert into " + SCHEMA_NAME +
+			".UserGroupMappings (userID, groupID) values (?, ?) " +
+			"on duplicate key update groupID = groupID";
+
+	private static final String DELETE_GROUP_MAPPING = "delete from " + SCHEMA_NAME +
+			".UserGroupMappings where userID = ? and groupID = ?";
+
+	private static final String SELECT_CHECKPOINT = "select watermark from " + SCHEMA_NAME +
+			".Checkpoints where checkpointName = ?";
+
+	private static final String SELECT_CHECKPOINT_FOR_UPDATE = SELECT_CHECKPOINT + 
+			" for update";
+
+	private static final String INSERT_CHECKPOINT = "insert into " + SCHEMA_NAME +
+			".Checkpoints (checkpointName, watermark) values (?, ?)";
+
+	private static final String UPSERT_CHECKPOINT = "insert into " + SCHEMA_NAME +
+			".Checkpoints (checkpointName, watermark) values (?, ?) " +
+			"on duplicate key update watermark = values(watermark)";
+
+	/**
+	 * The most values put in one IN list.
+	 */
+	static final int MAX_IN_LIST = 512;
+
+	/**
+	 * The most search hits checked for permissions before giving up on filling a page.
+	 */
+	private static final int MAX_SEARCH_CANDIDATES = 16384;
+
+	/**
+	 * How far before the search index's last commit to look for written notes, to allow
+	 * for the clocks of the servers writing the database to disagree.
+	 */
+	private static final long SEARCH_CATCH_UP_SLACK_MILLIS = 5 * 60 * 1000;
+
+	private static final String SELECT_USER_BY_ID = "select userName, email from " +
+			SCHEMA_NAME + ".Users where userID = ?";
+
+	private static final String SELECT_USER = "select u.userID, u.email from " +
+			SCHEMA_NAME + ".Users u, " + SCHEMA_NAME + ".UserEntities ue " +
+			"where u.userName = ? and u.pass = ? and u.userID = ue.userEntityID";
+
 	/**
-	 * The sql interface singleton.
+	 * The sql interface singleton. Every method borrows its own connection from it.
 	 */
 	private SQLInterface sql;
-	
-	private int previousFSObjectID;
-	
-	
+
+	/**
+	 * The number of stripes object IDs are spread across for write locking.
+	 */
+	private static final int LOCK_STRIPES = 256;
+
+	/**
+	 * Whether metadata queries are answered from memory rather than by the database.
+	 */
+	private static final boolean METADATA_INDEX = Boolean.parseBoolean(
+			System.getProperty("blacknote.index.metadata", "true"));
+
+	/**
+	 * The directory the search index is kept in. Must not be shared between processes.
+	 */
+	private static final String SEARCH_DIR = System.getProperty("blacknote.search.dir",
+			new File(System.getProperty("java.io.tmpdir"), "blacknote-search").getPath());
+
+	/**
+	 * The number of notes the search index holds in memory before writing them to disk.
+	 */
+	private static final int SEARCH_FLUSH_DOCS = Integer.getInteger(
+			"blacknote.search.flushDocs", 10000);
+
+	/**
+	 * The number of (note, user) permissions kept in memory.
+	 */
+	private static final int PERMISSION_CACHE_SIZE = Integer.getInteger(
+			"blacknote.permissions.cacheSize", 65536);
+
+	/**
+	 * The number of users whose groups are kept in memory.
+	 */
+	private static final int MEMBERSHIP_CACHE_SIZE = Integer.getInteger(
+			"blacknote.permissions.membershipCacheSize", 10000);
+
+	/**
+	 * The number of note writes remembered in memory for
+	 * {@link #streamRecentlyUpdatedSince(DateTime, ResultHandler)}.
+	 */
+	private static final int CHANGE_LOG_CAPACITY = Integer.getInteger(
+			"blacknote.changeLog.capacity", 65536);
+
+	/**
+	 * Whether recent changes may be answered from the change log, which only sees the
+	 * writes made through this process. Only true if blacknote.changeLog.soleWriter is
+	 * set, saying that no tool such as the bulk importer writes beside the server, and
+	 * there is a single server.
+	 */
+	private static final boolean CHANGE_LOG_SEES_ALL = VersionTracker.seesAllWrites() &&
+			Boolean.getBoolean("blacknote.changeLog.soleWriter");
+
+	/**
+	 * Issues the IDs of new notes and notebooks.
+	 */
+	private final IDAllocator ids;
+
+	/**
+	 * Writers lock the stripes of the notebooks and notes they change; readers never
+	 * lock and rely on the database for a consistent view.
+	 */
+	private final LockStripes writeLocks = new LockStripes(LOCK_STRIPES);
+
+	/**
+	 * Every note's tags, updated after each committed write.
+	 */
+	private final TagIndex tagIndex;
+
+	/**
+	 * Every note's metadata, updated after each committed write; null if metadata
+	 * queries go to the database.
+	 */
+	private final MetadataIndex metadataIndex;
+
+	/**
+	 * Full-text index of every note, updated after each committed write; null if the DAO
+	 * was made without search.
+	 */
+	private final SearchIndex searchIndex;
+
+	/**
+	 * Whether the notes changed since the search index's last commit have been indexed.
+	 */
+	private volatile boolean searchCaughtUp = false;
+
+	private final Object searchCatchUpLock = new Object();
+
+	/**
+	 * The notes written recently, in the order they were written.
+	 */
+	private final ChangeLog changes = new ChangeLog(CHANGE_LOG_CAPACITY);
+
+	/**
+	 * Works out and caches what each user may do with each note.
+	 */
+	private final PermissionResolver permissions;
+
+	/**
+	 * The write volume of updateNote: the updates made, and the rows they wrote and left
+	 * alone.
+	 */
+	private final AtomicLong noteUpdates = new AtomicLong(),
+			updateRowsWritten = new AtomicLong(), updateRowsUnchanged = new AtomicLong();
+
+
 	DBAccessImpl() throws DBException{
-		sql = SQLInterface.getSQLInterface();
-		previousFSObjectID = getPreviousFSObjectID();
+		this(null, true);
+	}
+
+
+	/**
+	 * @param ids the allocator to take new object IDs from, or null to reserve them in
+	 * blocks from the IDSequences table
+	 * @param search whether to open the search index in blacknote.search.dir. Only one
+	 * process may have it open, so tools that run beside the web app go without, and
+	 * can't search.
+	 * @throws DBException
+	 */
+	DBAccessImpl(IDAllocator ids, boolean search) throws DBException{
+		try{
+			sql = SQLInterface.getSQLInterface();
+		}
+		catch(SQLException e){
+			throw new DBException("Could not connect to the database", e);
+		}
+		this.ids = ids != null ? ids : new HiLoIDAllocator(sql, FSOBJECT_SEQUENCE, ID_BLOCK_SIZE);
+		this.tagIndex = new TagIndex(sql);
+		this.metadataIndex = METADATA_INDEX ? new MetadataIndex(sql) : null;
+		this.permissions = new PermissionResolver(sql, PERMISSION_CACHE_SIZE,
+				MEMBERSHIP_CACHE_SIZE);
+		if(!search){
+			this.searchIndex = null;
+			return;
+		}
+		try{
+			this.searchIndex = new SearchIndex(new File(SEARCH_DIR), SEARCH_FLUSH_DOCS);
+		}
+		catch(IOException e){
+			throw new DBException("Could not open the search index in " + SEARCH_DIR, e);
+		}
+	}
+
+
+	@Override
+	public int addNotebook(int parentNotebookID, Notebook notebook) throws DBAddException {
+		try {
+			// Take the ID before borrowing a connection, since reserving a new block of IDs
+			// needs a connection of its own
+			int tempID = ids.nextID();
+
+			// Keep other writers away from the parent and the new notebook
+			int[] locked = writeLocks.lock(parentNotebookID, tempID);
+			try{
+				SQLConnection conn = sql.getConnection();
+				boolean committed = false;
+				try{
+					conn.begin();
+
+					// Make sure the parent notebook exists
+					if(!notebookDoesExist(conn, parentNotebookID)){
+						throw new DBAddException();
+					}
+
+					// Add the object to the global file system object directory
+					PreparedStatement stmt = conn.prepare(INSERT_NOTEBOOK_FSOBJECT);
+					stmt.setInt(1, tempID);
+					stmt.setString(2, notebook.getName());
+					stmt.executeUpdate();
+
+					// Add the notebook to the notebook table
+					stmt = conn.prepare(INSERT_NOTEBOOK);
+					stmt.setInt(1, tempID);
+					stmt.executeUpdate();
+
+					// Place the notebook under the specified parent notebook
+					stmt = conn.prepare(INSERT_NOTEBOOK_STRUCTURE);
+					stmt.setInt(1, parentNotebookID);
+					stmt.setInt(2, tempID);
+					stmt.executeUpdate();
+
+					// Record the notebook under each of its ancestors, and as its own ancestor
+					stmt = conn.prepare(INSERT_NOTEBOOK_CLOSURE);
+					stmt.setInt(1, tempID);
+					stmt.setInt(2, parentNotebookID);
+					stmt.setInt(3, tempID);
+					stmt.setInt(4, tempID);
+					stmt.executeUpdate();
+
+					conn.commit();
+					committed = true;
+
+					// Return the ID of the notebook just added
+					return tempID;
+				}
+				finally{
+					if(!committed){
+						conn.rollback();
+					}
+					sql.releaseConnection(conn);
+				}
+			}
+			finally{
+				writeLocks.unlock(locked);
+			}
+		}
+		catch (SQLException e) {
+			throw new DBAddException("Error communicating with database", e);
+		}
+		catch (DBException e) {
+			throw new DBAddException("Could not allocate an ID for the notebook", e);
+		}
+	}
+
+
+	/**
+	 * Queries the database for a notebook of the ID number supplied.
+	 * @return true if the ID corresponds to a notebook, false otherwise
+	 * @throws SQLException
+	 */
+	private boolean notebookDoesExist(SQLConnection conn, int id) throws SQLException{
+		PreparedStatement stmt = conn.prepare(SELECT_NOTEBOOK_EXISTS);
+		stmt.setInt(1, id);
+		ResultSet rs = stmt.executeQuery();
+		try{
+			return rs.next();
+		}
+		finally{
+			SQLInterface.close(rs);
+		}
+	}
+
+
+	@Override
+	public Notebook getNotebook(int notebookID) throws DBException {
+		SQLConnection conn;
+		try{
+			conn = sql.getConnection();
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+
+		ResultSet rs = null;
+		try{
+			// Get the details of the notebook
+			PreparedStatement stmt = conn.prepare(SELECT_NOTEBOOK_NAME);
+			stmt.setInt(1, notebookID);
+			rs = stmt.executeQuery();
+
+			String notebookName = null;
+			if(!rs.next()){
+				return null;
+			}
+			notebookName = rs.getString(1);
+			rs.close();
+
+			// Get the notebook's children
+			stmt = conn.prepare(SELECT_CHILDREN);
+			stmt.setInt(1, notebookID);
+			rs = stmt.executeQuery();
+			List<FSObject> children = new LinkedList<FSObject>();
+			while(rs.next()){
+				int id = rs.getInt(1);
+				FSObjectType type = FSObjectType.fromString(rs.getString(2));
+				String name = rs.getString(3);
+				FSObject obj = new FSObjectImpl(id, name, type);
+
+				children.add(obj);
+			}
+
+			// Create and return the new Notebook
+			return new NotebookImpl(notebookID, notebookName, children);
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+		finally{
+			SQLInterface.close(rs);
+			sql.releaseConnection(conn);
+		}
+	}
+
+
+	@Override
+	public Notebook getNotebookTree(int rootID, int maxDepth) throws DBException {
+		SQLConnection conn;
+		try{
+			conn = sql.getConnection();
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+
+		ResultSet rs = null;
+		try{
+			// Read the root and the subtree in one transaction so that they agree
+			conn.begin();
+
+			PreparedStatement stmt = conn.prepare(SELECT_NOTEBOOK_NAME);
+			stmt.setInt(1, rootID);
+			rs = stmt.executeQuery();
+			if(!rs.next()){
+				return null;
+			}
+			String rootName = rs.getString(1);
+			rs.close();
+
+			// The child lists of the notebooks read so far. Rows come level by level, so
+			// a notebook is always read before its children.
+			Map<Integer, List<FSObject>> childLists = new HashMap<Integer, List<FSObject>>();
+			List<FSObject> rootChildren = new ArrayList<FSObject>();
+			childLists.put(rootID, rootChildren);
+
+			stmt = conn.prepare(SELECT_SUBTREE);
+			stmt.setInt(1, rootID);
+			stmt.setInt(2, maxDepth);
+			rs = stmt.executeQuery();
+			while(rs.next()){
+				int parent = rs.getInt(1);
+				int id = rs.getInt(2);
+				FSObjectType type = FSObjectType.fromString(rs.getString(3));
+				String name = rs.getString(4);
+				int depth = rs.getInt(5);
+
+				FSObject obj;
+				if(type == FSObjectType.NOTEBOOK && depth < maxDepth){
+					// Expanded by the rows of the next level
+					List<FSObject> children = new ArrayList<FSObject>();
+					childLists.put(id, children);
+					obj = new NotebookImpl(id, name, children);
+				}
+				else{
+					obj = new FSObjectImpl(id, name, type);
+				}
+				childLists.get(parent).add(obj);
+			}
+
+			conn.commit();
+			return new NotebookImpl(rootID, rootName, rootChildren);
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+		finally{
+			SQLInterface.close(rs);
+			conn.rollback();
+			sql.releaseConnection(conn);
+		}
+	}
+
+
+	@Override
+	public List<FSObject> getAncestors(int objectID) throws DBException {
+		return queryFSObjects(SELECT_ANCESTORS, objectID, null);
+	}
+
+
+	@Override
+	public List<FSObject> getDescendants(int notebookID, FSObjectType type)
+			throws DBException {
+		if(type == null){
+			return queryFSObjects(SELECT_DESCENDANTS, notebookID, null);
+		}
+		return queryFSObjects(SELECT_DESCENDANTS_OF_TYPE, notebookID, type.toString());
+	}
+
+
+	@Override
+	public List<FSObject> getChildren(int notebookID, String afterName, int afterID,
+			int limit) throws DBException {
+		try{
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				PreparedStatement stmt;
+				if(afterName == null){
+					stmt = conn.prepare(SELECT_CHILDREN_FIRST_PAGE);
+					stmt.setInt(1, notebookID);
+					stmt.setInt(2, limit);
+				}
+				else{
+					stmt = conn.prepare(SELECT_CHILDREN_NEXT_PAGE);
+					stmt.setInt(1, notebookID);
+					stmt.setString(2, afterName);
+					stmt.setString(3, afterName);
+					stmt.setInt(4, afterID);
+					stmt.setInt(5, limit);
+				}
+				rs = stmt.executeQuery();
+
+				List<FSObject> children = new ArrayList<FSObject>(Math.min(limit, 1024));
+				while(rs.next()){
+					children.add(new FSObjectImpl(rs.getInt(1), rs.getString(3),
+							FSObjectType.fromString(rs.getString(2))));
+				}
+				return children;
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+	}
+
+
+	@Override
+	public void streamChildren(int notebookID, ResultHandler<FSObject> handler)
+			throws DBException {
+		try{
+			SQLConnection conn = sql.getConnection();
+			PreparedStatement stmt = null;
+			try{
+				stmt = conn.prepareStreaming(SELECT_CHILDREN, STREAM_FETCH_SIZE);
+				stmt.setInt(1, notebookID);
+				ResultSet rs = stmt.executeQuery();
+				while(rs.next()){
+					FSObject child = new FSObjectImpl(rs.getInt(1), rs.getString(3),
+							FSObjectType.fromString(rs.getString(2)));
+					if(!handler.handle(child)){
+						break;
+					}
+				}
+			}
+			finally{
+				SQLInterface.close(stmt);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+	}
+
+
+	@Override
+	public void streamSubtree(int notebookID, ResultHandler<SubtreeEntry> handler)
+			throws DBException {
+		int afterID = Integer.MIN_VALUE;
+		while(true){
+			List<FSObject> objects = new ArrayList<FSObject>(MAX_IN_LIST);
+			List<Integer> parents = new ArrayList<Integer>(MAX_IN_LIST);
+			List<Integer> noteIDs = new ArrayList<Integer>();
+			try{
+				SQLConnection conn = sql.getConnection();
+				ResultSet rs = null;
+				try{
+					PreparedStatement stmt = conn.prepare(SELECT_SUBTREE_PAGE);
+					stmt.setInt(1, notebookID);
+					stmt.setInt(2, afterID);
+					stmt.setInt(3, MAX_IN_LIST);
+					rs = stmt.executeQuery();
+					while(rs.next()){
+						afterID = rs.getInt(1);
+						FSObject object = new FSObjectImpl(afterID, rs.getString(3),
+								FSObjectType.fromString(rs.getString(2)));
+						objects.add(object);
+						parents.add(rs.getInt(4));
+						if(object.getType() == FSObjectType.NOTE){
+							noteIDs.add(afterID);
+						}
+					}
+				}
+				finally{
+					SQLInterface.close(rs);
+					sql.releaseConnection(conn);
+				}
+			}
+			catch(SQLException e){
+				throw new DBException("Error communicating with DB", e);
+			}
+
+			Map<Integer, Note> notes = new HashMap<Integer, Note>();
+			for(Note note: loadNotes(noteIDs)){
+				notes.put(note.getID(), note);
+			}
+			Map<Integer, Map<Integer, Permission>> permissions = loadPermissions(noteIDs);
+
+			// No connection is held while the handler runs
+			for(int i = 0; i < objects.size(); i++){
+				FSObject object = objects.get(i);
+				Map<Integer, Permission> granted = Collections.emptyMap();
+				if(object.getType() == FSObjectType.NOTE){
+					object = notes.get(object.getID());
+					if(object == null){
+						// Deleted since the page was read
+						continue;
+					}
+					Map<Integer, Permission> notePermissions = permissions.get(object.getID());
+					if(notePermissions != null){
+						granted = notePermissions;
+					}
+				}
+				if(!handler.handle(new SubtreeEntry(parents.get(i), object, granted))){
+					return;
+				}
+			}
+			if(objects.size() < MAX_IN_LIST){
+				return;
+			}
+		}
 	}
-	
-	
+
+
+	@Override
+	public boolean isDescendant(int objectID, int notebookID) throws DBException {
+		try{
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				PreparedStatement stmt = conn.prepare(SELECT_IS_DESCENDANT);
+				stmt.setInt(1, notebookID);
+				stmt.setInt(2, objectID);
+				rs = stmt.executeQuery();
+				return rs.next();
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+	}
+
+
 	/**
-	 * Returns the ID of the last FSObject created.
-	 * @return the ID of the last FSObject added
-	 * @throws DBException 
+	 * Runs a query with an int as its first parameter, whose rows are
+	 * (objectID, typeName, objectName)
+	 * @param query the query to run
+	 * @param id the value of the first parameter
+	 * @param type the value of the second parameter, or null if there is none
+	 * @return the objects, in the order the query returned them
+	 * @throws DBException
 	 */
-	private int getPreviousFSObjectID() throws DBException {
-		String query = "select max(objectID) from " + SCHEMA_NAME + ".FSObjects";
-		ResultSet rs = sql.getResultSafe(query);
+	private List<FSObject> queryFSObjects(String query, int id, String type)
+			throws DBException {
+		try{
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				PreparedStatement stmt = conn.prepare(query);
+				stmt.setInt(1, id);
+				if(type != null){
+					stmt.setString(2, type);
+				}
+				rs = stmt.executeQuery();
+
+				List<FSObject> objects = new ArrayList<FSObject>();
+				while(rs.next()){
+					objects.add(new FSObjectImpl(rs.getInt(1), rs.getString(3),
+							FSObjectType.fromString(rs.getString(2))));
+				}
+				return objects;
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+	}
+
+
+	@Override
+	public int addNote(int parentNotebookID, Note note,
+			Map<UserEntity, Permission> perms) throws DBAddException,
+			DBException {
+		return addNotes(parentNotebookID, Collections.singletonList(note), perms).get(0);
+	}
+
+
+	@Override
+	public List<Integer> addNotes(int parentNotebookID, List<Note> notes,
+			Map<UserEntity, Permission> perms) throws DBAddException, DBException {
+		return insertNotes(null, Collections.nCopies(notes.size(), parentNotebookID), notes,
+				perms);
+	}
+
+
+	@Override
+	public List<Integer> importNotes(String batchKey, List<Integer> parentNotebookIDs,
+			List<Note> notes) throws DBAddException, DBException {
+		if(batchKey == null){
+			throw new IllegalArgumentException("A batch key is required");
+		}
+		return insertNotes(batchKey, parentNotebookIDs, notes, null);
+	}
+
+
+	/**
+	 * Adds notes to their notebooks in a single transaction, sending the rows for each
+	 * table as one batch.
+	 * @param batchKey if not null, the checkpoint to record the batch under in the same
+	 * transaction; nothing is added if it is already recorded
+	 * @param parentIDs the notebook to add each note to
+	 * @param notes the notes to add
+	 * @param perms the permissions to give every one of the notes, may be null
+	 * @return the ids the notes were added under, or null if the batch was already added
+	 */
+	private List<Integer> insertNotes(String batchKey, List<Integer> parentIDs, 
+			List<Note> notes, Map<UserEntity, Permission> perms) 
+			throws DBAddException, DBException {
+		if(parentIDs.size() != notes.size()){
+			throw new IllegalArgumentException("Every note needs a parent notebook");
+		}
+		if(notes.isEmpty() && batchKey == null){
+			return new ArrayList<Integer>();
+		}
+
+		Set<Integer> parentSet = new HashSet<Integer>(parentIDs);
+		int[] parents = new int[parentSet.size()];
+		int p = 0;
+		for(Integer id: parentSet){
+			parents[p++] = id;
+		}
+		
 		try {
+			// Reserve the IDs before borrowing a connection, since reserving a new block of
+			// IDs needs a connection of its own
+			int firstID = notes.size() == 1 ? ids.nextID() 
+					: notes.isEmpty() ? 0 : ids.reserve(notes.size());
+
+			// Keep other writers away from the parent notebooks. The new notes can't be
+			// written by anyone else until their IDs are returned.
+			int[] locked = writeLocks.lock(parents);
+			try{
+				SQLConnection conn = sql.getConnection();
+				NoteBatch batch = new NoteBatch(conn);
+				boolean committed = false;
+				try{
+					// Write every row of every note in a single transaction
+					conn.begin();
+
+					if(batchKey != null && !claimBatch(conn, batchKey)){
+						return null;
+					}
+					for(int parent: parents){
+						if (!notebookDoesExist(conn, parent)) {
+							throw new DBAddException("Parent notebook " + parent + 
+									" does not exist");
+						}
+					}
+
+					List<Integer> added = new ArrayList<Integer>(notes.size());
+					int tempID = firstID;
+					for(int i = 0; i < notes.size(); i++){
+						batch.addNote(parentIDs.get(i), tempID, notes.get(i), perms);
+						added.add(tempID);
+						tempID++;
+					}
+					batch.execute();
+
+					conn.commit();
+					committed = true;
+
+					for(int i = 0; i < notes.size(); i++){
+						tagIndex.add(added.get(i), notes.get(i).getTags());
+						if(metadataIndex != null){
+							metadataIndex.put(added.get(i), notes.get(i).getMetadata());
+						}
+						if(searchIndex != null){
+							searchIndex.index(added.get(i), notes.get(i));
+						}
+					}
+					int[] addedIDs = new int[added.size()];
+					for(int i = 0; i < addedIDs.length; i++){
+						addedIDs[i] = added.get(i);
+					}
+					// Permissions looked up before the notes existed are no longer right
+					permissions.notesChanged(addedIDs);
+					changes.record(addedIDs);
+					return added;
+				}
+				finally{
+					if(!committed){
+						batch.clear();
+						conn.rollback();
+					}
+					sql.releaseConnection(conn);
+				}
+			}
+			finally{
+				writeLocks.unlock(locked);
+			}
+		}
+		catch (SQLException e) {
+			throw new DBException("Error communicating with DB", e);
+		}
+	}
+
+
+	/**
+	 * Records a batch as added, as part of the transaction that adds it.
+	 * @return false if the batch was already recorded, by an earlier transaction
+	 */
+	private boolean claimBatch(SQLConnection conn, String batchKey) throws SQLException {
+		PreparedStatement stmt = conn.prepare(SELECT_CHECKPOINT_FOR_UPDATE);
+		stmt.setString(1, batchKey);
+		ResultSet rs = stmt.executeQuery();
+		try{
 			if(rs.next()){
-				return rs.getInt(1);
+				return false;
+			}
+		}
+		finally{
+			SQLInterface.close(rs);
+		}
+
+		// A concurrent claim of the same key fails here on the primary key
+		stmt = conn.prepare(INSERT_CHECKPOINT);
+		stmt.setString(1, batchKey);
+		stmt.setLong(2, System.currentTimeMillis());
+		stmt.executeUpdate();
+		return true;
+	}
+
+
+	@Override
+	public int updateNote(Note note, Map<UserEntity, Permission> perms)
+			throws DBAddException, DBException {
+		int tempID = note.getID();
+		NoteBatch.Delta delta = null;
+		if(tempID > 0){
+			delta = writeUpdate(tempID, note, perms);
+		}
+		if(delta == null){
+			// No such note, so it is added instead
+			return addNote(ROOT_NOTEBOOK_ID, note, perms);
+		}
+
+		noteUpdates.incrementAndGet();
+		updateRowsWritten.addAndGet(delta.rowsWritten);
+		updateRowsUnchanged.addAndGet(delta.rowsUnchanged);
+		return tempID;
+	}
+
+
+	/**
+	 * Writes the changes to an existing note in a single transaction, and applies them
+	 * to the indexes once committed.
+	 * @return what changed, or null if the note does not exist
+	 * @throws DBException
+	 */
+	private NoteBatch.Delta writeUpdate(int noteID, Note note, 
+			Map<UserEntity, Permission> perms) throws DBException {
+		try{
+			// Serialize writers of the same note, so that each one diffs against what the
+			// one before it wrote, and their changes reach the indexes in commit order
+			int[] locked = writeLocks.lock(noteID);
+			try{
+				SQLConnection conn = sql.getConnection();
+				NoteBatch batch = new NoteBatch(conn);
+				boolean committed = false;
+				try{
+					conn.begin();
+					NoteBatch.Delta delta = batch.updateNote(noteID, note, perms);
+					if(delta == null){
+						return null;
+					}
+					batch.execute();
+					conn.commit();
+					committed = true;
+
+					if(delta.rowsWritten > 0){
+						indexUpdate(noteID, note, delta);
+					}
+					return delta;
+				}
+				finally{
+					if(!committed){
+						batch.clear();
+						conn.rollback();
+					}
+					sql.releaseConnection(conn);
+				}
+			}
+			finally{
+				writeLocks.unlock(locked);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+	}
+
+
+	/**
+	 * Applies a committed update to the indexes. Called with the note's write lock held.
+	 */
+	private void indexUpdate(int noteID, Note note, NoteBatch.Delta delta){
+		tagIndex.add(noteID, delta.tagsAdded);
+		tagIndex.remove(noteID, delta.tagsRemoved, note.getTags());
+		if(metadataIndex != null){
+			metadataIndex.put(noteID, delta.fieldsPut);
+			metadataIndex.remove(noteID, delta.fieldsRemoved);
+		}
+		if(searchIndex != null && delta.contentChanged()){
+			searchIndex.index(noteID, note);
+		}
+		if(delta.permsChanged){
+			permissions.notesChanged(noteID);
+		}
+		changes.record(noteID);
+	}
+
+
+	/**
+	 * @return the number of updateNote calls that found the note and updated it
+	 */
+	long getNoteUpdateCount(){
+		return noteUpdates.get();
+	}
+
+
+	/**
+	 * @return the mean number of rows written (inserted, updated or deleted) by an update
+	 */
+	double getAverageRowsPerUpdate(){
+		long updates = noteUpdates.get();
+		return updates == 0 ? 0 : (double) updateRowsWritten.get() / updates;
+	}
+
+
+	/**
+	 * @return the fraction of the rows an update used to rewrite that were left alone
+	 * because they had not changed
+	 */
+	double getUnchangedRowRatio(){
+		long unchanged = updateRowsUnchanged.get();
+		long total = updateRowsWritten.get() + unchanged;
+		return total == 0 ? 0 : (double) unchanged / total;
+	}
+
+
+	@Override
+	public Note getNote(int noteID) throws DBException {
+		SQLConnection conn;
+		try{
+			conn = sql.getConnection();
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+
+		ResultSet rs = null;
+		try{
+			// Read the note, its metadata and its tags in one transaction so that they agree
+			conn.begin();
+
+			PreparedStatement stmt = conn.prepare(SELECT_NOTE);
+			stmt.setInt(1, noteID);
+			rs = stmt.executeQuery();
+			if(!rs.next()){
+				return null;
+			}
+			NoteImpl.NoteBuilder builder = new NoteImpl.NoteBuilder().setId(noteID)
+					.setName(rs.getString(1)).setAuthor(rs.getInt(2))
+					.setCreated(toDateTime(rs.getTimestamp(3)))
+					.setModified(toDateTime(rs.getTimestamp(4)));
+			rs.close();
+
+			stmt = conn.prepare(SELECT_NOTE_METADATA);
+			stmt.setInt(1, noteID);
+			rs = stmt.executeQuery();
+			Map<String, String> metadata = new HashMap<String, String>();
+			while(rs.next()){
+				metadata.put(rs.getString(1), rs.getString(2));
+			}
+			rs.close();
+
+			stmt = conn.prepare(SELECT_NOTE_TAGS);
+			stmt.setInt(1, noteID);
+			rs = stmt.executeQuery();
+			Set<Tag> tags = new HashSet<Tag>();
+			while(rs.next()){
+				tags.add(new TagImpl(rs.getString(1)));
 			}
-			return 0;
-		} catch (SQLException e) {
-			throw new DBException("An error occured while communicating with the database", e);
+
+			conn.commit();
+			return builder.setMetadata(metadata).setTags(tags).build();
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
 		}
+		finally{
+			SQLInterface.close(rs);
+			conn.rollback();
+			sql.releaseConnection(conn);
+		}
+	}
+
+
+	private static DateTime toDateTime(Timestamp ts){
+		return ts == null ? null : new DateTime(ts.getTime());
 	}
 
 
 	@Override
-	public synchronized int addNotebook(int parentNotebookID, Notebook notebook) throws DBAddException {
-		try {
-			// Make sure the parent notebook exists
-			if(!notebookDoesExist(parentNotebookID)){
-				throw new DBAddException();
-			}
-			
-			// Add the object to the global file system object directory
-			String update = "insert into " + SCHEMA_NAME + ".FSObjects " +
-					"(objectID, objectName, typeName) values (" + (previousFSObjectID + 1) + 
-					", '" + notebook.getName() + "', 'notebook')";
-			sql.getResultSafe(update);
-			previousFSObjectID++;
-			
-			// Add the notebook to the notebook table
-			update = "insert into " + SCHEMA_NAME + ".Notebooks (notebookID) "
-					+ "values (" + previousFSObjectID + ")";
-			sql.getResultSafe(update);
-			
-			// Place the notebook under the specified parent notebook
-			update = "insert into " + SCHEMA_NAME + ".FSStructure (parent, child) " +
-					"values (" + parentNotebookID + ", " + previousFSObjectID + ")";
-			sql.getResultSafe(update);
-			
-			// Return the ID of the notebook just added
-			return previousFSObjectID;
-		} 
-		catch (SQLException e) {
-			throw new DBAddException("Error communicating with database", e);
+	public List<Integer> getNotesWithTags(Collection<String> allOf, Collection<String> anyOf,
+			Collection<String> noneOf, int afterID, int limit) throws DBException {
+		return tagIndex.query(allOf, anyOf, noneOf, afterID, limit);
+	}
+
+
+	@Override
+	public List<Integer> findNotesByMetadata(Map<String, String> predicates, int limit)
+			throws DBException {
+		if(metadataIndex != null){
+			return metadataIndex.query(predicates, limit);
+		}
+
+		List<Integer> result = new ArrayList<Integer>();
+		if(predicates.isEmpty() || limit <= 0){
+			return result;
+		}
+		try{
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				PreparedStatement stmt = conn.prepare(selectNotesByMetadata(predicates.size()));
+				int i = 1;
+				for(Entry<String, String> entry: predicates.entrySet()){
+					stmt.setString(i++, entry.getKey());
+					stmt.setString(i++, entry.getValue());
+				}
+				stmt.setInt(i, limit);
+				rs = stmt.executeQuery();
+				while(rs.next()){
+					result.add(rs.getInt(1));
+				}
+				return result;
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
 		}
 	}
-	
-	
+
+
 	/**
-	 * Queries the database for a notebook of the ID number supplied.
-	 * @return true if the ID corresponds to a notebook, false otherwise
-	 * @throws SQLException 
+	 * Builds the query for notes matching the inputed number of (fieldName, fieldData)
+	 * predicates: one self-join per extra predicate, each an index lookup on
+	 * (fieldName, fieldData, noteID). There is one statement per predicate count, so
+	 * they share the statement cache well.
 	 */
-	private boolean notebookDoesExist(int id) throws SQLException{
-		String query = "select * from " + SCHEMA_NAME + ".Notebooks where notebookID = " + 
-				id;
-		ResultSet rs = sql.getResultSafe(query);
-		
-		if(rs.next()){
-			return true;
+	private static String selectNotesByMetadata(int predicates){
+		StringBuilder sb = new StringBuilder("select m0.noteID from ");
+		sb.append(SCHEMA_NAME).append(".NoteMetaData m0");
+		for(int i = 1; i < predicates; i++){
+			sb.append(" join ").append(SCHEMA_NAME).append(".NoteMetaData m").append(i);
+			sb.append(" on m").append(i).append(".noteID = m0.noteID and m").append(i);
+			sb.append(".fieldName = ? and m").append(i).append(".fieldData = ?");
 		}
-		
-		return false;
+		sb.append(" where m0.fieldName = ? and m0.fieldData = ? order by m0.noteID limit ?");
+		return sb.toString();
 	}
 
 
 	@Override
-	public synchronized Notebook getNotebook(int notebookID) throws DBException {
-		// Get the details of the notebook
-		String query = "select notebookID, objectName " +
-				"from " + SCHEMA_NAME + ".Notebooks, " +
-				SCHEMA_NAME + ".FSObjects " +
-				"where notebookID = " + notebookID + " and " +
-				"objectID = notebookID";
-		
-		ResultSet rs = sql.getResultSafe(query);
-		
-		String notebookName = null;
+	public void addUser(User u) {
+		// TODO Auto-generated method stub
+
+	}
+
+
+	@Override
+	public User getUser(int id) throws DBException {
 		try{
-			if(!rs.next()){
-				return null;
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				PreparedStatement stmt = conn.prepare(SELECT_USER_BY_ID);
+				stmt.setInt(1, id);
+				rs = stmt.executeQuery();
+				if(rs.next()){
+					// The password is not handed out
+					return new UserImpl(id, rs.getString(1), null, rs.getString(2));
+				}
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
 			}
-			notebookName = rs.getString(2);
 		}
 		catch(SQLException e){
-			throw new DBException(e);
+			throw new DBException("Error communicating with DB", e);
 		}
-		
-		// Get the notebook's children
-		query = "select objectID, typeName, objectName " +
-				"from " + SCHEMA_NAME + ".FSObjects fso, " +
-				SCHEMA_NAME + ".FSStructure fss " +
-				"where fss.parent = " + notebookID + " and " +
-				"fss.child = fso.objectID " +
-				"order by objectName";
-		
-		rs = sql.getResultSafe(query);
-		List<FSObject> children = new LinkedList<FSObject>();
+
+		return null;
+	}
+
+
+	@Override
+	public User userDoesExist(String user, String pass) {
+		if(user == null || pass == null){
+			return null;
+		}
+
 		try{
-			while(rs.next()){
-				int id = rs.getInt(1);
-				FSObjectType type = FSObjectType.fromString(rs.getString(2));
-				String name = rs.getString(3);
-				FSObject obj = new FSObjectImpl(id, name, type);
-				
-				children.add(obj);
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				PreparedStatement stmt = conn.prepare(SELECT_USER);
+				stmt.setString(1, user);
+				stmt.setString(2, pass);
+				rs = stmt.executeQuery();
+				if(rs.next()){
+					int userID = rs.getInt(1);
+					String email = rs.getString(2);
+					return new UserImpl(userID, user, pass, email);
+				}
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
 			}
 		}
 		catch(SQLException e){
-			throw new DBException("Error communicating with DB", e);
+			return null;
 		}
-		
-		// Create and return the new Notebook
-		return new NotebookImpl(notebookID, notebookName, children);
+
+		return null;
 	}
 
 
 	@Override
-	public synchronized int addNote(int parentNotebookID, Note note,
-			Map<UserEntity, Permission> perms) throws DBAddException,
-			DBException {
-		try {
-			if (!notebookDoesExist(parentNotebookID)) {
-				throw new DBAddException("Parent notebook does not exist");
-			}
-
-			int tempID = previousFSObjectID + 1;
+	public Permission getPermission(int noteID, int userID) throws DBException {
+		return permissions.resolve(noteID, userID);
+	}
 
-			// Insert the note into the FSObject directory
-			insertNoteIntoFSObjectTable(tempID, note);
 
-			// Insert the note into the Notes table
-			insertNoteIntoNotesTable(tempID, note);
+	@Override
+	public <T extends FSObject> List<T> filterReadable(int userID, Collection<T> objects)
+			throws DBException {
+		return filter(userID, objects, Permission.READ);
+	}
 
-			// Insert the note into the FSStructure table
-			insertNoteIntoFSStructureTable(parentNotebookID, tempID);
 
-			// Insert the note metadata into the NoteMetadata table
-			insertNoteMetaData(tempID, note);
+	@Override
+	public <T extends FSObject> List<T> filterWritable(int userID, Collection<T> objects)
+			throws DBException {
+		return filter(userID, objects, Permission.WRITE);
+	}
 
-			// Insert the tags into the tags table
-			insertNoteTagsIntoTable(tempID, note);
 
-			// Insert the perms into the perms table
-			insertNotePermsIntoTable(tempID, perms);
+	/**
+	 * Keeps the notebooks, and the notes the user has at least the inputed permission on,
+	 * resolving the permissions on all of the notes at once.
+	 */
+	private <T extends FSObject> List<T> filter(int userID, Collection<T> objects, 
+			Permission needed) throws DBException {
+		int[] noteIDs = new int[objects.size()];
+		int notes = 0;
+		for(T object: objects){
+			if(object.getType() == FSObjectType.NOTE){
+				noteIDs[notes++] = object.getID();
+			}
+		}
+		Permission[] perms = permissions.resolveAll(userID, Arrays.copyOf(noteIDs, notes));
 
-			previousFSObjectID++;
-			return tempID;
-		} 
-		catch (SQLException e) {
-			throw new DBException("Error communicating with DB", e);
+		List<T> allowed = new ArrayList<T>(objects.size());
+		int note = 0;
+		for(T object: objects){
+			if(object.getType() != FSObjectType.NOTE){
+				allowed.add(object);
+			}
+			else{
+				Permission p = perms[note++];
+				if(p != null && p.includes(needed)){
+					allowed.add(object);
+				}
+			}
 		}
+		return allowed;
 	}
-	
+
 
 	@Override
-	public int updateNote(Note note, Map<UserEntity, Permission> perms)
-			throws DBAddException, DBException {
-		if (!noteDoesExist(note)) {
-			return addNote(1, note, perms);
-		}
-		
-		try{
-			
-			int tempID = note.getID();
+	public void addUserToGroup(int userID, int groupID) throws DBException {
+		writeGroupMapping(INSERT_GROUP_MAPPING, userID, groupID);
+	}
 
-			// Insert the note into the Notes table
-			insertNoteIntoNotesTable(tempID, note);
 
-			// Insert the note metadata into the NoteMetadata table
-			insertNoteMetaData(tempID, note);
+	@Override
+	public void removeUserFromGroup(int userID, int groupID) throws DBException {
+		writeGroupMapping(DELETE_GROUP_MAPPING, userID, groupID);
+	}
 
-			// Insert the tags into the tags table
-			insertNoteTagsIntoTable(tempID, note);
 
-			// Insert the perms into the perms table
-			insertNotePermsIntoTable(tempID, perms);
-			
-			return tempID;
+	private void writeGroupMapping(String query, int userID, int groupID) 
+			throws DBException {
+		try{
+			SQLConnection conn = sql.getConnection();
+			try{
+				PreparedStatement stmt = conn.prepare(query);
+				stmt.setInt(1, userID);
+				stmt.setInt(2, groupID);
+				stmt.executeUpdate();
+			}
+			finally{
+				sql.releaseConnection(conn);
+			}
 		}
 		catch(SQLException e){
 			throw new DBException("Error communicating with DB", e);
 		}
-
+		permissions.membershipChanged(userID);
 	}
-	
-	
+
+
 	/**
-	 * Returns true if the note exists, false otherwise
-	 * @param note
-	 * @return
+	 * @return the permission resolver, mainly so its metrics can be inspected
 	 */
-	private boolean noteDoesExist(Note note){
-		// TODO
-		return true;
+	PermissionResolver getPermissionResolver(){
+		return permissions;
 	}
-	
 
-	/**
-	 * Inserts the note into the FSObjectTable
-	 * @param id the id of the note
-	 * @param note the note
-	 */
-	private void insertNoteIntoFSObjectTable(int id, Note note){
-		String update = "insert into " + SCHEMA_NAME + ".FSObjects (objectID, objectName, " +
-				"typeName) values (" + id + ", '" + note.getName() + "', " +
-				"'note') on duplicate key objectName=values(objectName), typeName=values(" +
-				"typeName)";
-		sql.getResultSafe(update);
+
+	@Override
+	public List<SearchHit> searchNotes(String query, int userID, int limit)
+			throws DBException {
+		if(searchIndex == null){
+			throw new DBException("Search is not available: no search index was opened");
+		}
+		if(!searchCaughtUp){
+			catchUpSearchIndex();
+		}
+
+		// Fetch more candidates than needed, since some may be unreadable, and fetch more
+		// again only if too many were
+		int candidates = Math.max(limit * 4, 64);
+		while(true){
+			List<SearchHit> hits = searchIndex.search(query, candidates);
+			int[] ids = new int[hits.size()];
+			for(int i = 0; i < ids.length; i++){
+				ids[i] = hits.get(i).getNoteID();
+			}
+			Permission[] perms = permissions.resolveAll(userID, ids);
+
+			List<SearchHit> result = new ArrayList<SearchHit>(Math.min(limit, hits.size()));
+			for(int i = 0; i < ids.length && result.size() < limit; i++){
+				if(perms[i] != null){
+					result.add(hits.get(i));
+				}
+			}
+			if(result.size() == limit || hits.size() < candidates || 
+					candidates >= MAX_SEARCH_CANDIDATES){
+				return result;
+			}
+			candidates *= 4;
+		}
 	}
-	
-	
+
+
 	/**
-	 * Inserts the note into the notes table
-	 * @param id the id of the note
-	 * @param note the note
+	 * Indexes the notes changed since the search index was last committed: all of them
+	 * the first time, and after a restart the ones the server wrote since, whatever
+	 * modified time they carry. Searches wait for this to finish.
 	 */
-	private void insertNoteIntoNotesTable(int id, Note note){
-		String createdDate = dateToSQLString(note.getCreated());
-		String modifiedDate = dateToSQLString(note.getLastModified());
-		String update = "insert into " + SCHEMA_NAME + ".Notes (noteID, author, created, " +
-				"lastModified) values (" + id + ", " + note.getAuthor() + 
-				", STR_TO_DATE('" + createdDate + "', '%Y-%m-%d %H:%i'), " +
-				" STR_TO_DATE('" + modifiedDate + "','%Y-%m-%d %H:%i')) on duplicate key " +
-				"lastModified=values(lastModified)";
-		
-		sql.getResultSafe(update);
-	}
-	
-	
-	private String dateToSQLString(DateTime dt){
-		return dt.getYear() + "-" + dt.getMonthOfYear() + "-"
-				+ dt.getDayOfMonth() + " " + dt.getHourOfDay() + ":" + dt.getMinuteOfHour();
+	void catchUpSearchIndex() throws DBException {
+		synchronized(searchCatchUpLock){
+			if(searchCaughtUp || searchIndex == null){
+				return;
+			}
+			ResultHandler<Note> indexer = new ResultHandler<Note>(){
+				@Override
+				public boolean handle(Note note){
+					searchIndex.index(note.getID(), note);
+					return true;
+				}
+			};
+			long commitTime = searchIndex.getCommitTime();
+			if(commitTime == 0){
+				forEachNoteModifiedSince(new DateTime(0), indexer);
+			}
+			else{
+				forEachNoteWrittenSince(commitTime - SEARCH_CATCH_UP_SLACK_MILLIS, indexer);
+			}
+			try{
+				searchIndex.commit();
+			}
+			catch(IOException e){
+				// The notes are indexed in memory, and are written out with the next flush
+			}
+			searchCaughtUp = true;
+		}
 	}
-	
-	
+
+
 	/**
-	 * Inserts the note into the FSStructure table
-	 * @param parentID the parent notebook's id (does NOT check for validity)
-	 * @param id the id number of the note
+	 * Catches the search index up on a background thread, so that the first search
+	 * doesn't have to. If that fails, the first search tries again.
 	 */
-	private void insertNoteIntoFSStructureTable(int parentID, int id){
-		String update = "insert into " + SCHEMA_NAME + ".FSStructure (parent, child) values " +
-				"(" + parentID + ", " + id + ") on duplicate key ignore";
-		
-		sql.getResultSafe(update);
+	void startSearchCatchUp(){
+		Thread t = new Thread("DBAccessImpl-searchCatchUp"){
+			@Override
+			public void run(){
+				try{
+					catchUpSearchIndex();
+				}
+				catch(DBException e){
+					// Left to the first search
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
 	}
-	
-	
+
+
 	/**
-	 * Inserts the note's metadata into the metadata table
-	 * @param id the notes id
-	 * @param note the note
+	 * Commits the search index, so that the notes it only holds in memory don't have to
+	 * be read again after a restart. Nothing is committed while the index is still being
+	 * caught up, since the commit would mark notes not yet read as indexed. The DAO can
+	 * still be used afterwards.
+	 * @throws DBException if the index could not be written
 	 */
-	private void insertNoteMetaData(int id, Note note){
-		for(Entry<String, String> entry: note.getMetadata().entrySet()){
-			String update = "insert into " + SCHEMA_NAME + ".NoteMetaData (noteID, " +
-					"fieldName, fieldData) values (" + id + ", '" + entry.getKey() + "', '" + 
-					entry.getValue() + "') on duplicate key update " +
-					"fieldData=values(fieldData)";
-			
-			sql.getResultSafe(update);
+	void close() throws DBException {
+		if(!searchCaughtUp || searchIndex == null){
+			return;
+		}
+		try{
+			searchIndex.commit();
+		}
+		catch(IOException e){
+			throw new DBException("Could not commit the search index in " + SEARCH_DIR, e);
 		}
 	}
-	
-	
-	/**
-	 * Inserts the note's tags into the tags table
-	 * @param id the note's id
-	 * @param note the note
-	 * @throws SQLException 
-	 */
-	private void insertNoteTagsIntoTable(int id, Note note) throws SQLException{
-		for (Tag t : note.getTags()) {
-			String update;
 
-			// Try to add the tag to the tag database. Ignore the exception that
-			// occurs if there is a duplicate tag
-			update = "insert into " + SCHEMA_NAME + ".Tags (tag) values ('"
-					+ t.getName() + "') on duplicate key ignore";
 
-			System.out.println(update);
-			sql.getResultSafe(update);
+	@Override
+	public void streamRecentlyUpdatedSince(DateTime start, ResultHandler<Note> handler)
+			throws DBException {
+		List<Integer> recent = CHANGE_LOG_SEES_ALL ? changes.since(start.getMillis()) : null;
+		if(recent == null){
+			// Older than the change log remembers, or written by others too. Writes are
+			// timed the same way in the database, whatever modified time a note carries.
+			forEachNoteWrittenSince(start.getMillis(), handler);
+			return;
+		}
+		for(int from = 0; from < recent.size(); from += MAX_IN_LIST){
+			List<Integer> chunk = recent.subList(from, Math.min(recent.size(), from + MAX_IN_LIST));
+			for(Note note: loadNotes(chunk)){
+				if(!handler.handle(note)){
+					return;
+				}
+			}
+		}
+	}
 
-			update = "insert into " + SCHEMA_NAME
-					+ ".NoteTags (noteID, tag) values " + "(" + id + ", '"
-					+ t.getName() + "') on duplicate key ignore";
 
-			System.out.println(update);
-			sql.getResultSafe(update);
+	@Override
+	public Map<String, List<User>> getTagSubscribers(Collection<String> tags)
+			throws DBException {
+		Map<String, List<User>> subscribers = new HashMap<String, List<User>>();
+		for(String tag: tags){
+			subscribers.put(tag, new ArrayList<User>());
 		}
-	}
-	
-	
-	/**
-	 * Inserts the perms into the perms table
-	 * @param id the id of the note
-	 * @param perms the map containing all the perms
-	 */
-	private void insertNotePermsIntoTable(int id, Map<UserEntity, Permission> perms) {
-		if(perms == null){
-			return;
+		if(subscribers.isEmpty()){
+			return subscribers;
 		}
-		
-		for(Entry<UserEntity, Permission> e: perms.entrySet()){
-			String update = "insert into " + SCHEMA_NAME + ".NotePermissions (noteID, " +
-					"userEntityID, permission) values (" + id + ", " + e.getKey().getID() + 
-					", '" + Permission.asString(e.getValue()) + "') on duplicate key " +
-					"permission=values(permission)";
-			
-			sql.getResultSafe(update);
+
+		List<String> names = new ArrayList<String>(subscribers.keySet());
+		try{
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				for(int from = 0; from < names.size(); from += MAX_IN_LIST){
+					List<String> chunk = names.subList(from, 
+							Math.min(names.size(), from + MAX_IN_LIST));
+					int slots = inListSize(chunk.size());
+					PreparedStatement stmt = conn.prepare(SELECT_TAG_SUBSCRIBERS + 
+							inList(slots) + SELECT_GROUP_TAG_SUBSCRIBERS + inList(slots));
+					int p = setStringInList(stmt, 1, chunk, slots);
+					setStringInList(stmt, p, chunk, slots);
+					rs = stmt.executeQuery();
+					// The union has already dropped users who subscribe in more than one way
+					while(rs.next()){
+						List<User> users = subscribers.get(rs.getString(1));
+						if(users != null){
+							users.add(new UserImpl(rs.getInt(2), rs.getString(3), null, 
+									rs.getString(4)));
+						}
+					}
+					rs.close();
+					rs = null;
+				}
+				return subscribers;
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
 		}
 	}
 
 
 	@Override
-	public synchronized Note getNote(int noteID) throws DBException {
-		// TODO Auto-generated method stub
-		return null;
+	public DateTime getCheckpoint(String name) throws DBException {
+		try{
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				PreparedStatement stmt = conn.prepare(SELECT_CHECKPOINT);
+				stmt.setString(1, name);
+				rs = stmt.executeQuery();
+				return rs.next() ? new DateTime(rs.getLong(1)) : null;
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
 	}
 
 
 	@Override
-	public synchronized void addUser(User u) {
-		// TODO Auto-generated method stub
-		
+	public void setCheckpoint(String name, DateTime time) throws DBException {
+		try{
+			SQLConnection conn = sql.getConnection();
+			try{
+				PreparedStatement stmt = conn.prepare(UPSERT_CHECKPOINT);
+				stmt.setString(1, name);
+				stmt.setLong(2, time.getMillis());
+				stmt.executeUpdate();
+			}
+			finally{
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
 	}
 
 
-	@Override
-	public synchronized User getUser(int id) {
-		// TODO Auto-generated method stub
-		return null;
+	/**
+	 * Reads every note whose last modified time is at or after the inputed time, oldest
+	 * first, a chunk at a time so that only one chunk is ever held in memory. Each chunk
+	 * is found by a range scan of the index on (lastModified, noteID).
+	 * @param since the earliest modified time to include
+	 * @param handler receives the notes
+	 * @throws DBException
+	 */
+	private void forEachNoteModifiedSince(DateTime since, ResultHandler<Note> handler)
+			throws DBException {
+		forEachNoteSince(SELECT_NOTES_MODIFIED_SINCE, SELECT_NOTES_MODIFIED_AFTER,
+				new Timestamp(since.getMillis()), handler);
 	}
-	
 
-	@Override
-	public User userDoesExist(String user, String pass) {
-		// Validate user input
-		if(!isSafeString(user) || !isSafeString(pass)){
-			return null;
+
+	/**
+	 * Reads every note the server has written at or after the inputed time, whatever
+	 * modified time the note carries, oldest first. Each chunk is found by a range scan
+	 * of the index on (written, noteID).
+	 * @param since the earliest write time to include, in milliseconds since the epoch
+	 * @param handler receives the notes
+	 * @throws DBException
+	 */
+	private void forEachNoteWrittenSince(long since, ResultHandler<Note> handler)
+			throws DBException {
+		forEachNoteSince(SELECT_NOTES_WRITTEN_SINCE, SELECT_NOTES_WRITTEN_AFTER, since,
+				handler);
+	}
+
+
+	/**
+	 * Reads the notes found by a keyset-paged query on (time, noteID), a chunk at a
+	 * time.
+	 * @param firstPage the query for the first page, taking the earliest time and a limit
+	 * @param nextPage the query for the page after a (time, noteID), taking the time
+	 * twice, the id and a limit
+	 * @param since the earliest time to include
+	 * @param handler receives the notes
+	 * @throws DBException
+	 */
+	private void forEachNoteSince(String firstPage, String nextPage, Object since,
+			ResultHandler<Note> handler) throws DBException {
+		Object afterTime = null;
+		int afterID = 0;
+		while(true){
+			List<Integer> ids = new ArrayList<Integer>(MAX_IN_LIST);
+			try{
+				SQLConnection conn = sql.getConnection();
+				ResultSet rs = null;
+				try{
+					PreparedStatement stmt;
+					if(afterTime == null){
+						stmt = conn.prepare(firstPage);
+						stmt.setObject(1, since);
+						stmt.setInt(2, MAX_IN_LIST);
+					}
+					else{
+						stmt = conn.prepare(nextPage);
+						stmt.setObject(1, afterTime);
+						stmt.setObject(2, afterTime);
+						stmt.setInt(3, afterID);
+						stmt.setInt(4, MAX_IN_LIST);
+					}
+					rs = stmt.executeQuery();
+					while(rs.next()){
+						afterID = rs.getInt(1);
+						afterTime = rs.getObject(2);
+						ids.add(afterID);
+					}
+				}
+				finally{
+					SQLInterface.close(rs);
+					sql.releaseConnection(conn);
+				}
+			}
+			catch(SQLException e){
+				throw new DBException("Error communicating with DB", e);
+			}
+
+			// No connection is held while the handler runs
+			for(Note note: loadNotes(ids)){
+				if(!handler.handle(note)){
+					return;
+				}
+			}
+			if(ids.size() < MAX_IN_LIST){
+				return;
+			}
 		}
-		
-		String query = "select u.userID, u.email from " + SCHEMA_NAME + 
-				".Users u, " + SCHEMA_NAME + ".UserEntities ue where ue.userName = " 
-				+ user + " and u.pass = " + pass + " and u.userID = ue.userEntityID";
-		ResultSet rs = sql.getResultSafe(query);
-		
+	}
+
+
+	/**
+	 * Reads several notes at once, with one query each for the notes, their metadata and
+	 * their tags.
+	 * @param noteIDs the notes to read, at most {@link #MAX_IN_LIST}
+	 * @return the notes that exist, in the inputed order
+	 * @throws DBException
+	 */
+	private List<Note> loadNotes(List<Integer> noteIDs) throws DBException {
+		List<Note> notes = new ArrayList<Note>(noteIDs.size());
+		if(noteIDs.isEmpty()){
+			return notes;
+		}
+
+		Map<Integer, NoteImpl.NoteBuilder> builders = new HashMap<Integer, NoteImpl.NoteBuilder>();
+		Map<Integer, Map<String, String>> metadata = new HashMap<Integer, Map<String, String>>();
+		Map<Integer, Set<Tag>> tags = new HashMap<Integer, Set<Tag>>();
 		try{
-			if(rs.next()){
-				int userID = rs.getInt(1);
-				String email = rs.getString(2);
-				return new UserImpl(userID, user, pass, email);
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				// Read the notes, their metadata and tags in one transaction so they agree
+				conn.begin();
+				int slots = inListSize(noteIDs.size());
+
+				PreparedStatement stmt = conn.prepare(SELECT_NOTES + inList(slots));
+				setInList(stmt, 1, noteIDs, slots);
+				rs = stmt.executeQuery();
+				while(rs.next()){
+					int id = rs.getInt(1);
+					builders.put(id, new NoteImpl.NoteBuilder().setId(id).setName(rs.getString(2))
+							.setAuthor(rs.getInt(3)).setCreated(toDateTime(rs.getTimestamp(4)))
+							.setModified(toDateTime(rs.getTimestamp(5))));
+					metadata.put(id, new HashMap<String, String>());
+					tags.put(id, new HashSet<Tag>());
+				}
+				rs.close();
+
+				stmt = conn.prepare(SELECT_METADATA_OF_NOTES + inList(slots));
+				setInList(stmt, 1, noteIDs, slots);
+				rs = stmt.executeQuery();
+				while(rs.next()){
+					Map<String, String> fields = metadata.get(rs.getInt(1));
+					if(fields != null){
+						fields.put(rs.getString(2), rs.getString(3));
+					}
+				}
+				rs.close();
+
+				stmt = conn.prepare(SELECT_TAGS_OF_NOTES + inList(slots));
+				setInList(stmt, 1, noteIDs, slots);
+				rs = stmt.executeQuery();
+				while(rs.next()){
+					Set<Tag> noteTags = tags.get(rs.getInt(1));
+					if(noteTags != null){
+						noteTags.add(new TagImpl(rs.getString(2)));
+					}
+				}
+
+				conn.commit();
+			}
+			finally{
+				SQLInterface.close(rs);
+				conn.rollback();
+				sql.releaseConnection(conn);
 			}
 		}
 		catch(SQLException e){
-			return null;
+			throw new DBException("Error communicating with DB", e);
 		}
 
-		return null;
+		for(Integer id: noteIDs){
+			NoteImpl.NoteBuilder builder = builders.get(id);
+			if(builder != null){
+				notes.add(builder.setMetadata(metadata.get(id)).setTags(tags.get(id)).build());
+			}
+		}
+		return notes;
 	}
 
 
-	@Override
-	public synchronized Permission getPermission(int noteID, int userID) {
-		// TODO Auto-generated method stub
-		return null;
+	/**
+	 * Reads the permissions granted on several notes with one query.
+	 * @param noteIDs the notes, at most {@link #MAX_IN_LIST}
+	 * @return the permissions granted on each note, by user entity id; notes with none
+	 * are left out
+	 * @throws DBException
+	 */
+	private Map<Integer, Map<Integer, Permission>> loadPermissions(List<Integer> noteIDs)
+			throws DBException {
+		Map<Integer, Map<Integer, Permission>> permissions = 
+				new HashMap<Integer, Map<Integer, Permission>>();
+		if(noteIDs.isEmpty()){
+			return permissions;
+		}
+		try{
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				int slots = inListSize(noteIDs.size());
+				PreparedStatement stmt = conn.prepare(SELECT_PERMISSIONS_OF_NOTES + inList(slots));
+				setInList(stmt, 1, noteIDs, slots);
+				rs = stmt.executeQuery();
+				while(rs.next()){
+					Permission p = Permission.fromString(rs.getString(3));
+					if(p == null){
+						continue;
+					}
+					Map<Integer, Permission> granted = permissions.get(rs.getInt(1));
+					if(granted == null){
+						granted = new HashMap<Integer, Permission>();
+						permissions.put(rs.getInt(1), granted);
+					}
+					granted.put(rs.getInt(2), p);
+				}
+				return permissions;
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+	}
+
+
+	/**
+	 * Binds the values of an IN list made by {@link #inList(int)}. Unused slots repeat
+	 * the last value, which doesn't change the result.
+	 * @return the index of the next parameter
+	 */
+	static int setInList(PreparedStatement stmt, int first, List<Integer> values,
+			int slots) throws SQLException {
+		int count = values.size();
+		for(int i = 0; i < slots; i++){
+			stmt.setInt(first + i, values.get(Math.min(i, count - 1)));
+		}
+		return first + slots;
 	}
-	
-	
-	/**Removes quotes from strings to avoid having the SQL syntax be invalidated.
-	 * @param s the string to clean
-	 * @return the clean string
+
+
+	/**
+	 * Binds the values of an IN list of strings, as {@link #setInList} does for ints.
+	 * @return the index of the next parameter
 	 */
-	private String makeSafeString(String s){
-		String temp = s.replace("'", "");
-		return temp.replace("\"", "");
+	private static int setStringInList(PreparedStatement stmt, int first, List<String> values,
+			int slots) throws SQLException {
+		int count = values.size();
+		for(int i = 0; i < slots; i++){
+			stmt.setString(first + i, values.get(Math.min(i, count - 1)));
+		}
+		return first + slots;
 	}
 
-	
-	/**Checks if the inputed is safe. Used in the owner registration method.
-	 * @param s the string to check
-	 * @return true if the string is safe, false otherwise
+
+	/**
+	 * Rounds the number of values in an IN list up to a power of two, so that only a
+	 * handful of distinct statements end up in the statement cache.
+	 * @param count the number of values
+	 * @return the number of placeholders to use
 	 */
-	private boolean isSafeString(String s){
-		if(s == null){
-			return false;
+	static int inListSize(int count){
+		int size = 1;
+		while(size < count){
+			size <<= 1;
 		}
-		return !s.contains("'") && !s.contains("\"");
+		return size;
 	}
 
 
-	@Override
-	public Set<Note> getRecentlyUpdatedSince(DateTime start) {
-		// TODO Auto-generated method stub
-		return null;
+	/**
+	 * @param size the number of placeholders
+	 * @return a parenthesized list of that many placeholders, e.g. (?, ?, ?)
+	 */
+	static String inList(int size){
+		StringBuilder sb = new StringBuilder(size * 3 + 2);
+		sb.append("(");
+		for(int i = 0; i < size; i++){
+			if(i > 0){
+				sb.append(", ");
+			}
+			sb.append("?");
+		}
+		sb.append(")");
+		return sb.toString();
 	}
 
+
+
 }
@@ -0,0 +1,205 @@
+package Database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of a database call made through {@link AsyncDBAccess}. As well as being
+ * waited on like any Future, it can call back when it completes, so that a caller such
+ * as an asynchronous servlet never has to block a thread on it.
+ * @param <T> the type of the result
+ */
+public class DBFuture<T> extends FutureTask<T> {
+
+	/**
+	 * Receives the outcome of a future.
+	 * @param <T> the type of the result
+	 */
+	public interface Callback<T> {
+
+		/**
+		 * Called once if the call succeeds.
+		 * @param result the result of the call
+		 */
+		public void onSuccess(T result);
+
+		/**
+		 * Called once if the call fails or is cancelled.
+		 * @param cause the exception the call threw, a DBException if the database could
+		 * not be reached or the call could not be queued, or a CancellationException
+		 */
+		public void onFailure(Throwable cause);
+	}
+
+
+	private static final Callable<Object> NOTHING = new Callable<Object>(){
+		@Override
+		public Object call(){
+			return null;
+		}
+	};
+
+	/**
+	 * The callbacks waiting for completion; null once they have been called. Guarded by
+	 * this.
+	 */
+	private List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>(2);
+
+
+	/**
+	 * @param call the call the future runs
+	 */
+	DBFuture(Callable<T> call){
+		super(call);
+	}
+
+
+	/**
+	 * Makes a future that is completed by {@link #succeed(Object)} or
+	 * {@link #fail(Throwable)} rather than by running it.
+	 */
+	@SuppressWarnings("unchecked")
+	DBFuture(){
+		super((Callable<T>) NOTHING);
+	}
+
+
+	/**
+	 * Arranges for the callback to be called once the future completes. The callback
+	 * runs on the thread that completes the future, or on this thread if the future has
+	 * already completed, so it should not block.
+	 * @param callback the callback
+	 * @return this
+	 */
+	public DBFuture<T> addCallback(Callback<? super T> callback){
+		synchronized(this){
+			if(callbacks != null){
+				callbacks.add(callback);
+				return this;
+			}
+		}
+		deliver(callback);
+		return this;
+	}
+
+
+	/**
+	 * Waits for the result, rethrowing what the call threw.
+	 * @return the result
+	 * @throws DBException if the call threw one, or if the future was cancelled or the
+	 * thread interrupted
+	 */
+	public T join() throws DBException {
+		try{
+			return get();
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new DBException("Interrupted while waiting for the database", e);
+		}
+		catch(CancellationException e){
+			throw new DBException("Database call cancelled", e);
+		}
+		catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if(cause instanceof DBException){
+				throw (DBException) cause;
+			}
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			if(cause instanceof Error){
+				throw (Error) cause;
+			}
+			throw new DBException("Database call failed", (Exception) cause);
+		}
+	}
+
+
+	/**
+	 * Makes a future that completes once all of the inputed futures have, whether they
+	 * succeeded or not. Their results can then be read without waiting.
+	 * @param futures the futures to wait for
+	 * @return the combined future, whose result is null
+	 */
+	public static DBFuture<Void> allOf(DBFuture<?>... futures){
+		final DBFuture<Void> all = new DBFuture<Void>();
+		if(futures.length == 0){
+			all.succeed(null);
+			return all;
+		}
+		final AtomicInteger remaining = new AtomicInteger(futures.length);
+		Callback<Object> countDown = new Callback<Object>(){
+			@Override
+			public void onSuccess(Object result){
+				if(remaining.decrementAndGet() == 0){
+					all.succeed(null);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable cause){
+				onSuccess(null);
+			}
+		};
+		for(DBFuture<?> future: futures){
+			future.addCallback(countDown);
+		}
+		return all;
+	}
+
+
+	/**
+	 * Completes a future made by {@link #DBFuture()} with a result.
+	 */
+	void succeed(T result){
+		set(result);
+	}
+
+	/**
+	 * Completes a future with an exception, unless it has already completed.
+	 */
+	void fail(Throwable cause){
+		setException(cause);
+	}
+
+
+	@Override
+	protected void done(){
+		List<Callback<? super T>> waiting;
+		synchronized(this){
+			waiting = callbacks;
+			callbacks = null;
+		}
+		for(Callback<? super T> callback: waiting){
+			deliver(callback);
+		}
+	}
+
+
+	private void deliver(Callback<? super T> callback){
+		T result;
+		try{
+			result = get();
+		}
+		catch(InterruptedException e){
+			// Only called once complete, so get() does not wait
+			throw new AssertionError(e);
+		}
+		catch(CancellationException e){
+			callback.onFailure(e);
+			return;
+		}
+		catch(ExecutionException e){
+			callback.onFailure(e.getCause());
+			return;
+		}
+		callback.onSuccess(result);
+	}
+
+}
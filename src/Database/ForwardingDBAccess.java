@@ -0,0 +1,227 @@
+package Database;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import DataModel.FSObject;
+import DataModel.FSObjectType;
+import DataModel.Note;
+import DataModel.Notebook;
+import DataModel.Permission;
+import DataModel.User;
+import DataModel.UserEntity;
+import Search.SearchHit;
+
+/**
+ * A DBAccess that passes every call on to another one. The decorators extend it and
+ * override only the calls they change, so that a call added to DBAccess is added here
+ * once and reaches the database through every layer.
+ */
+abstract class ForwardingDBAccess implements DBAccess {
+
+	/**
+	 * The DBAccess every call is passed on to.
+	 */
+	final DBAccess db;
+
+
+	/**
+	 * @param db the DBAccess to pass every call on to
+	 */
+	ForwardingDBAccess(DBAccess db){
+		this.db = db;
+	}
+
+
+	@Override
+	public int addNotebook(int parentNotebookID, Notebook notebook) throws DBAddException {
+		return db.addNotebook(parentNotebookID, notebook);
+	}
+
+
+	@Override
+	public Notebook getNotebook(int notebookID) throws DBException {
+		return db.getNotebook(notebookID);
+	}
+
+
+	@Override
+	public Notebook getNotebookTree(int rootID, int maxDepth) throws DBException {
+		return db.getNotebookTree(rootID, maxDepth);
+	}
+
+
+	@Override
+	public List<FSObject> getChildren(int notebookID, String afterName, int afterID,
+			int limit) throws DBException {
+		return db.getChildren(notebookID, afterName, afterID, limit);
+	}
+
+
+	@Override
+	public void streamChildren(int notebookID, ResultHandler<FSObject> handler)
+			throws DBException {
+		db.streamChildren(notebookID, handler);
+	}
+
+
+	@Override
+	public void streamSubtree(int notebookID, ResultHandler<SubtreeEntry> handler)
+			throws DBException {
+		db.streamSubtree(notebookID, handler);
+	}
+
+
+	@Override
+	public List<FSObject> getAncestors(int objectID) throws DBException {
+		return db.getAncestors(objectID);
+	}
+
+
+	@Override
+	public List<FSObject> getDescendants(int notebookID, FSObjectType type)
+			throws DBException {
+		return db.getDescendants(notebookID, type);
+	}
+
+
+	@Override
+	public boolean isDescendant(int objectID, int notebookID) throws DBException {
+		return db.isDescendant(objectID, notebookID);
+	}
+
+
+	@Override
+	public int addNote(int parentNotebookID, Note note, Map<UserEntity, Permission> perms)
+			throws DBAddException, DBException {
+		return db.addNote(parentNotebookID, note, perms);
+	}
+
+
+	@Override
+	public List<Integer> addNotes(int parentNotebookID, List<Note> notes,
+			Map<UserEntity, Permission> perms) throws DBAddException, DBException {
+		return db.addNotes(parentNotebookID, notes, perms);
+	}
+
+
+	@Override
+	public List<Integer> importNotes(String batchKey, List<Integer> parentNotebookIDs,
+			List<Note> notes) throws DBAddException, DBException {
+		return db.importNotes(batchKey, parentNotebookIDs, notes);
+	}
+
+
+	@Override
+	public int updateNote(Note note, Map<UserEntity, Permission> perms)
+			throws DBAddException, DBException {
+		return db.updateNote(note, perms);
+	}
+
+
+	@Override
+	public Note getNote(int noteID) throws DBException {
+		return db.getNote(noteID);
+	}
+
+
+	@Override
+	public List<Integer> getNotesWithTags(Collection<String> allOf, Collection<String> anyOf,
+			Collection<String> noneOf, int afterID, int limit) throws DBException {
+		return db.getNotesWithTags(allOf, anyOf, noneOf, afterID, limit);
+	}
+
+
+	@Override
+	public List<Integer> findNotesByMetadata(Map<String, String> predicates, int limit)
+			throws DBException {
+		return db.findNotesByMetadata(predicates, limit);
+	}
+
+
+	@Override
+	public List<SearchHit> searchNotes(String query, int userID, int limit)
+			throws DBException {
+		return db.searchNotes(query, userID, limit);
+	}
+
+
+	@Override
+	public void addUser(User u) {
+		db.addUser(u);
+	}
+
+
+	@Override
+	public User getUser(int id) throws DBException {
+		return db.getUser(id);
+	}
+
+
+	@Override
+	public User userDoesExist(String user, String pass) {
+		return db.userDoesExist(user, pass);
+	}
+
+
+	@Override
+	public Permission getPermission(int noteID, int userID) throws DBException {
+		return db.getPermission(noteID, userID);
+	}
+
+
+	@Override
+	public <T extends FSObject> List<T> filterReadable(int userID, Collection<T> objects)
+			throws DBException {
+		return db.filterReadable(userID, objects);
+	}
+
+
+	@Override
+	public <T extends FSObject> List<T> filterWritable(int userID, Collection<T> objects)
+			throws DBException {
+		return db.filterWritable(userID, objects);
+	}
+
+
+	@Override
+	public void addUserToGroup(int userID, int groupID) throws DBException {
+		db.addUserToGroup(userID, groupID);
+	}
+
+
+	@Override
+	public void removeUserFromGroup(int userID, int groupID) throws DBException {
+		db.removeUserFromGroup(userID, groupID);
+	}
+
+
+	@Override
+	public void streamRecentlyUpdatedSince(DateTime start, ResultHandler<Note> handler)
+			throws DBException {
+		db.streamRecentlyUpdatedSince(start, handler);
+	}
+
+
+	@Override
+	public Map<String, List<User>> getTagSubscribers(Collection<String> tags)
+			throws DBException {
+		return db.getTagSubscribers(tags);
+	}
+
+
+	@Override
+	public DateTime getCheckpoint(String name) throws DBException {
+		return db.getCheckpoint(name);
+	}
+
+
+	@Override
+	public void setCheckpoint(String name, DateTime time) throws DBException {
+		db.setCheckpoint(name, time);
+	}
+
+}
@@ -0,0 +1,196 @@
+package Database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An ID allocator that reserves blocks of IDs from a row of the IDSequences table (the
+ * "hi" part) and hands out the IDs within a block from an atomic counter (the "lo"
+ * part). Threads only ever wait on each other when the current block runs out, and the
+ * row lock taken while reserving a block keeps processes sharing the database from
+ * handing out the same ID.
+ */
+final class HiLoIDAllocator implements IDAllocator {
+
+	private static final String SCHEMA_NAME = DBAccessImpl.SCHEMA_NAME;
+
+	private static final String SELECT_NEXT_ID = "select nextID from " + SCHEMA_NAME +
+			".IDSequences where sequenceName = ? for update";
+
+	private static final String UPDATE_NEXT_ID = "update " + SCHEMA_NAME +
+			".IDSequences set nextID = ? where sequenceName = ?";
+
+	private static final String SELECT_MAX_OBJECT_ID = "select max(objectID) from " +
+			SCHEMA_NAME + ".FSObjects";
+
+	private static final String INSERT_SEQUENCE = "insert into " + SCHEMA_NAME +
+			".IDSequences (sequenceName, nextID) values (?, ?)";
+
+	/**
+	 * A block of reserved IDs: [next, limit).
+	 */
+	private static final class Block {
+		final AtomicInteger next;
+
+		final int limit;
+
+		Block(int first, int limit){
+			this.next = new AtomicInteger(first);
+			this.limit = limit;
+		}
+	}
+
+	private final SQLInterface sql;
+
+	private final String sequenceName;
+
+	private final int blockSize;
+
+	private final AtomicReference<Block> current = new AtomicReference<Block>(new Block(0, 0));
+
+	/**
+	 * Held only while a new block is being reserved.
+	 */
+	private final Object refillLock = new Object();
+
+
+	/**
+	 * @param sql the sql interface to reserve blocks through
+	 * @param sequenceName the name of the row in the IDSequences table
+	 * @param blockSize the number of IDs to reserve at a time
+	 */
+	HiLoIDAllocator(SQLInterface sql, String sequenceName, int blockSize){
+		if(blockSize < 1){
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		this.sql = sql;
+		this.sequenceName = sequenceName;
+		this.blockSize = blockSize;
+	}
+
+
+	@Override
+	public int nextID() throws DBException {
+		while(true){
+			Block block = current.get();
+			int id = block.next.getAndIncrement();
+			if(id < block.limit){
+				return id;
+			}
+			refill(block);
+		}
+	}
+
+
+	@Override
+	public int reserve(int count) throws DBException {
+		if(count < 1){
+			throw new IllegalArgumentException("Must reserve at least one ID");
+		}
+
+		// Small ranges are carved out of the current block when it has room. If it
+		// doesn't, the rest of the block is given up and the next caller refills it.
+		if(count <= blockSize){
+			Block block = current.get();
+			int first = block.next.getAndAdd(count);
+			if(first < block.limit && first + count <= block.limit){
+				return first;
+			}
+		}
+		return reserveFromSequence(count);
+	}
+
+
+	/**
+	 * Replaces the exhausted block with a new one, unless another thread already has.
+	 */
+	private void refill(Block exhausted) throws DBException {
+		synchronized(refillLock){
+			if(current.get() != exhausted){
+				return;
+			}
+			int first = reserveFromSequence(blockSize);
+			current.set(new Block(first, first + blockSize));
+		}
+	}
+
+
+	/**
+	 * Advances the sequence row by count in its own transaction.
+	 * @param count the number of IDs to reserve
+	 * @return the first reserved ID
+	 * @throws DBException
+	 */
+	private int reserveFromSequence(int count) throws DBException {
+		try{
+			SQLConnection conn = sql.getConnection();
+			boolean committed = false;
+			ResultSet rs = null;
+			try{
+				conn.begin();
+
+				PreparedStatement stmt = conn.prepare(SELECT_NEXT_ID);
+				stmt.setString(1, sequenceName);
+				rs = stmt.executeQuery();
+				int first;
+				if(rs.next()){
+					first = rs.getInt(1);
+				}
+				else{
+					first = createSequence(conn);
+				}
+				SQLInterface.close(rs);
+				rs = null;
+
+				stmt = conn.prepare(UPDATE_NEXT_ID);
+				stmt.setInt(1, first + count);
+				stmt.setString(2, sequenceName);
+				stmt.executeUpdate();
+
+				conn.commit();
+				committed = true;
+				return first;
+			}
+			finally{
+				SQLInterface.close(rs);
+				if(!committed){
+					conn.rollback();
+				}
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Could not reserve IDs from sequence " + sequenceName, e);
+		}
+	}
+
+
+	/**
+	 * Creates the sequence row for a database that predates the IDSequences table,
+	 * starting it after the largest ID in use. If another process creates the row at the
+	 * same time, the insert fails on the primary key and only this reservation fails; the
+	 * next one finds the row.
+	 * @return the first free ID
+	 * @throws SQLException
+	 */
+	private int createSequence(SQLConnection conn) throws SQLException {
+		ResultSet rs = conn.prepare(SELECT_MAX_OBJECT_ID).executeQuery();
+		int first;
+		try{
+			first = rs.next() ? rs.getInt(1) + 1 : 1;
+		}
+		finally{
+			SQLInterface.close(rs);
+		}
+
+		PreparedStatement stmt = conn.prepare(INSERT_SEQUENCE);
+		stmt.setString(1, sequenceName);
+		stmt.setInt(2, first);
+		stmt.executeUpdate();
+		return first;
+	}
+
+}
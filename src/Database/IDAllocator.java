@@ -0,0 +1,25 @@
+package Database;
+
+/**
+ * Hands out the ID numbers of new file system objects. Implementations must be safe to
+ * call from many threads at once, and must never return the same ID twice, even to
+ * different processes sharing the same database. IDs are not guaranteed to be
+ * contiguous: an ID that was handed out but never used is simply skipped.
+ */
+interface IDAllocator {
+
+	/**
+	 * @return a new, unused ID
+	 * @throws DBException if a new block of IDs could not be reserved
+	 */
+	public int nextID() throws DBException;
+
+	/**
+	 * Reserves a contiguous range of IDs, for callers that add many objects at once.
+	 * @param count the number of IDs needed
+	 * @return the first ID of the range; the range is [first, first + count)
+	 * @throws DBException if the range could not be reserved
+	 */
+	public int reserve(int count) throws DBException;
+
+}
@@ -0,0 +1,80 @@
+package Database;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks that object IDs are spread across, so that writes to the same
+ * notebook or note are serialized while writes to unrelated objects almost never wait on
+ * each other. Several IDs can be locked at once; their stripes are always taken in
+ * ascending order, so two writers can never deadlock on each other.
+ */
+final class LockStripes {
+
+	private final ReentrantLock[] locks;
+
+	private final int mask;
+
+
+	/**
+	 * @param stripes the number of locks, rounded up to a power of two
+	 */
+	LockStripes(int stripes){
+		int size = 1;
+		while(size < stripes){
+			size <<= 1;
+		}
+		locks = new ReentrantLock[size];
+		for(int i = 0; i < size; i++){
+			locks[i] = new ReentrantLock();
+		}
+		mask = size - 1;
+	}
+
+
+	private int stripeFor(int id){
+		// Spread the bits so that IDs handed out in sequence land on different stripes
+		int h = id * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+
+	/**
+	 * Locks the stripes for all of the inputed IDs, blocking until every one is held.
+	 * @param ids the IDs of the objects about to be written
+	 * @return the stripes that were locked, to be passed to {@link #unlock(int[])}
+	 */
+	int[] lock(int... ids){
+		int[] stripes = new int[ids.length];
+		for(int i = 0; i < ids.length; i++){
+			stripes[i] = stripeFor(ids[i]);
+		}
+		Arrays.sort(stripes);
+
+		// Drop duplicates so that no stripe is locked twice
+		int n = 0;
+		for(int i = 0; i < stripes.length; i++){
+			if(n == 0 || stripes[n - 1] != stripes[i]){
+				stripes[n++] = stripes[i];
+			}
+		}
+		stripes = Arrays.copyOf(stripes, n);
+
+		for(int i = 0; i < stripes.length; i++){
+			locks[stripes[i]].lock();
+		}
+		return stripes;
+	}
+
+
+	/**
+	 * Releases the stripes returned by {@link #lock(int...)}.
+	 * @param stripes the locked stripes
+	 */
+	void unlock(int[] stripes){
+		for(int i = stripes.length - 1; i >= 0; i--){
+			locks[stripes[i]].unlock();
+		}
+	}
+
+}
@@ -0,0 +1,313 @@
+package Database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import Utilities.IntArraySet;
+
+/**
+ * An in-memory index from each metadata (fieldName, fieldData) pair to the sorted IDs of
+ * the notes that have it. Field names and values are dictionary encoded: each distinct
+ * string is kept once and pairs are looked up by a pair of int codes, so the many notes
+ * sharing a value like "aapl" share one copy of it. Like the {@link TagIndex}, it is read
+ * from the database on first use and updated by the DAO after every committed write.
+ */
+final class MetadataIndex {
+
+	private static final String SCHEMA_NAME = DBAccessImpl.SCHEMA_NAME;
+
+	/**
+	 * Ordered by note so that every set is built by appending.
+	 */
+	private static final String SELECT_METADATA = "select noteID, fieldName, fieldData from " +
+			SCHEMA_NAME + ".NoteMetaData order by noteID";
+
+	private static final int LOAD_FETCH_SIZE = 10000;
+
+	private static final long[] NO_PAIRS = new long[0];
+
+	private final SQLInterface sql;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * The dictionaries of field names and of field values. Guarded by lock.
+	 */
+	private final Map<String, Integer> fieldCodes = new HashMap<String, Integer>();
+
+	private final Map<String, Integer> valueCodes = new HashMap<String, Integer>();
+
+	/**
+	 * The notes with each encoded pair. Guarded by lock.
+	 */
+	private final Map<Long, IntArraySet> notesByPair = new HashMap<Long, IntArraySet>();
+
+	/**
+	 * The encoded pairs of each note, so that a field's old value can be dropped when it
+	 * is overwritten. Guarded by lock.
+	 */
+	private final Map<Integer, long[]> pairsByNote = new HashMap<Integer, long[]>();
+
+	private volatile boolean loaded = false;
+
+
+	/**
+	 * @param sql the sql interface to load the index through
+	 */
+	MetadataIndex(SQLInterface sql){
+		this.sql = sql;
+	}
+
+
+	/**
+	 * Records a note's metadata, replacing the old value of every field it names. Must be
+	 * called after the metadata is committed.
+	 * @param noteID the id of the note
+	 * @param metadata field names mapped to their values
+	 */
+	void put(int noteID, Map<String, String> metadata){
+		if(metadata == null || metadata.isEmpty()){
+			return;
+		}
+		lock.writeLock().lock();
+		try{
+			if(!loaded){
+				// The load will read the committed rows
+				return;
+			}
+			for(Entry<String, String> entry: metadata.entrySet()){
+				putUnlocked(noteID, entry.getKey(), entry.getValue());
+			}
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	private void putUnlocked(int noteID, String field, String value){
+		int fieldCode = encode(fieldCodes, field);
+		long pair = pair(fieldCode, encode(valueCodes, value));
+
+		long[] pairs = pairsByNote.get(noteID);
+		if(pairs == null){
+			pairs = NO_PAIRS;
+		}
+		int i = 0;
+		while(i < pairs.length && (int) (pairs[i] >>> 32) != fieldCode){
+			i++;
+		}
+		if(i < pairs.length){
+			if(pairs[i] == pair){
+				return;
+			}
+			// The field had another value
+			IntArraySet old = notesByPair.get(pairs[i]);
+			old.remove(noteID);
+			if(old.isEmpty()){
+				notesByPair.remove(pairs[i]);
+			}
+		}
+		else{
+			pairs = Arrays.copyOf(pairs, pairs.length + 1);
+			pairsByNote.put(noteID, pairs);
+		}
+		pairs[i] = pair;
+
+		IntArraySet notes = notesByPair.get(pair);
+		if(notes == null){
+			notes = new IntArraySet();
+			notesByPair.put(pair, notes);
+		}
+		notes.add(noteID);
+	}
+
+
+	/**
+	 * Records that a note no longer has the inputed fields. Must be called after the
+	 * removal is committed.
+	 * @param noteID the id of the note
+	 * @param fields the names of the fields removed
+	 */
+	void remove(int noteID, Collection<String> fields){
+		if(fields == null || fields.isEmpty()){
+			return;
+		}
+		lock.writeLock().lock();
+		try{
+			if(!loaded){
+				return;
+			}
+			long[] pairs = pairsByNote.get(noteID);
+			if(pairs == null){
+				return;
+			}
+			int kept = 0;
+			for(long pair: pairs){
+				Integer fieldCode = (int) (pair >>> 32);
+				boolean removed = false;
+				for(String field: fields){
+					if(fieldCode.equals(fieldCodes.get(field))){
+						removed = true;
+						break;
+					}
+				}
+				if(removed){
+					IntArraySet notes = notesByPair.get(pair);
+					notes.remove(noteID);
+					if(notes.isEmpty()){
+						notesByPair.remove(pair);
+					}
+				}
+				else{
+					pairs[kept++] = pair;
+				}
+			}
+			if(kept == 0){
+				pairsByNote.remove(noteID);
+			}
+			else if(kept < pairs.length){
+				pairsByNote.put(noteID, Arrays.copyOf(pairs, kept));
+			}
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	private static int encode(Map<String, Integer> dictionary, String s){
+		Integer code = dictionary.get(s);
+		if(code == null){
+			code = dictionary.size();
+			dictionary.put(s, code);
+		}
+		return code;
+	}
+
+
+	private static long pair(int fieldCode, int valueCode){
+		return ((long) fieldCode << 32) | (valueCode & 0xffffffffL);
+	}
+
+
+	/**
+	 * Finds the notes whose metadata matches every predicate. The sets are intersected
+	 * smallest first: the smallest set supplies the candidates and each of the others is
+	 * only searched for those.
+	 * @param predicates field names mapped to the values they must have
+	 * @param limit the largest number of IDs to return
+	 * @return the matching note IDs, in increasing order; empty if there are no predicates
+	 * @throws DBException if the index could not be loaded
+	 */
+	List<Integer> query(Map<String, String> predicates, int limit) throws DBException {
+		if(!loaded){
+			load();
+		}
+
+		List<Integer> result = new ArrayList<Integer>(Math.min(Math.max(limit, 0), 1024));
+		if(limit <= 0 || predicates.isEmpty()){
+			return result;
+		}
+
+		lock.readLock().lock();
+		try{
+			IntArraySet[] sets = new IntArraySet[predicates.size()];
+			int n = 0;
+			for(Entry<String, String> entry: predicates.entrySet()){
+				Integer fieldCode = fieldCodes.get(entry.getKey());
+				Integer valueCode = valueCodes.get(entry.getValue());
+				IntArraySet notes = fieldCode == null || valueCode == null ? null :
+						notesByPair.get(pair(fieldCode, valueCode));
+				if(notes == null){
+					// No note has this pair
+					return result;
+				}
+				sets[n++] = notes;
+			}
+			Arrays.sort(sets, BY_SIZE);
+
+			int[] pos = new int[sets.length];
+			IntArraySet smallest = sets[0];
+			candidates:
+			for(int i = 0; i < smallest.size() && result.size() < limit; i++){
+				int id = smallest.get(i);
+				for(int j = 1; j < sets.length; j++){
+					pos[j] = sets[j].seek(id, pos[j]);
+					if(pos[j] == sets[j].size()){
+						// No larger IDs left in this set, so no more matches at all
+						break candidates;
+					}
+					if(sets[j].get(pos[j]) != id){
+						continue candidates;
+					}
+				}
+				result.add(id);
+			}
+			return result;
+		}
+		finally{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	private static final Comparator<IntArraySet> BY_SIZE = new Comparator<IntArraySet>(){
+		@Override
+		public int compare(IntArraySet a, IntArraySet b){
+			return a.size() < b.size() ? -1 : (a.size() == b.size() ? 0 : 1);
+		}
+	};
+
+
+	/**
+	 * Reads every note's metadata from the database, unless another thread already has.
+	 */
+	private void load() throws DBException {
+		lock.writeLock().lock();
+		try{
+			if(loaded){
+				return;
+			}
+			SQLConnection conn = sql.getConnection();
+			PreparedStatement stmt = null;
+			try{
+				stmt = conn.prepareStreaming(SELECT_METADATA, LOAD_FETCH_SIZE);
+				ResultSet rs = stmt.executeQuery();
+				while(rs.next()){
+					putUnlocked(rs.getInt(1), rs.getString(2), rs.getString(3));
+				}
+			}
+			finally{
+				SQLInterface.close(stmt);
+				sql.releaseConnection(conn);
+			}
+
+			for(IntArraySet notes: notesByPair.values()){
+				notes.trim();
+			}
+			loaded = true;
+		}
+		catch(SQLException e){
+			fieldCodes.clear();
+			valueCodes.clear();
+			notesByPair.clear();
+			pairsByNote.clear();
+			throw new DBException("Could not load the metadata index", e);
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+}
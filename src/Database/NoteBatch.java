@@ -0,0 +1,620 @@
+package Database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+
+import DataModel.Note;
+import DataModel.Permission;
+import DataModel.Tag;
+import DataModel.UserEntity;
+
+/**
+ * Collects the rows needed to write one or more notes and sends them to the database
+ * with one JDBC batch per table, instead of one round trip per row. With MySQL's
+ * rewriteBatchedStatements turned on, each batch goes out as a multi-row insert.
+ * The caller is responsible for the surrounding transaction; a batch is only ever used
+ * by the thread that borrowed its connection.
+ */
+final class NoteBatch {
+
+	/**
+	 * The number of notes collected before the pending rows are sent to the server.
+	 * Bounds the size of each batch (and so of the rewritten statements) for bulk writes.
+	 */
+	static final int MAX_PENDING_NOTES = 500;
+
+	private static final String SCHEMA_NAME = DBAccessImpl.SCHEMA_NAME;
+
+	private static final String UPSERT_NOTE_FSOBJECT = "insert into " + SCHEMA_NAME +
+			".FSObjects (objectID, objectName, typeName) values (?, ?, 'note') " +
+			"on duplicate key update objectName=values(objectName), typeName=values(typeName)";
+
+	private static final String UPSERT_NOTE = "insert into " + SCHEMA_NAME +
+			".Notes (noteID, author, created, lastModified, written) " +
+			"values (?, ?, ?, ?, ?) " +
+			"on duplicate key update author=values(author), created=values(created), " +
+			"lastModified=values(lastModified), written=values(written)";
+
+	private static final String INSERT_NOTE_STRUCTURE = "insert ignore into " +
+			SCHEMA_NAME + ".FSStructure (parent, child) values (?, ?)";
+
+	private static final String SELECT_ANCESTORS = "select ancestor, depth from " +
+			SCHEMA_NAME + ".FSClosure where descendant = ?";
+
+	private static final String INSERT_CLOSURE = "insert ignore into " + SCHEMA_NAME +
+			".FSClosure (ancestor, descendant, depth) values (?, ?, ?)";
+
+	private static final String UPSERT_METADATA = "insert into " + SCHEMA_NAME +
+			".NoteMetaData (noteID, fieldName, fieldData) values (?, ?, ?) " +
+			"on duplicate key update fieldData=values(fieldData)";
+
+	private static final String INSERT_TAG = "insert ignore into " + SCHEMA_NAME +
+			".Tags (tag) values (?)";
+
+	private static final String INSERT_NOTE_TAG = "insert ignore into " + SCHEMA_NAME +
+			".NoteTags (noteID, tag) values (?, ?)";
+
+	private static final String UPSERT_PERMISSION = "insert into " + SCHEMA_NAME +
+			".NotePermissions (noteID, userEntityID, permission) values (?, ?, ?) " +
+			"on duplicate key update permission=values(permission)";
+
+	/**
+	 * The stored name and Notes row of a note, locked until the transaction ends.
+	 */
+	private static final String SELECT_STORED_NOTE = "select fso.objectName, n.author, " +
+			"n.created, n.lastModified from " + SCHEMA_NAME + ".Notes n, " + SCHEMA_NAME +
+			".FSObjects fso where n.noteID = ? and fso.objectID = n.noteID for update";
+
+	private static final String SELECT_STORED_METADATA = "select fieldName, fieldData from " +
+			SCHEMA_NAME + ".NoteMetaData where noteID = ?";
+
+	private static final String SELECT_STORED_TAGS = "select tag from " + SCHEMA_NAME +
+			".NoteTags where noteID = ?";
+
+	private static final String SELECT_STORED_PERMISSIONS = "select userEntityID, permission " +
+			"from " + SCHEMA_NAME + ".NotePermissions where noteID = ?";
+
+	private static final String DELETE_METADATA = "delete from " + SCHEMA_NAME +
+			".NoteMetaData where noteID = ? and fieldName = ?";
+
+	private static final String DELETE_NOTE_TAG = "delete from " + SCHEMA_NAME +
+			".NoteTags where noteID = ? and tag = ?";
+
+	private static final String DELETE_PERMISSION = "delete from " + SCHEMA_NAME +
+			".NotePermissions where noteID = ? and userEntityID = ?";
+
+	/**
+	 * What an update changed about a note, so that the in-memory indexes can be brought
+	 * up to date once it is committed.
+	 */
+	static final class Delta {
+		boolean nameChanged = false;
+
+		final Map<String, String> fieldsPut = new HashMap<String, String>();
+
+		final Set<String> fieldsRemoved = new HashSet<String>();
+
+		final Set<Tag> tagsAdded = new HashSet<Tag>();
+
+		final Set<String> tagsRemoved = new HashSet<String>();
+
+		boolean permsChanged = false;
+
+		/**
+		 * The rows the update writes, and the rows it leaves alone because they already
+		 * hold what it would write.
+		 */
+		int rowsWritten = 0, rowsUnchanged = 0;
+
+		/**
+		 * @return whether the note's name, metadata or tags changed, i.e. whether it
+		 * needs to be searched differently
+		 */
+		boolean contentChanged(){
+			return nameChanged || !fieldsPut.isEmpty() || !fieldsRemoved.isEmpty() ||
+					!tagsAdded.isEmpty() || !tagsRemoved.isEmpty();
+		}
+	}
+
+	private final SQLConnection conn;
+
+	private final Set<String> tagsSeen = new HashSet<String>();
+
+	private int pendingNotes = 0;
+
+	// One statement per table, in the order the batches have to be executed so that
+	// every foreign key is satisfied. Statements come from the connection's cache and
+	// are prepared lazily.
+	private PreparedStatement fsObjects, notes, structure, closure, metadata, tags, noteTags,
+			perms, metadataDeletes, noteTagDeletes, permDeletes;
+
+	private int fsObjectRows, noteRows, structureRows, closureRows, metadataRows, tagRows,
+			noteTagRows, permRows, metadataDeleteRows, noteTagDeleteRows, permDeleteRows;
+
+	/**
+	 * The ancestors of each parent notebook seen by this batch, as pairs of
+	 * (ancestor, depth), including the notebook itself at depth 0.
+	 */
+	private final Map<Integer, int[]> ancestors = new HashMap<Integer, int[]>();
+
+	private int rowsWritten = 0;
+
+
+	NoteBatch(SQLConnection conn){
+		this.conn = conn;
+	}
+
+
+	/**
+	 * Adds every row for a new note: its directory entry, note row, place in the file
+	 * system (including its ancestry in the closure table), metadata, tags and
+	 * permissions.
+	 * @param parentID the parent notebook's id (does NOT check for validity)
+	 * @param id the id of the new note
+	 * @param note the note
+	 * @param noteperms the note's permissions, may be null
+	 * @throws SQLException
+	 */
+	void addNote(int parentID, int id, Note note, Map<UserEntity, Permission> noteperms)
+			throws SQLException {
+		addFSObject(id, note);
+		addNoteRow(id, note);
+		addStructure(parentID, id);
+		addClosure(parentID, id);
+		addMetadata(id, note.getMetadata());
+		addTags(id, note.getTags());
+		addPerms(id, noteperms);
+		notePending();
+	}
+
+
+	/**
+	 * Adds the rows that bring an existing note up to date: the stored note is read and
+	 * only what differs from it is written. Metadata fields and tags the note no longer
+	 * has are deleted. Permissions are only touched if some are inputed, in which case
+	 * they replace the note's grants. Must be called in the transaction the rows are
+	 * executed in, which keeps the note locked until it ends.
+	 * @param id the id of the note
+	 * @param note the note
+	 * @param noteperms the note's permissions, or null or empty to leave them as they are
+	 * @return what changed, or null if there is no such note
+	 * @throws SQLException
+	 */
+	Delta updateNote(int id, Note note, Map<UserEntity, Permission> noteperms)
+			throws SQLException {
+		Delta delta = new Delta();
+		boolean rowChanged;
+		PreparedStatement stmt = conn.prepare(SELECT_STORED_NOTE);
+		stmt.setInt(1, id);
+		ResultSet rs = stmt.executeQuery();
+		try{
+			if(!rs.next()){
+				return null;
+			}
+			String name = rs.getString(1);
+			int author = rs.getInt(2);
+			Timestamp created = rs.getTimestamp(3);
+			Timestamp modified = rs.getTimestamp(4);
+			if(name == null ? note.getName() != null : !name.equals(note.getName())){
+				addFSObject(id, note);
+				delta.nameChanged = true;
+				delta.rowsWritten++;
+			}
+			else{
+				delta.rowsUnchanged++;
+			}
+			rowChanged = author != note.getAuthor() ||
+					!sameSecond(created, note.getCreated()) ||
+					!sameSecond(modified, note.getLastModified());
+		}
+		finally{
+			SQLInterface.close(rs);
+		}
+
+		diffMetadata(id, note.getMetadata(), delta);
+		diffTags(id, note.getTags(), delta);
+		if(noteperms != null && !noteperms.isEmpty()){
+			diffPerms(id, noteperms, delta);
+		}
+
+		// The note row also records when the note was written, so it is rewritten if
+		// anything about the note changed
+		if(rowChanged || delta.rowsWritten > 0){
+			addNoteRow(id, note);
+			delta.rowsWritten++;
+		}
+		else{
+			delta.rowsUnchanged++;
+		}
+		notePending();
+		return delta;
+	}
+
+
+	private void diffMetadata(int id, Map<String, String> data, Delta delta)
+			throws SQLException {
+		if(data == null){
+			data = new HashMap<String, String>();
+		}
+		Map<String, String> stored = new HashMap<String, String>();
+		PreparedStatement stmt = conn.prepare(SELECT_STORED_METADATA);
+		stmt.setInt(1, id);
+		ResultSet rs = stmt.executeQuery();
+		try{
+			while(rs.next()){
+				stored.put(rs.getString(1), rs.getString(2));
+			}
+		}
+		finally{
+			SQLInterface.close(rs);
+		}
+
+		for(Entry<String, String> entry: data.entrySet()){
+			String value = stored.get(entry.getKey());
+			if(value != null && value.equals(entry.getValue())){
+				delta.rowsUnchanged++;
+			}
+			else{
+				delta.fieldsPut.put(entry.getKey(), entry.getValue());
+			}
+		}
+		addMetadata(id, delta.fieldsPut);
+		delta.rowsWritten += delta.fieldsPut.size();
+
+		for(String field: stored.keySet()){
+			if(!data.containsKey(field)){
+				if(metadataDeletes == null){
+					metadataDeletes = conn.prepare(DELETE_METADATA);
+				}
+				metadataDeletes.setInt(1, id);
+				metadataDeletes.setString(2, field);
+				metadataDeletes.addBatch();
+				metadataDeleteRows++;
+				delta.fieldsRemoved.add(field);
+				delta.rowsWritten++;
+			}
+		}
+	}
+
+
+	private void diffTags(int id, Set<Tag> noteTagSet, Delta delta) throws SQLException {
+		Set<String> stored = new HashSet<String>();
+		PreparedStatement stmt = conn.prepare(SELECT_STORED_TAGS);
+		stmt.setInt(1, id);
+		ResultSet rs = stmt.executeQuery();
+		try{
+			while(rs.next()){
+				stored.add(rs.getString(1));
+			}
+		}
+		finally{
+			SQLInterface.close(rs);
+		}
+
+		Set<String> names = new HashSet<String>();
+		if(noteTagSet != null){
+			for(Tag t: noteTagSet){
+				names.add(t.getName());
+				if(stored.contains(t.getName())){
+					delta.rowsUnchanged++;
+				}
+				else{
+					delta.tagsAdded.add(t);
+				}
+			}
+		}
+		int before = tagRows + noteTagRows;
+		addTags(id, delta.tagsAdded);
+		delta.rowsWritten += tagRows + noteTagRows - before;
+
+		for(String tag: stored){
+			if(!names.contains(tag)){
+				if(noteTagDeletes == null){
+					noteTagDeletes = conn.prepare(DELETE_NOTE_TAG);
+				}
+				noteTagDeletes.setInt(1, id);
+				noteTagDeletes.setString(2, tag);
+				noteTagDeletes.addBatch();
+				noteTagDeleteRows++;
+				delta.tagsRemoved.add(tag);
+				delta.rowsWritten++;
+			}
+		}
+	}
+
+
+	private void diffPerms(int id, Map<UserEntity, Permission> noteperms, Delta delta)
+			throws SQLException {
+		Map<Integer, Permission> stored = new HashMap<Integer, Permission>();
+		PreparedStatement stmt = conn.prepare(SELECT_STORED_PERMISSIONS);
+		stmt.setInt(1, id);
+		ResultSet rs = stmt.executeQuery();
+		try{
+			while(rs.next()){
+				stored.put(rs.getInt(1), Permission.fromString(rs.getString(2)));
+			}
+		}
+		finally{
+			SQLInterface.close(rs);
+		}
+
+		Map<UserEntity, Permission> changed = new HashMap<UserEntity, Permission>();
+		Set<Integer> granted = new HashSet<Integer>();
+		for(Entry<UserEntity, Permission> e: noteperms.entrySet()){
+			granted.add(e.getKey().getID());
+			if(stored.get(e.getKey().getID()) == e.getValue()){
+				delta.rowsUnchanged++;
+			}
+			else{
+				changed.put(e.getKey(), e.getValue());
+			}
+		}
+		addPerms(id, changed);
+		delta.rowsWritten += changed.size();
+
+		for(Integer entity: stored.keySet()){
+			if(!granted.contains(entity)){
+				if(permDeletes == null){
+					permDeletes = conn.prepare(DELETE_PERMISSION);
+				}
+				permDeletes.setInt(1, id);
+				permDeletes.setInt(2, entity);
+				permDeletes.addBatch();
+				permDeleteRows++;
+				delta.rowsWritten++;
+				delta.permsChanged = true;
+			}
+		}
+		if(!changed.isEmpty()){
+			delta.permsChanged = true;
+		}
+	}
+
+
+	/**
+	 * @return whether the times are within a second of each other, the resolution they
+	 * are stored at
+	 */
+	private static boolean sameSecond(Timestamp stored, DateTime time){
+		if(stored == null || time == null){
+			return stored == null && time == null;
+		}
+		return Math.abs(stored.getTime() - time.getMillis()) < 1000;
+	}
+
+
+	private void addFSObject(int id, Note note) throws SQLException {
+		if(fsObjects == null){
+			fsObjects = conn.prepare(UPSERT_NOTE_FSOBJECT);
+		}
+		fsObjects.setInt(1, id);
+		fsObjects.setString(2, note.getName());
+		fsObjects.addBatch();
+		fsObjectRows++;
+	}
+
+
+	private void addNoteRow(int id, Note note) throws SQLException {
+		if(notes == null){
+			notes = conn.prepare(UPSERT_NOTE);
+		}
+		notes.setInt(1, id);
+		notes.setInt(2, note.getAuthor());
+		notes.setTimestamp(3, toTimestamp(note.getCreated()));
+		notes.setTimestamp(4, toTimestamp(note.getLastModified()));
+		notes.setLong(5, System.currentTimeMillis());
+		notes.addBatch();
+		noteRows++;
+	}
+
+
+	private void addStructure(int parentID, int id) throws SQLException {
+		if(structure == null){
+			structure = conn.prepare(INSERT_NOTE_STRUCTURE);
+		}
+		structure.setInt(1, parentID);
+		structure.setInt(2, id);
+		structure.addBatch();
+		structureRows++;
+	}
+
+
+	/**
+	 * Adds a row to the closure table for every ancestor of the new note.
+	 */
+	private void addClosure(int parentID, int id) throws SQLException {
+		int[] pairs = ancestors.get(parentID);
+		if(pairs == null){
+			pairs = loadAncestors(parentID);
+			ancestors.put(parentID, pairs);
+		}
+		if(closure == null){
+			closure = conn.prepare(INSERT_CLOSURE);
+		}
+		for(int i = 0; i < pairs.length; i += 2){
+			closure.setInt(1, pairs[i]);
+			closure.setInt(2, id);
+			closure.setInt(3, pairs[i + 1] + 1);
+			closure.addBatch();
+			closureRows++;
+		}
+	}
+
+
+	private int[] loadAncestors(int notebookID) throws SQLException {
+		PreparedStatement stmt = conn.prepare(SELECT_ANCESTORS);
+		stmt.setInt(1, notebookID);
+		ResultSet rs = stmt.executeQuery();
+		try{
+			int[] pairs = new int[16];
+			int n = 0;
+			while(rs.next()){
+				if(n == pairs.length){
+					pairs = Arrays.copyOf(pairs, n * 2);
+				}
+				pairs[n++] = rs.getInt(1);
+				pairs[n++] = rs.getInt(2);
+			}
+			return Arrays.copyOf(pairs, n);
+		}
+		finally{
+			SQLInterface.close(rs);
+		}
+	}
+
+
+	private void addMetadata(int id, Map<String, String> data) throws SQLException {
+		if(data == null || data.isEmpty()){
+			return;
+		}
+		if(metadata == null){
+			metadata = conn.prepare(UPSERT_METADATA);
+		}
+		for(Entry<String, String> entry: data.entrySet()){
+			metadata.setInt(1, id);
+			metadata.setString(2, entry.getKey());
+			metadata.setString(3, entry.getValue());
+			metadata.addBatch();
+			metadataRows++;
+		}
+	}
+
+
+	private void addTags(int id, Set<Tag> noteTagSet) throws SQLException {
+		if(noteTagSet == null || noteTagSet.isEmpty()){
+			return;
+		}
+		if(tags == null){
+			tags = conn.prepare(INSERT_TAG);
+			noteTags = conn.prepare(INSERT_NOTE_TAG);
+		}
+		for(Tag t: noteTagSet){
+			// Each distinct tag only needs to be created once per batch
+			if(tagsSeen.add(t.getName())){
+				tags.setString(1, t.getName());
+				tags.addBatch();
+				tagRows++;
+			}
+			noteTags.setInt(1, id);
+			noteTags.setString(2, t.getName());
+			noteTags.addBatch();
+			noteTagRows++;
+		}
+	}
+
+
+	private void addPerms(int id, Map<UserEntity, Permission> noteperms) throws SQLException {
+		if(noteperms == null || noteperms.isEmpty()){
+			return;
+		}
+		if(perms == null){
+			perms = conn.prepare(UPSERT_PERMISSION);
+		}
+		for(Entry<UserEntity, Permission> e: noteperms.entrySet()){
+			perms.setInt(1, id);
+			perms.setInt(2, e.getKey().getID());
+			perms.setString(3, Permission.asString(e.getValue()));
+			perms.addBatch();
+			permRows++;
+		}
+	}
+
+
+	private void notePending() throws SQLException {
+		if(++pendingNotes >= MAX_PENDING_NOTES){
+			execute();
+		}
+	}
+
+
+	/**
+	 * Sends every pending row to the server, one batch per table in foreign key order.
+	 * @throws SQLException
+	 */
+	void execute() throws SQLException {
+		rowsWritten += executeBatch(fsObjects, fsObjectRows);
+		rowsWritten += executeBatch(notes, noteRows);
+		rowsWritten += executeBatch(structure, structureRows);
+		rowsWritten += executeBatch(closure, closureRows);
+		rowsWritten += executeBatch(metadata, metadataRows);
+		rowsWritten += executeBatch(tags, tagRows);
+		rowsWritten += executeBatch(noteTags, noteTagRows);
+		rowsWritten += executeBatch(perms, permRows);
+		rowsWritten += executeBatch(metadataDeletes, metadataDeleteRows);
+		rowsWritten += executeBatch(noteTagDeletes, noteTagDeleteRows);
+		rowsWritten += executeBatch(permDeletes, permDeleteRows);
+		fsObjectRows = noteRows = structureRows = closureRows = metadataRows = tagRows =
+				noteTagRows = permRows = metadataDeleteRows = noteTagDeleteRows =
+				permDeleteRows = 0;
+		pendingNotes = 0;
+	}
+
+
+	private int executeBatch(PreparedStatement stmt, int rows) throws SQLException {
+		if(stmt == null || rows == 0){
+			return 0;
+		}
+		stmt.executeBatch();
+		return rows;
+	}
+
+
+	/**
+	 * Discards any rows that have not been executed. Must be called when a batch is
+	 * abandoned, since the statements stay cached on the connection.
+	 */
+	void clear(){
+		clearBatch(fsObjects);
+		clearBatch(notes);
+		clearBatch(structure);
+		clearBatch(closure);
+		clearBatch(metadata);
+		clearBatch(tags);
+		clearBatch(noteTags);
+		clearBatch(perms);
+		clearBatch(metadataDeletes);
+		clearBatch(noteTagDeletes);
+		clearBatch(permDeletes);
+		fsObjectRows = noteRows = structureRows = closureRows = metadataRows = tagRows =
+				noteTagRows = permRows = metadataDeleteRows = noteTagDeleteRows =
+				permDeleteRows = 0;
+		pendingNotes = 0;
+	}
+
+
+	private void clearBatch(PreparedStatement stmt){
+		if(stmt == null){
+			return;
+		}
+		try{
+			stmt.clearBatch();
+		}
+		catch(SQLException e){
+			// The connection is rolled back and reset by the pool anyway
+		}
+	}
+
+
+	/**
+	 * @return the number of rows sent to the server so far
+	 */
+	int getRowsWritten(){
+		return rowsWritten;
+	}
+
+
+	private static Timestamp toTimestamp(DateTime dt){
+		return dt == null ? null : new Timestamp(dt.getMillis());
+	}
+
+}
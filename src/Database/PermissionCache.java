@@ -0,0 +1,137 @@
+package Database;
+
+import java.util.Arrays;
+
+/**
+ * A bounded map from long keys to long values, kept in two open-addressed arrays of
+ * primitives rather than as boxed entries, so that a large cache costs 16 bytes an entry
+ * and no garbage. Entries live in two generations: when the current one fills, it
+ * becomes the old one and the previous old one is dropped. An entry found in the old
+ * generation is moved back to the current one, so recently used entries survive and the
+ * cache behaves roughly like an LRU cache. Keys must not be 0. Not thread safe.
+ */
+final class PermissionCache {
+
+	private static final long EMPTY = 0;
+
+	/**
+	 * A table of entries with linear probing, never more than three quarters full.
+	 */
+	private static final class Table {
+		final long[] keys;
+
+		final long[] values;
+
+		final int mask;
+
+		int size = 0;
+
+		Table(int capacity){
+			keys = new long[capacity];
+			values = new long[capacity];
+			mask = capacity - 1;
+		}
+
+		int slot(long key){
+			long h = key * 0x9E3779B97F4A7C15L;
+			int i = (int) (h ^ (h >>> 32)) & mask;
+			while(keys[i] != EMPTY && keys[i] != key){
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+	}
+
+	private final int maxEntries;
+
+	private Table current, old;
+
+
+	/**
+	 * @param maxEntries the number of entries each generation holds before it is retired
+	 */
+	PermissionCache(int maxEntries){
+		int capacity = 16;
+		while(capacity * 3 / 4 < maxEntries){
+			capacity <<= 1;
+		}
+		this.maxEntries = Math.max(maxEntries, 1);
+		current = new Table(capacity);
+		old = new Table(capacity);
+	}
+
+
+	/**
+	 * @param key the key, not 0
+	 * @param missing the value to return if the key is not in the cache
+	 * @return the value stored under the key, or missing
+	 */
+	long get(long key, long missing){
+		int i = current.slot(key);
+		if(current.keys[i] == key){
+			return current.values[i];
+		}
+		int j = old.slot(key);
+		if(old.keys[j] == key){
+			long value = old.values[j];
+			put(key, value);
+			return value;
+		}
+		return missing;
+	}
+
+
+	/**
+	 * Stores a value, replacing the one stored under the key before.
+	 * @param key the key, not 0
+	 * @param value the value
+	 */
+	void put(long key, long value){
+		if(key == EMPTY){
+			throw new IllegalArgumentException("Key must not be 0");
+		}
+		int i = current.slot(key);
+		if(current.keys[i] == key){
+			current.values[i] = value;
+			return;
+		}
+		if(current.size == maxEntries){
+			retire();
+			i = current.slot(key);
+		}
+		current.keys[i] = key;
+		current.values[i] = value;
+		current.size++;
+	}
+
+
+	/**
+	 * Makes the current generation the old one, and starts an empty current one in the
+	 * arrays of the generation being dropped.
+	 */
+	private void retire(){
+		Table dropped = old;
+		old = current;
+		Arrays.fill(dropped.keys, EMPTY);
+		dropped.size = 0;
+		current = dropped;
+	}
+
+
+	void clear(){
+		Arrays.fill(current.keys, EMPTY);
+		Arrays.fill(old.keys, EMPTY);
+		current.size = 0;
+		old.size = 0;
+	}
+
+
+	/**
+	 * @return the number of entries held, counting a key in both generations once per
+	 * generation
+	 */
+	int size(){
+		return current.size + old.size;
+	}
+
+}
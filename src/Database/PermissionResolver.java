@@ -0,0 +1,406 @@
+package Database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import DataModel.Permission;
+
+/**
+ * Works out the permission a user effectively has on a note: the strongest of the
+ * permissions granted to the user and to each of their groups, and write permission if
+ * they wrote the note. Each user's groups are looked up once and kept, so resolving a
+ * permission takes a single query for the note's grants; the result is then cached per
+ * (note, user) pair in a {@link PermissionCache}.
+ * <p>
+ * Rather than searching the cache for the entries a change affects, every cached value
+ * carries the stamp of a global counter taken before it was read, and every change to a
+ * note's grants or a user's groups records a new stamp for that note or user. A cached
+ * value older than the last change to its note or its user is ignored. Changes are
+ * recorded per stripe of IDs, so a change occasionally discards the cached values of an
+ * unrelated note or user too, but never leaves a stale one in use. Grants and groups
+ * changed by other processes are not seen until the cached values are evicted.
+ */
+final class PermissionResolver {
+
+	private static final String SCHEMA_NAME = DBAccessImpl.SCHEMA_NAME;
+
+	/**
+	 * Everyone granted a permission on a note, with the author granted write.
+	 */
+	private static final String SELECT_NOTE_GRANTS = "select author, 'write' from " +
+			SCHEMA_NAME + ".Notes where noteID = ? union all " +
+			"select userEntityID, permission from " + SCHEMA_NAME + ".NotePermissions " +
+			"where noteID = ?";
+
+	/**
+	 * The grants a user has on a list of notes, directly and through their groups, and
+	 * the ones they wrote. Followed by {@link DBAccessImpl#inList(int)}, then
+	 * {@link #SELECT_AUTHORED_NOTES} and another list.
+	 */
+	private static final String SELECT_GRANTS_ON_NOTES = "select np.noteID, np.permission " +
+			"from " + SCHEMA_NAME + ".NotePermissions np where (np.userEntityID = ? or " +
+			"np.userEntityID in (select groupID from " + SCHEMA_NAME + ".UserGroupMappings " +
+			"where userID = ?)) and np.noteID in ";
+
+	private static final String SELECT_AUTHORED_NOTES = " union all select noteID, 'write' " +
+			"from " + SCHEMA_NAME + ".Notes where author = ? and noteID in ";
+
+	private static final String SELECT_GROUPS = "select groupID from " + SCHEMA_NAME +
+			".UserGroupMappings where userID = ?";
+
+	private static final int STAMP_STRIPES = 4096;
+
+	/**
+	 * The codes permissions are cached as, in the low bits of a cached value.
+	 */
+	private static final int NONE = 0, READ = 1, WRITE = 2, CODE_BITS = 2;
+
+	/**
+	 * A user's groups, sorted, as of a stamp.
+	 */
+	private static final class Membership {
+		final int[] groups;
+
+		final long stamp;
+
+		Membership(int[] groups, long stamp){
+			this.groups = groups;
+			this.stamp = stamp;
+		}
+	}
+
+	private final SQLInterface sql;
+
+	private final AtomicLong clock = new AtomicLong();
+
+	private final AtomicLongArray noteStamps = new AtomicLongArray(STAMP_STRIPES);
+
+	private final AtomicLongArray userStamps = new AtomicLongArray(STAMP_STRIPES);
+
+	/**
+	 * Guarded by itself.
+	 */
+	private final PermissionCache cache;
+
+	/**
+	 * Groups of recently seen users, least recently used first. Guarded by itself.
+	 */
+	private final LinkedHashMap<Integer, Membership> memberships;
+
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+			resolveNanos = new AtomicLong();
+
+
+	/**
+	 * @param sql the sql interface to read grants and groups through
+	 * @param cacheSize the number of (note, user) permissions to cache
+	 * @param membershipCacheSize the number of users whose groups to cache
+	 */
+	PermissionResolver(SQLInterface sql, int cacheSize, final int membershipCacheSize){
+		this.sql = sql;
+		this.cache = new PermissionCache(cacheSize);
+		this.memberships = new LinkedHashMap<Integer, Membership>(256, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Membership> eldest){
+				return size() > membershipCacheSize;
+			}
+		};
+	}
+
+
+	/**
+	 * @param noteID the id of the note
+	 * @param userID the id of the user
+	 * @return the strongest permission the user has on the note, or null if none
+	 * @throws DBException
+	 */
+	Permission resolve(int noteID, int userID) throws DBException {
+		long key = key(noteID, userID);
+		long cached;
+		synchronized(cache){
+			cached = cache.get(key, -1);
+		}
+		if(cached >= 0 && isCurrent(cached >>> CODE_BITS, noteID, userID)){
+			hits.incrementAndGet();
+			return decode((int) (cached & ((1 << CODE_BITS) - 1)));
+		}
+
+		misses.incrementAndGet();
+		long start = System.nanoTime();
+		// Taken before reading, so a change committed during the read outdates the result
+		long stamp = clock.get();
+		int[] groups = groupsOf(userID);
+		int code = NONE;
+		try{
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				PreparedStatement stmt = conn.prepare(SELECT_NOTE_GRANTS);
+				stmt.setInt(1, noteID);
+				stmt.setInt(2, noteID);
+				rs = stmt.executeQuery();
+				while(rs.next()){
+					int entity = rs.getInt(1);
+					if(entity == userID || Arrays.binarySearch(groups, entity) >= 0){
+						code = Math.max(code, encode(Permission.fromString(rs.getString(2))));
+					}
+				}
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+
+		synchronized(cache){
+			cache.put(key, (stamp << CODE_BITS) | code);
+		}
+		resolveNanos.addAndGet(System.nanoTime() - start);
+		return decode(code);
+	}
+
+
+	/**
+	 * Resolves a user's permissions on many notes at once, e.g. every note in a listing.
+	 * Those not in the cache are read with one query per 
+	 * {@link DBAccessImpl#MAX_IN_LIST} notes, and cached.
+	 * @param userID the id of the user
+	 * @param noteIDs the ids of the notes
+	 * @return the strongest permission the user has on each note, in the same order, or
+	 * null for the notes they have none on
+	 * @throws DBException
+	 */
+	Permission[] resolveAll(int userID, int[] noteIDs) throws DBException {
+		Permission[] resolved = new Permission[noteIDs.length];
+		List<Integer> missed = new ArrayList<Integer>();
+		synchronized(cache){
+			for(int i = 0; i < noteIDs.length; i++){
+				long cached = cache.get(key(noteIDs[i], userID), -1);
+				if(cached >= 0 && isCurrent(cached >>> CODE_BITS, noteIDs[i], userID)){
+					resolved[i] = decode((int) (cached & ((1 << CODE_BITS) - 1)));
+				}
+				else{
+					missed.add(noteIDs[i]);
+				}
+			}
+		}
+		hits.addAndGet(noteIDs.length - missed.size());
+		if(missed.isEmpty()){
+			return resolved;
+		}
+
+		misses.addAndGet(missed.size());
+		long start = System.nanoTime();
+		long stamp = clock.get();
+		Map<Integer, Integer> codes = new HashMap<Integer, Integer>(missed.size() * 2);
+		for(Integer id: missed){
+			codes.put(id, NONE);
+		}
+		try{
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				for(int from = 0; from < missed.size(); from += DBAccessImpl.MAX_IN_LIST){
+					List<Integer> chunk = missed.subList(from, 
+							Math.min(missed.size(), from + DBAccessImpl.MAX_IN_LIST));
+					int slots = DBAccessImpl.inListSize(chunk.size());
+					String list = DBAccessImpl.inList(slots);
+					PreparedStatement stmt = conn.prepare(SELECT_GRANTS_ON_NOTES + list +
+							SELECT_AUTHORED_NOTES + list);
+					stmt.setInt(1, userID);
+					stmt.setInt(2, userID);
+					int p = DBAccessImpl.setInList(stmt, 3, chunk, slots);
+					stmt.setInt(p, userID);
+					DBAccessImpl.setInList(stmt, p + 1, chunk, slots);
+					rs = stmt.executeQuery();
+					while(rs.next()){
+						Integer id = rs.getInt(1);
+						int code = encode(Permission.fromString(rs.getString(2)));
+						if(code > codes.get(id)){
+							codes.put(id, code);
+						}
+					}
+					rs.close();
+					rs = null;
+				}
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+
+		synchronized(cache){
+			for(Map.Entry<Integer, Integer> e: codes.entrySet()){
+				cache.put(key(e.getKey(), userID), (stamp << CODE_BITS) | e.getValue());
+			}
+		}
+		for(int i = 0; i < noteIDs.length; i++){
+			Integer code = codes.get(noteIDs[i]);
+			if(code != null){
+				resolved[i] = decode(code);
+			}
+		}
+		resolveNanos.addAndGet(System.nanoTime() - start);
+		return resolved;
+	}
+
+
+	/**
+	 * Gets a user's groups, from the cache if they haven't changed since they were read.
+	 * @return the ids of the groups, sorted
+	 */
+	private int[] groupsOf(int userID) throws DBException {
+		synchronized(memberships){
+			Membership m = memberships.get(userID);
+			if(m != null && m.stamp >= userStamps.get(stripe(userID))){
+				return m.groups;
+			}
+		}
+
+		long stamp = clock.get();
+		int[] groups = new int[8];
+		int count = 0;
+		try{
+			SQLConnection conn = sql.getConnection();
+			ResultSet rs = null;
+			try{
+				PreparedStatement stmt = conn.prepare(SELECT_GROUPS);
+				stmt.setInt(1, userID);
+				rs = stmt.executeQuery();
+				while(rs.next()){
+					if(count == groups.length){
+						groups = Arrays.copyOf(groups, count * 2);
+					}
+					groups[count++] = rs.getInt(1);
+				}
+			}
+			finally{
+				SQLInterface.close(rs);
+				sql.releaseConnection(conn);
+			}
+		}
+		catch(SQLException e){
+			throw new DBException("Error communicating with DB", e);
+		}
+
+		groups = Arrays.copyOf(groups, count);
+		Arrays.sort(groups);
+		synchronized(memberships){
+			memberships.put(userID, new Membership(groups, stamp));
+		}
+		return groups;
+	}
+
+
+	/**
+	 * Outdates the cached permissions on the inputed notes. Must be called after the
+	 * change to their grants is committed.
+	 * @param noteIDs the notes whose grants changed, or that were just created
+	 */
+	void notesChanged(int... noteIDs){
+		for(int id: noteIDs){
+			noteStamps.set(stripe(id), clock.incrementAndGet());
+		}
+	}
+
+
+	/**
+	 * Outdates the cached groups of the inputed user, and their cached permissions. Must
+	 * be called after the change to their groups is committed.
+	 * @param userID the user who joined or left a group
+	 */
+	void membershipChanged(int userID){
+		userStamps.set(stripe(userID), clock.incrementAndGet());
+	}
+
+
+	private boolean isCurrent(long stamp, int noteID, int userID){
+		return stamp >= noteStamps.get(stripe(noteID)) &&
+				stamp >= userStamps.get(stripe(userID));
+	}
+
+
+	private static int stripe(int id){
+		int h = id * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (STAMP_STRIPES - 1);
+	}
+
+
+	/**
+	 * @return a cache key that is never 0, since note ids start at 1
+	 */
+	private static long key(int noteID, int userID){
+		return ((long) noteID << 32) | (userID & 0xffffffffL);
+	}
+
+
+	private static int encode(Permission p){
+		if(p == Permission.WRITE){
+			return WRITE;
+		}
+		return p == Permission.READ ? READ : NONE;
+	}
+
+
+	private static Permission decode(int code){
+		switch(code){
+		case WRITE: return Permission.WRITE;
+		case READ: return Permission.READ;
+		default: return null;
+		}
+	}
+
+
+	/**
+	 * @return the fraction of resolves answered from the cache
+	 */
+	double getHitRatio(){
+		long h = hits.get(), total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	long getHitCount(){
+		return hits.get();
+	}
+
+	long getMissCount(){
+		return misses.get();
+	}
+
+	/**
+	 * @return the mean time, in milliseconds, spent reading the permission of a note that
+	 * was not in the cache
+	 */
+	double getAverageResolveMillis(){
+		long m = misses.get();
+		return m == 0 ? 0 : resolveNanos.get() / (m * 1000000.0);
+	}
+
+	public String toString(){
+		int size;
+		synchronized(cache){
+			size = cache.size();
+		}
+		return "size=" + size + ", hitRatio=" + getHitRatio() + ", avgResolveMs=" +
+				getAverageResolveMillis();
+	}
+
+}
@@ -0,0 +1,20 @@
+package Database;
+
+/**
+ * Receives the results of a streaming query one at a time, while the rows are still
+ * being read from the database. Used instead of returning a collection when the
+ * results may be too many to hold in memory at once.
+ * @param <T> the type of the results
+ */
+public interface ResultHandler<T> {
+
+	/**
+	 * Called once for each result, in order. The database connection stays borrowed
+	 * while the handler runs, so it should not block for long.
+	 * @param result the next result
+	 * @return true to keep receiving results, false to stop the query early
+	 * @throws DBException to abort the query; the exception is passed on to the caller
+	 */
+	public boolean handle(T result) throws DBException;
+
+}
@@ -0,0 +1,173 @@
+package Database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A physical database connection owned by the {@link ConnectionPool}. Instances are
+ * handed out by {@link SQLInterface#getConnection()} and must be given back through
+ * {@link SQLInterface#releaseConnection(SQLConnection)} once the caller is done; they
+ * should never be shared between threads while borrowed.
+ */
+final class SQLConnection {
+
+	private final Connection conn;
+
+	private final StatementCache statements;
+
+	/**
+	 * The time (in ms) at which the connection was last returned to the pool.
+	 */
+	private volatile long lastUsed;
+
+
+	SQLConnection(Connection conn, StatementCache statements){
+		this.conn = conn;
+		this.statements = statements;
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Returns a prepared statement for the inputed SQL from this connection's statement
+	 * cache. The statement belongs to the cache and must NOT be closed by the caller;
+	 * ResultSets obtained from it should be closed as usual.
+	 * @param sql the parameterized SQL
+	 * @return the cached prepared statement
+	 * @throws SQLException
+	 */
+	PreparedStatement prepare(String sql) throws SQLException {
+		return statements.prepare(sql);
+	}
+
+
+	/**
+	 * Prepares a statement for a query whose results are read as they arrive rather
+	 * than all at once: the ResultSet is forward-only and rows are fetched from the
+	 * server fetchSize at a time. The statement is not cached, and the caller is
+	 * responsible for closing it.
+	 * @param sql the parameterized SQL
+	 * @param fetchSize the number of rows to fetch at a time
+	 * @return the new statement
+	 * @throws SQLException
+	 */
+	PreparedStatement prepareStreaming(String sql, int fetchSize) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY);
+		stmt.setFetchSize(fetchSize);
+		return stmt;
+	}
+
+
+	/**
+	 * Creates a new statement on this connection. The caller is responsible for closing
+	 * it, which also closes any ResultSet it produced.
+	 * @return the new statement
+	 * @throws SQLException
+	 */
+	Statement createStatement() throws SQLException {
+		return conn.createStatement();
+	}
+
+
+	/**
+	 * @return the underlying JDBC connection
+	 */
+	Connection getConnection(){
+		return conn;
+	}
+
+
+	/**
+	 * @return the time in milliseconds since this connection was last returned to the pool
+	 */
+	long getIdleMillis(){
+		return System.currentTimeMillis() - lastUsed;
+	}
+
+
+	void touch(){
+		lastUsed = System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Checks with the server that the connection is still usable
+	 * @param timeoutSeconds how long to wait for the server to answer
+	 * @return true if the connection can be used, false otherwise
+	 */
+	boolean isValid(int timeoutSeconds){
+		try{
+			return !conn.isClosed() && conn.isValid(timeoutSeconds);
+		}
+		catch(SQLException e){
+			return false;
+		}
+	}
+
+
+	/**
+	 * Starts a transaction. Every statement executed on this connection until
+	 * {@link #commit()} or {@link #rollback()} is part of it.
+	 * @throws SQLException
+	 */
+	void begin() throws SQLException {
+		conn.setAutoCommit(false);
+	}
+
+
+	/**
+	 * Commits the current transaction and returns the connection to autocommit mode.
+	 * @throws SQLException
+	 */
+	void commit() throws SQLException {
+		conn.commit();
+		conn.setAutoCommit(true);
+	}
+
+
+	/**
+	 * Rolls back the current transaction, if there is one. Errors are ignored, since
+	 * this is called while another exception is already being handled; the pool
+	 * discards the connection if it turns out to be broken.
+	 */
+	void rollback(){
+		try{
+			if(!conn.getAutoCommit()){
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		}
+		catch(SQLException e){
+			// Reported by reset() when the connection is released
+		}
+	}
+
+
+	/**
+	 * Puts the connection back into its default state before it is reused. Any
+	 * transaction left open by the previous borrower is rolled back.
+	 * @throws SQLException
+	 */
+	void reset() throws SQLException {
+		if(!conn.getAutoCommit()){
+			conn.rollback();
+			conn.setAutoCommit(true);
+		}
+	}
+
+
+	void close(){
+		statements.close();
+		try{
+			conn.close();
+		}
+		catch(SQLException e){
+			// Nothing more can be done with a connection that fails to close
+		}
+	}
+
+}
@@ -1,47 +1,70 @@
 package Database;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Properties;
 
 /**
- * Used to abstract the interface with the database, so that only a SQL
- * statement needs to be provided as input, and a ResultSet is provided as
- * output.
- * 
+ * Used to abstract the interface with the database. Hands out pooled connections so
+ * that independent requests can run their statements in parallel; every caller
+ * creates its own statements on the connection it borrowed.
+ *
  * @author Ralph
- * 
+ *
  */
 class SQLInterface {
 
-	// For Local
-	private static final String URL = "jdbc:mysql://localhost/mysql";
-	
-	private static final String USER = "root";
-	private static final String PASS = "";
+	// For Local. Each setting can be overridden with the matching system property.
+	private static final String URL = System.getProperty("blacknote.db.url",
+			"jdbc:mysql://localhost/mysql");
 
-	private Connection conn = null;
-	private Statement stmt = null;
+	private static final String USER = System.getProperty("blacknote.db.user", "root");
+	private static final String PASS = System.getProperty("blacknote.db.pass", "");
+
+	private static final String DRIVER = System.getProperty("blacknote.db.driver",
+			"com.mysql.jdbc.Driver");
+
+	// Connection pool settings (see also blacknote.db.pool.statementCacheSize)
+	private static final int MIN_CONNECTIONS = Integer.getInteger("blacknote.db.pool.min", 2);
+	private static final int MAX_CONNECTIONS = Integer.getInteger("blacknote.db.pool.max", 16);
+	private static final long IDLE_TIMEOUT_MILLIS = Long.getLong(
+			"blacknote.db.pool.idleTimeoutMillis", 5 * 60 * 1000L);
+	private static final long BORROW_TIMEOUT_MILLIS = Long.getLong(
+			"blacknote.db.pool.borrowTimeoutMillis", 10 * 1000L);
+	private static final long VALIDATION_INTERVAL_MILLIS = Long.getLong(
+			"blacknote.db.pool.validationIntervalMillis", 30 * 1000L);
+
+	private final ConnectionPool pool;
 
 	private static SQLInterface inst = null;
 
-	private SQLInterface(String URL, String usr, String pwd) {
+	private SQLInterface(String URL, String usr, String pwd) throws SQLException {
 		try {
-			Class.forName("oracle.jdbc.driver.OracleDriver");
-			conn = DriverManager.getConnection(URL, usr, pwd);
-			stmt = conn.createStatement();
-		} catch (SQLException e) {
-			e.printStackTrace();
-			System.exit(1);
+			Class.forName(DRIVER);
 		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-			System.exit(1);
+			throw new SQLException("JDBC driver " + DRIVER + " is not on the classpath", e);
 		}
+
+		Properties props = new Properties();
+		props.setProperty("user", usr);
+		props.setProperty("password", pwd);
+		if (URL.startsWith("jdbc:mysql:")) {
+			// Prepare statements on the server so that the statements cached per
+			// connection skip parsing and planning on reuse
+			props.setProperty("useServerPrepStmts", "true");
+			// Send JDBC batches of inserts as multi-row inserts
+			props.setProperty("rewriteBatchedStatements", "true");
+			// Honor the fetch size of streaming queries with a server-side cursor instead
+			// of reading the whole result into memory
+			props.setProperty("useCursorFetch", "true");
+		}
+
+		pool = new ConnectionPool(URL, props, MIN_CONNECTIONS, MAX_CONNECTIONS,
+				IDLE_TIMEOUT_MILLIS, BORROW_TIMEOUT_MILLIS, VALIDATION_INTERVAL_MILLIS);
 	}
 
-	static SQLInterface getSQLInterface() {
+	static synchronized SQLInterface getSQLInterface() throws SQLException {
 		if (inst == null) {
 			inst = new SQLInterface(URL, USER, PASS);
 		}
@@ -49,56 +72,68 @@ class SQLInterface {
 	}
 
 	/**
-	 * Executes the SQL command. Exits the program upon any SQLException.
-	 * 
-	 * @param sql
-	 *            the SQL command to execute
-	 * @return
+	 * Borrows a connection from the pool. Every connection obtained here must be handed
+	 * back with {@link #releaseConnection(SQLConnection)}, normally in a finally block.
+	 *
+	 * @return a connection for the exclusive use of the caller
+	 * @throws SQLException
+	 *             if no connection became available within the borrow timeout
 	 */
-	synchronized ResultSet getResultSafe(String sql) {
-		ResultSet out = null;
-		try {
-			if (stmt.execute(sql)) {
-				out = stmt.getResultSet();
-			}
-		} catch (SQLException e) {
-			e.printStackTrace();
-			System.exit(1);
-		}
-		return out;
+	SQLConnection getConnection() throws SQLException {
+		return pool.borrow();
 	}
 
 	/**
-	 * Used if handling of SQLExceptions is to be defined outside the scope of
-	 * the method.
-	 * 
-	 * @param sql
-	 *            the SQL statement to be executed
-	 * @return
-	 * @throws SQLException
+	 * Returns a connection obtained from {@link #getConnection()} to the pool.
+	 *
+	 * @param conn
+	 *            the connection to return
 	 */
-	synchronized ResultSet getResultUnsafe(String sql) throws SQLException {
-		ResultSet out = null;
-		if (stmt.execute(sql)) {
-			out = stmt.getResultSet();
+	void releaseConnection(SQLConnection conn) {
+		pool.release(conn);
+	}
+
+	/**
+	 * @return the connection pool, mainly so its metrics can be inspected
+	 */
+	ConnectionPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Closes the statement (and with it any open ResultSet), ignoring errors.
+	 *
+	 * @param stmt
+	 *            the statement to close, may be null
+	 */
+	static void close(Statement stmt) {
+		if (stmt == null)
+			return;
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+			// Nothing useful can be done here
 		}
-		return out;
 	}
 
-	void close() {
+	/**
+	 * Closes the ResultSet, ignoring errors.
+	 *
+	 * @param rs
+	 *            the ResultSet to close, may be null
+	 */
+	static void close(ResultSet rs) {
+		if (rs == null)
+			return;
 		try {
-			if (stmt != null)
-				stmt.close();
-			if (conn != null)
-				conn.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(1);
+			rs.close();
+		} catch (SQLException e) {
+			// Nothing useful can be done here
 		}
 	}
 
-	protected void finalize() {
-		close();
+	void close() {
+		pool.close();
 	}
 
 }
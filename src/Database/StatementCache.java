@@ -0,0 +1,81 @@
+package Database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least-recently-used cache of PreparedStatements for a single connection, keyed by
+ * the SQL text. Since every query is parameterized, the SQL text identifies the shape of
+ * the query, so each shape is parsed and planned by the server once per connection.
+ * Not thread safe: a cache is only ever used by the thread that borrowed its connection.
+ */
+final class StatementCache {
+
+	private final Connection conn;
+
+	private final int capacity;
+
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	/**
+	 * Counters shared by every cache in the pool.
+	 */
+	private final AtomicLong hits, misses;
+
+
+	StatementCache(Connection conn, int capacity, AtomicLong hits, AtomicLong misses){
+		this.conn = conn;
+		this.capacity = capacity;
+		this.hits = hits;
+		this.misses = misses;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+	}
+
+
+	/**
+	 * Returns the prepared statement for the inputed SQL, preparing it if it is not
+	 * already cached. The statement must not be closed by the caller, but any ResultSet
+	 * it produces should be.
+	 * @param sql the parameterized SQL
+	 * @return the prepared statement, with its parameters cleared
+	 * @throws SQLException
+	 */
+	PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = statements.get(sql);
+		if(stmt != null){
+			hits.incrementAndGet();
+			stmt.clearParameters();
+			return stmt;
+		}
+
+		misses.incrementAndGet();
+		stmt = conn.prepareStatement(sql);
+		statements.put(sql, stmt);
+
+		if(statements.size() > capacity){
+			Iterator<Map.Entry<String, PreparedStatement>> it =
+					statements.entrySet().iterator();
+			PreparedStatement eldest = it.next().getValue();
+			it.remove();
+			SQLInterface.close(eldest);
+		}
+		return stmt;
+	}
+
+
+	/**
+	 * Closes every cached statement.
+	 */
+	void close(){
+		for(PreparedStatement stmt: statements.values()){
+			SQLInterface.close(stmt);
+		}
+		statements.clear();
+	}
+
+}
@@ -0,0 +1,52 @@
+package Database;
+
+import java.util.Map;
+
+import DataModel.FSObject;
+import DataModel.Note;
+import DataModel.Permission;
+
+/**
+ * A notebook or note found by {@link DBAccess#streamSubtree(int, ResultHandler)}, with
+ * where it sits in the tree and, for notes, who has been granted access to it.
+ */
+public final class SubtreeEntry {
+
+	private final int parentID;
+
+	private final FSObject object;
+
+	private final Map<Integer, Permission> permissions;
+
+
+	SubtreeEntry(int parentID, FSObject object, Map<Integer, Permission> permissions){
+		this.parentID = parentID;
+		this.object = object;
+		this.permissions = permissions;
+	}
+
+
+	/**
+	 * @return the id of the notebook that holds the object, or 0 for the root notebook
+	 */
+	public int getParentID(){
+		return parentID;
+	}
+
+	/**
+	 * @return the object; a {@link Note}, with its metadata and tags, if it is a note
+	 */
+	public FSObject getObject(){
+		return object;
+	}
+
+	/**
+	 * @return the permissions granted on a note, by the id of the user or group they are
+	 * granted to; empty for notebooks. The author's implied write permission is not
+	 * included.
+	 */
+	public Map<Integer, Permission> getPermissions(){
+		return permissions;
+	}
+
+}
@@ -0,0 +1,328 @@
+package Database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import DataModel.Tag;
+import Utilities.IntArraySet;
+
+/**
+ * An in-memory inverted index from each tag to the sorted IDs of the notes that have it,
+ * so that boolean tag queries are answered by walking int arrays instead of querying
+ * NoteTags. The index is read from the database the first time it is queried, and kept
+ * up to date by the DAO after every committed write. Tags written by other processes
+ * are not seen until the next restart.
+ */
+final class TagIndex {
+
+	private static final String SCHEMA_NAME = DBAccessImpl.SCHEMA_NAME;
+
+	/**
+	 * Ordered by note so that every set is built by appending.
+	 */
+	private static final String SELECT_NOTE_TAGS = "select noteID, tag from " + SCHEMA_NAME +
+			".NoteTags order by noteID";
+
+	private static final int LOAD_FETCH_SIZE = 10000;
+
+	private final SQLInterface sql;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * The notes with each tag. Guarded by lock.
+	 */
+	private final Map<String, IntArraySet> notesByTag = new HashMap<String, IntArraySet>();
+
+	/**
+	 * Every note with at least one tag, the universe that "not" queries are taken from.
+	 * Guarded by lock.
+	 */
+	private final IntArraySet tagged = new IntArraySet();
+
+	private volatile boolean loaded = false;
+
+
+	/**
+	 * @param sql the sql interface to load the index through
+	 */
+	TagIndex(SQLInterface sql){
+		this.sql = sql;
+	}
+
+
+	/**
+	 * Records that a note has the inputed tags. Must be called after the tags are
+	 * committed, so that a concurrent load either reads them or is followed by this call.
+	 * @param noteID the id of the note
+	 * @param tags tags the note has
+	 */
+	void add(int noteID, Collection<Tag> tags){
+		if(tags == null || tags.isEmpty()){
+			return;
+		}
+		lock.writeLock().lock();
+		try{
+			if(!loaded){
+				// The load will read the committed rows
+				return;
+			}
+			for(Tag tag: tags){
+				addUnlocked(noteID, tag.getName());
+			}
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Records that a note no longer has the inputed tags. Must be called after the
+	 * removal is committed.
+	 * @param noteID the id of the note
+	 * @param tags the names of the tags removed
+	 * @param remaining the tags the note still has
+	 */
+	void remove(int noteID, Collection<String> tags, Collection<Tag> remaining){
+		if(tags == null || tags.isEmpty()){
+			return;
+		}
+		lock.writeLock().lock();
+		try{
+			if(!loaded){
+				return;
+			}
+			for(String tag: tags){
+				IntArraySet notes = notesByTag.get(tag);
+				if(notes != null){
+					notes.remove(noteID);
+					if(notes.isEmpty()){
+						notesByTag.remove(tag);
+					}
+				}
+			}
+			if(remaining == null || remaining.isEmpty()){
+				tagged.remove(noteID);
+			}
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	private void addUnlocked(int noteID, String tag){
+		IntArraySet notes = notesByTag.get(tag);
+		if(notes == null){
+			notes = new IntArraySet();
+			notesByTag.put(tag, notes);
+		}
+		notes.add(noteID);
+		tagged.add(noteID);
+	}
+
+
+	/**
+	 * Finds the notes that have all of the tags in allOf, at least one of the tags in
+	 * anyOf, and none of the tags in noneOf. An empty allOf or anyOf places no condition;
+	 * if both are empty, every tagged note is a candidate.
+	 * @param allOf tags the notes must all have
+	 * @param anyOf tags the notes must have at least one of
+	 * @param noneOf tags the notes must not have
+	 * @param afterID only return notes with IDs greater than this, for paging
+	 * @param limit the largest number of IDs to return
+	 * @return the matching note IDs, in increasing order
+	 * @throws DBException if the index could not be loaded
+	 */
+	List<Integer> query(Collection<String> allOf, Collection<String> anyOf,
+			Collection<String> noneOf, int afterID, int limit) throws DBException {
+		if(!loaded){
+			load();
+		}
+
+		List<Integer> result = new ArrayList<Integer>(Math.min(limit, 1024));
+		if(limit <= 0 || afterID == Integer.MAX_VALUE){
+			return result;
+		}
+
+		lock.readLock().lock();
+		try{
+			IntArraySet[] all = lookup(allOf);
+			IntArraySet[] any = lookup(anyOf);
+			IntArraySet[] none = lookup(noneOf);
+			if(all.length < allOf.size() || (!anyOf.isEmpty() && any.length == 0)){
+				// A required tag is on no notes
+				return result;
+			}
+
+			// Candidates come in increasing order from the smallest required set, or from
+			// the union of the optional sets, or from every tagged note
+			Cursor driver;
+			if(all.length > 0){
+				int smallest = 0;
+				for(int i = 1; i < all.length; i++){
+					if(all[i].size() < all[smallest].size()){
+						smallest = i;
+					}
+				}
+				IntArraySet tmp = all[0];
+				all[0] = all[smallest];
+				all[smallest] = tmp;
+				driver = new Cursor(new IntArraySet[]{all[0]}, afterID + 1);
+			}
+			else if(any.length > 0){
+				driver = new Cursor(any, afterID + 1);
+				any = new IntArraySet[0];
+			}
+			else{
+				driver = new Cursor(new IntArraySet[]{tagged}, afterID + 1);
+			}
+
+			int[] allPos = new int[all.length];
+			int[] anyPos = new int[any.length];
+			int[] nonePos = new int[none.length];
+			int id;
+			while(result.size() < limit && (id = driver.next()) != Integer.MIN_VALUE){
+				if(containsAll(all, allPos, 1, id) && (any.length == 0 ||
+						containsAny(any, anyPos, id)) && !containsAny(none, nonePos, id)){
+					result.add(id);
+				}
+			}
+			return result;
+		}
+		finally{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	private IntArraySet[] lookup(Collection<String> tags){
+		List<IntArraySet> sets = new ArrayList<IntArraySet>(tags.size());
+		for(String tag: tags){
+			IntArraySet notes = notesByTag.get(tag);
+			if(notes != null && !notes.isEmpty()){
+				sets.add(notes);
+			}
+		}
+		return sets.toArray(new IntArraySet[sets.size()]);
+	}
+
+
+	/**
+	 * Checks the candidate against the sets from index from onwards. Since candidates only
+	 * increase, each set's position only moves forward.
+	 */
+	private static boolean containsAll(IntArraySet[] sets, int[] pos, int from, int id){
+		for(int i = from; i < sets.length; i++){
+			pos[i] = sets[i].seek(id, pos[i]);
+			if(pos[i] == sets[i].size() || sets[i].get(pos[i]) != id){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	private static boolean containsAny(IntArraySet[] sets, int[] pos, int id){
+		for(int i = 0; i < sets.length; i++){
+			pos[i] = sets[i].seek(id, pos[i]);
+			if(pos[i] < sets[i].size() && sets[i].get(pos[i]) == id){
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Walks the union of several sets in increasing order, without duplicates.
+	 */
+	private static final class Cursor {
+
+		private final IntArraySet[] sets;
+
+		private final int[] pos;
+
+		Cursor(IntArraySet[] sets, int start){
+			this.sets = sets;
+			this.pos = new int[sets.length];
+			for(int i = 0; i < sets.length; i++){
+				pos[i] = sets[i].seek(start, 0);
+			}
+		}
+
+		/**
+		 * @return the next value, or Integer.MIN_VALUE when there are none left
+		 */
+		int next(){
+			boolean found = false;
+			int min = 0;
+			for(int i = 0; i < sets.length; i++){
+				if(pos[i] < sets[i].size()){
+					int v = sets[i].get(pos[i]);
+					if(!found || v < min){
+						min = v;
+						found = true;
+					}
+				}
+			}
+			if(!found){
+				return Integer.MIN_VALUE;
+			}
+			for(int i = 0; i < sets.length; i++){
+				if(pos[i] < sets[i].size() && sets[i].get(pos[i]) == min){
+					pos[i]++;
+				}
+			}
+			return min;
+		}
+	}
+
+
+	/**
+	 * Reads every note's tags from the database, unless another thread already has.
+	 */
+	private void load() throws DBException {
+		lock.writeLock().lock();
+		try{
+			if(loaded){
+				return;
+			}
+			SQLConnection conn = sql.getConnection();
+			PreparedStatement stmt = null;
+			try{
+				stmt = conn.prepareStreaming(SELECT_NOTE_TAGS, LOAD_FETCH_SIZE);
+				ResultSet rs = stmt.executeQuery();
+				while(rs.next()){
+					addUnlocked(rs.getInt(1), rs.getString(2));
+				}
+			}
+			finally{
+				SQLInterface.close(stmt);
+				sql.releaseConnection(conn);
+			}
+
+			for(IntArraySet notes: notesByTag.values()){
+				notes.trim();
+			}
+			loaded = true;
+		}
+		catch(SQLException e){
+			notesByTag.clear();
+			tagged.clear();
+			throw new DBException("Could not load the tag index", e);
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+}
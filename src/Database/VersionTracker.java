@@ -0,0 +1,154 @@
+package Database;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the writes made to each note and notebook through this process, so that readers
+ * can tell whether anything they fetched earlier has changed without asking the database.
+ * Objects that have not been written since the process started are all at version zero,
+ * which is why every version also carries the time this tracker was created: a restart
+ * changes every tag. Writes made by other processes are not seen, so versions are only
+ * good for a single server writing the database: when blacknote.nodes says there are
+ * more, {@link #seesAllWrites()} is false and they must not be used to answer
+ * conditional requests.
+ */
+public final class VersionTracker {
+
+	/**
+	 * The number of servers writing the database.
+	 */
+	private static final int NODES = Integer.getInteger("blacknote.nodes", 1);
+
+	/**
+	 * The version of one object. Immutable.
+	 */
+	public static final class Version {
+
+		private final String tag;
+
+		private final long version;
+
+		private final long lastModified;
+
+		private Version(String tag, long version, long lastModified){
+			this.tag = tag;
+			this.version = version;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @return a number that is larger after every write to the object
+		 */
+		public long getVersion(){
+			return version;
+		}
+
+		/**
+		 * @return when the object was last written to, in milliseconds since the epoch, or
+		 * when the tracker was created if it has not been written to since
+		 */
+		public long getLastModified(){
+			return lastModified;
+		}
+
+		/**
+		 * @return an HTTP entity tag, including the quotes, that is unique to this version
+		 */
+		public String getETag(){
+			return "\"" + tag + "\"";
+		}
+	}
+
+	private final String epoch;
+
+	private final Version initial;
+
+	/**
+	 * Shared between every object, so a version is never reused even if an object's entry
+	 * is recreated.
+	 */
+	private final AtomicLong clock = new AtomicLong();
+
+	private final ConcurrentHashMap<Integer, Version> versions =
+			new ConcurrentHashMap<Integer, Version>();
+
+	/**
+	 * Stands for every user's group memberships, which decide what each user can see.
+	 */
+	private volatile Version memberships;
+
+
+	VersionTracker(){
+		long now = System.currentTimeMillis();
+		this.epoch = Long.toString(now, 36);
+		this.initial = newVersion(0, now);
+		this.memberships = initial;
+	}
+
+
+	/**
+	 * @return whether every write to the database goes through this process, i.e.
+	 * whether an unchanged version means an unchanged object
+	 */
+	public static boolean seesAllWrites(){
+		return NODES <= 1;
+	}
+
+
+	/**
+	 * Gets the current version of a note or notebook. To avoid pairing a new version with
+	 * old contents, read the version before reading the object itself.
+	 * @param objectID the id of the note or notebook
+	 * @return its version
+	 */
+	public Version getVersion(int objectID){
+		Version v = versions.get(objectID);
+		return v == null ? initial : v;
+	}
+
+
+	/**
+	 * Gets the version of a note or notebook as seen by one user, for responses that only
+	 * show the user what they have permission to see. It also moves on whenever any user
+	 * joins or leaves a group, and its entity tag is different for every user.
+	 * @param objectID the id of the note or notebook
+	 * @param userID the id of the user the response is for
+	 * @return its version
+	 */
+	public Version getVersion(int objectID, int userID){
+		Version object = getVersion(objectID);
+		Version groups = memberships;
+		return new Version(object.tag + "-" + Long.toString(groups.version, 36) + "-" + 
+				Integer.toString(userID, 36), object.version + groups.version, 
+				Math.max(object.lastModified, groups.lastModified));
+	}
+
+
+	/**
+	 * Moves the inputed objects to new versions. Must be called after the write has been
+	 * committed, so that a reader never sees the new version with the old contents.
+	 * @param objectIDs the ids of the notes and notebooks that were written to
+	 */
+	void changed(int... objectIDs){
+		long now = System.currentTimeMillis();
+		for(int id: objectIDs){
+			versions.put(id, newVersion(clock.incrementAndGet(), now));
+		}
+	}
+
+
+	/**
+	 * Moves every user's view of every object to a new version, after a user joined or
+	 * left a group.
+	 */
+	void membershipsChanged(){
+		memberships = newVersion(clock.incrementAndGet(), System.currentTimeMillis());
+	}
+
+
+	private Version newVersion(long version, long lastModified){
+		return new Version(epoch + "-" + Long.toString(version, 36), version, lastModified);
+	}
+
+}
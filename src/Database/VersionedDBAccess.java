@@ -0,0 +1,119 @@
+package Database;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import DataModel.FSObject;
+import DataModel.Note;
+import DataModel.Notebook;
+import DataModel.Permission;
+import DataModel.UserEntity;
+
+/**
+ * A DBAccess decorator that records every successful write in a {@link VersionTracker}:
+ * the notes and notebooks that were written to, and the notebooks whose listing changed
+ * as a result, all move to a new version.
+ */
+final class VersionedDBAccess extends ForwardingDBAccess {
+
+	private final VersionTracker versions;
+
+
+	/**
+	 * @param db the DBAccess to pass every call on to
+	 * @param versions the tracker to record writes in
+	 */
+	VersionedDBAccess(DBAccess db, VersionTracker versions){
+		super(db);
+		this.versions = versions;
+	}
+
+
+	@Override
+	public int addNotebook(int parentNotebookID, Notebook notebook) throws DBAddException {
+		int id = db.addNotebook(parentNotebookID, notebook);
+		versions.changed(parentNotebookID, id);
+		return id;
+	}
+
+
+	@Override
+	public int addNote(int parentNotebookID, Note note, Map<UserEntity, Permission> perms)
+			throws DBAddException, DBException {
+		int id = db.addNote(parentNotebookID, note, perms);
+		versions.changed(parentNotebookID, id);
+		return id;
+	}
+
+
+	@Override
+	public List<Integer> addNotes(int parentNotebookID, List<Note> notes,
+			Map<UserEntity, Permission> perms) throws DBAddException, DBException {
+		List<Integer> ids = db.addNotes(parentNotebookID, notes, perms);
+		int[] changed = new int[ids.size() + 1];
+		changed[0] = parentNotebookID;
+		for(int i = 0; i < ids.size(); i++){
+			changed[i + 1] = ids.get(i);
+		}
+		versions.changed(changed);
+		return ids;
+	}
+
+
+	@Override
+	public List<Integer> importNotes(String batchKey, List<Integer> parentNotebookIDs,
+			List<Note> notes) throws DBAddException, DBException {
+		List<Integer> ids = db.importNotes(batchKey, parentNotebookIDs, notes);
+		if(ids == null){
+			return null;
+		}
+		Set<Integer> changed = new HashSet<Integer>(parentNotebookIDs);
+		changed.addAll(ids);
+		int[] changedIDs = new int[changed.size()];
+		int i = 0;
+		for(Integer id: changed){
+			changedIDs[i++] = id;
+		}
+		versions.changed(changedIDs);
+		return ids;
+	}
+
+
+	@Override
+	public int updateNote(Note note, Map<UserEntity, Permission> perms)
+			throws DBAddException, DBException {
+		int id = db.updateNote(note, perms);
+		if(id != note.getID()){
+			// The note did not exist, so it was added to the root notebook
+			versions.changed(DBAccessImpl.ROOT_NOTEBOOK_ID, id);
+			return id;
+		}
+
+		// The note's name may have changed, which changes its parent's listing
+		List<FSObject> ancestors = db.getAncestors(id);
+		if(ancestors.isEmpty()){
+			versions.changed(id);
+		}
+		else{
+			versions.changed(ancestors.get(ancestors.size() - 1).getID(), id);
+		}
+		return id;
+	}
+
+
+	@Override
+	public void addUserToGroup(int userID, int groupID) throws DBException {
+		db.addUserToGroup(userID, groupID);
+		versions.membershipsChanged();
+	}
+
+
+	@Override
+	public void removeUserFromGroup(int userID, int groupID) throws DBException {
+		db.removeUserFromGroup(userID, groupID);
+		versions.membershipsChanged();
+	}
+
+}
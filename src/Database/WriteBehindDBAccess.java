@@ -0,0 +1,362 @@
+package Database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import DataModel.Note;
+import DataModel.Permission;
+import DataModel.UserEntity;
+
+/**
+ * A DBAccess decorator that holds back updates to notes for a short window and writes
+ * only the last update of each note made within it, so that a note saved many times in
+ * quick succession, e.g. by an editor's autosave, is written once. A background thread
+ * writes every update that has waited for a window; {@link #close()} writes the rest.
+ * <p>
+ * An update is only held back if the note is known to exist (it has been read or
+ * written through this decorator recently) and it changes no permissions; any other
+ * update is written straight through, after replacing the update held back for the same
+ * note. {@link #getNote(int)} returns the held back update, so a JVM reads its own
+ * writes, but lookups by tag, metadata or search, and notebook listings, only see an
+ * update once it has been written. So must versions: a {@link VersionedDBAccess} goes
+ * below this decorator, so that the flush that writes an update is what moves them.
+ */
+final class WriteBehindDBAccess extends ForwardingDBAccess {
+
+	/**
+	 * How long updates are held back for. 0, the default, turns write-behind off.
+	 */
+	static final long WINDOW_MILLIS = Long.getLong("blacknote.writeBehind.windowMillis", 0);
+
+	/**
+	 * The number of notes remembered as existing.
+	 */
+	private static final int KNOWN_NOTES = Integer.getInteger(
+			"blacknote.writeBehind.knownNotes", 10000);
+
+	/**
+	 * The latest update of a note that hasn't been written yet.
+	 */
+	private static final class Pending {
+		Note note;
+
+		/**
+		 * When the oldest unwritten update that the note includes was made.
+		 */
+		long sinceNanos;
+
+		Pending(Note note, long sinceNanos){
+			this.note = note;
+			this.sinceNanos = sinceNanos;
+		}
+	}
+
+	private final long windowNanos;
+
+	/**
+	 * The updates held back, by note id. Guarded by this.
+	 */
+	private final Map<Integer, Pending> pending = new HashMap<Integer, Pending>();
+
+	/**
+	 * The ids of notes known to exist, least recently used first. Guarded by this.
+	 */
+	private final Map<Integer, Boolean> known = new LinkedHashMap<Integer, Boolean>(16, 0.75f,
+			true){
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest){
+			return size() > KNOWN_NOTES;
+		}
+	};
+
+	/**
+	 * The number of stripes note IDs are spread across for write locking.
+	 */
+	private static final int LOCK_STRIPES = 256;
+
+	/**
+	 * A note's stripe is held while the note is written, so that an update held back is
+	 * never written after a newer update of the same note that was written straight
+	 * through. Writes of unrelated notes don't wait on each other.
+	 */
+	private final LockStripes writeLocks = new LockStripes(LOCK_STRIPES);
+
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * Set by {@link #close()}, after which every update is written straight through.
+	 * Guarded by this.
+	 */
+	private boolean closed = false;
+
+	// Guarded by this
+	private long heldBack = 0, written = 0, flushes = 0, failures = 0, latencyNanos = 0,
+			maxLatencyNanos = 0;
+
+
+	/**
+	 * @param db the DBAccess to pass every call on to
+	 * @param windowMillis how long to hold back updates for
+	 */
+	WriteBehindDBAccess(DBAccess db, long windowMillis){
+		super(db);
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "WriteBehindDBAccess");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Checking a few times a window keeps updates from waiting much longer than one
+		long period = Math.max(1, windowMillis / 4);
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush(false);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+
+	@Override
+	public int updateNote(Note note, Map<UserEntity, Permission> perms)
+			throws DBAddException, DBException {
+		int id = note.getID();
+		if(perms == null || perms.isEmpty()){
+			synchronized(this){
+				Pending p = closed ? null : pending.get(id);
+				if(p != null){
+					p.note = note;
+					heldBack++;
+					return id;
+				}
+				if(!closed && known.containsKey(id)){
+					pending.put(id, new Pending(note, System.nanoTime()));
+					heldBack++;
+					return id;
+				}
+			}
+		}
+
+		int[] locked = writeLocks.lock(id);
+		try{
+			// This update replaces the one held back
+			Pending replaced;
+			synchronized(this){
+				replaced = pending.remove(id);
+			}
+			boolean done = false;
+			try{
+				int newID = db.updateNote(note, perms);
+				done = true;
+				if(newID == id){
+					known(id);
+				}
+				return newID;
+			}
+			finally{
+				if(!done && replaced != null){
+					synchronized(this){
+						if(!pending.containsKey(id)){
+							pending.put(id, replaced);
+						}
+					}
+				}
+			}
+		}
+		finally{
+			writeLocks.unlock(locked);
+		}
+	}
+
+
+	@Override
+	public Note getNote(int noteID) throws DBException {
+		synchronized(this){
+			Pending p = pending.get(noteID);
+			if(p != null){
+				return p.note;
+			}
+		}
+		Note note = db.getNote(noteID);
+		if(note != null){
+			known(noteID);
+		}
+		return note;
+	}
+
+
+	private synchronized void known(int noteID){
+		known.put(noteID, Boolean.TRUE);
+	}
+
+
+	/**
+	 * Writes the updates that have been held back for a window, or all of them.
+	 * Updates that fail to be written are kept and tried again by the next flush.
+	 * @param all whether to write every update held back rather than just those due
+	 * @return the number of updates that could not be written
+	 */
+	private int flush(boolean all){
+		long start = System.nanoTime();
+		List<Integer> ids = new ArrayList<Integer>();
+		List<Pending> due = new ArrayList<Pending>();
+		synchronized(this){
+			for(Map.Entry<Integer, Pending> e: pending.entrySet()){
+				Pending p = e.getValue();
+				if(all || start - p.sinceNanos >= windowNanos){
+					ids.add(e.getKey());
+					due.add(p);
+				}
+			}
+			if(!due.isEmpty()){
+				flushes++;
+			}
+		}
+
+		int failed = 0;
+		for(int i = 0; i < due.size(); i++){
+			int id = ids.get(i);
+			Pending p = due.get(i);
+			int[] locked = writeLocks.lock(id);
+			try{
+				Note note;
+				synchronized(this){
+					if(pending.get(id) != p){
+						// Replaced by an update written straight through
+						continue;
+					}
+					note = p.note;
+				}
+				try{
+					db.updateNote(note, null);
+				}
+				catch(DBAddException e){
+					failed++;
+					continue;
+				}
+				catch(DBException e){
+					failed++;
+					continue;
+				}
+				catch(RuntimeException e){
+					failed++;
+					continue;
+				}
+
+				long now = System.nanoTime();
+				synchronized(this){
+					written++;
+					long latency = now - p.sinceNanos;
+					latencyNanos += latency;
+					maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+					if(pending.get(id) == p){
+						if(p.note == note){
+							pending.remove(id);
+						}
+						else{
+							// Updated again while being written
+							p.sinceNanos = start;
+						}
+					}
+				}
+			}
+			finally{
+				writeLocks.unlock(locked);
+			}
+		}
+		if(failed > 0){
+			synchronized(this){
+				failures += failed;
+			}
+		}
+		return failed;
+	}
+
+
+	/**
+	 * Stops the background thread and writes every update still held back. Updates made
+	 * afterwards are written straight through.
+	 * @throws DBException if some updates could not be written after a few tries
+	 */
+	void close() throws DBException {
+		synchronized(this){
+			closed = true;
+		}
+		flusher.shutdown();
+		int failed = 0;
+		for(int attempt = 0; attempt < 3; attempt++){
+			failed = flush(true);
+			if(failed == 0){
+				return;
+			}
+		}
+		throw new DBException(failed + " held back note updates could not be written");
+	}
+
+
+	/**
+	 * @return the number of updates that were held back rather than written at once
+	 */
+	public synchronized long getHeldBackCount(){
+		return heldBack;
+	}
+
+	/**
+	 * @return the number of held back updates that have been written
+	 */
+	public synchronized long getWrittenCount(){
+		return written;
+	}
+
+	/**
+	 * @return the fraction of held back updates that never had to be written, because a
+	 * later update of the same note replaced them
+	 */
+	public synchronized double getCoalesceRatio(){
+		return heldBack == 0 ? 0 : 1 - (double) (written + pending.size()) / heldBack;
+	}
+
+	/**
+	 * @return the mean time, in milliseconds, from an update being held back to it being
+	 * written
+	 */
+	public synchronized double getAverageFlushLatencyMillis(){
+		return written == 0 ? 0 : latencyNanos / (written * 1000000.0);
+	}
+
+	public synchronized double getMaxFlushLatencyMillis(){
+		return maxLatencyNanos / 1000000.0;
+	}
+
+	/**
+	 * @return the number of held back updates that failed to be written; each is tried
+	 * again by the next flush
+	 */
+	public synchronized long getFailureCount(){
+		return failures;
+	}
+
+	public synchronized int getPendingCount(){
+		return pending.size();
+	}
+
+	public synchronized String toString(){
+		return "heldBack=" + heldBack + ", written=" + written + ", pending=" + pending.size() +
+				", flushes=" + flushes + ", failures=" + failures + ", coalesceRatio=" +
+				getCoalesceRatio() + ", avgFlushLatencyMs=" + getAverageFlushLatencyMillis() +
+				", maxFlushLatencyMs=" + getMaxFlushLatencyMillis();
+	}
+
+}
@@ -0,0 +1,295 @@
+package Export;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import DataModel.FSObject;
+import DataModel.FSObjectType;
+import DataModel.Note;
+import DataModel.Permission;
+import DataModel.Tag;
+import Database.DBAccess;
+import Database.DBException;
+import Database.ResultHandler;
+import Database.SubtreeEntry;
+import Utilities.JSONWriter;
+
+/**
+ * Exports a notebook and everything below it as a zip file holding a single JSON lines
+ * entry, written while the tree is read with {@link DBAccess#streamSubtree}. Nothing is
+ * collected in memory along the way, so exporting a tree of any size takes the same
+ * memory. Each line is one object, in order of id:
+ * <pre>
+ * {"type":"notebook","id":7,"parent":1,"name":"Research"}
+ * {"type":"note","id":9,"parent":7,"name":"AAPL","author":3,"created":"...","modified":"...",
+ *  "tags":["Research"],"metadata":{"stock":"aapl"},"permissions":[{"entity":4,"permission":"read"}]}
+ * </pre>
+ * Progress can be read from another thread while an export runs. An exporter runs one
+ * export at a time. Run from the command line, it reads through
+ * {@link DBAccess.Standalone}, which leaves the web app's search index alone.
+ */
+public final class SubtreeExporter {
+
+	private final DBAccess db;
+
+	private final AtomicLong notebooks = new AtomicLong(), notes = new AtomicLong(),
+			bytes = new AtomicLong();
+
+	private volatile long startNanos = 0, endNanos = 0;
+
+
+	/**
+	 * @param db the database to export from
+	 */
+	public SubtreeExporter(DBAccess db){
+		this.db = db;
+	}
+
+
+	/**
+	 * Exports a subtree to a file. The export is written next to the file first and only
+	 * renamed to it once complete, so the file is never left half written.
+	 * @param notebookID the notebook at the top of the subtree
+	 * @param file the zip file to write, replaced if it exists
+	 * @throws IOException if the file could not be written
+	 * @throws DBException
+	 */
+	public void export(int notebookID, File file) throws IOException, DBException {
+		File partial = new File(file.getPath() + ".part");
+		OutputStream out = new FileOutputStream(partial);
+		boolean written = false;
+		try{
+			export(notebookID, out);
+			out.close();
+			written = true;
+		}
+		finally{
+			if(!written){
+				out.close();
+				partial.delete();
+			}
+		}
+		if(file.exists() && !file.delete() || !partial.renameTo(file)){
+			throw new IOException("Could not replace " + file);
+		}
+	}
+
+
+	/**
+	 * Exports a subtree as a zip to the inputed stream, which is finished but not closed.
+	 * @param notebookID the notebook at the top of the subtree
+	 * @param out the stream to write the zip to
+	 * @throws IOException if the stream could not be written
+	 * @throws DBException
+	 */
+	public void export(int notebookID, OutputStream out) throws IOException, DBException {
+		notebooks.set(0);
+		notes.set(0);
+		bytes.set(0);
+		endNanos = 0;
+		startNanos = System.nanoTime();
+
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+				new CountingOutputStream(out), 65536));
+		zip.putNextEntry(new ZipEntry("notebook-" + notebookID + ".jsonl"));
+		Writer writer = new OutputStreamWriter(zip, "UTF-8");
+		final JSONWriter json = new JSONWriter(writer, 65536);
+		final IOException[] failure = new IOException[1];
+
+		db.streamSubtree(notebookID, new ResultHandler<SubtreeEntry>(){
+			@Override
+			public boolean handle(SubtreeEntry entry){
+				try{
+					write(entry, json);
+					return true;
+				}
+				catch(IOException e){
+					failure[0] = e;
+					return false;
+				}
+			}
+		});
+		if(failure[0] != null){
+			throw failure[0];
+		}
+
+		json.flush();
+		zip.closeEntry();
+		zip.finish();
+		zip.flush();
+		endNanos = System.nanoTime();
+	}
+
+
+	private void write(SubtreeEntry entry, JSONWriter out) throws IOException {
+		FSObject object = entry.getObject();
+		out.beginObject();
+		if(object.getType() != FSObjectType.NOTE){
+			out.name("type").value("notebook");
+			out.name("id").value(object.getID());
+			out.name("parent").value(entry.getParentID());
+			out.name("name").value(object.getName());
+			out.endObject().newline();
+			notebooks.incrementAndGet();
+			return;
+		}
+
+		Note note = (Note) object;
+		out.name("type").value("note");
+		out.name("id").value(note.getID());
+		out.name("parent").value(entry.getParentID());
+		out.name("name").value(note.getName());
+		out.name("author").value(note.getAuthor());
+		out.name("created").value(note.getCreated());
+		out.name("modified").value(note.getLastModified());
+
+		out.name("tags").beginArray();
+		for(Tag tag: note.getTags()){
+			out.value(tag.getName());
+		}
+		out.endArray();
+
+		out.name("metadata").beginObject();
+		for(Map.Entry<String, String> field: note.getMetadata().entrySet()){
+			out.name(field.getKey()).value(field.getValue());
+		}
+		out.endObject();
+
+		out.name("permissions").beginArray();
+		for(Map.Entry<Integer, Permission> grant: entry.getPermissions().entrySet()){
+			out.beginObject();
+			out.name("entity").value(grant.getKey());
+			out.name("permission").value(Permission.asString(grant.getValue()));
+			out.endObject();
+		}
+		out.endArray();
+
+		out.endObject().newline();
+		notes.incrementAndGet();
+	}
+
+
+	/**
+	 * Counts the compressed bytes written.
+	 */
+	private final class CountingOutputStream extends FilterOutputStream {
+
+		CountingOutputStream(OutputStream out){
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytes.incrementAndGet();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytes.addAndGet(len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// The caller owns the stream
+			flush();
+		}
+	}
+
+
+	/**
+	 * @return the number of notebooks written by the current or last export
+	 */
+	public long getNotebooksWritten(){
+		return notebooks.get();
+	}
+
+	/**
+	 * @return the number of notes written by the current or last export
+	 */
+	public long getNotesWritten(){
+		return notes.get();
+	}
+
+	/**
+	 * @return the number of compressed bytes written so far; lags the objects written by
+	 * up to the size of the buffers
+	 */
+	public long getBytesWritten(){
+		return bytes.get();
+	}
+
+	/**
+	 * @return the number of notebooks and notes written per second
+	 */
+	public double getObjectsPerSecond(){
+		long start = startNanos;
+		if(start == 0){
+			return 0;
+		}
+		long end = endNanos != 0 ? endNanos : System.nanoTime();
+		long objects = notebooks.get() + notes.get();
+		return end == start ? 0 : objects * 1e9 / (end - start);
+	}
+
+	public String toString(){
+		return "notebooks=" + getNotebooksWritten() + ", notes=" + getNotesWritten() +
+				", bytes=" + getBytesWritten() + ", objectsPerSec=" +
+				Math.round(getObjectsPerSecond());
+	}
+
+
+	/**
+	 * Exports a subtree from the command line, printing progress every few seconds:
+	 * <pre>
+	 * SubtreeExporter file.zip [notebookID]
+	 * </pre>
+	 * Meant to be run by a scheduler such as cron for nightly exports.
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1){
+			System.err.println("Usage: SubtreeExporter file.zip [notebookID]");
+			System.exit(2);
+		}
+		int root = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+		final SubtreeExporter exporter = new SubtreeExporter(DBAccess.Standalone.getInstance());
+		Thread progress = new Thread("SubtreeExporter-progress"){
+			@Override
+			public void run(){
+				try{
+					while(true){
+						Thread.sleep(5000);
+						System.out.println(exporter);
+					}
+				}
+				catch(InterruptedException e){
+					// Finished
+				}
+			}
+		};
+		progress.setDaemon(true);
+		progress.start();
+
+		try{
+			exporter.export(root, new File(args[0]));
+		}
+		finally{
+			progress.interrupt();
+		}
+		System.out.println(exporter);
+		System.exit(0);
+	}
+
+}
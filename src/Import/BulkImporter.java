@@ -0,0 +1,681 @@
+package Import;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import DataModel.FSObject;
+import DataModel.FSObjectType;
+import DataModel.Note;
+import DataModel.NoteImpl;
+import DataModel.NotebookImpl;
+import DataModel.Tag;
+import DataModel.TagImpl;
+import Database.DBAccess;
+import Database.DBAddException;
+import Database.DBException;
+import Utilities.CSVReader;
+import Utilities.JSONReader;
+
+/**
+ * Imports notes from a JSON lines or CSV file, many times faster than adding them one at
+ * a time. The file is read on the calling thread and cut into batches of records, which
+ * a pool of workers parse, validate and write in parallel, each over its own database
+ * connection. Every batch is written with {@link DBAccess#importNotes}: one transaction
+ * of multi-row inserts into IDs reserved together, which also records the batch as done.
+ * An import that stops part way can therefore be run again with the same name and file,
+ * and carries on with the batches that weren't written.
+ * <p>
+ * Each record describes one note. In JSON lines, each line is an object such as
+ * <pre>
+ * {"notebook": "Research/Stocks", "name": "AAPL", "author": 3, "created": "2013-01-31T12:00:00Z",
+ *  "modified": "2013-02-01T09:30:00Z", "tags": ["Research"], "metadata": {"stock": "aapl"}}
+ * </pre>
+ * In CSV, the first record names the columns: notebook, name, author, created, modified
+ * and tags (separated by semicolons) are read as above, and every other column is a
+ * metadata field. The notebook is a path of notebook names below the import's root
+ * notebook; notebooks that don't exist are created. Only name and author are required.
+ * Records that don't validate are counted and reported, and the rest of their batch is
+ * still imported.
+ * <p>
+ * Run from the command line, the importer writes through {@link DBAccess.Standalone},
+ * so it can run beside the web app. The web app only finds the imported notes by tag,
+ * metadata or search once it has been restarted.
+ */
+public final class BulkImporter {
+
+	/**
+	 * The formats a file can be imported from.
+	 */
+	public enum Format {
+		JSON_LINES,
+		CSV;
+	}
+
+	/**
+	 * The number of records written in one transaction. Batches are named by their first
+	 * record, so an import must be resumed with the same batch size.
+	 */
+	static final int BATCH_SIZE = 500;
+
+	/**
+	 * The longest import name that leaves room for a record number in a 50 character
+	 * batch key.
+	 */
+	private static final int MAX_NAME_LENGTH = 30;
+
+	private static final int MAX_ERRORS_KEPT = 100;
+
+	// The sizes of the columns the values are stored in
+	private static final int MAX_OBJECT_NAME = 100, MAX_TAG = 100, MAX_FIELD_NAME = 100,
+			MAX_FIELD_DATA = 200;
+
+	private static final DateTimeFormatter ISO_DATE = ISODateTimeFormat.dateTimeParser()
+			.withOffsetParsed();
+
+	private final DBAccess db;
+
+	private final String importName;
+
+	private final int rootNotebookID;
+
+	private final int threads;
+
+	/**
+	 * The ids of the notebooks found or created so far, by path. Guarded by itself when
+	 * creating notebooks.
+	 */
+	private final Map<String, Integer> notebooks = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Whether each author seen so far is a user.
+	 */
+	private final Map<Integer, Boolean> authors = new ConcurrentHashMap<Integer, Boolean>();
+
+	private final AtomicLong read = new AtomicLong(), imported = new AtomicLong(),
+			skipped = new AtomicLong(), rejected = new AtomicLong(),
+			failedBatches = new AtomicLong();
+
+	private final List<String> errors = new ArrayList<String>();
+
+	private volatile long startNanos = 0, endNanos = 0;
+
+
+	/**
+	 * @param db the database to import into
+	 * @param importName the name the import's progress is recorded under, at most 30
+	 * characters; use the same name to resume an import
+	 * @param rootNotebookID the notebook that the records' notebook paths start from
+	 * @param threads the number of batches to parse and write at the same time
+	 */
+	public BulkImporter(DBAccess db, String importName, int rootNotebookID, int threads){
+		if(importName == null || importName.isEmpty() || importName.length() > MAX_NAME_LENGTH){
+			throw new IllegalArgumentException("The import name must have 1 to " +
+					MAX_NAME_LENGTH + " characters");
+		}
+		if(threads < 1){
+			throw new IllegalArgumentException("At least one thread is needed");
+		}
+		this.db = db;
+		this.importName = importName;
+		this.rootNotebookID = rootNotebookID;
+		this.threads = threads;
+	}
+
+
+	/**
+	 * Imports every record in the input, returning once every batch has been written or
+	 * has failed. The input is only read as fast as the workers keep up, so memory use
+	 * does not grow with the size of the input.
+	 * @param in the input, which is not closed
+	 * @param format the format of the input
+	 * @throws IOException if the input could not be read
+	 * @throws InterruptedException if the thread was interrupted while waiting for the
+	 * workers; the batches already written stay written
+	 */
+	public void run(Reader in, Format format) throws IOException, InterruptedException {
+		startNanos = System.nanoTime();
+		// When every worker is busy and the queue is full, the reading thread writes the
+		// next batch itself, which stops it reading ahead
+		ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * 2),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		try{
+			if(format == Format.CSV){
+				readCSV(new CSVReader(in), workers);
+			}
+			else{
+				readJSONLines(new BufferedReader(in), workers);
+			}
+		}
+		finally{
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			endNanos = System.nanoTime();
+		}
+	}
+
+
+	private void readJSONLines(BufferedReader in, ThreadPoolExecutor workers)
+			throws IOException {
+		List<Object> batch = new ArrayList<Object>(BATCH_SIZE);
+		long first = 1, number = 0;
+		String line;
+		while((line = in.readLine()) != null){
+			number++;
+			batch.add(line);
+			if(batch.size() == BATCH_SIZE){
+				workers.execute(new Batch(first, batch, null));
+				batch = new ArrayList<Object>(BATCH_SIZE);
+				first = number + 1;
+			}
+		}
+		workers.execute(new Batch(first, batch, null));
+	}
+
+
+	private void readCSV(CSVReader in, ThreadPoolExecutor workers) throws IOException {
+		String[] columns = in.next();
+		if(columns == null){
+			return;
+		}
+		for(int i = 0; i < columns.length; i++){
+			columns[i] = columns[i].trim();
+		}
+
+		// Record numbers count the header, so they match the file's
+		List<Object> batch = new ArrayList<Object>(BATCH_SIZE);
+		long first = 2;
+		String[] fields;
+		while((fields = in.next()) != null){
+			batch.add(fields);
+			if(batch.size() == BATCH_SIZE){
+				workers.execute(new Batch(first, batch, columns));
+				batch = new ArrayList<Object>(BATCH_SIZE);
+				first = in.getRecordNumber() + 1;
+			}
+		}
+		workers.execute(new Batch(first, batch, columns));
+	}
+
+
+	/**
+	 * Parses, validates and writes one batch of records.
+	 */
+	private final class Batch implements Runnable {
+
+		private final long first;
+
+		private final List<Object> records;
+
+		private final String[] columns;
+
+		/**
+		 * @param first the number of the first record in the batch
+		 * @param records the lines of JSON, or the CSV records
+		 * @param columns the names of the CSV columns, or null for JSON lines
+		 */
+		Batch(long first, List<Object> records, String[] columns){
+			this.first = first;
+			this.records = records;
+			this.columns = columns;
+		}
+
+		@Override
+		public void run(){
+			read.addAndGet(records.size());
+			String key = importName + "#" + first;
+			try{
+				if(db.getCheckpoint(key) != null){
+					// Written by an earlier run
+					skipped.addAndGet(records.size());
+					return;
+				}
+
+				List<Integer> parents = new ArrayList<Integer>(records.size());
+				List<Note> notes = new ArrayList<Note>(records.size());
+				for(int i = 0; i < records.size(); i++){
+					Object record = records.get(i);
+					long number = first + i;
+					try{
+						Map<String, Object> fields = columns == null
+								? parseJSON((String) record) : parseCSV((String[]) record, columns);
+						if(fields == null){
+							// A blank line
+							continue;
+						}
+						Note note = toNote(fields);
+						parents.add(notebookFor(string(fields, "notebook", Integer.MAX_VALUE)));
+						notes.add(note);
+					}
+					catch(IllegalArgumentException e){
+						reject(number, e.getMessage());
+					}
+				}
+
+				if(db.importNotes(key, parents, notes) == null){
+					skipped.addAndGet(records.size());
+				}
+				else{
+					imported.addAndGet(notes.size());
+				}
+			}
+			catch(DBAddException e){
+				failedBatches.incrementAndGet();
+				error("Batch starting at record " + first + " failed: " + e.getMessage());
+			}
+			catch(DBException e){
+				failedBatches.incrementAndGet();
+				error("Batch starting at record " + first + " failed: " + e.getMessage());
+			}
+			catch(RuntimeException e){
+				failedBatches.incrementAndGet();
+				error("Batch starting at record " + first + " failed: " + e);
+			}
+		}
+	}
+
+
+	/**
+	 * @return the line's object, or null if the line is blank
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> parseJSON(String line){
+		if(line.trim().isEmpty()){
+			return null;
+		}
+		Object value = JSONReader.parse(line);
+		if(!(value instanceof Map)){
+			throw new IllegalArgumentException("Each line must be a JSON object");
+		}
+		return (Map<String, Object>) value;
+	}
+
+
+	/**
+	 * Puts a CSV record in the same form as a JSON record.
+	 * @return the record's fields, or null if the record is blank
+	 */
+	private static Map<String, Object> parseCSV(String[] record, String[] columns){
+		if(record.length == 1 && record[0].trim().isEmpty()){
+			return null;
+		}
+		if(record.length != columns.length){
+			throw new IllegalArgumentException("Expected " + columns.length + " fields but found " +
+					record.length);
+		}
+
+		Map<String, Object> fields = new HashMap<String, Object>();
+		Map<String, Object> metadata = new HashMap<String, Object>();
+		for(int i = 0; i < columns.length; i++){
+			String column = columns[i], value = record[i];
+			if(column.equals("notebook") || column.equals("name") || column.equals("created") ||
+					column.equals("modified")){
+				fields.put(column, value.isEmpty() ? null : value);
+			}
+			else if(column.equals("author")){
+				try{
+					fields.put(column, value.isEmpty() ? null : Long.valueOf(value.trim()));
+				}
+				catch(NumberFormatException e){
+					throw new IllegalArgumentException("author is not a number");
+				}
+			}
+			else if(column.equals("tags")){
+				List<Object> tags = new ArrayList<Object>();
+				for(String tag: value.split(";")){
+					if(!tag.trim().isEmpty()){
+						tags.add(tag.trim());
+					}
+				}
+				fields.put(column, tags);
+			}
+			else if(!value.isEmpty()){
+				metadata.put(column, value);
+			}
+		}
+		fields.put("metadata", metadata);
+		return fields;
+	}
+
+
+	/**
+	 * Checks a record's fields and builds the note they describe.
+	 * @throws IllegalArgumentException if a field is missing or invalid
+	 * @throws DBException if the author could not be looked up, which fails the batch
+	 * rather than rejecting the record
+	 */
+	private Note toNote(Map<String, Object> fields) throws DBException {
+		String name = string(fields, "name", MAX_OBJECT_NAME);
+		if(name == null){
+			throw new IllegalArgumentException("name is missing");
+		}
+
+		Object authorValue = fields.get("author");
+		if(!(authorValue instanceof Long)){
+			throw new IllegalArgumentException("author is missing or not a whole number");
+		}
+		long authorID = (Long) authorValue;
+		if(authorID < Integer.MIN_VALUE || authorID > Integer.MAX_VALUE ||
+				!isUser((int) authorID)){
+			throw new IllegalArgumentException("author " + authorID + " is not a user");
+		}
+
+		DateTime now = new DateTime();
+		DateTime created = date(fields, "created", now);
+		DateTime modified = date(fields, "modified", created);
+
+		Set<Tag> tags = new HashSet<Tag>();
+		Object tagValue = fields.get("tags");
+		if(tagValue != null){
+			if(!(tagValue instanceof List)){
+				throw new IllegalArgumentException("tags must be an array");
+			}
+			for(Object tag: (List<?>) tagValue){
+				if(!(tag instanceof String) || ((String) tag).isEmpty() ||
+						((String) tag).length() > MAX_TAG){
+					throw new IllegalArgumentException("tags must be strings of 1 to " +
+							MAX_TAG + " characters");
+				}
+				tags.add(new TagImpl((String) tag));
+			}
+		}
+
+		Map<String, String> metadata = new HashMap<String, String>();
+		Object metadataValue = fields.get("metadata");
+		if(metadataValue != null){
+			if(!(metadataValue instanceof Map)){
+				throw new IllegalArgumentException("metadata must be an object");
+			}
+			for(Map.Entry<?, ?> e: ((Map<?, ?>) metadataValue).entrySet()){
+				String field = (String) e.getKey();
+				Object value = e.getValue();
+				if(value == null){
+					continue;
+				}
+				String data = value instanceof String ? (String) value : String.valueOf(value);
+				if(field.isEmpty() || field.length() > MAX_FIELD_NAME ||
+						data.length() > MAX_FIELD_DATA){
+					throw new IllegalArgumentException("metadata field " + field +
+							" is too long or unnamed");
+				}
+				metadata.put(field, data);
+			}
+		}
+
+		return new NoteImpl.NoteBuilder().setName(name).setAuthor((int) authorID)
+				.setCreated(created).setModified(modified).setMetadata(metadata)
+				.setTags(tags).build();
+	}
+
+
+	/**
+	 * @return the field's value, or null if it is missing
+	 * @throws IllegalArgumentException if the value isn't a string or is too long
+	 */
+	private static String string(Map<String, Object> fields, String field, int maxLength){
+		Object value = fields.get(field);
+		if(value == null){
+			return null;
+		}
+		if(!(value instanceof String)){
+			throw new IllegalArgumentException(field + " must be a string");
+		}
+		String s = (String) value;
+		if(s.length() > maxLength){
+			throw new IllegalArgumentException(field + " is longer than " + maxLength +
+					" characters");
+		}
+		return s;
+	}
+
+
+	private static DateTime date(Map<String, Object> fields, String field, DateTime missing){
+		String value = string(fields, field, Integer.MAX_VALUE);
+		if(value == null){
+			return missing;
+		}
+		try{
+			return ISO_DATE.parseDateTime(value.trim());
+		}
+		catch(IllegalArgumentException e){
+			throw new IllegalArgumentException(field + " is not an ISO 8601 date");
+		}
+	}
+
+
+	private boolean isUser(int userID) throws DBException {
+		Boolean known = authors.get(userID);
+		if(known == null){
+			known = db.getUser(userID) != null;
+			authors.put(userID, known);
+		}
+		return known;
+	}
+
+
+	/**
+	 * Finds the notebook at a path of names below the root notebook, creating the
+	 * notebooks on the path that don't exist yet.
+	 * @param path the names, separated by slashes, or null for the root notebook
+	 * @return the id of the notebook
+	 * @throws IllegalArgumentException if a name is empty or too long
+	 */
+	private int notebookFor(String path) throws DBException {
+		if(path == null || path.trim().isEmpty()){
+			return rootNotebookID;
+		}
+		Integer id = notebooks.get(path);
+		if(id != null){
+			return id;
+		}
+
+		// Only one worker walks paths at a time, so two can't create the same notebook
+		synchronized(notebooks){
+			int parent = rootNotebookID;
+			StringBuilder prefix = new StringBuilder();
+			for(String name: path.split("/")){
+				name = name.trim();
+				if(name.isEmpty() || name.length() > MAX_OBJECT_NAME){
+					throw new IllegalArgumentException("notebook names must have 1 to " +
+							MAX_OBJECT_NAME + " characters");
+				}
+				prefix.append('/').append(name);
+				id = notebooks.get(prefix.toString());
+				if(id == null){
+					id = findChildNotebook(parent, name);
+					if(id == null){
+						try{
+							id = db.addNotebook(parent, new NotebookImpl(0, name,
+									new ArrayList<FSObject>()));
+						}
+						catch(DBAddException e){
+							throw new DBException("Could not create notebook " + prefix, e);
+						}
+					}
+					notebooks.put(prefix.toString(), id);
+				}
+				parent = id;
+			}
+			notebooks.put(path, parent);
+			return parent;
+		}
+	}
+
+
+	/**
+	 * @return the id of the parent's child notebook with the inputed name, or null if
+	 * there is none
+	 */
+	private Integer findChildNotebook(int parentID, String name) throws DBException {
+		int afterID = Integer.MIN_VALUE;
+		while(true){
+			// Children are sorted by name then id, so the ones with this name come first
+			List<FSObject> page = db.getChildren(parentID, name, afterID, 16);
+			for(FSObject child: page){
+				if(!child.getName().equals(name)){
+					return null;
+				}
+				if(child.getType() == FSObjectType.NOTEBOOK){
+					return child.getID();
+				}
+				afterID = child.getID();
+			}
+			if(page.size() < 16){
+				return null;
+			}
+		}
+	}
+
+
+	private void reject(long record, String reason){
+		rejected.incrementAndGet();
+		error("Record " + record + ": " + reason);
+	}
+
+
+	private void error(String message){
+		synchronized(errors){
+			if(errors.size() < MAX_ERRORS_KEPT){
+				errors.add(message);
+			}
+		}
+	}
+
+
+	/**
+	 * @return the number of records read from the input so far
+	 */
+	public long getRecordsRead(){
+		return read.get();
+	}
+
+	/**
+	 * @return the number of notes written by this run
+	 */
+	public long getNotesImported(){
+		return imported.get();
+	}
+
+	/**
+	 * @return the number of records in batches that an earlier run had already written
+	 */
+	public long getRecordsSkipped(){
+		return skipped.get();
+	}
+
+	/**
+	 * @return the number of records that did not validate
+	 */
+	public long getRecordsRejected(){
+		return rejected.get();
+	}
+
+	/**
+	 * @return the number of batches that could not be written; running the import again
+	 * retries them
+	 */
+	public long getFailedBatches(){
+		return failedBatches.get();
+	}
+
+	/**
+	 * @return the first few rejected records and failed batches, with the reasons
+	 */
+	public List<String> getErrors(){
+		synchronized(errors){
+			return new ArrayList<String>(errors);
+		}
+	}
+
+	/**
+	 * @return the number of notes written per second since the import started
+	 */
+	public double getNotesPerSecond(){
+		long start = startNanos;
+		if(start == 0){
+			return 0;
+		}
+		long end = endNanos != 0 ? endNanos : System.nanoTime();
+		return end == start ? 0 : imported.get() * 1e9 / (end - start);
+	}
+
+	public String toString(){
+		return "read=" + getRecordsRead() + ", imported=" + getNotesImported() + ", skipped=" +
+				getRecordsSkipped() + ", rejected=" + getRecordsRejected() + ", failedBatches=" +
+				getFailedBatches() + ", notesPerSec=" + Math.round(getNotesPerSecond());
+	}
+
+
+	/**
+	 * Imports a file from the command line, printing progress every few seconds:
+	 * <pre>
+	 * BulkImporter file importName [rootNotebookID] [threads]
+	 * </pre>
+	 * Files ending in .csv are read as CSV, and anything else as JSON lines. Exits with
+	 * status 1 if any batch failed.
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2){
+			System.err.println("Usage: BulkImporter file importName [rootNotebookID] [threads]");
+			System.exit(2);
+		}
+		String file = args[0];
+		int root = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		int threads = args.length > 3 ? Integer.parseInt(args[3])
+				: Runtime.getRuntime().availableProcessors();
+		Format format = file.toLowerCase().endsWith(".csv") ? Format.CSV : Format.JSON_LINES;
+
+		final BulkImporter importer = new BulkImporter(DBAccess.Standalone.getInstance(),
+				args[1], root, threads);
+		Thread progress = new Thread("BulkImporter-progress"){
+			@Override
+			public void run(){
+				try{
+					while(true){
+						Thread.sleep(5000);
+						System.out.println(importer);
+					}
+				}
+				catch(InterruptedException e){
+					// Finished
+				}
+			}
+		};
+		progress.setDaemon(true);
+		progress.start();
+
+		Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try{
+			importer.run(in, format);
+		}
+		finally{
+			in.close();
+			progress.interrupt();
+		}
+
+		System.out.println(importer);
+		for(String error: importer.getErrors()){
+			System.out.println(error);
+		}
+		System.exit(importer.getFailedBatches() > 0 ? 1 : 0);
+	}
+
+}
@@ -0,0 +1,65 @@
+package Notifications;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import DataModel.Note;
+import DataModel.User;
+
+/**
+ * One notification email: every note with a subscribed tag that changed during a window
+ * of time, for a single recipient.
+ */
+public final class Digest {
+
+	private final User recipient;
+
+	private final DateTime since, until;
+
+	private final List<Note> notes;
+
+	private final int omitted;
+
+
+	/**
+	 * @param recipient the user to send the digest to
+	 * @param since the start of the window
+	 * @param until the end of the window
+	 * @param notes the changed notes, in the order they changed
+	 * @param omitted the number of further changed notes left out to keep the digest short
+	 */
+	Digest(User recipient, DateTime since, DateTime until, List<Note> notes, int omitted){
+		this.recipient = recipient;
+		this.since = since;
+		this.until = until;
+		this.notes = Collections.unmodifiableList(notes);
+		this.omitted = omitted;
+	}
+
+
+	public User getRecipient(){
+		return recipient;
+	}
+
+	public DateTime getSince(){
+		return since;
+	}
+
+	public DateTime getUntil(){
+		return until;
+	}
+
+	public List<Note> getNotes(){
+		return notes;
+	}
+
+	/**
+	 * @return the number of changed notes that were not listed in the digest
+	 */
+	public int getOmittedCount(){
+		return omitted;
+	}
+
+}
@@ -0,0 +1,327 @@
+package Notifications;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+
+import DataModel.Note;
+import DataModel.Tag;
+import DataModel.User;
+import Database.DBAccess;
+import Database.DBException;
+import Database.ResultHandler;
+
+/**
+ * Emails users about changes to notes that have a tag they subscribe to, either
+ * directly or through one of their groups. Each run reads the notes changed since the
+ * previous run, looks up the subscribers of their tags, and coalesces everything into
+ * one digest per recipient, so that a user who follows many busy tags still gets a
+ * single email. A digest only lists the notes its recipient may read. Digests are handed to the mail sender in batches.
+ * <p>
+ * How far the pipeline has got is saved in the database once every digest of a run has
+ * been sent, so a restart carries on from the last run rather than rescanning history.
+ * If a run fails it is retried in full by the next one, so a digest can be delivered
+ * twice but is never lost.
+ */
+public final class DigestPipeline implements Runnable {
+
+	/**
+	 * The name the pipeline's progress is saved under.
+	 */
+	static final String CHECKPOINT_NAME = "tagDigest";
+
+	/**
+	 * The number of digests handed to the mail sender at a time.
+	 */
+	private static final int BATCH_SIZE = Integer.getInteger("blacknote.digest.batchSize", 100);
+
+	/**
+	 * The most notes listed in one digest; the rest are only counted.
+	 */
+	private static final int MAX_NOTES_PER_DIGEST = Integer.getInteger(
+			"blacknote.digest.maxNotes", 50);
+
+	/**
+	 * The number of changed notes whose subscribers are looked up in one query.
+	 */
+	private static final int NOTE_CHUNK_SIZE = 512;
+
+	/**
+	 * The notes changed so far in a run for one recipient.
+	 */
+	private static final class DigestBuilder {
+		final User recipient;
+
+		final List<Note> notes = new ArrayList<Note>();
+
+		int omitted = 0;
+
+		DigestBuilder(User recipient){
+			this.recipient = recipient;
+		}
+
+		void add(Note note){
+			if(notes.size() < MAX_NOTES_PER_DIGEST){
+				notes.add(note);
+			}
+			else{
+				omitted++;
+			}
+		}
+	}
+
+	private final DBAccess db;
+
+	private final MailSender sender;
+
+	/**
+	 * Held for the whole of a run, so that runs never overlap and send the same changes.
+	 */
+	private final Object runLock = new Object();
+
+	private ScheduledExecutorService scheduler;
+
+	private long runs = 0, failures = 0, notesScanned = 0, digestsSent = 0, runNanos = 0;
+
+
+	/**
+	 * @param db the database to read changes and subscriptions from
+	 * @param sender the sender to deliver the digests
+	 */
+	public DigestPipeline(DBAccess db, MailSender sender){
+		this.db = db;
+		this.sender = sender;
+	}
+
+
+	/**
+	 * Runs the pipeline on a background thread every period, starting one period from
+	 * now. Does nothing if it is already running.
+	 * @param period the time between the end of one run and the start of the next
+	 * @param unit the unit of the period
+	 */
+	public synchronized void start(long period, TimeUnit unit){
+		if(scheduler != null){
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DigestPipeline");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(this, period, period, unit);
+	}
+
+
+	/**
+	 * Stops running the pipeline on a schedule. A run in progress is allowed to finish.
+	 */
+	public synchronized void stop(){
+		if(scheduler != null){
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+
+
+	/**
+	 * Runs the pipeline once, counting rather than throwing any failure, so that the
+	 * schedule carries on.
+	 */
+	@Override
+	public void run(){
+		try{
+			runOnce();
+		}
+		catch(DBException e){
+			recordFailure();
+		}
+		catch(IOException e){
+			recordFailure();
+		}
+		catch(RuntimeException e){
+			recordFailure();
+		}
+	}
+
+
+	/**
+	 * Sends digests of everything that changed since the last run, then saves the time
+	 * this run started as the point to carry on from. The first run ever only saves that
+	 * time, so that subscribers aren't sent the whole history.
+	 * @return the number of digests sent
+	 * @throws DBException if the changes could not be read or the progress not saved
+	 * @throws IOException if a batch of digests could not be sent
+	 */
+	public int runOnce() throws DBException, IOException {
+		synchronized(runLock){
+			long start = System.nanoTime();
+			DateTime until = new DateTime();
+			DateTime since = db.getCheckpoint(CHECKPOINT_NAME);
+			if(since == null){
+				db.setCheckpoint(CHECKPOINT_NAME, until);
+				recordRun(0, 0, System.nanoTime() - start);
+				return 0;
+			}
+
+			final Map<Integer, DigestBuilder> digests = new LinkedHashMap<Integer, DigestBuilder>();
+			final Map<String, List<User>> subscribers = new HashMap<String, List<User>>();
+			final List<Note> chunk = new ArrayList<Note>(NOTE_CHUNK_SIZE);
+			final int[] scanned = new int[1];
+			db.streamRecentlyUpdatedSince(since, new ResultHandler<Note>(){
+				@Override
+				public boolean handle(Note note) throws DBException {
+					scanned[0]++;
+					chunk.add(note);
+					if(chunk.size() == NOTE_CHUNK_SIZE){
+						coalesce(chunk, subscribers, digests);
+						chunk.clear();
+					}
+					return true;
+				}
+			});
+			coalesce(chunk, subscribers, digests);
+
+			int sent = 0;
+			List<Digest> batch = new ArrayList<Digest>(Math.min(BATCH_SIZE, digests.size()));
+			for(DigestBuilder b: digests.values()){
+				batch.add(new Digest(b.recipient, since, until, b.notes, b.omitted));
+				if(batch.size() == BATCH_SIZE){
+					sender.send(batch);
+					sent += batch.size();
+					batch = new ArrayList<Digest>(BATCH_SIZE);
+				}
+			}
+			sender.send(batch);
+			sent += batch.size();
+
+			// Changes committed while this run was reading may be sent again by the next
+			// one, but none are skipped
+			db.setCheckpoint(CHECKPOINT_NAME, until);
+			recordRun(scanned[0], sent, System.nanoTime() - start);
+			return sent;
+		}
+	}
+
+
+	/**
+	 * Adds each of the inputed notes to the digest of every user subscribed to any of
+	 * its tags who may read it, looking up the subscribers of the tags not seen earlier
+	 * in the run. Each recipient's notes are checked for read permission together.
+	 * @param notes the changed notes
+	 * @param subscribers the subscribers of the tags seen so far, by tag
+	 * @param digests the digests built so far, by user id
+	 */
+	private void coalesce(List<Note> notes, Map<String, List<User>> subscribers,
+			Map<Integer, DigestBuilder> digests) throws DBException {
+		Set<String> unknown = new HashSet<String>();
+		for(Note note: notes){
+			for(Tag tag: note.getTags()){
+				if(!subscribers.containsKey(tag.getName())){
+					unknown.add(tag.getName());
+				}
+			}
+		}
+		if(!unknown.isEmpty()){
+			subscribers.putAll(db.getTagSubscribers(unknown));
+		}
+
+		Map<Integer, User> recipients = new LinkedHashMap<Integer, User>();
+		Map<Integer, List<Note>> candidates = new HashMap<Integer, List<Note>>();
+		Set<Integer> notified = new HashSet<Integer>();
+		for(Note note: notes){
+			// A user following several of the note's tags only hears about it once
+			notified.clear();
+			for(Tag tag: note.getTags()){
+				for(User user: subscribers.get(tag.getName())){
+					if(notified.add(user.getID())){
+						List<Note> forUser = candidates.get(user.getID());
+						if(forUser == null){
+							forUser = new ArrayList<Note>();
+							candidates.put(user.getID(), forUser);
+							recipients.put(user.getID(), user);
+						}
+						forUser.add(note);
+					}
+				}
+			}
+		}
+
+		for(User user: recipients.values()){
+			// Subscribing to a tag doesn't let a user see the notes it is on
+			List<Note> readable = db.filterReadable(user.getID(), candidates.get(user.getID()));
+			if(readable.isEmpty()){
+				continue;
+			}
+			DigestBuilder digest = digests.get(user.getID());
+			if(digest == null){
+				digest = new DigestBuilder(user);
+				digests.put(user.getID(), digest);
+			}
+			for(Note note: readable){
+				digest.add(note);
+			}
+		}
+	}
+
+
+	private synchronized void recordRun(int scanned, int sent, long nanos){
+		runs++;
+		notesScanned += scanned;
+		digestsSent += sent;
+		runNanos += nanos;
+	}
+
+	private synchronized void recordFailure(){
+		failures++;
+	}
+
+	public synchronized long getRunCount(){
+		return runs;
+	}
+
+	/**
+	 * @return the number of runs that failed and will be retried by the next run
+	 */
+	public synchronized long getFailureCount(){
+		return failures;
+	}
+
+	public synchronized long getNotesScanned(){
+		return notesScanned;
+	}
+
+	/**
+	 * @return the number of digests handed to the mail sender
+	 */
+	public synchronized long getDigestsSent(){
+		return digestsSent;
+	}
+
+	/**
+	 * @return the mean time, in milliseconds, taken by a successful run
+	 */
+	public synchronized double getAverageRunMillis(){
+		return runs == 0 ? 0 : runNanos / (runs * 1000000.0);
+	}
+
+	public synchronized String toString(){
+		return "runs=" + runs + ", failures=" + failures + ", notesScanned=" + notesScanned +
+				", digestsSent=" + digestsSent + ", avgRunMs=" + getAverageRunMillis();
+	}
+
+}
@@ -0,0 +1,22 @@
+package Notifications;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Delivers digests to their recipients. Implementations decide how each digest is
+ * formatted and sent.
+ */
+public interface MailSender {
+
+	/**
+	 * Sends a batch of digests, each to its own recipient. A digest that is refused for
+	 * its recipient alone (e.g. an unknown address) is dropped rather than failing the
+	 * batch, so that one bad address can't hold up everyone else's mail.
+	 * @param digests the digests to send
+	 * @throws IOException if the batch could not be sent; the whole batch is sent again
+	 * on the next run, so some recipients may get it twice
+	 */
+	public void send(List<Digest> digests) throws IOException;
+
+}
@@ -0,0 +1,296 @@
+package Notifications;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import DataModel.Note;
+import DataModel.Tag;
+
+/**
+ * Sends digests as plain text emails through an SMTP server, e.g. a local relay, or a
+ * local stub server that only records messages when testing. A batch is sent over a
+ * single connection, one mail transaction per digest. Does not authenticate or use TLS,
+ * so it should only be pointed at a relay on a trusted network.
+ */
+public final class SMTPMailSender implements MailSender {
+
+	private static final String HOST = System.getProperty("blacknote.mail.smtp.host",
+			"localhost");
+
+	private static final int PORT = Integer.getInteger("blacknote.mail.smtp.port", 25);
+
+	private static final String FROM = System.getProperty("blacknote.mail.from",
+			"blacknote@localhost");
+
+	private static final int TIMEOUT_MILLIS = Integer.getInteger(
+			"blacknote.mail.smtp.timeoutMillis", 30 * 1000);
+
+	private static final DateTimeFormatter RFC_822_DATE = DateTimeFormat.forPattern(
+			"EEE, dd MMM yyyy HH:mm:ss Z").withLocale(Locale.US);
+
+	private final String host;
+
+	private final int port;
+
+	private final String from;
+
+	private long sent = 0, rejected = 0;
+
+
+	/**
+	 * Sends through the server named by the blacknote.mail.* system properties.
+	 */
+	public SMTPMailSender(){
+		this(HOST, PORT, FROM);
+	}
+
+	/**
+	 * @param host the SMTP server
+	 * @param port the SMTP server's port
+	 * @param from the address the digests are sent from
+	 */
+	public SMTPMailSender(String host, int port, String from){
+		checkAddress(from);
+		this.host = host;
+		this.port = port;
+		this.from = from;
+	}
+
+
+	@Override
+	public void send(List<Digest> digests) throws IOException {
+		if(digests.isEmpty()){
+			return;
+		}
+
+		Socket socket = new Socket();
+		try{
+			socket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+			socket.setSoTimeout(TIMEOUT_MILLIS);
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "US-ASCII"));
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+					socket.getOutputStream(), "UTF-8"));
+
+			expect(in, 220);
+			command(in, out, "HELO " + localHostName(), 250);
+			for(Digest digest: digests){
+				String to = digest.getRecipient().getEmail();
+				if(to == null || !isValidAddress(to)){
+					recordRejected();
+					continue;
+				}
+
+				command(in, out, "MAIL FROM:<" + from + ">", 250);
+				int reply = command(in, out, "RCPT TO:<" + to + ">");
+				if(reply != 250 && reply != 251){
+					// Refused for this recipient only; abandon their transaction
+					command(in, out, "RSET", 250);
+					recordRejected();
+					continue;
+				}
+				command(in, out, "DATA", 354);
+				writeMessage(out, to, digest);
+				command(in, out, ".", 250);
+				recordSent();
+			}
+			command(in, out, "QUIT", 221);
+		}
+		finally{
+			socket.close();
+		}
+	}
+
+
+	/**
+	 * Writes the headers and body of a digest, ending each line with CRLF and escaping
+	 * lines that start with a dot.
+	 */
+	private void writeMessage(Writer out, String to, Digest digest) throws IOException {
+		int count = digest.getNotes().size() + digest.getOmittedCount();
+		line(out, "From: " + from);
+		line(out, "To: " + to);
+		line(out, "Subject: " + count + (count == 1 ? " note" : " notes") +
+				" you follow changed");
+		line(out, "Date: " + RFC_822_DATE.print(new DateTime()));
+		line(out, "MIME-Version: 1.0");
+		line(out, "Content-Type: text/plain; charset=UTF-8");
+		line(out, "Content-Transfer-Encoding: 8bit");
+		line(out, "");
+
+		line(out, "Hi " + oneLine(digest.getRecipient().getUserName()) + ",");
+		line(out, "");
+		line(out, "These notes with tags you follow changed since " +
+				RFC_822_DATE.print(digest.getSince()) + ":");
+		line(out, "");
+		for(Note note: digest.getNotes()){
+			StringBuilder sb = new StringBuilder("  ");
+			sb.append(oneLine(note.getName()));
+			Iterator<Tag> tags = note.getTags().iterator();
+			if(tags.hasNext()){
+				sb.append(" [");
+				while(tags.hasNext()){
+					sb.append(oneLine(tags.next().getName()));
+					if(tags.hasNext()){
+						sb.append(", ");
+					}
+				}
+				sb.append("]");
+			}
+			line(out, sb.toString());
+		}
+		if(digest.getOmittedCount() > 0){
+			line(out, "  ...and " + digest.getOmittedCount() + " more");
+		}
+	}
+
+
+	private static void line(Writer out, String line) throws IOException {
+		if(line.startsWith(".")){
+			out.write('.');
+		}
+		out.write(line);
+		out.write("\r\n");
+	}
+
+
+	/**
+	 * Sends a command and checks the server's reply.
+	 * @param expected the reply code that means success
+	 * @throws IOException if the server replied with any other code
+	 */
+	private static void command(BufferedReader in, Writer out, String command, int expected)
+			throws IOException {
+		int reply = command(in, out, command);
+		if(reply != expected){
+			throw new IOException("SMTP server replied " + reply + " to " + command);
+		}
+	}
+
+
+	/**
+	 * Sends a command, or the end of a message, and reads the server's reply.
+	 * @return the reply code
+	 */
+	private static int command(BufferedReader in, Writer out, String command)
+			throws IOException {
+		out.write(command);
+		out.write("\r\n");
+		out.flush();
+		return reply(in);
+	}
+
+
+	private static void expect(BufferedReader in, int expected) throws IOException {
+		int reply = reply(in);
+		if(reply != expected){
+			throw new IOException("SMTP server greeted with " + reply);
+		}
+	}
+
+
+	/**
+	 * Reads a reply, which may span several lines, e.g. "250-first" then "250 last".
+	 * @return the reply code
+	 */
+	private static int reply(BufferedReader in) throws IOException {
+		while(true){
+			String line = in.readLine();
+			if(line == null){
+				throw new IOException("SMTP server closed the connection");
+			}
+			if(line.length() < 3){
+				throw new IOException("Malformed SMTP reply: " + line);
+			}
+			if(line.length() == 3 || line.charAt(3) != '-'){
+				try{
+					return Integer.parseInt(line.substring(0, 3));
+				}
+				catch(NumberFormatException e){
+					throw new IOException("Malformed SMTP reply: " + line);
+				}
+			}
+		}
+	}
+
+
+	private static String localHostName(){
+		try{
+			return InetAddress.getLocalHost().getHostName();
+		}
+		catch(IOException e){
+			return "localhost";
+		}
+	}
+
+
+	/**
+	 * Keeps user supplied text from starting new header or body lines.
+	 */
+	private static String oneLine(String s){
+		return s == null ? "" : s.replace('\r', ' ').replace('\n', ' ');
+	}
+
+
+	/**
+	 * @return whether the address can be put in an SMTP command as it is
+	 */
+	private static boolean isValidAddress(String address){
+		if(address.isEmpty() || address.indexOf('@') < 0){
+			return false;
+		}
+		for(int i = 0; i < address.length(); i++){
+			char c = address.charAt(i);
+			if(c <= ' ' || c == '<' || c == '>' || c >= 0x7f){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	private static void checkAddress(String address){
+		if(address == null || !isValidAddress(address)){
+			throw new IllegalArgumentException("Invalid sender address: " + address);
+		}
+	}
+
+
+	private synchronized void recordSent(){
+		sent++;
+	}
+
+	private synchronized void recordRejected(){
+		rejected++;
+	}
+
+	/**
+	 * @return the number of digests the server has accepted
+	 */
+	public synchronized long getSentCount(){
+		return sent;
+	}
+
+	/**
+	 * @return the number of digests dropped because their recipient's address was
+	 * missing or refused
+	 */
+	public synchronized long getRejectedCount(){
+		return rejected;
+	}
+
+}
@@ -0,0 +1,46 @@
+package Search;
+
+/**
+ * Okapi BM25 relevance scoring, with the usual parameters k1 = 1.2 and b = 0.75.
+ */
+final class BM25 {
+
+	private static final float K1 = 1.2f;
+
+	private static final float B = 0.75f;
+
+	private final int docCount;
+
+	private final float avgLength;
+
+
+	/**
+	 * @param docCount the number of documents searched
+	 * @param avgLength the average length of the documents
+	 */
+	BM25(int docCount, float avgLength){
+		this.docCount = docCount;
+		this.avgLength = Math.max(1, avgLength);
+	}
+
+
+	/**
+	 * @param docFreq the number of documents with the term
+	 * @return the inverse document frequency of the term
+	 */
+	float idf(int docFreq){
+		return (float) Math.log(1 + (docCount - docFreq + 0.5) / (docFreq + 0.5));
+	}
+
+
+	/**
+	 * @param idf the term's inverse document frequency
+	 * @param tf the number of times the term appears in the document
+	 * @param length the length of the document
+	 * @return the term's contribution to the document's score
+	 */
+	float score(float idf, int tf, int length){
+		return idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / avgLength));
+	}
+
+}
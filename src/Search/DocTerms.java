@@ -0,0 +1,69 @@
+package Search;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import DataModel.Note;
+import DataModel.Tag;
+
+/**
+ * The terms of one note and how often each appears, weighted by where it appears: a
+ * term in the name counts more than one in a tag, which counts more than one in the
+ * metadata.
+ */
+final class DocTerms {
+
+	private static final int NAME_WEIGHT = 3;
+
+	private static final int TAG_WEIGHT = 2;
+
+	private static final int METADATA_WEIGHT = 1;
+
+	final String[] terms;
+
+	final int[] freqs;
+
+	/**
+	 * The weighted number of terms in the note.
+	 */
+	final int length;
+
+
+	private DocTerms(String[] terms, int[] freqs, int length){
+		this.terms = terms;
+		this.freqs = freqs;
+		this.length = length;
+	}
+
+
+	/**
+	 * @param note the note to index
+	 * @return the terms of its name, metadata values and tag names
+	 */
+	static DocTerms of(Note note){
+		Map<String, Integer> freqs = new HashMap<String, Integer>();
+		int length = Tokenizer.addTerms(note.getName(), NAME_WEIGHT, freqs);
+		if(note.getTags() != null){
+			for(Tag tag: note.getTags()){
+				length += Tokenizer.addTerms(tag.getName(), TAG_WEIGHT, freqs);
+			}
+		}
+		if(note.getMetadata() != null){
+			for(String value: note.getMetadata().values()){
+				length += Tokenizer.addTerms(value, METADATA_WEIGHT, freqs);
+			}
+		}
+
+		String[] terms = new String[freqs.size()];
+		int[] tfs = new int[freqs.size()];
+		int i = 0;
+		for(Entry<String, Integer> e: freqs.entrySet()){
+			terms[i] = e.getKey();
+			tfs[i] = e.getValue();
+			i++;
+		}
+		return new DocTerms(terms, tfs, length);
+	}
+
+}
@@ -0,0 +1,153 @@
+package Search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import Utilities.IntArraySet;
+
+/**
+ * The notes indexed since the last flush, held in memory until there are enough of them
+ * to write out as a segment. Guarded by the SearchIndex's lock.
+ */
+final class LiveSegment {
+
+	private final Map<Integer, DocTerms> docs = new HashMap<Integer, DocTerms>();
+
+	private final Map<String, IntArraySet> postings = new HashMap<String, IntArraySet>();
+
+	private long totalLength = 0;
+
+
+	/**
+	 * Adds a note, replacing the version of it already here if there is one.
+	 */
+	void put(int noteID, DocTerms doc){
+		remove(noteID);
+		docs.put(noteID, doc);
+		totalLength += doc.length;
+		for(String term: doc.terms){
+			IntArraySet notes = postings.get(term);
+			if(notes == null){
+				notes = new IntArraySet();
+				postings.put(term, notes);
+			}
+			notes.add(noteID);
+		}
+	}
+
+
+	private void remove(int noteID){
+		DocTerms old = docs.remove(noteID);
+		if(old == null){
+			return;
+		}
+		totalLength -= old.length;
+		for(String term: old.terms){
+			IntArraySet notes = postings.get(term);
+			notes.remove(noteID);
+			if(notes.isEmpty()){
+				postings.remove(term);
+			}
+		}
+	}
+
+
+	int size(){
+		return docs.size();
+	}
+
+	long getTotalLength(){
+		return totalLength;
+	}
+
+	int docFreq(String term){
+		IntArraySet notes = postings.get(term);
+		return notes == null ? 0 : notes.size();
+	}
+
+
+	/**
+	 * Adds the BM25 contributions of a term to the scores of the notes that have it.
+	 */
+	void score(String term, BM25 bm25, float idf, Map<Integer, float[]> scores){
+		IntArraySet notes = postings.get(term);
+		if(notes == null){
+			return;
+		}
+		for(int i = 0; i < notes.size(); i++){
+			int noteID = notes.get(i);
+			DocTerms doc = docs.get(noteID);
+			int tf = 0;
+			for(int j = 0; j < doc.terms.length; j++){
+				if(doc.terms[j].equals(term)){
+					tf = doc.freqs[j];
+					break;
+				}
+			}
+			float[] score = scores.get(noteID);
+			if(score == null){
+				score = new float[1];
+				scores.put(noteID, score);
+			}
+			score[0] += bm25.score(idf, tf, doc.length);
+		}
+	}
+
+
+	/**
+	 * Writes every note here out as a segment file.
+	 */
+	void writeTo(SegmentWriter writer) throws IOException {
+		int[] noteIDs = new int[docs.size()];
+		int n = 0;
+		for(Integer id: docs.keySet()){
+			noteIDs[n++] = id;
+		}
+		Arrays.sort(noteIDs);
+
+		int[] lengths = new int[n];
+		Map<Integer, Integer> docNumbers = new HashMap<Integer, Integer>(n * 2);
+		for(int i = 0; i < n; i++){
+			lengths[i] = docs.get(noteIDs[i]).length;
+			docNumbers.put(noteIDs[i], i);
+		}
+		writer.startDocs(noteIDs, lengths);
+
+		// Segment files list their terms in sorted order
+		TreeMap<String, IntArraySet> sorted = new TreeMap<String, IntArraySet>(postings);
+		long[] buf = new long[16];
+		for(Entry<String, IntArraySet> e: sorted.entrySet()){
+			String term = e.getKey();
+			IntArraySet notes = e.getValue();
+			if(buf.length < notes.size()){
+				buf = new long[notes.size()];
+			}
+			// The note IDs are sorted, so their doc numbers are too
+			for(int i = 0; i < notes.size(); i++){
+				int noteID = notes.get(i);
+				DocTerms doc = docs.get(noteID);
+				int tf = 0;
+				for(int j = 0; j < doc.terms.length; j++){
+					if(doc.terms[j].equals(term)){
+						tf = doc.freqs[j];
+						break;
+					}
+				}
+				buf[i] = SegmentWriter.posting(docNumbers.get(noteID), tf);
+			}
+			writer.addTerm(term, buf, notes.size());
+		}
+		writer.finish(totalLength);
+	}
+
+
+	Set<Integer> noteIDs(){
+		return docs.keySet();
+	}
+
+}
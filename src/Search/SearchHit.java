@@ -0,0 +1,33 @@
+package Search;
+
+/**
+ * A note that matched a search, with its relevance score. Higher scores are better;
+ * scores are only comparable between hits of the same search.
+ */
+public final class SearchHit {
+
+	private final int noteID;
+
+	private final float score;
+
+
+	SearchHit(int noteID, float score){
+		this.noteID = noteID;
+		this.score = score;
+	}
+
+
+	public int getNoteID(){
+		return noteID;
+	}
+
+	public float getScore(){
+		return score;
+	}
+
+
+	public String toString(){
+		return noteID + ":" + score;
+	}
+
+}
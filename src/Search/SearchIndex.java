@@ -0,0 +1,423 @@
+package Search;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import DataModel.Note;
+
+/**
+ * An embedded full-text index of note names, metadata values and tag names, ranked with
+ * BM25. Notes are first indexed in memory, and written out as an immutable segment file
+ * once enough of them have built up. Segments are memory mapped for searching, and
+ * merged in small groups once there are too many. A commit point file lists the
+ * segments and the time of the last commit; notes changed after it are not on disk, and
+ * must be indexed again after a restart. Thread safe: searches run in parallel with
+ * each other, and wait for writes.
+ */
+public final class SearchIndex {
+
+	private static final String COMMIT_FILE = "segments";
+
+	/**
+	 * Segments are merged once there are more than this many.
+	 */
+	private static final int MAX_SEGMENTS = 8;
+
+	/**
+	 * The number of segments merged at a time, smallest first.
+	 */
+	private static final int MERGE_FACTOR = 4;
+
+	private final File dir;
+
+	private final int flushDocs;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Guarded by lock, like everything below.
+	 */
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	private LiveSegment live = new LiveSegment();
+
+	private long commitTime = 0;
+
+	private int nextSegment = 0;
+
+
+	/**
+	 * Opens the index in the inputed directory, creating it if it doesn't exist.
+	 * @param dir the directory to keep the index in
+	 * @param flushDocs the number of notes held in memory before they are written out
+	 * @throws IOException if the index could not be read
+	 */
+	public SearchIndex(File dir, int flushDocs) throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Could not create " + dir);
+		}
+		this.dir = dir;
+		this.flushDocs = Math.max(flushDocs, 1);
+
+		File commit = new File(dir, COMMIT_FILE);
+		Set<String> names = new HashSet<String>();
+		if(commit.exists()){
+			Properties props = new Properties();
+			InputStream in = new FileInputStream(commit);
+			try{
+				props.load(in);
+			}
+			finally{
+				in.close();
+			}
+			commitTime = Long.parseLong(props.getProperty("commitTime", "0"));
+			nextSegment = Integer.parseInt(props.getProperty("nextSegment", "0"));
+			for(String name: props.getProperty("segments", "").split(",")){
+				if(name.length() > 0){
+					segments.add(Segment.open(dir, name));
+					names.add(name);
+				}
+			}
+		}
+
+		// Remove whatever an interrupted flush or merge left behind. Segment files are
+		// all named "_<number>.<ext>", so nothing else in the directory is touched.
+		new File(dir, COMMIT_FILE + ".tmp").delete();
+		File[] files = dir.listFiles();
+		if(files != null){
+			for(File f: files){
+				String name = f.getName();
+				int dot = name.indexOf('.');
+				if(name.startsWith("_") && dot > 0 && !names.contains(name.substring(0, dot))){
+					f.delete();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * @return the time of the last commit, in milliseconds since the epoch, or 0 if the
+	 * index has never been committed. Notes changed since then must be indexed again
+	 * after a restart.
+	 */
+	public long getCommitTime(){
+		lock.readLock().lock();
+		try{
+			return commitTime;
+		}
+		finally{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @return the number of notes in the index
+	 */
+	public int size(){
+		lock.readLock().lock();
+		try{
+			int size = live.size();
+			for(Segment s: segments){
+				size += s.liveDocCount();
+			}
+			return size;
+		}
+		finally{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Adds a note to the index, replacing the version already indexed if there is one.
+	 * Commits once enough notes are held in memory; if that fails, they stay in memory
+	 * and the commit is tried again with the next note.
+	 * @param noteID the id of the note
+	 * @param note the note's contents
+	 */
+	public void index(int noteID, Note note){
+		DocTerms doc = DocTerms.of(note);
+		lock.writeLock().lock();
+		try{
+			for(Segment s: segments){
+				s.delete(noteID);
+			}
+			live.put(noteID, doc);
+			if(live.size() >= flushDocs){
+				try{
+					commit();
+				}
+				catch(IOException e){
+					// Nothing is lost: the notes are still in memory
+				}
+			}
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Writes the notes held in memory out as a segment, merges segments if there are too
+	 * many, and records a new commit point.
+	 * @throws IOException if the index could not be written; it is left as it was
+	 */
+	public void commit() throws IOException {
+		lock.writeLock().lock();
+		try{
+			long now = System.currentTimeMillis();
+			List<Segment> merged = new ArrayList<Segment>();
+
+			if(live.size() > 0){
+				segments.add(write(live));
+				live = new LiveSegment();
+			}
+
+			while(segments.size() > MAX_SEGMENTS){
+				List<Segment> smallest = new ArrayList<Segment>(segments);
+				Collections.sort(smallest, BY_LIVE_DOCS);
+				smallest = smallest.subList(0, MERGE_FACTOR);
+				Segment combined = merge(smallest);
+				segments.removeAll(smallest);
+				segments.add(combined);
+				merged.addAll(smallest);
+			}
+
+			for(Segment s: segments){
+				s.writeDeletions(dir);
+			}
+			writeCommit(now);
+			commitTime = now;
+
+			for(Segment s: merged){
+				s.deleteFiles(dir);
+			}
+		}
+		finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Commits the index. The index must not be used afterwards.
+	 */
+	public void close() throws IOException {
+		commit();
+	}
+
+
+	private Segment write(LiveSegment segment) throws IOException {
+		String name = newSegmentName();
+		SegmentWriter writer = new SegmentWriter(Segment.segmentFile(dir, name));
+		boolean done = false;
+		try{
+			segment.writeTo(writer);
+			done = true;
+		}
+		finally{
+			if(!done){
+				writer.abort();
+				Segment.segmentFile(dir, name).delete();
+			}
+		}
+		return Segment.open(dir, name);
+	}
+
+
+	private Segment merge(List<Segment> toMerge) throws IOException {
+		String name = newSegmentName();
+		SegmentWriter writer = new SegmentWriter(Segment.segmentFile(dir, name));
+		boolean done = false;
+		try{
+			SegmentMerger.merge(toMerge, writer);
+			done = true;
+		}
+		finally{
+			if(!done){
+				writer.abort();
+				Segment.segmentFile(dir, name).delete();
+			}
+		}
+		return Segment.open(dir, name);
+	}
+
+
+	private String newSegmentName(){
+		return "_" + Integer.toString(nextSegment++, 36);
+	}
+
+
+	private void writeCommit(long time) throws IOException {
+		StringBuilder names = new StringBuilder();
+		for(Segment s: segments){
+			if(names.length() > 0){
+				names.append(',');
+			}
+			names.append(s.name);
+		}
+		Properties props = new Properties();
+		props.setProperty("commitTime", Long.toString(time));
+		props.setProperty("nextSegment", Integer.toString(nextSegment));
+		props.setProperty("segments", names.toString());
+
+		File tmp = new File(dir, COMMIT_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try{
+			props.store(out, null);
+			out.getFD().sync();
+		}
+		finally{
+			out.close();
+		}
+		replace(tmp, new File(dir, COMMIT_FILE));
+	}
+
+
+	/**
+	 * Moves the temporary file over the target, as atomically as the platform allows.
+	 */
+	static void replace(File tmp, File target) throws IOException {
+		if(!tmp.renameTo(target)){
+			// Some platforms won't rename over an existing file
+			target.delete();
+			if(!tmp.renameTo(target)){
+				throw new IOException("Could not replace " + target);
+			}
+		}
+	}
+
+
+	/**
+	 * Finds the notes that best match the query. A note matches if it has any of the
+	 * query's terms; notes with more of them, or with rarer ones, rank higher.
+	 * @param query the words to search for
+	 * @param maxHits the largest number of hits to return
+	 * @return the hits, best first
+	 */
+	public List<SearchHit> search(String query, int maxHits){
+		Set<String> terms = Tokenizer.queryTerms(query);
+		if(terms.isEmpty() || maxHits <= 0){
+			return new ArrayList<SearchHit>();
+		}
+
+		lock.readLock().lock();
+		try{
+			int liveDocs = live.size();
+			int allDocs = live.size();
+			long totalLength = live.getTotalLength();
+			int maxDocCount = 0;
+			for(Segment s: segments){
+				liveDocs += s.liveDocCount();
+				allDocs += s.docCount();
+				totalLength += s.getTotalLength();
+				maxDocCount = Math.max(maxDocCount, s.docCount());
+			}
+			BM25 bm25 = new BM25(liveDocs, allDocs == 0 ? 1 : (float) totalLength / allDocs);
+
+			// Deleted notes still count towards document frequencies until merged away
+			Map<String, Float> idfs = new HashMap<String, Float>();
+			for(String term: terms){
+				int df = live.docFreq(term);
+				for(Segment s: segments){
+					int t = s.findTerm(term);
+					if(t >= 0){
+						df += s.docFreq(t);
+					}
+				}
+				if(df > 0){
+					idfs.put(term, bm25.idf(df));
+				}
+			}
+			if(idfs.isEmpty()){
+				return new ArrayList<SearchHit>();
+			}
+
+			PriorityQueue<SearchHit> top = new PriorityQueue<SearchHit>(maxHits + 1, WORST_FIRST);
+
+			float[] scores = new float[maxDocCount];
+			long[] scratch = new long[1024];
+			for(Segment s: segments){
+				Arrays.fill(scores, 0, s.docCount(), 0f);
+				for(Entry<String, Float> e: idfs.entrySet()){
+					scratch = s.score(e.getKey(), bm25, e.getValue(), scores, scratch);
+				}
+				for(int doc = 0; doc < s.docCount(); doc++){
+					if(scores[doc] > 0){
+						offer(top, maxHits, s.noteID(doc), scores[doc]);
+					}
+				}
+			}
+
+			Map<Integer, float[]> liveScores = new HashMap<Integer, float[]>();
+			for(Entry<String, Float> e: idfs.entrySet()){
+				live.score(e.getKey(), bm25, e.getValue(), liveScores);
+			}
+			for(Entry<Integer, float[]> e: liveScores.entrySet()){
+				offer(top, maxHits, e.getKey(), e.getValue()[0]);
+			}
+
+			List<SearchHit> hits = new ArrayList<SearchHit>(top);
+			Collections.sort(hits, Collections.reverseOrder(WORST_FIRST));
+			return hits;
+		}
+		finally{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	private static void offer(PriorityQueue<SearchHit> top, int maxHits, int noteID, float score){
+		if(top.size() < maxHits){
+			top.add(new SearchHit(noteID, score));
+		}
+		else if(WORST_FIRST.compare(top.peek(), new SearchHit(noteID, score)) < 0){
+			top.poll();
+			top.add(new SearchHit(noteID, score));
+		}
+	}
+
+
+	/**
+	 * Orders hits from worst to best: by score, then by ID, larger IDs being worse, so
+	 * that ties are broken the same way by every search.
+	 */
+	private static final Comparator<SearchHit> WORST_FIRST = new Comparator<SearchHit>(){
+		@Override
+		public int compare(SearchHit a, SearchHit b){
+			if(a.getScore() != b.getScore()){
+				return a.getScore() < b.getScore() ? -1 : 1;
+			}
+			return a.getNoteID() > b.getNoteID() ? -1 : (a.getNoteID() == b.getNoteID() ? 0 : 1);
+		}
+	};
+
+
+	private static final Comparator<Segment> BY_LIVE_DOCS = new Comparator<Segment>(){
+		@Override
+		public int compare(Segment a, Segment b){
+			return a.liveDocCount() < b.liveDocCount() ? -1 :
+					(a.liveDocCount() == b.liveDocCount() ? 0 : 1);
+		}
+	};
+
+}
@@ -0,0 +1,315 @@
+package Search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A segment file written by {@link SegmentWriter}, opened for searching. The postings
+ * and note lengths are read straight from a memory mapping of the file, so the
+ * operating system decides what stays in memory; only the note IDs and the term
+ * dictionary are copied onto the heap. Segments never change once written, except that
+ * notes indexed again later are marked deleted here. Guarded by the SearchIndex's lock.
+ */
+final class Segment {
+
+	final String name;
+
+	private final File file;
+
+	private final MappedByteBuffer buf;
+
+	/**
+	 * The IDs of the notes, sorted; the index of a note is its doc number.
+	 */
+	private final int[] noteIDs;
+
+	private final String[] terms;
+
+	private final int[] docFreqs;
+
+	private final int[] offsets;
+
+	private final long totalLength;
+
+	private final BitSet deleted = new BitSet();
+
+	private int deletedCount = 0;
+
+	private boolean deletionsChanged = false;
+
+
+	private Segment(String name, File file, MappedByteBuffer buf, int[] noteIDs,
+			String[] terms, int[] docFreqs, int[] offsets, long totalLength){
+		this.name = name;
+		this.file = file;
+		this.buf = buf;
+		this.noteIDs = noteIDs;
+		this.terms = terms;
+		this.docFreqs = docFreqs;
+		this.offsets = offsets;
+		this.totalLength = totalLength;
+	}
+
+
+	static File segmentFile(File dir, String name){
+		return new File(dir, name + ".seg");
+	}
+
+	static File deletionsFile(File dir, String name){
+		return new File(dir, name + ".del");
+	}
+
+
+	/**
+	 * Opens a segment and the deletions saved with it.
+	 * @param dir the index directory
+	 * @param name the segment's name
+	 * @return the segment
+	 * @throws IOException if the file is missing or corrupt
+	 */
+	static Segment open(File dir, String name) throws IOException {
+		File file = segmentFile(dir, name);
+		MappedByteBuffer buf;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			if(raf.length() > Integer.MAX_VALUE || raf.length() < SegmentWriter.TRAILER_SIZE){
+				throw new IOException("Bad segment size: " + file);
+			}
+			// The mapping stays valid after the channel is closed
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally{
+			raf.close();
+		}
+
+		int trailer = buf.limit() - SegmentWriter.TRAILER_SIZE;
+		int docCount = buf.getInt(trailer);
+		int termCount = buf.getInt(trailer + 4);
+		long totalLength = buf.getLong(trailer + 8);
+		int dictionaryOffset = buf.getInt(trailer + 16);
+		if(buf.getInt(trailer + 20) != SegmentWriter.MAGIC){
+			throw new IOException("Not a segment file: " + file);
+		}
+
+		int[] noteIDs = new int[docCount];
+		for(int i = 0; i < docCount; i++){
+			noteIDs[i] = buf.getInt(4 * i);
+		}
+
+		String[] terms = new String[termCount];
+		int[] docFreqs = new int[termCount];
+		int[] offsets = new int[termCount];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 65536));
+		try{
+			long skip = dictionaryOffset;
+			while(skip > 0){
+				long skipped = in.skip(skip);
+				if(skipped <= 0){
+					throw new IOException("Truncated segment: " + file);
+				}
+				skip -= skipped;
+			}
+			for(int i = 0; i < termCount; i++){
+				terms[i] = in.readUTF();
+				docFreqs[i] = in.readInt();
+				offsets[i] = in.readInt();
+			}
+		}
+		finally{
+			in.close();
+		}
+
+		Segment segment = new Segment(name, file, buf, noteIDs, terms, docFreqs, offsets,
+				totalLength);
+		segment.readDeletions(deletionsFile(dir, name));
+		return segment;
+	}
+
+
+	private void readDeletions(File file) throws IOException {
+		if(!file.exists()){
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try{
+			int count = in.readInt();
+			for(int i = 0; i < count; i++){
+				deleted.set(in.readInt());
+			}
+			deletedCount = deleted.cardinality();
+		}
+		finally{
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Saves the deletions, if they changed since they were last saved. The file is
+	 * replaced whole, so a crash leaves either the old or the new deletions.
+	 */
+	void writeDeletions(File dir) throws IOException {
+		if(!deletionsChanged){
+			return;
+		}
+		File tmp = new File(dir, name + ".del.tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+		try{
+			out.writeInt(deletedCount);
+			for(int doc = deleted.nextSetBit(0); doc >= 0; doc = deleted.nextSetBit(doc + 1)){
+				out.writeInt(doc);
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		finally{
+			out.close();
+		}
+		SearchIndex.replace(tmp, deletionsFile(dir, name));
+		deletionsChanged = false;
+	}
+
+
+	/**
+	 * Marks the note deleted, if it is in this segment.
+	 */
+	void delete(int noteID){
+		int doc = Arrays.binarySearch(noteIDs, noteID);
+		if(doc >= 0 && !deleted.get(doc)){
+			deleted.set(doc);
+			deletedCount++;
+			deletionsChanged = true;
+		}
+	}
+
+
+	int docCount(){
+		return noteIDs.length;
+	}
+
+	int liveDocCount(){
+		return noteIDs.length - deletedCount;
+	}
+
+	long getTotalLength(){
+		return totalLength;
+	}
+
+	boolean isDeleted(int doc){
+		return deleted.get(doc);
+	}
+
+	int noteID(int doc){
+		return noteIDs[doc];
+	}
+
+	int length(int doc){
+		return buf.getInt(4 * (noteIDs.length + doc));
+	}
+
+
+	int termCount(){
+		return terms.length;
+	}
+
+	String term(int index){
+		return terms[index];
+	}
+
+	/**
+	 * @return the index of the term in the dictionary, or a negative number if the
+	 * segment doesn't have it
+	 */
+	int findTerm(String term){
+		return Arrays.binarySearch(terms, term);
+	}
+
+	int docFreq(int termIndex){
+		return docFreqs[termIndex];
+	}
+
+
+	/**
+	 * Reads the postings of a term into the inputed array as longs made by
+	 * {@link SegmentWriter#posting(int, int)}. Uses only absolute reads of the mapping,
+	 * so any number of threads can read at once.
+	 * @return the postings array, grown if it was too small
+	 */
+	long[] readPostings(int termIndex, long[] into){
+		int count = docFreqs[termIndex];
+		if(into.length < count){
+			into = new long[count];
+		}
+		int pos = offsets[termIndex];
+		int doc = 0;
+		for(int i = 0; i < count; i++){
+			int delta = 0;
+			int shift = 0;
+			byte b;
+			do{
+				b = buf.get(pos++);
+				delta |= (b & 0x7f) << shift;
+				shift += 7;
+			} while(b < 0);
+			doc += delta;
+
+			int tf = 0;
+			shift = 0;
+			do{
+				b = buf.get(pos++);
+				tf |= (b & 0x7f) << shift;
+				shift += 7;
+			} while(b < 0);
+
+			into[i] = SegmentWriter.posting(doc, tf);
+		}
+		return into;
+	}
+
+
+	/**
+	 * Adds the BM25 contributions of a term to the scores of this segment's notes.
+	 * @param scores the scores, indexed by doc number
+	 * @param scratch space to read the postings into
+	 * @return the scratch space, grown if it was too small
+	 */
+	long[] score(String term, BM25 bm25, float idf, float[] scores, long[] scratch){
+		int t = findTerm(term);
+		if(t < 0){
+			return scratch;
+		}
+		long[] postings = readPostings(t, scratch);
+		int count = docFreqs[t];
+		for(int i = 0; i < count; i++){
+			int doc = (int) (postings[i] >>> 32);
+			if(!deleted.get(doc)){
+				scores[doc] += bm25.score(idf, (int) postings[i], length(doc));
+			}
+		}
+		return postings;
+	}
+
+
+	/**
+	 * Deletes the segment's files. Must only be called once no search can reach it.
+	 */
+	void deleteFiles(File dir){
+		// On some platforms a mapped file can't be deleted; it is then left behind
+		file.delete();
+		deletionsFile(dir, name).delete();
+	}
+
+}
@@ -0,0 +1,112 @@
+package Search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Combines several segments into one, leaving out their deleted notes.
+ */
+final class SegmentMerger {
+
+	// Static class
+	private SegmentMerger(){
+	}
+
+
+	/**
+	 * @param segments the segments to merge; they are not changed
+	 * @param writer the writer of the new segment
+	 * @throws IOException
+	 */
+	static void merge(List<Segment> segments, SegmentWriter writer) throws IOException {
+		int k = segments.size();
+
+		// Number the surviving notes of every segment in note ID order. A note is live in
+		// at most one segment, so the IDs don't collide.
+		int live = 0;
+		for(Segment s: segments){
+			live += s.liveDocCount();
+		}
+		long[] keys = new long[live];
+		int[] fromSegment = new int[live];
+		int[] fromDoc = new int[live];
+		int n = 0;
+		for(int s = 0; s < k; s++){
+			Segment segment = segments.get(s);
+			for(int doc = 0; doc < segment.docCount(); doc++){
+				if(!segment.isDeleted(doc)){
+					fromSegment[n] = s;
+					fromDoc[n] = doc;
+					keys[n] = ((long) segment.noteID(doc) << 32) | n;
+					n++;
+				}
+			}
+		}
+		Arrays.sort(keys);
+
+		int[][] docMap = new int[k][];
+		for(int s = 0; s < k; s++){
+			docMap[s] = new int[segments.get(s).docCount()];
+		}
+		int[] noteIDs = new int[live];
+		int[] lengths = new int[live];
+		long totalLength = 0;
+		for(int i = 0; i < live; i++){
+			int entry = (int) keys[i];
+			Segment segment = segments.get(fromSegment[entry]);
+			noteIDs[i] = segment.noteID(fromDoc[entry]);
+			lengths[i] = segment.length(fromDoc[entry]);
+			totalLength += lengths[i];
+			docMap[fromSegment[entry]][fromDoc[entry]] = i;
+		}
+		keys = null;
+		writer.startDocs(noteIDs, lengths);
+
+		// Walk the sorted dictionaries of all the segments together
+		int[] termPos = new int[k];
+		long[] scratch = new long[1024];
+		long[] merged = new long[1024];
+		while(true){
+			String term = null;
+			for(int s = 0; s < k; s++){
+				Segment segment = segments.get(s);
+				if(termPos[s] < segment.termCount()){
+					String t = segment.term(termPos[s]);
+					if(term == null || t.compareTo(term) < 0){
+						term = t;
+					}
+				}
+			}
+			if(term == null){
+				break;
+			}
+
+			int count = 0;
+			for(int s = 0; s < k; s++){
+				Segment segment = segments.get(s);
+				if(termPos[s] < segment.termCount() && segment.term(termPos[s]).equals(term)){
+					int df = segment.docFreq(termPos[s]);
+					scratch = segment.readPostings(termPos[s], scratch);
+					if(merged.length < count + df){
+						merged = Arrays.copyOf(merged, Math.max(count + df, merged.length * 2));
+					}
+					for(int i = 0; i < df; i++){
+						int doc = (int) (scratch[i] >>> 32);
+						if(!segment.isDeleted(doc)){
+							merged[count++] = SegmentWriter.posting(docMap[s][doc], (int) scratch[i]);
+						}
+					}
+					termPos[s]++;
+				}
+			}
+			if(count > 0){
+				// Notes from different segments interleave in the new numbering
+				Arrays.sort(merged, 0, count);
+				writer.addTerm(term, merged, count);
+			}
+		}
+		writer.finish(totalLength);
+	}
+
+}
@@ -0,0 +1,155 @@
+package Search;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a segment file. A segment lists its notes sorted by ID, so a note's position
+ * in the list (its doc number) is found by binary search. The file is laid out as:
+ * <pre>
+ * noteIDs       int[docCount]
+ * lengths       int[docCount]
+ * postings      for each term: (doc number delta, term frequency) as varints
+ * dictionary    for each term, in sorted order: UTF term, int docFreq, int postings offset
+ * trailer       int docCount, int termCount, long totalLength, int dictionary offset,
+ *               int magic
+ * </pre>
+ * The trailer comes last because the offsets are only known once the postings are
+ * written; readers find it at the end of the file.
+ */
+final class SegmentWriter {
+
+	static final int MAGIC = 0x424e5331;
+
+	static final int TRAILER_SIZE = 24;
+
+	private final FileOutputStream file;
+
+	private final DataOutputStream out;
+
+	private int offset = 0;
+
+	private int docCount = -1;
+
+	private String lastTerm = null;
+
+	private final List<String> terms = new ArrayList<String>();
+
+	private final List<int[]> dictionary = new ArrayList<int[]>();
+
+
+	SegmentWriter(File file) throws IOException {
+		this.file = new FileOutputStream(file);
+		this.out = new DataOutputStream(new BufferedOutputStream(this.file, 65536));
+	}
+
+
+	/**
+	 * Packs a posting into a long so that sorting postings sorts them by doc number.
+	 */
+	static long posting(int doc, int tf){
+		return ((long) doc << 32) | (tf & 0xffffffffL);
+	}
+
+
+	/**
+	 * Writes the notes of the segment. Must be called first.
+	 * @param noteIDs the IDs of the notes, sorted
+	 * @param lengths the length of each note
+	 */
+	void startDocs(int[] noteIDs, int[] lengths) throws IOException {
+		docCount = noteIDs.length;
+		for(int id: noteIDs){
+			out.writeInt(id);
+		}
+		for(int length: lengths){
+			out.writeInt(length);
+		}
+		offset = 8 * docCount;
+	}
+
+
+	/**
+	 * Writes the postings of the next term. Terms must be added in sorted order.
+	 * @param term the term
+	 * @param postings the postings made by {@link #posting(int, int)}, sorted
+	 * @param count the number of postings in the array
+	 */
+	void addTerm(String term, long[] postings, int count) throws IOException {
+		if(lastTerm != null && lastTerm.compareTo(term) >= 0){
+			throw new IllegalArgumentException("Terms out of order: " + lastTerm + ", " + term);
+		}
+		lastTerm = term;
+		terms.add(term);
+		dictionary.add(new int[]{count, offset});
+
+		int lastDoc = 0;
+		for(int i = 0; i < count; i++){
+			int doc = (int) (postings[i] >>> 32);
+			writeVarint(doc - lastDoc);
+			writeVarint((int) postings[i]);
+			lastDoc = doc;
+		}
+		if(offset < 0){
+			// Segments are memory mapped, which limits them to 2GB
+			throw new IOException("Segment too large");
+		}
+	}
+
+
+	/**
+	 * Writes the dictionary and trailer, syncs the file to disk and closes it.
+	 * @param totalLength the summed length of the notes
+	 */
+	void finish(long totalLength) throws IOException {
+		try{
+			int dictionaryOffset = offset;
+			for(int i = 0; i < terms.size(); i++){
+				out.writeUTF(terms.get(i));
+				out.writeInt(dictionary.get(i)[0]);
+				out.writeInt(dictionary.get(i)[1]);
+			}
+			out.writeInt(docCount);
+			out.writeInt(terms.size());
+			out.writeLong(totalLength);
+			out.writeInt(dictionaryOffset);
+			out.writeInt(MAGIC);
+			out.flush();
+			// The segment must be on disk before a commit point can name it
+			file.getFD().sync();
+		}
+		finally{
+			out.close();
+		}
+	}
+
+
+	/**
+	 * Closes the file without finishing it, after a failure.
+	 */
+	void abort(){
+		try{
+			out.close();
+		}
+		catch(IOException e){
+			// Already failing
+		}
+	}
+
+
+	private void writeVarint(int v) throws IOException {
+		while((v & ~0x7f) != 0){
+			out.writeByte((v & 0x7f) | 0x80);
+			v >>>= 7;
+			offset++;
+		}
+		out.writeByte(v);
+		offset++;
+	}
+
+}
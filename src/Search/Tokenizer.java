@@ -0,0 +1,65 @@
+package Search;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits text into search terms: runs of letters and digits, lower cased. Terms longer
+ * than {@link #MAX_TERM_LENGTH} are cut short.
+ */
+final class Tokenizer {
+
+	static final int MAX_TERM_LENGTH = 64;
+
+	// Static class
+	private Tokenizer(){
+	}
+
+
+	/**
+	 * Adds the terms of the text to a table of term frequencies.
+	 * @param text the text to split, may be null
+	 * @param weight the amount each occurrence adds to its term's frequency
+	 * @param freqs term frequencies to add to
+	 * @return the number of terms in the text, times the weight
+	 */
+	static int addTerms(String text, int weight, Map<String, Integer> freqs){
+		if(text == null){
+			return 0;
+		}
+		int count = 0;
+		int len = text.length();
+		int i = 0;
+		while(i < len){
+			while(i < len && !Character.isLetterOrDigit(text.charAt(i))){
+				i++;
+			}
+			int start = i;
+			while(i < len && Character.isLetterOrDigit(text.charAt(i))){
+				i++;
+			}
+			if(i > start){
+				String term = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH))
+						.toLowerCase(Locale.ENGLISH);
+				Integer old = freqs.get(term);
+				freqs.put(term, old == null ? weight : old + weight);
+				count += weight;
+			}
+		}
+		return count;
+	}
+
+
+	/**
+	 * @param text a query
+	 * @return the distinct terms of the query, in the order they first appear
+	 */
+	static Set<String> queryTerms(String text){
+		Map<String, Integer> freqs = new LinkedHashMap<String, Integer>();
+		addTerms(text, 1, freqs);
+		return freqs.keySet();
+	}
+
+}
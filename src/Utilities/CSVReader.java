@@ -0,0 +1,126 @@
+package Utilities;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads comma separated values a record at a time, as described by RFC 4180: fields
+ * may be quoted with double quotes, in which case they can hold commas, line breaks and
+ * doubled quotes. Records end with either CRLF or LF. Not thread safe.
+ */
+public final class CSVReader {
+
+	private final Reader in;
+
+	private final char[] buf = new char[8192];
+
+	private int pos = 0, limit = 0;
+
+	private long record = 0;
+
+	private final StringBuilder field = new StringBuilder();
+
+
+	/**
+	 * @param in the reader to read from; it is read in blocks, so it need not be buffered
+	 */
+	public CSVReader(Reader in){
+		this.in = in;
+	}
+
+
+	/**
+	 * @return the fields of the next record, or null at the end of the input
+	 * @throws IOException if the input could not be read, or ends inside a quoted field
+	 */
+	public String[] next() throws IOException {
+		int c = read();
+		if(c < 0){
+			return null;
+		}
+		record++;
+
+		List<String> fields = new ArrayList<String>();
+		field.setLength(0);
+		boolean quoted = false, wasQuoted = false;
+		while(true){
+			if(quoted){
+				if(c < 0){
+					throw new IOException("Unterminated quoted field in record " + record);
+				}
+				if(c == '"'){
+					int d = read();
+					if(d == '"'){
+						field.append('"');
+					}
+					else{
+						quoted = false;
+						c = d;
+						continue;
+					}
+				}
+				else{
+					field.append((char) c);
+				}
+			}
+			else if(c == '"' && field.length() == 0 && !wasQuoted){
+				quoted = wasQuoted = true;
+			}
+			else if(c == ','){
+				fields.add(field.toString());
+				field.setLength(0);
+				wasQuoted = false;
+			}
+			else if(c == '\n' || c < 0){
+				break;
+			}
+			else if(c == '\r'){
+				int d = read();
+				if(d != '\n'){
+					unread(d);
+				}
+				break;
+			}
+			else{
+				field.append((char) c);
+			}
+			c = read();
+		}
+		fields.add(field.toString());
+		return fields.toArray(new String[fields.size()]);
+	}
+
+
+	/**
+	 * @return the number of the record last returned by {@link #next()}, counting from 1
+	 */
+	public long getRecordNumber(){
+		return record;
+	}
+
+
+	private int read() throws IOException {
+		if(pos == limit){
+			limit = in.read(buf, 0, buf.length);
+			pos = 0;
+			if(limit <= 0){
+				limit = 0;
+				return -1;
+			}
+		}
+		return buf[pos++];
+	}
+
+
+	/**
+	 * Puts back the character just read, if there was one.
+	 */
+	private void unread(int c){
+		if(c >= 0){
+			pos--;
+		}
+	}
+
+}
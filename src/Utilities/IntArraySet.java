@@ -0,0 +1,154 @@
+package Utilities;
+
+import java.util.Arrays;
+
+/**
+ * A set of ints kept as a sorted primitive array, four bytes per element and no boxing.
+ * Adding values in increasing order, the usual case for newly allocated IDs, is an
+ * amortized constant time append; anything else is a binary search and an array copy.
+ * Not thread safe.
+ */
+public class IntArraySet {
+
+	private int[] values;
+
+	private int size = 0;
+
+
+	public IntArraySet(){
+		this(4);
+	}
+
+	/**
+	 * @param capacity the number of values to make room for up front
+	 */
+	public IntArraySet(int capacity){
+		values = new int[Math.max(capacity, 1)];
+	}
+
+
+	/**
+	 * @param value the value to add
+	 * @return true if the value was not already in the set
+	 */
+	public boolean add(int value){
+		if(size == 0 || values[size - 1] < value){
+			grow();
+			values[size++] = value;
+			return true;
+		}
+
+		int i = Arrays.binarySearch(values, 0, size, value);
+		if(i >= 0){
+			return false;
+		}
+		i = -i - 1;
+		grow();
+		System.arraycopy(values, i, values, i + 1, size - i);
+		values[i] = value;
+		size++;
+		return true;
+	}
+
+
+	/**
+	 * @param value the value to remove
+	 * @return true if the value was in the set
+	 */
+	public boolean remove(int value){
+		int i = Arrays.binarySearch(values, 0, size, value);
+		if(i < 0){
+			return false;
+		}
+		System.arraycopy(values, i + 1, values, i, size - i - 1);
+		size--;
+		return true;
+	}
+
+
+	public boolean contains(int value){
+		return Arrays.binarySearch(values, 0, size, value) >= 0;
+	}
+
+
+	public int size(){
+		return size;
+	}
+
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+
+	/**
+	 * @param index a position in the set, from 0 to size() - 1
+	 * @return the value at that position, in increasing order
+	 */
+	public int get(int index){
+		if(index >= size){
+			throw new IndexOutOfBoundsException(index + " >= " + size);
+		}
+		return values[index];
+	}
+
+
+	/**
+	 * Finds the position of the first value that is at least the inputed value, starting
+	 * the search at from. Gallops forward before binary searching, so a series of calls
+	 * with increasing values costs little more than a single pass over the set.
+	 * @param value the value to look for
+	 * @param from the position to start at
+	 * @return the position of the first value >= value, or size() if there is none
+	 */
+	public int seek(int value, int from){
+		if(from >= size || values[from] >= value){
+			return from;
+		}
+		// values[lo] < value from here on
+		int lo = from;
+		int step = 1;
+		int hi = from + step;
+		while(hi < size && values[hi] < value){
+			lo = hi;
+			step <<= 1;
+			hi = lo + step;
+		}
+		if(hi > size){
+			hi = size;
+		}
+		int i = Arrays.binarySearch(values, lo + 1, hi, value);
+		return i >= 0 ? i : -i - 1;
+	}
+
+
+	public void clear(){
+		size = 0;
+	}
+
+
+	/**
+	 * Frees the unused part of the backing array.
+	 */
+	public void trim(){
+		if(values.length > size){
+			values = Arrays.copyOf(values, Math.max(size, 1));
+		}
+	}
+
+
+	/**
+	 * @return the values, in increasing order
+	 */
+	public int[] toArray(){
+		return Arrays.copyOf(values, size);
+	}
+
+
+	private void grow(){
+		if(size == values.length){
+			values = Arrays.copyOf(values, values.length + (values.length >> 1) + 1);
+		}
+	}
+
+}
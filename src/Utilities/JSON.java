@@ -1,5 +1,8 @@
 package Utilities;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
 import java.util.Map.Entry;
 
 import DataModel.FSObject;
@@ -8,7 +11,9 @@ import DataModel.Notebook;
 import DataModel.Tag;
 
 /**
- * Class used to convert objects into JSON objects to be transmitted
+ * Class used to convert objects into JSON objects to be transmitted. The write methods
+ * stream the encoding to a {@link JSONWriter}, and should be preferred for anything sent
+ * over the network; the encode methods return the encoding as a String.
  * @author Ralph
  *
  */
@@ -25,29 +30,114 @@ public class JSON {
 	 * @return the encoding
 	 */
 	public static String encodeNotebookAsJSON(Notebook book){
-		StringBuilder sb = new StringBuilder();
-		sb.append("{");
-		sb.append("\"id\":" + book.getID() + ", ");
-		sb.append("\"children\":[");
-		
-		boolean first = true;
-		for(FSObject obj: book.getChildren()){
-			if(!first){
-				sb.append(", ");
-			}
-			sb.append("{");
-			sb.append("\"id\":" + obj.getID() + ", ");
-			sb.append("\"name\":\"" + obj.getName() + "\", ");
-			sb.append("\"type\":\"" + obj.getType().toString() + "\"");
-			sb.append("}");
-			
-			first = false;
+		StringWriter sw = new StringWriter(64 + 48 * book.getChildren().size());
+		try{
+			JSONWriter out = new JSONWriter(sw);
+			writeNotebook(book, out);
+			out.flush();
 		}
-		
-		sb.append("]");
-		sb.append("}");
-		
-		return sb.toString();
+		catch(IOException e){
+			// StringWriter doesn't throw
+			throw new AssertionError(e);
+		}
+		return sw.toString();
+	}
+	
+	
+	/**
+	 * Writes the inputed notebook as a JSON object.
+	 * @param book the notebook to write
+	 * @param out the writer to write it to
+	 * @throws IOException
+	 */
+	public static void writeNotebook(Notebook book, JSONWriter out) throws IOException {
+		out.beginObject();
+		out.name("id").value(book.getID());
+		out.name("children");
+		writeChildren(book.getChildren(), out);
+		out.endObject();
+	}
+	
+	
+	/**
+	 * Encodes one page of a notebook's children as a JSON object.
+	 * @param notebookID the id of the notebook
+	 * @param children the children on the page
+	 * @param next the cursor of the next page, or null if this is the last page
+	 * @return the encoding
+	 */
+	public static String encodeChildrenPageAsJSON(int notebookID, List<FSObject> children,
+			PageCursor next){
+		StringWriter sw = new StringWriter(64 + 48 * children.size());
+		try{
+			JSONWriter out = new JSONWriter(sw);
+			writeChildrenPage(notebookID, children, next, out);
+			out.flush();
+		}
+		catch(IOException e){
+			throw new AssertionError(e);
+		}
+		return sw.toString();
+	}
+	
+	
+	/**
+	 * Writes one page of a notebook's children as a JSON object.
+	 * @param notebookID the id of the notebook
+	 * @param children the children on the page
+	 * @param next the cursor of the next page, or null if this is the last page
+	 * @param out the writer to write it to
+	 * @throws IOException
+	 */
+	public static void writeChildrenPage(int notebookID, List<FSObject> children,
+			PageCursor next, JSONWriter out) throws IOException {
+		out.beginObject();
+		out.name("id").value(notebookID);
+		out.name("children");
+		writeChildren(children, out);
+		out.name("next").value(next == null ? null : next.encode());
+		out.endObject();
+	}
+	
+	
+	/**
+	 * Writes one page of IDs as a JSON object.
+	 * @param ids the IDs on the page
+	 * @param next the value to pass as "after" to get the next page, or null if this is the
+	 * last page
+	 * @param out the writer to write it to
+	 * @throws IOException
+	 */
+	public static void writeIDPage(List<Integer> ids, Integer next, JSONWriter out)
+			throws IOException {
+		out.beginObject();
+		out.name("ids").beginArray();
+		for(int id: ids){
+			out.value(id);
+		}
+		out.endArray();
+		out.name("next");
+		if(next == null){
+			out.nullValue();
+		}
+		else{
+			out.value(next);
+		}
+		out.endObject();
+	}
+	
+	
+	private static void writeChildren(List<FSObject> children, JSONWriter out)
+			throws IOException {
+		out.beginArray();
+		for(FSObject obj: children){
+			out.beginObject();
+			out.name("id").value(obj.getID());
+			out.name("name").value(obj.getName());
+			out.name("type").value(obj.getType().toString());
+			out.endObject();
+		}
+		out.endArray();
 	}
 	
 	
@@ -57,45 +147,54 @@ public class JSON {
 	 * @return the JSON string
 	 */
 	public static String encodeNoteAsJSON(Note note){
-		StringBuilder sb = new StringBuilder();
-		
-		sb.append("{");
-		sb.append("\"id\":" + note.getID() + ", ");
-		sb.append("\"name\":\"" + note.getName() + "\", ");
-		sb.append("\"author\":" + note.getAuthor() + ", ");
-		sb.append("\"created\":");		// TODO
-		sb.append("\"modified\":");		// TODO
+		StringWriter sw = new StringWriter(256);
+		try{
+			JSONWriter out = new JSONWriter(sw, 256);
+			writeNote(note, out);
+			out.flush();
+		}
+		catch(IOException e){
+			throw new AssertionError(e);
+		}
+		return sw.toString();
+	}
+	
+	
+	/**
+	 * Writes the inputed note as a JSON object. Dates are written as ISO 8601 strings in
+	 * UTC.
+	 * @param note the note to write
+	 * @param out the writer to write it to
+	 * @throws IOException
+	 */
+	public static void writeNote(Note note, JSONWriter out) throws IOException {
+		out.beginObject();
+		out.name("id").value(note.getID());
+		out.name("name").value(note.getName());
+		out.name("author").value(note.getAuthor());
+		out.name("created").value(note.getCreated());
+		out.name("modified").value(note.getLastModified());
 		
-		sb.append("\"metadata\":[");
-		boolean first = true;
-		for(Entry<String, String> entry: note.getMetadata().entrySet()){
-			if(!first){
-				sb.append(", ");
+		out.name("metadata").beginArray();
+		if(note.getMetadata() != null){
+			for(Entry<String, String> entry: note.getMetadata().entrySet()){
+				out.beginObject();
+				out.name("field").value(entry.getKey());
+				out.name("value").value(entry.getValue());
+				out.endObject();
 			}
-			
-			sb.append("{");
-			sb.append("\"field\":\"" + entry.getKey() + "\", ");
-			sb.append("\"value\":\"" + entry.getValue() + "\"");
-			sb.append("}");
-			
-			first = false;
 		}
-		sb.append("], ");
+		out.endArray();
 		
-		sb.append("\"tags\":[");
-		first = true;
-		for(Tag tag: note.getTags()){
-			if(!first){
-				sb.append(", ");
+		out.name("tags").beginArray();
+		if(note.getTags() != null){
+			for(Tag tag: note.getTags()){
+				out.value(tag.getName());
 			}
-			sb.append("\"" + tag.getName() + "\"");
-			first = false;
 		}
-		sb.append("]");
-		
-		sb.append("}");
+		out.endArray();
 		
-		return sb.toString();
+		out.endObject();
 	}
 
 }
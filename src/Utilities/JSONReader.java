@@ -0,0 +1,266 @@
+package Utilities;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses JSON text into plain Java objects: objects become Maps (in the order of their
+ * members), arrays become Lists, strings become Strings, numbers become Longs if they
+ * are whole and Doubles otherwise, and true, false and null become Booleans and null.
+ * Meant for reading one record at a time, e.g. a line of a JSON lines file.
+ */
+public final class JSONReader {
+
+	private static final int MAX_DEPTH = 64;
+
+	private final String text;
+
+	private int pos = 0;
+
+	private int depth = 0;
+
+
+	private JSONReader(String text){
+		this.text = text;
+	}
+
+
+	/**
+	 * @param text a single JSON value, optionally surrounded by whitespace
+	 * @return the value
+	 * @throws IllegalArgumentException if the text is not valid JSON
+	 */
+	public static Object parse(String text){
+		JSONReader reader = new JSONReader(text);
+		Object value = reader.readValue();
+		reader.skipWhitespace();
+		if(reader.pos < text.length()){
+			throw reader.error("Unexpected text after the value");
+		}
+		return value;
+	}
+
+
+	private Object readValue(){
+		skipWhitespace();
+		if(pos == text.length()){
+			throw error("Unexpected end of text");
+		}
+		char c = text.charAt(pos);
+		switch(c){
+		case '{': return readObject();
+		case '[': return readArray();
+		case '"': return readString();
+		case 't': expectWord("true"); return Boolean.TRUE;
+		case 'f': expectWord("false"); return Boolean.FALSE;
+		case 'n': expectWord("null"); return null;
+		default:
+			if(c == '-' || (c >= '0' && c <= '9')){
+				return readNumber();
+			}
+			throw error("Unexpected character '" + c + "'");
+		}
+	}
+
+
+	private Map<String, Object> readObject(){
+		enter();
+		pos++;
+		Map<String, Object> object = new LinkedHashMap<String, Object>();
+		skipWhitespace();
+		if(peek() == '}'){
+			pos++;
+			depth--;
+			return object;
+		}
+		while(true){
+			skipWhitespace();
+			if(peek() != '"'){
+				throw error("Expected a member name");
+			}
+			String name = readString();
+			skipWhitespace();
+			expect(':');
+			object.put(name, readValue());
+			skipWhitespace();
+			if(peek() == ','){
+				pos++;
+			}
+			else{
+				expect('}');
+				depth--;
+				return object;
+			}
+		}
+	}
+
+
+	private List<Object> readArray(){
+		enter();
+		pos++;
+		List<Object> array = new ArrayList<Object>();
+		skipWhitespace();
+		if(peek() == ']'){
+			pos++;
+			depth--;
+			return array;
+		}
+		while(true){
+			array.add(readValue());
+			skipWhitespace();
+			if(peek() == ','){
+				pos++;
+			}
+			else{
+				expect(']');
+				depth--;
+				return array;
+			}
+		}
+	}
+
+
+	private String readString(){
+		pos++;
+		StringBuilder sb = null;
+		int start = pos;
+		while(true){
+			if(pos == text.length()){
+				throw error("Unterminated string");
+			}
+			char c = text.charAt(pos);
+			if(c == '"'){
+				String s = sb == null ? text.substring(start, pos)
+						: sb.append(text, start, pos).toString();
+				pos++;
+				return s;
+			}
+			if(c < 0x20){
+				throw error("Control character in string");
+			}
+			if(c != '\\'){
+				pos++;
+				continue;
+			}
+
+			// Only strings with escapes are copied
+			if(sb == null){
+				sb = new StringBuilder();
+			}
+			sb.append(text, start, pos);
+			pos++;
+			if(pos == text.length()){
+				throw error("Unterminated string");
+			}
+			char e = text.charAt(pos++);
+			switch(e){
+			case '"': sb.append('"'); break;
+			case '\\': sb.append('\\'); break;
+			case '/': sb.append('/'); break;
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				if(pos + 4 > text.length()){
+					throw error("Truncated unicode escape");
+				}
+				try{
+					sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+				}
+				catch(NumberFormatException ex){
+					throw error("Invalid unicode escape");
+				}
+				pos += 4;
+				break;
+			default:
+				throw error("Invalid escape '\\" + e + "'");
+			}
+			start = pos;
+		}
+	}
+
+
+	private Object readNumber(){
+		int start = pos;
+		boolean whole = true;
+		if(peek() == '-'){
+			pos++;
+		}
+		while(pos < text.length()){
+			char c = text.charAt(pos);
+			if(c >= '0' && c <= '9'){
+				pos++;
+			}
+			else if(c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-'){
+				whole = false;
+				pos++;
+			}
+			else{
+				break;
+			}
+		}
+		String number = text.substring(start, pos);
+		try{
+			if(whole){
+				return Long.parseLong(number);
+			}
+			return Double.parseDouble(number);
+		}
+		catch(NumberFormatException e){
+			if(whole){
+				// Too big for a long
+				return Double.parseDouble(number);
+			}
+			throw error("Invalid number " + number);
+		}
+	}
+
+
+	private void expectWord(String word){
+		if(!text.startsWith(word, pos)){
+			throw error("Unexpected character '" + text.charAt(pos) + "'");
+		}
+		pos += word.length();
+	}
+
+
+	private void expect(char c){
+		if(peek() != c){
+			throw error("Expected '" + c + "'");
+		}
+		pos++;
+	}
+
+
+	private char peek(){
+		return pos < text.length() ? text.charAt(pos) : 0;
+	}
+
+
+	private void enter(){
+		if(++depth > MAX_DEPTH){
+			throw error("JSON nested too deeply");
+		}
+	}
+
+
+	private void skipWhitespace(){
+		while(pos < text.length()){
+			char c = text.charAt(pos);
+			if(c != ' ' && c != '\t' && c != '\n' && c != '\r'){
+				return;
+			}
+			pos++;
+		}
+	}
+
+
+	private IllegalArgumentException error(String message){
+		return new IllegalArgumentException(message + " at position " + pos);
+	}
+
+}
@@ -0,0 +1,297 @@
+package Utilities;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.joda.time.ReadableInstant;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Writes JSON straight to a Writer as it is produced, rather than building the whole
+ * document in memory first. Output is collected in a fixed buffer that is passed to the
+ * Writer whenever it fills, so encoding a large document allocates almost nothing.
+ * Commas between values are inserted automatically. Not thread safe.
+ */
+public class JSONWriter implements Flushable {
+
+	private static final DateTimeFormatter ISO_DATE = ISODateTimeFormat.dateTime().withZoneUTC();
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final int MAX_DEPTH = 64;
+
+	private final Writer out;
+
+	private final char[] buf;
+
+	private int pos = 0;
+
+	/**
+	 * Whether the object or array at each nesting level has had a value written to it yet,
+	 * i.e. whether the next value needs a comma before it.
+	 */
+	private final boolean[] hasValue = new boolean[MAX_DEPTH];
+
+	private int depth = 0;
+
+	/**
+	 * Set between a name and its value, when no comma is needed.
+	 */
+	private boolean afterName = false;
+
+	/**
+	 * Reused for formatting dates.
+	 */
+	private final StringBuilder scratch = new StringBuilder(32);
+
+	/**
+	 * Reused for formatting numbers.
+	 */
+	private final char[] digits = new char[20];
+
+
+	/**
+	 * @param out the writer to write to
+	 */
+	public JSONWriter(Writer out){
+		this(out, 8192);
+	}
+
+	/**
+	 * @param out the writer to write to
+	 * @param bufferSize the number of characters to collect before writing them out
+	 */
+	public JSONWriter(Writer out, int bufferSize){
+		this.out = out;
+		this.buf = new char[Math.max(bufferSize, 16)];
+	}
+
+
+	public JSONWriter beginObject() throws IOException {
+		beforeValue();
+		open('{');
+		return this;
+	}
+
+	public JSONWriter endObject() throws IOException {
+		close('}');
+		return this;
+	}
+
+	public JSONWriter beginArray() throws IOException {
+		beforeValue();
+		open('[');
+		return this;
+	}
+
+	public JSONWriter endArray() throws IOException {
+		close(']');
+		return this;
+	}
+
+
+	/**
+	 * Writes the name of the next member of the current object.
+	 * @param name the member name
+	 * @return this
+	 * @throws IOException
+	 */
+	public JSONWriter name(String name) throws IOException {
+		beforeValue();
+		writeString(name);
+		write(':');
+		afterName = true;
+		return this;
+	}
+
+
+	/**
+	 * Writes a string value, or null.
+	 */
+	public JSONWriter value(String value) throws IOException {
+		beforeValue();
+		if(value == null){
+			writeRaw("null");
+		}
+		else{
+			writeString(value);
+		}
+		return this;
+	}
+
+	public JSONWriter value(long value) throws IOException {
+		beforeValue();
+		if(value == Long.MIN_VALUE){
+			writeRaw("-9223372036854775808");
+			return this;
+		}
+		if(value < 0){
+			write('-');
+			value = -value;
+		}
+
+		// Write the digits backwards from the end of the digit buffer
+		int i = digits.length;
+		do{
+			digits[--i] = (char) ('0' + value % 10);
+			value /= 10;
+		} while(value != 0);
+		write(digits, i, digits.length - i);
+		return this;
+	}
+
+	public JSONWriter value(boolean value) throws IOException {
+		beforeValue();
+		writeRaw(value ? "true" : "false");
+		return this;
+	}
+
+	/**
+	 * Writes an instant as an ISO 8601 string in UTC, or null.
+	 */
+	public JSONWriter value(ReadableInstant value) throws IOException {
+		beforeValue();
+		if(value == null){
+			writeRaw("null");
+			return this;
+		}
+		scratch.setLength(0);
+		ISO_DATE.printTo(scratch, value);
+		write('"');
+		for(int i = 0; i < scratch.length(); i++){
+			write(scratch.charAt(i));
+		}
+		write('"');
+		return this;
+	}
+
+	public JSONWriter nullValue() throws IOException {
+		beforeValue();
+		writeRaw("null");
+		return this;
+	}
+
+
+	/**
+	 * Ends a line, as between the values of a JSON lines file. Only allowed between
+	 * top-level values.
+	 * @return this
+	 * @throws IOException
+	 */
+	public JSONWriter newline() throws IOException {
+		if(depth > 0){
+			throw new IllegalStateException("Cannot end a line inside an object or array");
+		}
+		write('\n');
+		return this;
+	}
+
+
+	/**
+	 * Passes everything written so far on to the underlying writer, and flushes it.
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain();
+		out.flush();
+	}
+
+
+	private void open(char c) throws IOException {
+		if(depth == MAX_DEPTH){
+			throw new IllegalStateException("JSON nested too deeply");
+		}
+		write(c);
+		hasValue[depth++] = false;
+	}
+
+	private void close(char c) throws IOException {
+		if(depth == 0){
+			throw new IllegalStateException("No object or array to close");
+		}
+		depth--;
+		write(c);
+	}
+
+	/**
+	 * Writes the comma that separates a value or name from the one before it.
+	 */
+	private void beforeValue() throws IOException {
+		if(afterName){
+			afterName = false;
+			return;
+		}
+		if(depth > 0){
+			if(hasValue[depth - 1]){
+				write(',');
+			}
+			hasValue[depth - 1] = true;
+		}
+	}
+
+
+	private void writeString(String s) throws IOException {
+		write('"');
+		int len = s.length();
+		for(int i = 0; i < len; i++){
+			char c = s.charAt(i);
+			switch(c){
+			case '"': write('\\'); write('"'); break;
+			case '\\': write('\\'); write('\\'); break;
+			case '\n': write('\\'); write('n'); break;
+			case '\r': write('\\'); write('r'); break;
+			case '\t': write('\\'); write('t'); break;
+			case '\u2028': case '\u2029':
+				// Legal in JSON but not in JavaScript source
+				writeUnicodeEscape(c);
+				break;
+			default:
+				if(c < 0x20){
+					writeUnicodeEscape(c);
+				}
+				else{
+					write(c);
+				}
+			}
+		}
+		write('"');
+	}
+
+	private void writeUnicodeEscape(char c) throws IOException {
+		write('\\');
+		write('u');
+		write(HEX[(c >> 12) & 0xf]);
+		write(HEX[(c >> 8) & 0xf]);
+		write(HEX[(c >> 4) & 0xf]);
+		write(HEX[c & 0xf]);
+	}
+
+	private void writeRaw(String s) throws IOException {
+		for(int i = 0; i < s.length(); i++){
+			write(s.charAt(i));
+		}
+	}
+
+	private void write(char c) throws IOException {
+		if(pos == buf.length){
+			drain();
+		}
+		buf[pos++] = c;
+	}
+
+	private void write(char[] chars, int off, int len) throws IOException {
+		for(int i = off; i < off + len; i++){
+			write(chars[i]);
+		}
+	}
+
+	private void drain() throws IOException {
+		if(pos > 0){
+			out.write(buf, 0, pos);
+			pos = 0;
+		}
+	}
+
+}
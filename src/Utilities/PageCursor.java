@@ -0,0 +1,99 @@
+package Utilities;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The position of the last item of a page in a listing sorted by name and then by id,
+ * encoded as an opaque token that clients send back to get the next page.
+ */
+public class PageCursor {
+
+	private static final String HEX = "0123456789abcdef";
+
+	private final String name;
+
+	private final int id;
+
+
+	/**
+	 * @param name the name of the last item on the page
+	 * @param id the id of the last item on the page
+	 */
+	public PageCursor(String name, int id){
+		this.name = name;
+		this.id = id;
+	}
+
+
+	public String getName(){
+		return name;
+	}
+
+	public int getID(){
+		return id;
+	}
+
+
+	/**
+	 * @return the cursor as a token that is safe to put in a URL
+	 */
+	public String encode(){
+		byte[] bytes;
+		try{
+			bytes = (id + ":" + name).getBytes("UTF-8");
+		}
+		catch(UnsupportedEncodingException e){
+			throw new AssertionError(e);
+		}
+
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for(byte b: bytes){
+			sb.append(HEX.charAt((b >> 4) & 0xf));
+			sb.append(HEX.charAt(b & 0xf));
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * Reads a token made by {@link #encode()}.
+	 * @param token the token
+	 * @return the cursor
+	 * @throws IllegalArgumentException if the token is malformed
+	 */
+	public static PageCursor decode(String token){
+		if(token.length() % 2 != 0){
+			throw new IllegalArgumentException("Malformed cursor");
+		}
+
+		byte[] bytes = new byte[token.length() / 2];
+		for(int i = 0; i < bytes.length; i++){
+			int hi = HEX.indexOf(Character.toLowerCase(token.charAt(2 * i)));
+			int lo = HEX.indexOf(Character.toLowerCase(token.charAt(2 * i + 1)));
+			if(hi < 0 || lo < 0){
+				throw new IllegalArgumentException("Malformed cursor");
+			}
+			bytes[i] = (byte) ((hi << 4) | lo);
+		}
+
+		String s;
+		try{
+			s = new String(bytes, "UTF-8");
+		}
+		catch(UnsupportedEncodingException e){
+			throw new AssertionError(e);
+		}
+
+		int colon = s.indexOf(':');
+		if(colon < 0){
+			throw new IllegalArgumentException("Malformed cursor");
+		}
+		try{
+			return new PageCursor(s.substring(colon + 1), Integer.parseInt(s.substring(0, colon)));
+		}
+		catch(NumberFormatException e){
+			throw new IllegalArgumentException("Malformed cursor");
+		}
+	}
+
+}
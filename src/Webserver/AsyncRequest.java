@@ -0,0 +1,238 @@
+package Webserver;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import Database.DBFuture;
+import Utilities.JSONWriter;
+
+/**
+ * A request answered asynchronously: the container thread returns as soon as the
+ * database calls are made, and the response is written by whichever database thread
+ * completes the last of them. A request that takes longer than
+ * blacknote.http.timeoutMillis (30 seconds by default) is answered with 503 Service
+ * Unavailable, and the database call it was waiting for is cancelled if it hasn't
+ * started yet.
+ */
+final class AsyncRequest implements AsyncListener {
+
+	private static final long TIMEOUT_MILLIS = Long.getLong("blacknote.http.timeoutMillis",
+			30000);
+
+	/**
+	 * Continues a request once a database call has completed.
+	 * @param <T> the type of the call's result
+	 */
+	interface Step<T> {
+
+		/**
+		 * Either answers the request with {@link AsyncRequest#sendJSON(Body)} or
+		 * {@link AsyncRequest#sendError(int)}, or makes the next database call with
+		 * {@link AsyncRequest#await(DBFuture, Step)}.
+		 * @param result the result of the call
+		 * @throws Exception to answer the request with an error
+		 */
+		public void run(T result) throws Exception;
+	}
+
+
+	private final AsyncContext context;
+
+	private final HttpServletResponse response;
+
+	/**
+	 * Set once the request has been answered, by a step, an error or the timeout.
+	 */
+	private final AtomicBoolean answered = new AtomicBoolean();
+
+	/**
+	 * The database call being waited for.
+	 */
+	private volatile Future<?> pending;
+
+
+	private AsyncRequest(AsyncContext context, HttpServletResponse response){
+		this.context = context;
+		this.response = response;
+	}
+
+
+	/**
+	 * Puts a request into asynchronous mode. The servlet must return without writing to
+	 * the response once it has made its first call to {@link #await(DBFuture, Step)}.
+	 * @param request the request
+	 * @param response its response
+	 * @return the asynchronous request
+	 */
+	static AsyncRequest start(HttpServletRequest request, HttpServletResponse response){
+		AsyncContext context = request.startAsync(request, response);
+		context.setTimeout(TIMEOUT_MILLIS);
+		AsyncRequest async = new AsyncRequest(context, response);
+		context.addListener(async);
+		return async;
+	}
+
+
+	/**
+	 * Runs the step once the database call completes, on the thread that completes it.
+	 * If the call fails, the request is answered with an error instead.
+	 * @param future the database call
+	 * @param step what to do with its result
+	 */
+	<T> void await(DBFuture<T> future, final Step<? super T> step){
+		pending = future;
+		if(answered.get()){
+			// Timed out while the previous step ran
+			future.cancel(false);
+			return;
+		}
+		future.addCallback(new DBFuture.Callback<T>(){
+			@Override
+			public void onSuccess(T result){
+				if(answered.get()){
+					return;
+				}
+				try{
+					step.run(result);
+				}
+				catch(Exception e){
+					onFailure(e);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable cause){
+				if(cause instanceof CancellationException){
+					// Cancelled by whatever answered the request
+					return;
+				}
+				Throwable root = cause.getCause();
+				sendError(root instanceof RejectedExecutionException
+						? HttpServletResponse.SC_SERVICE_UNAVAILABLE
+						: HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+		});
+	}
+
+
+	/**
+	 * Writes a JSON body.
+	 */
+	interface Body {
+		public void write(JSONWriter out) throws IOException;
+	}
+
+
+	/**
+	 * Answers the request with a JSON response, unless it has already been answered, e.g.
+	 * because it timed out.
+	 * @param body writes the body of the response
+	 */
+	void sendJSON(Body body){
+		if(!claim()){
+			return;
+		}
+		try{
+			response.setContentType("application/json");
+			response.setCharacterEncoding("UTF-8");
+			JSONWriter out = new JSONWriter(response.getWriter());
+			body.write(out);
+			out.flush();
+		}
+		catch(IOException e){
+			// The client has gone; there is nobody to tell
+		}
+		finally{
+			context.complete();
+		}
+	}
+
+
+	/**
+	 * Answers the request with an error, unless it has already been answered.
+	 * @param status the HTTP status code
+	 */
+	void sendError(int status){
+		if(claim()){
+			writeError(status);
+		}
+	}
+
+
+	/**
+	 * Answers the request with an error, once the response has been claimed.
+	 * @param status the HTTP status code
+	 */
+	private void writeError(int status){
+		try{
+			if(!response.isCommitted()){
+				response.sendError(status);
+			}
+		}
+		catch(IOException e){
+			// The client has gone; there is nobody to tell
+		}
+		finally{
+			context.complete();
+		}
+	}
+
+
+	@Override
+	public void onTimeout(AsyncEvent event){
+		// Claimed before cancelling, since cancelling completes the call and runs its
+		// callback on this thread
+		if(claim()){
+			cancelPending();
+			writeError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		}
+	}
+
+
+	@Override
+	public void onError(AsyncEvent event){
+		cancelPending();
+		if(claim()){
+			context.complete();
+		}
+	}
+
+
+	@Override
+	public void onComplete(AsyncEvent event){
+		answered.set(true);
+	}
+
+
+	@Override
+	public void onStartAsync(AsyncEvent event){
+	}
+
+
+	/**
+	 * Claims the response for writing. Only the first claim succeeds, so a step and the
+	 * timeout can't both answer the request.
+	 */
+	private boolean claim(){
+		return answered.compareAndSet(false, true);
+	}
+
+
+	private void cancelPending(){
+		Future<?> future = pending;
+		if(future != null){
+			// Calls already running finish, but their result is thrown away
+			future.cancel(false);
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package Webserver;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import Database.AsyncDBAccess;
+import Database.DBAccess;
+import Database.DBException;
+import Notifications.DigestPipeline;
+import Notifications.SMTPMailSender;
+
+/**
+ * Starts the web app's background jobs when it is deployed and stops them when it is
+ * undeployed. The tag digest emails are only sent if blacknote.digest.periodMinutes is
+ * set to a positive number of minutes. On undeploy the threads of {@link AsyncDBAccess}
+ * are stopped too, and note updates held back by write-behind are written.
+ */
+@WebListener
+public class BackgroundJobs implements ServletContextListener {
+
+	private static final int DIGEST_PERIOD_MINUTES = Integer.getInteger(
+			"blacknote.digest.periodMinutes", 0);
+
+	private DigestPipeline digests;
+
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		if(DIGEST_PERIOD_MINUTES > 0){
+			try{
+				digests = new DigestPipeline(DBAccess.Singleton.getInstance(),
+						new SMTPMailSender());
+			}
+			catch(DBException e){
+				throw new IllegalStateException("Could not connect to the database", e);
+			}
+			digests.start(DIGEST_PERIOD_MINUTES, TimeUnit.MINUTES);
+			event.getServletContext().setAttribute(DigestPipeline.class.getName(), digests);
+		}
+	}
+
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		if(digests != null){
+			digests.stop();
+			digests = null;
+		}
+		AsyncDBAccess.Singleton.shutdown();
+		try{
+			DBAccess.Singleton.close();
+		}
+		catch(DBException e){
+			event.getServletContext().log(
+					"Some note updates or the search index could not be written", e);
+		}
+	}
+
+}
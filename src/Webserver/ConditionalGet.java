@@ -0,0 +1,91 @@
+package Webserver;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import Database.VersionTracker;
+import Database.VersionTracker.Version;
+
+/**
+ * Answers conditional GETs from the version of the object a response is built from, so
+ * that clients polling for changes can be told nothing changed without reading the
+ * database or encoding anything.
+ */
+final class ConditionalGet {
+
+	// Static class
+	private ConditionalGet(){
+	}
+
+
+	/**
+	 * Sets the validator headers of the response from the inputed version, and answers
+	 * with 304 Not Modified if the client already has that version. When other servers
+	 * write the database too, versions can't be trusted, so no validators are sent and
+	 * every request is answered in full.
+	 * @param request the request
+	 * @param response the response
+	 * @param version the version of the object the response would be built from, read
+	 * before the object itself
+	 * @return true if a 304 was sent and nothing else should be written
+	 */
+	static boolean notModified(HttpServletRequest request, HttpServletResponse response,
+			Version version){
+		if(!VersionTracker.seesAllWrites()){
+			response.setHeader("Cache-Control", "private, no-cache");
+			return false;
+		}
+
+		String etag = version.getETag();
+		// Round down to the second, the resolution of the HTTP date headers
+		long lastModified = version.getLastModified() / 1000 * 1000;
+
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", lastModified);
+		// Clients may keep the response, but must check it is still current before use
+		response.setHeader("Cache-Control", "private, no-cache");
+
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		boolean match;
+		if(ifNoneMatch != null){
+			// If-Modified-Since is ignored when If-None-Match is present
+			match = matches(ifNoneMatch, etag);
+		}
+		else{
+			long ifModifiedSince;
+			try{
+				ifModifiedSince = request.getDateHeader("If-Modified-Since");
+			}
+			catch(IllegalArgumentException e){
+				ifModifiedSince = -1;
+			}
+			match = ifModifiedSince >= lastModified;
+		}
+
+		if(match){
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		}
+		return match;
+	}
+
+
+	/**
+	 * @param header an If-None-Match header: "*" or a comma separated list of entity tags
+	 * @param etag the current entity tag
+	 * @return whether the header matches the tag
+	 */
+	private static boolean matches(String header, String etag){
+		for(String tag: header.split(",")){
+			tag = tag.trim();
+			if(tag.startsWith("W/")){
+				// Weak comparison is what a GET calls for
+				tag = tag.substring(2);
+			}
+			if(tag.equals("*") || tag.equals(etag)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -1,18 +1,52 @@
 package Webserver;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import DataModel.FSObject;
+import DataModel.FSObjectImpl;
+import DataModel.FSObjectType;
+import DataModel.Note;
+import DataModel.User;
+import Database.AsyncDBAccess;
+import Database.DBAccess;
+import Database.DBException;
+import Utilities.JSON;
+import Utilities.JSONWriter;
+import Utilities.PageCursor;
 
 /**
- * Servlet implementation class MetadataServlet
+ * Servlet implementation class MetadataServlet. The JSON endpoints are answered
+ * asynchronously (see {@link AsyncRequest}), so requests waiting on the database don't
+ * hold the container's threads.
  */
-@WebServlet("/MetadataServlet")
+@WebServlet(urlPatterns = "/MetadataServlet", asyncSupported = true)
 public class MetadataServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
+
+	private static final int DEFAULT_PAGE_SIZE = 100;
+
+	private static final int MAX_PAGE_SIZE = 1000;
+
+	/**
+	 * The session attribute that holds the id of the signed in user.
+	 */
+	private static final String USER_ATTRIBUTE = "userID";
+
+	/**
+	 * Stands for requests from users who haven't signed in. Nothing is granted to it.
+	 */
+	private static final int ANONYMOUS = -1;
        
     /**
      * @see HttpServlet#HttpServlet()
@@ -26,10 +60,14 @@ public class MetadataServlet extends HttpServlet {
 	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
 	 */
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		if(request.getParameter("tag") != null) { 
-			String tags = request.getParameter("tag").trim();
-			response.getWriter().write("DONE: " + tags);
-			response.sendRedirect("http://www.google.com");
+		if(request.getParameter("notebook") != null) {
+			listChildren(request, response);
+		}
+		else if(request.getParameter("note") != null) {
+			getNote(request, response);
+		}
+		else if(request.getParameter("tag") != null || request.getParameter("anyTag") != null) { 
+			findByTags(request, response);
 		}
         else {
         	response.getWriter().write("!ERROR!");
@@ -37,10 +75,247 @@ public class MetadataServlet extends HttpServlet {
 	}
 
 	/**
+	 * Writes one page of a notebook's children as JSON. The page starts after the
+	 * position in the "cursor" parameter, or at the beginning if there is none, and holds
+	 * at most "limit" children. Notes the signed in user can't read are left out, so a
+	 * page can hold fewer. The response includes the cursor of the next page.
+	 */
+	private void listChildren(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		int notebookID;
+		int limit = DEFAULT_PAGE_SIZE;
+		PageCursor after = null;
+		try {
+			notebookID = Integer.parseInt(request.getParameter("notebook").trim());
+			if(request.getParameter("limit") != null) {
+				limit = Integer.parseInt(request.getParameter("limit").trim());
+			}
+			if(request.getParameter("cursor") != null) {
+				after = PageCursor.decode(request.getParameter("cursor").trim());
+			}
+		}
+		catch(IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		final int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+		final int userID = userOf(request);
+		if(ConditionalGet.notModified(request, response, 
+				DBAccess.Singleton.getVersionTracker().getVersion(notebookID, userID))) {
+			return;
+		}
+
+		// Ask for one extra child to find out whether there is a next page
+		final AsyncDBAccess db = asyncDB();
+		final AsyncRequest async = AsyncRequest.start(request, response);
+		final int id = notebookID;
+		async.await(after == null 
+				? db.getChildren(notebookID, null, 0, pageSize + 1)
+				: db.getChildren(notebookID, after.getName(), after.getID(), pageSize + 1),
+				new AsyncRequest.Step<List<FSObject>>() {
+			@Override
+			public void run(List<FSObject> children) {
+				// The next page starts after the last child on this one, even if it is hidden
+				PageCursor next = null;
+				if(children.size() > pageSize) {
+					children = children.subList(0, pageSize);
+					FSObject last = children.get(pageSize - 1);
+					next = new PageCursor(last.getName(), last.getID());
+				}
+				final PageCursor nextPage = next;
+				async.await(db.filterReadable(userID, children), 
+						new AsyncRequest.Step<List<FSObject>>() {
+					@Override
+					public void run(final List<FSObject> readable) {
+						async.sendJSON(new AsyncRequest.Body() {
+							@Override
+							public void write(JSONWriter out) throws IOException {
+								JSON.writeChildrenPage(id, readable, nextPage, out);
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Writes the IDs of the notes that have every "tag", at least one "anyTag" (if any
+	 * are given) and no "notTag" as JSON. Each parameter may be repeated or hold a comma
+	 * separated list. Pages are at most "limit" IDs long, less the notes the signed in
+	 * user can't read, and start after the ID in "after".
+	 */
+	private void findByTags(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		int after = 0;
+		int limit = DEFAULT_PAGE_SIZE;
+		try {
+			if(request.getParameter("after") != null) {
+				after = Integer.parseInt(request.getParameter("after").trim());
+			}
+			if(request.getParameter("limit") != null) {
+				limit = Integer.parseInt(request.getParameter("limit").trim());
+			}
+		}
+		catch(NumberFormatException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		final int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+		// Ask for one extra ID to find out whether there is a next page
+		final int userID = userOf(request);
+		final AsyncDBAccess db = asyncDB();
+		final AsyncRequest async = AsyncRequest.start(request, response);
+		async.await(db.getNotesWithTags(tagParameter(request, "tag"), tagParameter(request, "anyTag"), 
+				tagParameter(request, "notTag"), after, pageSize + 1), 
+				new AsyncRequest.Step<List<Integer>>() {
+			@Override
+			public void run(List<Integer> ids) {
+				Integer next = null;
+				if(ids.size() > pageSize) {
+					ids = ids.subList(0, pageSize);
+					next = ids.get(pageSize - 1);
+				}
+				final Integer nextPage = next;
+
+				List<FSObject> notes = new ArrayList<FSObject>(ids.size());
+				for(Integer id: ids) {
+					notes.add(new FSObjectImpl(id, null, FSObjectType.NOTE));
+				}
+				async.await(db.filterReadable(userID, notes), new AsyncRequest.Step<List<FSObject>>() {
+					@Override
+					public void run(List<FSObject> readable) {
+						final List<Integer> readableIDs = new ArrayList<Integer>(readable.size());
+						for(FSObject note: readable) {
+							readableIDs.add(note.getID());
+						}
+						async.sendJSON(new AsyncRequest.Body() {
+							@Override
+							public void write(JSONWriter out) throws IOException {
+								JSON.writeIDPage(readableIDs, nextPage, out);
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @return the tags in every value of the parameter, split on commas
+	 */
+	private static Set<String> tagParameter(HttpServletRequest request, String name) {
+		Set<String> tags = new LinkedHashSet<String>();
+		String[] values = request.getParameterValues(name);
+		if(values != null) {
+			for(String value: values) {
+				for(String tag: value.split(",")) {
+					tag = tag.trim();
+					if(!tag.isEmpty()) {
+						tags.add(tag);
+					}
+				}
+			}
+		}
+		return tags;
+	}
+
+	/**
+	 * Writes the note in the "note" parameter as JSON, or 404 if there is no such note or
+	 * the signed in user can't read it.
+	 */
+	private void getNote(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		int noteID;
+		try {
+			noteID = Integer.parseInt(request.getParameter("note").trim());
+		}
+		catch(NumberFormatException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		int userID = userOf(request);
+		if(ConditionalGet.notModified(request, response, 
+				DBAccess.Singleton.getVersionTracker().getVersion(noteID, userID))) {
+			return;
+		}
+
+		AsyncDBAccess db = asyncDB();
+		final AsyncRequest async = AsyncRequest.start(request, response);
+		async.await(db.getNoteIfReadable(noteID, userID), new AsyncRequest.Step<Note>() {
+			@Override
+			public void run(final Note note) {
+				if(note == null) {
+					async.sendError(HttpServletResponse.SC_NOT_FOUND);
+					return;
+				}
+				async.sendJSON(new AsyncRequest.Body() {
+					@Override
+					public void write(JSONWriter out) throws IOException {
+						JSON.writeNote(note, out);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @return the asynchronous database, whose calls run off the container's threads
+	 */
+	private static AsyncDBAccess asyncDB() throws IOException {
+		try {
+			return AsyncDBAccess.Singleton.getInstance();
+		}
+		catch(DBException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * @return the id of the user signed in to the request's session, or
+	 * {@link #ANONYMOUS}
+	 */
+	private static int userOf(HttpServletRequest request) {
+		HttpSession session = request.getSession(false);
+		Object userID = session == null ? null : session.getAttribute(USER_ATTRIBUTE);
+		return userID instanceof Integer ? (Integer) userID : ANONYMOUS;
+	}
+
+	/**
+	 * Signs the user in with the "user" and "pass" parameters, or signs them out if 
+	 * there is a "logout" parameter. Answers 204 on success and 401 if the credentials
+	 * don't match.
 	 * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
 	 */
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		// TODO Auto-generated method stub
+		if(request.getParameter("logout") != null) {
+			HttpSession session = request.getSession(false);
+			if(session != null) {
+				session.invalidate();
+			}
+			response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			return;
+		}
+
+		User user;
+		try {
+			user = DBAccess.Singleton.getInstance().userDoesExist(request.getParameter("user"), 
+					request.getParameter("pass"));
+		}
+		catch(DBException e) {
+			throw new IOException(e);
+		}
+		if(user == null) {
+			response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		// Start a new session, so that an id handed out before signing in can't be used
+		HttpSession session = request.getSession(false);
+		if(session != null) {
+			session.invalidate();
+		}
+		request.getSession(true).setAttribute(USER_ATTRIBUTE, user.getID());
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
 	}
 
 }
@@ -13,7 +13,7 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Servlet implementation class MyServlet
  */
-@WebServlet("/MyServlet")
+@WebServlet(urlPatterns = "/MyServlet", asyncSupported = true)
 public class MyServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
        